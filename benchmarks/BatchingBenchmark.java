@@ -0,0 +1,160 @@
+/*
+ * Measures how many tasks a single worker connection can fetch and complete per second when it
+ * takes one task at a time (get_task and complete_task), compared with taking them in batches
+ * (get_tasks and complete_tasks), waiting for each response before sending the next request. The
+ * scheduler is started in-process, using the settings from the environment, e.g.
+ *
+ * USE_THREAD_POOL=true SOCKET_PORT=3994 bash benchmarks/run.sh BatchingBenchmark [numTasks] [batchSize]
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+
+public class BatchingBenchmark
+{
+    private static final int ROUNDS = 3;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+
+        new SocketListener().start();
+
+        try (Socket socket = connect())
+        {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+
+                String queueName = "batching_benchmark_single_" + round;
+                addTasks(in, out, queueName, numTasks);
+                System.out.println("  one at a time:    " + runSingle(in, out, queueName, numTasks) + " tasks/sec");
+
+                queueName = "batching_benchmark_batched_" + round;
+                addTasks(in, out, queueName, numTasks);
+                System.out.println("  batches of " + batchSize + ":    " + runBatched(in, out, queueName, numTasks, batchSize) + " tasks/sec");
+            }
+        }
+
+        System.exit(0);
+    }
+
+
+    private static void addTasks(BufferedReader in, PrintWriter out, String queueName, int numTasks) throws Exception
+    {
+        for (int i = 0; i < numTasks; i++)
+        {
+            out.println("{\"action\":\"add_task\",\"queue_name\":\"" + queueName + "\",\"task_name\":\"task\"}");
+        }
+
+        out.flush();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            in.readLine();
+        }
+    }
+
+
+    /**
+     * Fetch and complete every task with get_task and complete_task.
+     * @return the number of tasks per second.
+     */
+    private static long runSingle(BufferedReader in, PrintWriter out, String queueName, int numTasks) throws Exception
+    {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            String response = request(in, out, "{\"action\":\"get_task\",\"queue_name\":\"" + queueName + "\"}");
+            int taskStart = response.indexOf("\"task\":");
+            request(in, out, "{\"action\":\"complete_task\",\"queue_name\":\"" + queueName + "\","
+                           + "\"task_id\":" + extract(response, "\"id\":", ',', taskStart) + ","
+                           + "\"lock\":\"" + extract(response, "\"lock\":\"", '"', taskStart) + "\"}");
+        }
+
+        return numTasks * 1000000000L / (System.nanoTime() - start);
+    }
+
+
+    /**
+     * Fetch and complete every task with get_tasks and complete_tasks.
+     * @return the number of tasks per second.
+     */
+    private static long runBatched(BufferedReader in, PrintWriter out, String queueName, int numTasks, int batchSize) throws Exception
+    {
+        long start = System.nanoTime();
+        int numCompleted = 0;
+        StringBuilder completeTasks = new StringBuilder();
+
+        while (numCompleted < numTasks)
+        {
+            String response = request(in, out, "{\"action\":\"get_tasks\",\"queue_name\":\"" + queueName + "\","
+                                             + "\"max_tasks\":" + batchSize + "}");
+
+            completeTasks.setLength(0);
+            completeTasks.append("{\"action\":\"complete_tasks\",\"queue_name\":\"").append(queueName).append("\",\"tasks\":[");
+            int taskStart = response.indexOf("\"id\":");
+
+            while (taskStart >= 0)
+            {
+                if (completeTasks.charAt(completeTasks.length() - 1) == '}')
+                {
+                    completeTasks.append(',');
+                }
+
+                completeTasks.append("{\"task_id\":").append(extract(response, "\"id\":", ',', taskStart))
+                             .append(",\"lock\":\"").append(extract(response, "\"lock\":\"", '"', taskStart)).append("\"}");
+                numCompleted++;
+                taskStart = response.indexOf("\"id\":", taskStart + 1);
+            }
+
+            request(in, out, completeTasks.append("]}").toString());
+        }
+
+        return numTasks * 1000000000L / (System.nanoTime() - start);
+    }
+
+
+    private static String request(BufferedReader in, PrintWriter out, String message) throws Exception
+    {
+        out.println(message);
+        out.flush();
+        return in.readLine();
+    }
+
+
+    private static String extract(String json, String prefix, char terminator, int from)
+    {
+        int start = json.indexOf(prefix, from) + prefix.length();
+        return json.substring(start, json.indexOf(terminator, start));
+    }
+
+
+    private static Socket connect() throws Exception
+    {
+        // Give the listener a moment to bind the port.
+        for (int attempt = 0; attempt < 50; attempt++)
+        {
+            try
+            {
+                return new Socket("127.0.0.1", Settings.SOCKET_PORT());
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new Exception("Could not connect to the scheduler on port " + Settings.SOCKET_PORT());
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Measures how many tasks a single connection can add, get and complete per second when speaking
+ * line delimited JSON, compared with the binary protocol. Requests are pipelined in both cases so
+ * that this measures the cost of the encoding rather than round trips. The scheduler is started
+ * in-process, using the settings from the environment, so this can be run against either
+ * connection mode, e.g.
+ *
+ * USE_THREAD_POOL=true SOCKET_PORT=3992 bash benchmarks/run.sh BinaryProtocolBenchmark [numTasks] [window]
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+
+public class BinaryProtocolBenchmark
+{
+    private static final int ROUNDS = 3;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int window = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+
+        new SocketListener().start();
+
+        try (Socket jsonSocket = connect(); Socket binarySocket = connect())
+        {
+            jsonSocket.setTcpNoDelay(true);
+            binarySocket.setTcpNoDelay(true);
+            BufferedReader jsonIn = new BufferedReader(new InputStreamReader(jsonSocket.getInputStream()));
+            PrintWriter jsonOut = new PrintWriter(jsonSocket.getOutputStream());
+            InputStream binaryIn = new BufferedInputStream(binarySocket.getInputStream());
+            OutputStream binaryOut = new BufferedOutputStream(binarySocket.getOutputStream());
+            binaryOut.write(BinaryProtocolHandler.MAGIC_BYTE);
+
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+                System.out.println("  json:   " + runJson(jsonIn, jsonOut, numTasks, window) + " tasks/sec");
+                System.out.println("  binary: " + runBinary(binaryIn, binaryOut, numTasks, window) + " tasks/sec");
+            }
+        }
+
+        System.exit(0);
+    }
+
+
+    /**
+     * Add tasks, then get and complete every one of them, with up to [window] requests waiting on
+     * a response at any time.
+     * @return the number of tasks that went through the whole cycle per second.
+     */
+    private static long runJson(BufferedReader in, PrintWriter out, int numTasks, int window) throws Exception
+    {
+        String queue = "\"queue_name\":\"binary_protocol_benchmark_json\"";
+        long start = System.nanoTime();
+
+        for (int numSent = 0, numReceived = 0; numReceived < numTasks; numReceived++)
+        {
+            while (numSent < numTasks && numSent - numReceived < window)
+            {
+                out.println("{\"action\":\"add_task\"," + queue + ",\"task_name\":\"task\",\"priority\":5}");
+                numSent++;
+            }
+
+            out.flush();
+            expectSuccess(in.readLine());
+        }
+
+        // Each get_task response is followed by the complete_task request for it, so the gets
+        // and completes are interleaved in the window.
+        ArrayDeque<Boolean> inFlight = new ArrayDeque<>();
+        int numGetsSent = 0;
+        int numCompleted = 0;
+
+        while (numCompleted < numTasks)
+        {
+            while (numGetsSent < numTasks && inFlight.size() < window)
+            {
+                out.println("{\"action\":\"get_task\"," + queue + "}");
+                inFlight.add(true);
+                numGetsSent++;
+            }
+
+            out.flush();
+            String response = in.readLine();
+            expectSuccess(response);
+
+            if (inFlight.poll())
+            {
+                String taskId = extractJson(response, "\"id\":", ",}");
+                String lock = extractJson(response, "\"lock\":\"", "\"");
+                out.println("{\"action\":\"complete_task\"," + queue + ",\"task_id\":" + taskId 
+                          + ",\"lock\":\"" + lock + "\"}");
+                inFlight.add(false);
+            }
+            else
+            {
+                numCompleted++;
+            }
+        }
+
+        return (numTasks * 1000000000L) / (System.nanoTime() - start);
+    }
+
+
+    private static long runBinary(InputStream in, OutputStream out, int numTasks, int window) throws Exception
+    {
+        byte[] queue = "binary_protocol_benchmark_binary".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(1);
+        writeString(request, queue);
+        writeString(request, "task".getBytes(StandardCharsets.UTF_8));
+        request.write(5);
+        request.write(0);
+        writeString(request, new byte[0]);
+        writeVarint(request, 0);
+        byte[] addTask = BinaryProtocolHandler.encodeFrame(request.toByteArray(), request.size());
+
+        request.reset();
+        request.write(2);
+        writeString(request, queue);
+        byte[] getTask = BinaryProtocolHandler.encodeFrame(request.toByteArray(), request.size());
+
+        long start = System.nanoTime();
+
+        for (int numSent = 0, numReceived = 0; numReceived < numTasks; numReceived++)
+        {
+            while (numSent < numTasks && numSent - numReceived < window)
+            {
+                out.write(addTask);
+                numSent++;
+            }
+
+            out.flush();
+            expectSuccess(readFrame(in));
+        }
+
+        ArrayDeque<Boolean> inFlight = new ArrayDeque<>();
+        int numGetsSent = 0;
+        int numCompleted = 0;
+
+        while (numCompleted < numTasks)
+        {
+            while (numGetsSent < numTasks && inFlight.size() < window)
+            {
+                out.write(getTask);
+                inFlight.add(true);
+                numGetsSent++;
+            }
+
+            out.flush();
+            ByteBuffer response = readFrame(in);
+            expectSuccess(response);
+
+            if (inFlight.poll())
+            {
+                // The task id and lock are the first fields, and go straight back into the
+                // complete request.
+                int taskIdStart = response.position();
+                readVarint(response);
+                int lockEnd = response.position() + 16;
+
+                request.reset();
+                request.write(3);
+                writeString(request, queue);
+                request.write(response.array(), taskIdStart, lockEnd - taskIdStart);
+                out.write(BinaryProtocolHandler.encodeFrame(request.toByteArray(), request.size()));
+                inFlight.add(false);
+            }
+            else
+            {
+                numCompleted++;
+            }
+        }
+
+        return (numTasks * 1000000000L) / (System.nanoTime() - start);
+    }
+
+
+    private static void expectSuccess(String response) throws Exception
+    {
+        if (!response.contains("\"result\":\"success\""))
+        {
+            throw new Exception("Request failed: " + response);
+        }
+    }
+
+
+    private static void expectSuccess(ByteBuffer response) throws Exception
+    {
+        if (response.get() != 0)
+        {
+            throw new Exception("Request failed: " + Arrays.toString(response.array()));
+        }
+    }
+
+
+    /**
+     * Pull a value out of a JSON response without parsing the whole thing.
+     */
+    private static String extractJson(String json, String prefix, String terminators)
+    {
+        int start = json.indexOf(prefix) + prefix.length();
+        int end = start;
+
+        while (terminators.indexOf(json.charAt(end)) == -1)
+        {
+            end++;
+        }
+
+        return json.substring(start, end);
+    }
+
+
+    private static ByteBuffer readFrame(InputStream in) throws Exception
+    {
+        int length = 0;
+        int shift = 0;
+        int nextByte;
+
+        do
+        {
+            nextByte = in.read();
+            length |= (nextByte & 0x7F) << shift;
+            shift += 7;
+        } while ((nextByte & 0x80) != 0);
+
+        byte[] frame = new byte[length];
+
+        for (int numRead = 0; numRead < length; )
+        {
+            numRead += in.read(frame, numRead, length - numRead);
+        }
+
+        return ByteBuffer.wrap(frame);
+    }
+
+
+    private static int readVarint(ByteBuffer buffer)
+    {
+        int value = 0;
+        int shift = 0;
+        byte nextByte;
+
+        do
+        {
+            nextByte = buffer.get();
+            value |= (nextByte & 0x7F) << shift;
+            shift += 7;
+        } while ((nextByte & 0x80) != 0);
+
+        return value;
+    }
+
+
+    private static void writeString(ByteArrayOutputStream out, byte[] value)
+    {
+        writeVarint(out, value.length);
+        out.write(value, 0, value.length);
+    }
+
+
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+
+    private static Socket connect() throws Exception
+    {
+        for (int attempt = 0; attempt < 50; attempt++)
+        {
+            try
+            {
+                return new Socket("127.0.0.1", Settings.SOCKET_PORT());
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new Exception("Could not connect to the scheduler on port " + Settings.SOCKET_PORT());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Load tests each of the connection modes (one platform thread per connection, one virtual thread
+ * per connection, and the event loops). For each mode a scheduler is started in a child process,
+ * lots of connections are opened that just sit idle (like workers waiting for work), and a smaller
+ * number of clients make add_task / get_task / complete_task round trips as fast as they can. The
+ * server's memory and thread count, and the latency of the requests, are then reported.
+ *
+ * Virtual threads need Java 21 or later. On older versions that mode falls back to platform
+ * threads, so the first two rows will look the same.
+ * Memory and thread counts are read from /proc, so are only available on Linux.
+ *
+ * Usage: bash benchmarks/run.sh ConnectionModeBenchmark [idleConnections] [activeClients] [requestsPerClient]
+ */
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+public class ConnectionModeBenchmark
+{
+    private static final int PORT = 3991;
+    private static final String QUEUE_NAME = "connection_mode_benchmark";
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numIdleConnections = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int numActiveClients = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+        int requestsPerClient = (args.length > 2) ? Integer.parseInt(args[2]) : 3000;
+
+        System.out.println("java " + Runtime.version() + ", " + numIdleConnections + " idle connections, "
+                         + numActiveClients + " active clients");
+
+        runMode("platform threads", "USE_THREAD_POOL=false", numIdleConnections, numActiveClients, requestsPerClient);
+        runMode("virtual threads", "USE_VIRTUAL_THREADS=true", numIdleConnections, numActiveClients, requestsPerClient);
+        runMode("event loops", "USE_THREAD_POOL=true", numIdleConnections, numActiveClients, requestsPerClient);
+    }
+
+
+    private static void runMode(String modeName,
+                                String setting,
+                                int numIdleConnections,
+                                int numActiveClients,
+                                int requestsPerClient) throws Exception
+    {
+        Process server = startServer(setting);
+        ArrayList<Socket> idleConnections = new ArrayList<>();
+
+        try
+        {
+            for (int i = 0; i < numIdleConnections; i++)
+            {
+                idleConnections.add(new Socket("127.0.0.1", PORT));
+            }
+
+            long[] latencies = runActiveClients(numActiveClients, requestsPerClient);
+            Arrays.sort(latencies);
+
+            System.out.println(String.format(
+                "%-17s rss: %6s  threads: %5s  p50: %6d us  p99: %6d us  p99.9: %6d us",
+                modeName + ":",
+                readProcStatus(server, "VmRSS"),
+                readProcStatus(server, "Threads"),
+                latencies[latencies.length / 2] / 1000,
+                latencies[(int)(latencies.length * 0.99)] / 1000,
+                latencies[(int)(latencies.length * 0.999)] / 1000
+            ));
+        }
+        finally
+        {
+            for (Socket socket : idleConnections)
+            {
+                socket.close();
+            }
+
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+
+    /**
+     * Have each client add, fetch and complete tasks in a loop, timing every request.
+     * @return the latencies of all the requests in nanoseconds.
+     */
+    private static long[] runActiveClients(int numActiveClients, int requestsPerClient) throws Exception
+    {
+        long[][] clientLatencies = new long[numActiveClients][];
+        Thread[] clients = new Thread[numActiveClients];
+
+        for (int c = 0; c < numActiveClients; c++)
+        {
+            final int clientIndex = c;
+
+            clients[c] = new Thread(() ->
+            {
+                try (Socket socket = new Socket("127.0.0.1", PORT))
+                {
+                    socket.setTcpNoDelay(true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream());
+                    long[] latencies = new long[requestsPerClient];
+                    int numRequests = 0;
+
+                    while (numRequests < requestsPerClient)
+                    {
+                        long start = System.nanoTime();
+                        JsonObject response = request(in, out, "{\"action\":\"get_task\"}");
+                        latencies[numRequests++] = System.nanoTime() - start;
+
+                        if (numRequests < requestsPerClient)
+                        {
+                            String nextRequest = "{\"action\":\"add_task\",\"task_name\":\"load_test\"}";
+
+                            if (response.get("result").getAsString().equals("success"))
+                            {
+                                JsonObject task = response.getAsJsonObject("cargo").getAsJsonObject("task");
+                                nextRequest = "{\"action\":\"complete_task\",\"task_id\":" + task.get("id")
+                                            + ",\"lock\":" + task.get("lock") + "}";
+                            }
+
+                            start = System.nanoTime();
+                            request(in, out, nextRequest);
+                            latencies[numRequests++] = System.nanoTime() - start;
+                        }
+                    }
+
+                    clientLatencies[clientIndex] = latencies;
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            clients[c].start();
+        }
+
+        long[] latencies = new long[numActiveClients * requestsPerClient];
+
+        for (int c = 0; c < numActiveClients; c++)
+        {
+            clients[c].join();
+            System.arraycopy(clientLatencies[c], 0, latencies, c * requestsPerClient, requestsPerClient);
+        }
+
+        return latencies;
+    }
+
+
+    private static JsonObject request(BufferedReader in, PrintWriter out, String request) throws Exception
+    {
+        out.println(request.substring(0, request.length() - 1) + ",\"queue_name\":\"" + QUEUE_NAME + "\"}");
+        out.flush();
+        return (JsonObject)new JsonParser().parse(in.readLine());
+    }
+
+
+    /**
+     * Start a scheduler in its own working directory (so that its lock file does not clash with a
+     * scheduler that may already be running) and wait for it to accept connections.
+     */
+    private static Process startServer(String setting) throws Exception
+    {
+        File workingDirectory = Files.createTempDirectory("connection_mode_benchmark").toFile();
+        workingDirectory.deleteOnExit();
+        String javaBinary = ProcessHandle.current().info().command().orElse("java");
+
+        ProcessBuilder builder = new ProcessBuilder(
+            javaBinary, "-cp", System.getProperty("java.class.path"), "Main"
+        );
+
+        builder.directory(workingDirectory);
+        builder.environment().put("SOCKET_PORT", String.valueOf(PORT));
+        builder.environment().put(setting.split("=")[0], setting.split("=")[1]);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process server = builder.start();
+
+        for (int attempt = 0; attempt < 100; attempt++)
+        {
+            try
+            {
+                new Socket("127.0.0.1", PORT).close();
+                return server;
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        server.destroy();
+        throw new Exception("Scheduler did not start listening on port " + PORT);
+    }
+
+
+    private static String readProcStatus(Process process, String field) throws Exception
+    {
+        String value = "n/a";
+        File status = new File("/proc/" + process.pid() + "/status");
+
+        if (status.exists())
+        {
+            for (String line : Files.readAllLines(status.toPath()))
+            {
+                if (line.startsWith(field + ":"))
+                {
+                    value = line.substring(field.length() + 1).trim().replace(" kB", "k");
+                }
+            }
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Measures how long it takes to submit a DAG of tasks over one connection, with one add_task per
+ * task (waiting for each task's id before the tasks that depend on it can be sent), compared with
+ * sending the whole DAG in a single add_tasks request. Each task depends on up to two of the tasks
+ * before it. The scheduler is started in-process, using the settings from the environment, e.g.
+ *
+ * USE_THREAD_POOL=true SOCKET_PORT=3995 bash benchmarks/run.sh DagSubmissionBenchmark [numTasks]
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Random;
+
+
+public class DagSubmissionBenchmark
+{
+    private static final int ROUNDS = 3;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+
+        // The same DAG is used every time: the positions of the tasks each task depends on.
+        Random random = new Random(42);
+        int[][] dependencies = new int[numTasks][];
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            dependencies[i] = new int[Math.min(i, random.nextInt(3))];
+
+            for (int j = 0; j < dependencies[i].length; j++)
+            {
+                dependencies[i][j] = random.nextInt(i);
+            }
+        }
+
+        new SocketListener().start();
+
+        try (Socket socket = connect())
+        {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+                System.out.println("  add_task each:    " + runSingle(in, out, "dag_benchmark_single_" + round, dependencies) + " ms");
+                System.out.println("  one add_tasks:    " + runBatch(in, out, "dag_benchmark_batch_" + round, dependencies) + " ms");
+            }
+        }
+
+        System.exit(0);
+    }
+
+
+    /**
+     * Add the tasks one at a time, using the ids in the responses for the dependencies.
+     * @return the time taken in milliseconds.
+     */
+    private static long runSingle(BufferedReader in, PrintWriter out, String queueName, int[][] dependencies) throws Exception
+    {
+        long start = System.nanoTime();
+        String[] taskIds = new String[dependencies.length];
+        StringBuilder request = new StringBuilder();
+
+        for (int i = 0; i < dependencies.length; i++)
+        {
+            request.setLength(0);
+            request.append("{\"action\":\"add_task\",\"queue_name\":\"").append(queueName)
+                   .append("\",\"task_name\":\"task\",\"dependencies\":[");
+
+            for (int j = 0; j < dependencies[i].length; j++)
+            {
+                request.append((j == 0) ? "" : ",").append(taskIds[dependencies[i][j]]);
+            }
+
+            out.println(request.append("]}"));
+            out.flush();
+
+            String response = in.readLine();
+            int idStart = response.indexOf("\"task_id\":") + "\"task_id\":".length();
+            taskIds[i] = response.substring(idStart, response.indexOf('}', idStart));
+        }
+
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+
+    /**
+     * Add all of the tasks in one add_tasks request, using their positions as their keys.
+     * @return the time taken in milliseconds.
+     */
+    private static long runBatch(BufferedReader in, PrintWriter out, String queueName, int[][] dependencies) throws Exception
+    {
+        long start = System.nanoTime();
+        StringBuilder request = new StringBuilder();
+        request.append("{\"action\":\"add_tasks\",\"queue_name\":\"").append(queueName).append("\",\"tasks\":[");
+
+        for (int i = 0; i < dependencies.length; i++)
+        {
+            request.append((i == 0) ? "" : ",")
+                   .append("{\"key\":\"").append(i).append("\",\"task_name\":\"task\",\"local_dependencies\":[");
+
+            for (int j = 0; j < dependencies[i].length; j++)
+            {
+                request.append((j == 0) ? "\"" : ",\"").append(dependencies[i][j]).append('"');
+            }
+
+            request.append("]}");
+        }
+
+        out.println(request.append("]}"));
+        out.flush();
+        String response = in.readLine();
+
+        if (!response.contains("\"result\":\"success\""))
+        {
+            throw new Exception("add_tasks failed: " + response);
+        }
+
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+
+    private static Socket connect() throws Exception
+    {
+        // Give the listener a moment to bind the port.
+        for (int attempt = 0; attempt < 50; attempt++)
+        {
+            try
+            {
+                return new Socket("127.0.0.1", Settings.SOCKET_PORT());
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new Exception("Could not connect to the scheduler on port " + Settings.SOCKET_PORT());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Measures how many add_task operations per second the queue can make durable with the journal,
+ * for different commit windows (see Settings.JOURNAL_COMMIT_WINDOW), compared with not journaling
+ * at all. A number of threads stand in for clients, each adding a task and then waiting for it to
+ * be on disk before adding the next, as a client waits for its response. The longer the window,
+ * the more of their changes share each fsync, at the cost of each one waiting longer.
+ *
+ * The journals are written to a temporary directory, which should be on the disk you want to
+ * measure (set java.io.tmpdir through JAVA_OPTS to pick another).
+ *
+ * Usage: bash benchmarks/run.sh JournalBenchmark [threads] [seconds] [windows (us, comma separated)]
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class JournalBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int numThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        int numSeconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        String windows = (args.length > 2) ? args[2] : "0,100,500,2000";
+
+        File directory = Files.createTempDirectory("journal_benchmark").toFile();
+
+        try
+        {
+            System.out.println("threads: " + numThreads);
+            report("no journal", run(null, null, numThreads, numSeconds), numSeconds);
+
+            for (String window : windows.split(","))
+            {
+                long commitWindow = Long.parseLong(window.trim());
+                JournalWriter writer = new JournalWriter(commitWindow);
+                Journal journal = Journal.create(directory, "journal_benchmark_" + commitWindow, 0, writer);
+                report("window " + commitWindow + " us", run(journal, writer, numThreads, numSeconds), numSeconds);
+                journal.close();
+            }
+        }
+        finally
+        {
+            for (File file : directory.listFiles())
+            {
+                file.delete();
+            }
+
+            directory.delete();
+        }
+
+        System.exit(0);
+    }
+
+
+    /**
+     * Have each thread add tasks (waiting for each to be durable) for the specified time.
+     * @return the number of tasks added, and the total time in nanoseconds they took.
+     */
+    private static long[] run(Journal journal, JournalWriter writer, int numThreads, int numSeconds) throws Exception
+    {
+        TaskQueue queue = new TaskQueue("journal_benchmark");
+        queue.setJournal(journal);
+
+        AtomicLong numAdded = new AtomicLong(0);
+        AtomicLong totalLatency = new AtomicLong(0);
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        ArrayList<Thread> threads = new ArrayList<>();
+        ArrayList<Integer> noDependencies = new ArrayList<>();
+
+        for (int i = 0; i < numThreads; i++)
+        {
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                long localAdded = 0;
+                long localLatency = 0;
+
+                while (System.nanoTime() < deadline[0])
+                {
+                    long before = System.nanoTime();
+                    queue.addTask("task", noDependencies, "", 5, null);
+                    long sequence = JournalWriter.takeThreadSequence();
+
+                    if (writer != null)
+                    {
+                        writer.awaitDurable(sequence);
+                    }
+
+                    localLatency += System.nanoTime() - before;
+                    localAdded++;
+                }
+
+                numAdded.addAndGet(localAdded);
+                totalLatency.addAndGet(localLatency);
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        deadline[0] = System.nanoTime() + numSeconds * 1000000000L;
+        start.countDown();
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        return new long[] { numAdded.get(), totalLatency.get() };
+    }
+
+
+    private static void report(String name, long[] result, int numSeconds)
+    {
+        long numAdded = result[0];
+        double meanLatency = (numAdded == 0) ? 0.0 : result[1] / (numAdded * 1000.0);
+        System.out.printf("  %-16s %10d ops/sec   mean latency %8.1f us%n", name, numAdded / numSeconds, meanLatency);
+    }
+}
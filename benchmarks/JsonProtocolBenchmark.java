@@ -0,0 +1,256 @@
+/*
+ * Measures the cost of handling JSON requests in-process (no sockets), reporting the time and the
+ * number of bytes allocated per request for the add_task/get_task/complete_task cycle. For
+ * comparison it also measures what the old approach of parsing each request into a Gson tree and
+ * rendering each response with a new Gson costs for the same messages, on top of the queue work.
+ *
+ * There is no JMH in this project, so this uses the same warm up rounds as the other benchmarks,
+ * and the allocation counter of the JVM's ThreadMXBean.
+ *
+ * Usage: bash benchmarks/run.sh JsonProtocolBenchmark [numTasks]
+ */
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class JsonProtocolBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final String EXTRA_INFO = "{\"input\":\"s3://bucket/some/key.csv\",\"retries\":3,\"tags\":[\"a\",\"b\"]}";
+
+    private static final com.sun.management.ThreadMXBean s_threadBean =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    // Stops the JIT from optimizing away the work being measured.
+    private static long s_sink = 0;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        ResponseCapture connection = new ResponseCapture();
+
+        for (int round = 1; round <= ROUNDS; round++)
+        {
+            String queueName = "json_protocol_benchmark_" + round;
+            System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+            System.out.println("  streaming: " + runCycle(queueName, numTasks, connection));
+            System.out.println("  gson tree: " + runGsonTree(numTasks));
+            Scheduler.getInstance().dropQueue(queueName);
+        }
+
+        System.out.println("(" + s_sink + ")");
+    }
+
+
+    /**
+     * Add tasks, then get and complete each of them, through HandlerLogic.
+     * @return the time and allocation per request.
+     */
+    private static String runCycle(String queueName, int numTasks, ResponseCapture connection)
+    {
+        byte[] addTask = ("{\"action\":\"add_task\",\"queue_name\":\"" + queueName + "\",\"task_name\":\"task\","
+                       + "\"priority\":5,\"extra_info\":" + EXTRA_INFO + "}").getBytes(StandardCharsets.UTF_8);
+        byte[] getTask = ("{\"action\":\"get_task\",\"queue_name\":\"" + queueName + "\"}").getBytes(StandardCharsets.UTF_8);
+        String completeTaskStart = "{\"action\":\"complete_task\",\"queue_name\":\"" + queueName + "\",\"task_id\":";
+        byte[] completeTask = new byte[256];
+
+        long startBytes = s_threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            HandlerLogic.handleMessage(addTask, addTask.length, connection);
+        }
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            HandlerLogic.handleMessage(getTask, getTask.length, connection);
+
+            // Copy the id and lock straight from the response bytes into the complete request.
+            int length = connection.buildCompleteTask(completeTaskStart, completeTask);
+            HandlerLogic.handleMessage(completeTask, length, connection);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = s_threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        int numRequests = numTasks * 3;
+        return (elapsed / numRequests) + " ns/request, " + (allocated / numRequests) + " bytes/request";
+    }
+
+
+    /**
+     * Parse the same requests into Gson trees and render responses of the same shape with a new
+     * Gson each time, as processMessage used to. The queue is not touched, so this is just the
+     * JSON handling.
+     */
+    private static String runGsonTree(int numTasks)
+    {
+        String addTask = "{\"action\":\"add_task\",\"queue_name\":\"q\",\"task_name\":\"task\",\"priority\":5,\"extra_info\":" + EXTRA_INFO + "}";
+        String getTask = "{\"action\":\"get_task\",\"queue_name\":\"q\"}";
+        String completeTask = "{\"action\":\"complete_task\",\"queue_name\":\"q\",\"task_id\":12345,\"lock\":\"0123456789abcdef0123456789abcdef\"}";
+
+        long startBytes = s_threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            JsonObject request = (JsonObject)new JsonParser().parse(addTask);
+            s_sink += new Gson().toJson(request.get("extra_info")).length();
+            JsonObject cargo = new JsonObject();
+            cargo.add("task_id", new JsonPrimitive(i));
+            s_sink += render(cargo).length();
+
+            request = (JsonObject)new JsonParser().parse(getTask);
+            JsonObject task = new JsonObject();
+            task.add("id", new JsonPrimitive(i));
+            task.add("name", new JsonPrimitive(request.get("action").getAsString()));
+            task.add("creation_time", new JsonPrimitive(1500000000L));
+            task.add("priority", new JsonPrimitive(5));
+            task.add("lock", new JsonPrimitive(LockToken.encode(i, i)));
+            task.add("extra_info", new JsonPrimitive(EXTRA_INFO));
+            cargo = new JsonObject();
+            cargo.add("task", task);
+            s_sink += render(cargo).length();
+
+            request = (JsonObject)new JsonParser().parse(completeTask);
+            s_sink += request.get("task_id").getAsInt() + request.get("lock").getAsString().length();
+            s_sink += render(null).length();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = s_threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        int numRequests = numTasks * 3;
+        return (elapsed / numRequests) + " ns/request, " + (allocated / numRequests) + " bytes/request (JSON only)";
+    }
+
+
+    private static String render(JsonObject cargo)
+    {
+        JsonObject response = new JsonObject();
+        response.add("result", new JsonPrimitive("success"));
+        response.add("cargo", (cargo == null) ? new JsonPrimitive("") : cargo);
+        return new Gson().toJson(response);
+    }
+
+
+    /**
+     * A connection that just keeps hold of the last response, rather than sending it anywhere.
+     */
+    private static class ResponseCapture implements ClientConnection
+    {
+        private byte[] m_lastResponse = new byte[1024];
+        private int m_lastResponseLength = 0;
+        private final List<LeaseSet> m_leaseSets = new ArrayList<>();
+
+
+        @Override
+        public void sendMessage(byte[] message, int length)
+        {
+            if (length > m_lastResponse.length)
+            {
+                m_lastResponse = new byte[length * 2];
+            }
+
+            System.arraycopy(message, 0, m_lastResponse, 0, length);
+            m_lastResponseLength = length;
+        }
+
+
+        /**
+         * Build a complete_task request for the task in the last get_task response.
+         * @return the length of the request.
+         */
+        public int buildCompleteTask(String start, byte[] request)
+        {
+            int length = 0;
+
+            for (int i = 0; i < start.length(); i++)
+            {
+                request[length++] = (byte)start.charAt(i);
+            }
+
+            length = copyValue("\"id\":", ',', request, length);
+            request[length++] = ',';
+
+            for (byte b : "\"lock\":".getBytes(StandardCharsets.UTF_8))
+            {
+                request[length++] = b;
+            }
+
+            length = copyValue("\"lock\":", ',', request, length);
+            request[length++] = '}';
+            return length;
+        }
+
+
+        private int copyValue(String name, char terminator, byte[] destination, int length)
+        {
+            int position = indexOf(name) + name.length();
+
+            while (m_lastResponse[position] != terminator)
+            {
+                destination[length++] = m_lastResponse[position++];
+            }
+
+            return length;
+        }
+
+
+        private int indexOf(String name)
+        {
+            for (int i = 0; i < m_lastResponseLength - name.length(); i++)
+            {
+                boolean isMatch = true;
+
+                for (int j = 0; isMatch && j < name.length(); j++)
+                {
+                    isMatch = (m_lastResponse[i + j] == name.charAt(j));
+                }
+
+                if (isMatch)
+                {
+                    return i;
+                }
+            }
+
+            throw new IllegalStateException("No " + name + " in " + new String(m_lastResponse, 0, m_lastResponseLength));
+        }
+
+
+        @Override
+        public void sendFrame(byte[] payload, int length) {}
+
+        @Override
+        public void waitForTask(TaskWaiter waiter) {}
+
+        @Override
+        public void taskHandedOff(TaskWaiter waiter) {}
+
+        @Override
+        public void tasksPushed(Subscription subscription) {}
+
+        @Override
+        public void addLeaseSet(LeaseSet leaseSet) { m_leaseSets.add(leaseSet); }
+
+        @Override
+        public List<LeaseSet> getLeaseSets() { return m_leaseSets; }
+
+        @Override
+        public void holdUntilDurable(long sequence) {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isClosed() { return false; }
+    }
+}
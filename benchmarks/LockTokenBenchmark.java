@@ -0,0 +1,101 @@
+/*
+ * Measures the cost of generating the lock that is handed out with every task, comparing the old
+ * UUID based Core.generateRandomString with LockToken, and then measures the latency of
+ * TaskQueue.getAvailableTask, which generates a lock whilst holding the queue lock.
+ *
+ * Usage: bash benchmarks/run.sh LockTokenBenchmark [numTasks]
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+public class LockTokenBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    // Stops the JIT from optimizing away the work being measured.
+    private static long s_sink = 0;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        for (int round = 1; round <= ROUNDS; round++)
+        {
+            System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+            System.out.println("  uuid string lock:     " + timeUuidLocks(numTasks) + " ns/lock");
+            System.out.println("  lock token:           " + timeLockTokens(numTasks) + " ns/lock");
+            timeGetAvailableTask("lock_token_benchmark_" + round, numTasks);
+        }
+
+        System.out.println("(" + s_sink + ")");
+    }
+
+
+    private static long timeUuidLocks(int numLocks)
+    {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numLocks; i++)
+        {
+            s_sink += Core.generateRandomString(32).length();
+        }
+
+        return (System.nanoTime() - start) / numLocks;
+    }
+
+
+    /**
+     * Time what a lock now costs per get_task: generating the two halves and encoding them for
+     * the response.
+     */
+    private static long timeLockTokens(int numLocks)
+    {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numLocks; i++)
+        {
+            s_sink += LockToken.encode(LockToken.generateHalf(), LockToken.generateHalf()).length();
+        }
+
+        return (System.nanoTime() - start) / numLocks;
+    }
+
+
+    private static void timeGetAvailableTask(String queueName, int numTasks) throws Exception
+    {
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        ArrayList<Integer> noDependencies = new ArrayList<>();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            queue.addTask("task", noDependencies, "", 1 + (i % 10), null);
+        }
+
+        long[] latencies = new long[numTasks];
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            long start = System.nanoTime();
+            Task task = queue.getAvailableTask();
+            latencies[i] = System.nanoTime() - start;
+            s_sink += task.getId();
+        }
+
+        Arrays.sort(latencies);
+        long total = 0;
+
+        for (long latency : latencies)
+        {
+            total += latency;
+        }
+
+        System.out.println("  getAvailableTask mean: " + (total / numTasks) + " ns"
+                         + "  p50: " + latencies[numTasks / 2] + " ns"
+                         + "  p99: " + latencies[(int)(numTasks * 0.99)] + " ns");
+
+        Scheduler.getInstance().dropQueue(queueName);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Measures how much heap a TaskQueue uses per task and per dependency edge. The counterpart to the
+ * TestMemoryUsage test, but run in-process so that it measures the scheduler rather than the
+ * client.
+ *
+ * Usage: bash benchmarks/run.sh MemoryBenchmark [numTasks] [dependenciesPerTask]
+ */
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+public class MemoryBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int dependenciesPerTask = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        long baseline = getUsedMemory();
+        TaskQueue independentQueue = fillQueue("memory_benchmark_independent", numTasks, 0);
+        long withTasks = getUsedMemory();
+        double bytesPerTask = (withTasks - baseline) / (double)numTasks;
+        Scheduler.getInstance().dropQueue("memory_benchmark_independent");
+        independentQueue = null;
+
+        baseline = getUsedMemory();
+        TaskQueue dependentQueue = fillQueue("memory_benchmark_dependent", numTasks, dependenciesPerTask);
+        long withEdges = getUsedMemory();
+        long numEdges = (long)(numTasks - dependenciesPerTask) * dependenciesPerTask;
+        double bytesPerEdge = ((withEdges - baseline) - (bytesPerTask * numTasks)) / numEdges;
+
+        System.out.println("tasks:          " + numTasks);
+        System.out.println("edges:          " + numEdges);
+        System.out.println("bytes per task: " + String.format("%.1f", bytesPerTask));
+        System.out.println("bytes per edge: " + String.format("%.1f", bytesPerEdge));
+        System.out.println("total MB:       " + ((withEdges - baseline) / (1024 * 1024)));
+
+        // Keep the queue reachable until after we have measured it.
+        System.out.println("queue still referenced: " + (dependentQueue != null));
+    }
+
+
+    /**
+     * Add tasks to a queue, each depending on a random selection of the tasks added recently.
+     * Nothing is completed so every task and every edge is still held when we measure.
+     */
+    private static TaskQueue fillQueue(String queueName, int numTasks, int dependenciesPerTask)
+    {
+        Random random = new Random(1);
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        ArrayList<Integer> noDependencies = new ArrayList<>();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            ArrayList<Integer> dependencies = noDependencies;
+
+            if (dependenciesPerTask > 0 && i >= dependenciesPerTask)
+            {
+                dependencies = new ArrayList<>();
+                int window = Math.min(i, 1000);
+
+                while (dependencies.size() < dependenciesPerTask)
+                {
+                    int dependency = i - 1 - random.nextInt(window);
+
+                    if (!dependencies.contains(dependency))
+                    {
+                        dependencies.add(dependency);
+                    }
+                }
+            }
+
+            queue.addTask("task", dependencies, "", Task.DEFAULT_PRIORITY, null);
+        }
+
+        return queue;
+    }
+
+
+    private static long getUsedMemory() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Measures how many requests a single connection can get through when the client waits for each
+ * response before sending the next request, compared with pipelining (keeping lots of requests in
+ * flight, tagged with request_ids). The scheduler is started in-process, using the settings from
+ * the environment, so this can be run against either connection mode, e.g.
+ *
+ * USE_THREAD_POOL=true SOCKET_PORT=3992 bash benchmarks/run.sh PipeliningBenchmark [numRequests] [window]
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+
+public class PipeliningBenchmark
+{
+    private static final int ROUNDS = 3;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numRequests = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int window = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+
+        new SocketListener().start();
+
+        try (Socket socket = connect())
+        {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+                System.out.println("  one at a time:   " + run(in, out, numRequests / 10, 1) + " requests/sec");
+                System.out.println("  pipelined (" + window + "): " + run(in, out, numRequests, window) + " requests/sec");
+            }
+        }
+
+        System.exit(0);
+    }
+
+
+    /**
+     * Send add_task requests, keeping up to [window] of them waiting on a response at any time.
+     * @return the number of requests per second.
+     */
+    private static long run(BufferedReader in, PrintWriter out, int numRequests, int window) throws Exception
+    {
+        long start = System.nanoTime();
+        int numSent = 0;
+        int numReceived = 0;
+
+        while (numReceived < numRequests)
+        {
+            while (numSent < numRequests && numSent - numReceived < window)
+            {
+                out.println("{\"action\":\"add_task\",\"queue_name\":\"pipelining_benchmark\","
+                          + "\"task_name\":\"task\",\"request_id\":" + numSent + "}");
+                numSent++;
+            }
+
+            out.flush();
+            String response = in.readLine();
+
+            if (!response.contains("\"request_id\":" + numReceived + ","))
+            {
+                throw new Exception("Response out of order: " + response);
+            }
+
+            numReceived++;
+        }
+
+        return (numRequests * 1000000000L) / (System.nanoTime() - start);
+    }
+
+
+    private static Socket connect() throws Exception
+    {
+        for (int attempt = 0; attempt < 50; attempt++)
+        {
+            try
+            {
+                return new Socket("127.0.0.1", Settings.SOCKET_PORT());
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new Exception("Could not connect to the scheduler on port " + Settings.SOCKET_PORT());
+    }
+}
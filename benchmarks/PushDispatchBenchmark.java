@@ -0,0 +1,252 @@
+/*
+ * Measures how quickly a worker starts on tasks when it polls with get_task (sleeping whenever
+ * there is nothing to do), when it waits with get_task and wait_ms, and when it subscribes and has
+ * the tasks pushed to it. Two workloads are run:
+ *
+ *   chain       - each task depends on the one before, so every task only becomes available when
+ *                 the worker completes the previous one. This shows the time from a dependency
+ *                 being released to the worker having the task.
+ *   independent - tasks that are all available from the start, showing the throughput of a
+ *                 single worker connection.
+ *
+ * The scheduler is started in-process, using the settings from the environment, e.g.
+ *
+ * USE_THREAD_POOL=true SOCKET_PORT=3993 bash benchmarks/run.sh PushDispatchBenchmark [numTasks] [credits]
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+
+public class PushDispatchBenchmark
+{
+    private static final int ROUNDS = 3;
+
+    // How long a polling worker sleeps for when there is nothing to do.
+    private static final int POLL_INTERVAL = 5;
+
+    private static int s_queueCounter = 0;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int numCredits = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+        new SocketListener().start();
+
+        try (Socket adderSocket = connect(); Socket workerSocket = connect())
+        {
+            Connection adder = new Connection(adderSocket);
+            Connection worker = new Connection(workerSocket);
+
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.println("Round " + round + (round < ROUNDS ? " (warm up)" : ""));
+
+                for (String workload : new String[]{"chain", "independent"})
+                {
+                    // Polling a chain is slow, so it only does a tenth of the tasks.
+                    int numPolledTasks = workload.equals("chain") ? numTasks / 10 : numTasks;
+
+                    String queueName = addTasks(adder, workload, numPolledTasks);
+                    long polling = poll(worker, queueName, numPolledTasks, false);
+
+                    queueName = addTasks(adder, workload, numTasks);
+                    long waiting = poll(worker, queueName, numTasks, true);
+
+                    queueName = addTasks(adder, workload, numTasks);
+                    long pushing = subscribe(worker, queueName, numTasks, numCredits);
+
+                    System.out.println("  " + workload + ":");
+                    System.out.println("    get_task polling:  " + describe(polling, numPolledTasks));
+                    System.out.println("    get_task wait_ms:  " + describe(waiting, numTasks));
+                    System.out.println("    subscribe (" + numCredits + "):    " + describe(pushing, numTasks));
+                }
+            }
+        }
+
+        System.exit(0);
+    }
+
+
+    private static String describe(long elapsed, int numTasks)
+    {
+        return (elapsed / numTasks / 1000) + " us/task, "
+             + (numTasks * 1000000000L / elapsed) + " tasks/sec";
+    }
+
+
+    /**
+     * Add the tasks for a workload to a new queue.
+     * @return the name of the queue.
+     */
+    private static String addTasks(Connection adder, String workload, int numTasks) throws Exception
+    {
+        String queueName = "push_dispatch_benchmark_" + (s_queueCounter++);
+        String previousTaskId = null;
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            String dependencies = "";
+
+            if (workload.equals("chain") && previousTaskId != null)
+            {
+                dependencies = ",\"dependencies\":[" + previousTaskId + "]";
+            }
+
+            String response = adder.request("{\"action\":\"add_task\",\"queue_name\":\"" + queueName + "\","
+                                          + "\"task_name\":\"task\"" + dependencies + "}");
+            previousTaskId = extract(response, "\"task_id\":", '}');
+        }
+
+        return queueName;
+    }
+
+
+    /**
+     * Fetch and complete every task with get_task, one at a time.
+     * @param isWaiting - whether to wait for tasks with wait_ms, rather than sleeping and retrying.
+     * @return the time taken in nanoseconds.
+     */
+    private static long poll(Connection worker, String queueName, int numTasks, boolean isWaiting) throws Exception
+    {
+        String getTask = "{\"action\":\"get_task\",\"queue_name\":\"" + queueName + "\""
+                       + (isWaiting ? ",\"wait_ms\":1000}" : "}");
+        long start = System.nanoTime();
+        int numCompleted = 0;
+
+        while (numCompleted < numTasks)
+        {
+            String response = worker.request(getTask);
+
+            if (response.contains("\"result\":\"error\""))
+            {
+                if (!isWaiting)
+                {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+            else
+            {
+                worker.request(completeTask(queueName, response));
+                numCompleted++;
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     * Subscribe to the queue and complete every task that is pushed.
+     * @return the time taken in nanoseconds.
+     */
+    private static long subscribe(Connection worker, String queueName, int numTasks, int numCredits) throws Exception
+    {
+        long start = System.nanoTime();
+        worker.send("{\"action\":\"subscribe\",\"queue_name\":\"" + queueName + "\",\"credits\":" + numCredits + "}");
+        int numCompleted = 0;
+
+        while (numCompleted < numTasks)
+        {
+            String message = worker.in.readLine();
+
+            // Responses to the subscribe and complete_task requests are just skipped over.
+            if (message.startsWith("{\"push\""))
+            {
+                worker.send(completeTask(queueName, message));
+                numCompleted++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        // Skip over the remaining complete_task responses, so the connection can be used again.
+        worker.request("{\"action\":\"unsubscribe\",\"queue_name\":\"" + queueName + "\",\"request_id\":\"done\"}", "\"done\"");
+        return elapsed;
+    }
+
+
+    private static String completeTask(String queueName, String response)
+    {
+        return "{\"action\":\"complete_task\",\"queue_name\":\"" + queueName + "\","
+             + "\"task_id\":" + extract(response, "\"id\":", ',') + ","
+             + "\"lock\":\"" + extract(response, "\"lock\":\"", '"') + "\"}";
+    }
+
+
+    private static String extract(String json, String prefix, char terminator)
+    {
+        int start = json.indexOf(prefix) + prefix.length();
+        return json.substring(start, json.indexOf(terminator, start));
+    }
+
+
+    private static Socket connect() throws Exception
+    {
+        // Give the listener a moment to bind the port.
+        for (int attempt = 0; attempt < 50; attempt++)
+        {
+            try
+            {
+                Socket socket = new Socket("127.0.0.1", Settings.SOCKET_PORT());
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            catch (Exception e)
+            {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new Exception("Could not connect to the scheduler.");
+    }
+
+
+    private static class Connection
+    {
+        public final BufferedReader in;
+        public final PrintWriter out;
+
+
+        public Connection(Socket socket) throws Exception
+        {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream());
+        }
+
+
+        public void send(String message)
+        {
+            out.println(message);
+            out.flush();
+        }
+
+
+        public String request(String message) throws Exception
+        {
+            send(message);
+            return in.readLine();
+        }
+
+
+        /**
+         * Send a request and skip over everything until the line that contains the marker.
+         */
+        public String request(String message, String marker) throws Exception
+        {
+            send(message);
+            String line = in.readLine();
+
+            while (!line.contains(marker))
+            {
+                line = in.readLine();
+            }
+
+            return line;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Measures how many add_task operations per second the queue can make durable whilst streaming
+ * its changes to followers (see FollowerConnection), compared with having no followers, and how far
+ * behind the followers get. As in the JournalBenchmark, a number of threads stand in for clients,
+ * each adding a task and then waiting for it to be on disk before adding the next. Each follower
+ * is in this process, on the other end of a local connection, and loads the snapshot and applies
+ * the records it is sent to a queue of its own, as a real follower would.
+ *
+ * The lag is the number of changes that were durable on the leader but not yet applied by the
+ * follower, sampled every millisecond.
+ *
+ * The journals are written to a temporary directory, which should be on the disk you want to
+ * measure (set java.io.tmpdir through JAVA_OPTS to pick another).
+ *
+ * Usage: bash benchmarks/run.sh ReplicationBenchmark [threads] [seconds] [followers (comma separated)]
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ReplicationBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int numThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        int numSeconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        String followerCounts = (args.length > 2) ? args[2] : "0,1,2";
+
+        File directory = Files.createTempDirectory("replication_benchmark").toFile();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        try
+        {
+            System.out.println("threads: " + numThreads);
+
+            for (String followerCount : followerCounts.split(","))
+            {
+                int numFollowers = Integer.parseInt(followerCount.trim());
+                run(directory, server, numFollowers, numThreads, numSeconds);
+            }
+        }
+        finally
+        {
+            server.close();
+
+            for (File file : directory.listFiles())
+            {
+                file.delete();
+            }
+
+            directory.delete();
+        }
+
+        System.exit(0);
+    }
+
+
+    private static void run(File directory, ServerSocketChannel server, int numFollowers, int numThreads, int numSeconds) throws Exception
+    {
+        // A writer of its own, so that the followers are not sent the queues of the earlier runs.
+        JournalWriter writer = new JournalWriter(Settings.JOURNAL_COMMIT_WINDOW());
+        TaskQueue queue = new TaskQueue("replication_benchmark_" + numFollowers);
+        Journal journal = Journal.create(directory, queue.getName(), 0, writer);
+        queue.setJournal(journal);
+        Scheduler.getInstance().putReplicatedQueue(queue);
+
+        ArrayList<FollowerConnection> followers = new ArrayList<>();
+
+        for (int i = 0; i < numFollowers; i++)
+        {
+            SocketChannel followerEnd = SocketChannel.open(server.getLocalAddress());
+            SocketChannel leaderEnd = server.accept();
+            followerEnd.socket().setTcpNoDelay(true);
+            leaderEnd.socket().setTcpNoDelay(true);
+
+            Thread follower = new Thread(() -> follow(followerEnd), "benchmark-follower");
+            follower.setDaemon(true);
+            follower.start();
+
+            FollowerConnection connection = new FollowerConnection(leaderEnd, writer);
+            connection.start();
+            followers.add(connection);
+        }
+
+        for (FollowerConnection follower : followers)
+        {
+            while (!queue.getJournal().hasFollower(follower))
+            {
+                Thread.sleep(1);
+            }
+        }
+
+        AtomicLong numAdded = new AtomicLong(0);
+        AtomicLong totalLatency = new AtomicLong(0);
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        ArrayList<Thread> threads = new ArrayList<>();
+        ArrayList<Integer> noDependencies = new ArrayList<>();
+
+        for (int i = 0; i < numThreads; i++)
+        {
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                long localAdded = 0;
+                long localLatency = 0;
+
+                while (System.nanoTime() < deadline[0])
+                {
+                    long before = System.nanoTime();
+                    queue.addTask("task", noDependencies, "", 5, null);
+                    writer.awaitDurable(JournalWriter.takeThreadSequence());
+                    localLatency += System.nanoTime() - before;
+                    localAdded++;
+                }
+
+                numAdded.addAndGet(localAdded);
+                totalLatency.addAndGet(localLatency);
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        deadline[0] = System.nanoTime() + numSeconds * 1000000000L;
+        start.countDown();
+
+        long maxLag = 0;
+        long totalLag = 0;
+        long numSamples = 0;
+
+        while (System.nanoTime() < deadline[0])
+        {
+            Thread.sleep(1);
+
+            for (FollowerConnection follower : followers)
+            {
+                long lag = Math.max(0, writer.getDurableSequence() - follower.getAppliedSequence());
+                maxLag = Math.max(maxLag, lag);
+                totalLag += lag;
+                numSamples++;
+            }
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        // How long the followers take to catch up once the clients stop.
+        long catchUpStart = System.nanoTime();
+
+        for (FollowerConnection follower : followers)
+        {
+            while (follower.getAppliedSequence() < writer.getAppendedSequence())
+            {
+                Thread.sleep(1);
+            }
+
+            follower.close();
+        }
+
+        long catchUpTime = (System.nanoTime() - catchUpStart) / 1000000;
+        long added = numAdded.get();
+        double meanLatency = (added == 0) ? 0.0 : totalLatency.get() / (added * 1000.0);
+        double meanLag = (numSamples == 0) ? 0.0 : totalLag / (double)numSamples;
+
+        System.out.printf(
+            "  %d followers %10d ops/sec   mean latency %8.1f us   lag mean %8.1f max %6d   caught up in %d ms%n",
+            numFollowers,
+            added / numSeconds,
+            meanLatency,
+            meanLag,
+            maxLag,
+            catchUpTime
+        );
+
+        queue.getJournal().close();
+    }
+
+
+    /**
+     * Stand in for a follower: load the snapshot, apply each batch of records to our own queue
+     * and reply with the last sequence number applied, until the connection is closed.
+     */
+    private static void follow(SocketChannel channel)
+    {
+        ByteBuffer header = ByteBuffer.allocate(FollowerConnection.FRAME_HEADER_LENGTH);
+        ByteBuffer reply = ByteBuffer.allocate(8);
+        ByteBuffer frame = ByteBuffer.allocate(1024 * 1024);
+        TaskQueue queue = null;
+        long appliedSequence = 0;
+
+        try
+        {
+            while (true)
+            {
+                header.clear();
+                readFully(channel, header);
+                header.flip();
+                byte type = header.get();
+                int length = (int)header.getLong();
+
+                if (type == FollowerConnection.SNAPSHOT)
+                {
+                    ByteBuffer sequence = ByteBuffer.allocate(8);
+                    readFully(channel, sequence);
+                    sequence.flip();
+                    appliedSequence = sequence.getLong();
+                    queue = Snapshot.load(channel, length - 8).getQueue();
+                }
+                else
+                {
+                    if (frame.capacity() < length)
+                    {
+                        frame = ByteBuffer.allocate(length);
+                    }
+
+                    frame.clear();
+                    frame.limit(length);
+                    readFully(channel, frame);
+                    frame.flip();
+
+                    while (type == FollowerConnection.RECORDS && frame.hasRemaining())
+                    {
+                        appliedSequence = frame.getLong();
+                        int queueNameLength = frame.getInt();
+                        frame.position(frame.position() + queueNameLength);
+                        Journal.apply(queue, Journal.nextRecord(frame));
+                    }
+                }
+
+                reply.clear();
+                reply.putLong(appliedSequence);
+                reply.flip();
+
+                while (reply.hasRemaining())
+                {
+                    channel.write(reply);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // The leader closed the connection at the end of the run.
+        }
+    }
+
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+}
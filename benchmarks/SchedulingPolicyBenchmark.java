@@ -0,0 +1,141 @@
+/*
+ * Compares how long a DAG takes to finish under each scheduling policy, for the same number of
+ * workers. Every task is treated as taking one unit of time, so the result is the number of
+ * rounds it takes the workers to drain the queue, which is what matters for end-to-end time.
+ *
+ * The DAG is a lot of short, wide trees that were added first, and a few long pipelines that were
+ * added last. Looking one level down (blockage rating) the trees look more important than the
+ * pipelines, so the pipelines are held back and the workers sit idle at the end whilst they
+ * trickle through.
+ *
+ * Usage: bash benchmarks/run.sh SchedulingPolicyBenchmark [workers] [pipelines] [pipelineLength]
+ */
+
+import java.util.ArrayList;
+
+
+public class SchedulingPolicyBenchmark
+{
+    private static final int NUM_TREES = 40;
+    private static final int TREE_WIDTH = 25;
+    private static final int LEAVES_PER_BRANCH = 2;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int numWorkers = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        int numPipelines = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int pipelineLength = (args.length > 2) ? Integer.parseInt(args[2]) : 300;
+
+        int blockageRounds = drain("policy_benchmark_blockage", false, numWorkers, numPipelines, pipelineLength);
+        int criticalPathRounds = drain("policy_benchmark_critical_path", true, numWorkers, numPipelines, pipelineLength);
+
+        System.out.println("workers:                  " + numWorkers);
+        System.out.println("longest pipeline:         " + pipelineLength);
+        System.out.println("blockage rating rounds:   " + blockageRounds);
+        System.out.println("critical path rounds:     " + criticalPathRounds);
+    }
+
+
+    /**
+     * Fill a queue and simulate the workers taking a task each per round and completing them all
+     * at the end of the round.
+     * @return the number of rounds it took to complete every task.
+     */
+    private static int drain(String queueName,
+                             boolean useCriticalPath,
+                             int numWorkers,
+                             int numPipelines,
+                             int pipelineLength) throws Exception
+    {
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        queue.setCriticalPathScheduling(useCriticalPath);
+        int numTasks = fillQueue(queue, numPipelines, pipelineLength);
+        int numCompleted = 0;
+        int rounds = 0;
+        ArrayList<Task> inProgress = new ArrayList<>();
+
+        while (numCompleted < numTasks)
+        {
+            for (int i = 0; i < numWorkers; i++)
+            {
+                try
+                {
+                    inProgress.add(queue.getAvailableTask());
+                }
+                catch (Exception e)
+                {
+                    // No more tasks are available this round.
+                    break;
+                }
+            }
+
+            for (Task task : inProgress)
+            {
+                queue.completeTask(task.getId(), task.getLockHigh(), task.getLockLow());
+                numCompleted++;
+            }
+
+            inProgress.clear();
+            rounds++;
+        }
+
+        Scheduler.getInstance().dropQueue(queueName);
+        return rounds;
+    }
+
+
+    /**
+     * Add the trees (a root, with TREE_WIDTH tasks depending on it, which each have
+     * LEAVES_PER_BRANCH tasks depending on them) followed by the pipelines (chains of tasks).
+     * @return the number of tasks added.
+     */
+    private static int fillQueue(TaskQueue queue, int numPipelines, int pipelineLength)
+    {
+        int numTasks = 0;
+
+        for (int i = 0; i < NUM_TREES; i++)
+        {
+            int rootId = queue.addTask("root", dependsOn(-1), "", Task.DEFAULT_PRIORITY, null);
+
+            for (int j = 0; j < TREE_WIDTH; j++)
+            {
+                int middleId = queue.addTask("middle", dependsOn(rootId), "", Task.DEFAULT_PRIORITY, null);
+
+                for (int k = 0; k < LEAVES_PER_BRANCH; k++)
+                {
+                    queue.addTask("leaf", dependsOn(middleId), "", Task.DEFAULT_PRIORITY, null);
+                }
+            }
+
+            numTasks += 1 + TREE_WIDTH + (TREE_WIDTH * LEAVES_PER_BRANCH);
+        }
+
+        for (int i = 0; i < numPipelines; i++)
+        {
+            int previousId = -1;
+
+            for (int j = 0; j < pipelineLength; j++)
+            {
+                previousId = queue.addTask("stage", dependsOn(previousId), "", Task.DEFAULT_PRIORITY, null);
+            }
+
+            numTasks += pipelineLength;
+        }
+
+        return numTasks;
+    }
+
+
+    private static ArrayList<Integer> dependsOn(int taskId)
+    {
+        ArrayList<Integer> dependencies = new ArrayList<>();
+
+        if (taskId >= 0)
+        {
+            dependencies.add(taskId);
+        }
+
+        return dependencies;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Measures how long it takes to snapshot a large queue (and how long the queue is locked for
+ * whilst it is copied), how big the snapshot is, and how long it takes to load it back, compared
+ * with replaying the journal of the same changes. Each task depends on up to two of the tasks
+ * added shortly before it, and some of them are in groups.
+ *
+ * The files are written to a temporary directory, which should be on the disk you want to
+ * measure (set java.io.tmpdir through JAVA_OPTS to pick another). A 10 million task queue needs a
+ * large heap, e.g.
+ *
+ * JAVA_OPTS="-Xmx12g" bash benchmarks/run.sh SnapshotBenchmark 10000000
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+public class SnapshotBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File directory = Files.createTempDirectory("snapshot_benchmark").toFile();
+        JournalWriter writer = new JournalWriter(0);
+
+        try
+        {
+            TaskQueue queue = new TaskQueue("snapshot_benchmark");
+            queue.setJournal(Journal.create(directory, queue.getName(), 0, writer));
+            fillQueue(queue, numTasks);
+            writer.awaitDurable(writer.getAppendedSequence());
+
+            File journalFile = Journal.getFile(directory, queue.getName(), 0);
+            long journalSize = journalFile.length();
+            File journalCopy = new File(directory, "journal_copy");
+            Files.copy(journalFile.toPath(), journalCopy.toPath());
+
+            long start = System.nanoTime();
+            long lockedTime = Snapshot.save(queue, directory);
+            long saveTime = (System.nanoTime() - start) / 1000000;
+            File snapshotFile = Snapshot.getFile(directory, queue.getName());
+
+            // Let go of the original queue, so that it does not count against the loads.
+            queue = null;
+            System.gc();
+
+            start = System.nanoTime();
+            TaskQueue loaded = Snapshot.load(snapshotFile).getQueue();
+            long loadTime = (System.nanoTime() - start) / 1000000;
+            loaded = null;
+            System.gc();
+
+            start = System.nanoTime();
+            TaskQueue replayed = new TaskQueue("snapshot_benchmark");
+            Journal.replay(replayed, journalCopy);
+            long replayTime = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("tasks:                    " + numTasks);
+            System.out.println("snapshot size:            " + snapshotFile.length() / (1024 * 1024) + " MB");
+            System.out.println("journal size:             " + journalSize / (1024 * 1024) + " MB");
+            System.out.println("queue locked whilst copied: " + lockedTime + " ms");
+            System.out.println("snapshot written in:      " + saveTime + " ms");
+            System.out.println("snapshot loaded in:       " + loadTime + " ms");
+            System.out.println("journal replayed in:      " + replayTime + " ms");
+        }
+        finally
+        {
+            for (File file : directory.listFiles())
+            {
+                file.delete();
+            }
+
+            directory.delete();
+        }
+
+        System.exit(0);
+    }
+
+
+    /**
+     * Add the tasks, and complete some of the early ones so that the journal has more in it than
+     * the snapshot.
+     */
+    private static void fillQueue(TaskQueue queue, int numTasks) throws Exception
+    {
+        Random random = new Random(42);
+        ArrayList<Integer> dependencies = new ArrayList<>();
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            dependencies.clear();
+
+            for (int j = Math.min(i, random.nextInt(3)); j > 0; j--)
+            {
+                dependencies.add(i - 1 - random.nextInt(Math.min(i, 100)));
+            }
+
+            String group = (i % 10 == 0) ? "group_" + (i % 1000) : null;
+            queue.addTask("task_" + i, dependencies, "{\"position\":" + i + "}", 5, group);
+        }
+
+        for (int i = 0; i < numTasks / 10; i++)
+        {
+            Task task = queue.getAvailableTask();
+            queue.completeTask(task.getId(), task.getLockHigh(), task.getLockLow());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Compiles the scheduler along with the benchmarks into a temporary directory and runs the
+# benchmark specified by the first argument. Any further arguments are passed to the benchmark.
+# E.g. bash benchmarks/run.sh MemoryBenchmark 1000000 10
+
+if [ -z "$1" ]; then
+    echo "Usage: run.sh BenchmarkName [arguments...]"
+    exit 1
+fi
+
+SCRIPT=$(readlink -f "$0")
+SCRIPTPATH=$(dirname "$SCRIPT")
+BUILD_DIR=$(mktemp -d)
+CLASSPATH="$SCRIPTPATH/../src/libs/google-gson-2.2.4/gson-2.2.4.jar"
+
+javac -nowarn -classpath "$CLASSPATH" -d $BUILD_DIR $SCRIPTPATH/../src/*.java $SCRIPTPATH/*.java
+
+if [ $? -eq 0 ]; then
+    BENCHMARK=$1
+    shift
+    java $JAVA_OPTS -classpath "$BUILD_DIR:$CLASSPATH" $BENCHMARK "$@"
+fi
+
+rm -rf $BUILD_DIR
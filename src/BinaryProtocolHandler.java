@@ -0,0 +1,510 @@
+/*
+ * Handles the requests of a client that uses the compact binary protocol rather than line
+ * delimited JSON. A client asks for it by sending a single 0x00 byte as the very first byte on the
+ * connection (a JSON message can never start with one). Everything after that is frames:
+ *
+ *   frame    = length (varint) + payload (length bytes)
+ *   request  = opcode (1 byte) + the fields for that opcode
+ *   response = status (1 byte, 0 = success, 1 = error) + the fields for that opcode on success,
+ *              or an error message (string) on error
+ *
+ * Integers are unsigned LEB128 varints, except for priorities, which can be negative and so are
+ * zig-zag encoded first (0, -1, 1, -2... become 0, 1, 2, 3...). Strings are a varint byte length
+ * followed by UTF-8, and locks are 16 bytes (the high then low 64 bits, big-endian).
+ *
+ *   ADD_TASK       (1): queue, name, priority, flags (1 byte: 1 = has group, 2 = has max lock
+ *                       time), [group], [max lock time in ms (at most a year)], extra info,
+ *                       number of dependencies, dependency ids...     -> task id
+ *   GET_TASK       (2): queue                                          -> task id, lock,
+ *                       priority, name, group ("" if none), extra info
+ *   COMPLETE_TASK  (3): queue, task id, lock                           -> nothing
+ *   REJECT_TASK    (4): queue, task id, lock                           -> nothing
+ *   GET_TASKS      (5): queue, max tasks                               -> number of tasks, then
+ *                       the fields of a GET_TASK response for each task
+ *   COMPLETE_TASKS (6): queue, number of tasks, (task id, lock)...     -> number of tasks, then
+ *                       a status (1 byte) for each task, followed by an error message if it failed
+ *   PING           (7): nothing                                        -> nothing
+ *
+ * Requests are decoded straight from the bytes that were read off the socket, and each connection
+ * remembers the queue it last used, so the get/complete loop never builds any Strings or JSON.
+ * The requests go to the same TaskQueue methods as the JSON requests do.
+ *
+ * There is one of these per connection, and it is only used by the thread reading from it.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+public class BinaryProtocolHandler
+{
+    // The first byte a client sends to ask for this protocol.
+    public static final int MAGIC_BYTE = 0x00;
+    
+    // Stops a corrupt or malicious length from making us allocate huge buffers.
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    
+    private static final byte OP_ADD_TASK       = 1;
+    private static final byte OP_GET_TASK       = 2;
+    private static final byte OP_COMPLETE_TASK  = 3;
+    private static final byte OP_REJECT_TASK    = 4;
+    private static final byte OP_GET_TASKS      = 5;
+    private static final byte OP_COMPLETE_TASKS = 6;
+    private static final byte OP_PING           = 7;
+    
+    private static final byte STATUS_SUCCESS = 0;
+    private static final byte STATUS_ERROR   = 1;
+    
+    private static final int FLAG_HAS_GROUP         = 1;
+    private static final int FLAG_HAS_MAX_LOCK_TIME = 2;
+    
+    private final ClientConnection m_connection;
+    
+    // The name (as it was sent) and object of the queue this connection last used.
+    private byte[] m_queueName = null;
+    private TaskQueue m_queue = null;
+    
+    // The response being built. This is reused for every request.
+    private byte[] m_response = new byte[256];
+    private int m_responseLength = 0;
+    
+    
+    public BinaryProtocolHandler(ClientConnection connection)
+    {
+        m_connection = connection;
+    }
+    
+    
+    /**
+     * Handle a single request, and send the response.
+     * @param frame - the payload of the frame, from its position up to its limit.
+     */
+    public void handleFrame(ByteBuffer frame)
+    {
+        m_responseLength = 0;
+        writeByte(STATUS_SUCCESS);
+        
+        try
+        {
+            byte opcode = frame.get();
+            
+            if (opcode != OP_PING)
+            {
+                // Every other request is about the tasks, which only the leader hands out.
+                Scheduler.getInstance().checkIsLeader();
+            }
+            
+            switch (opcode)
+            {
+                case OP_ADD_TASK:
+                {
+                    handleAddTask(frame);
+                }
+                break;
+                
+                case OP_GET_TASK:
+                {
+                    handleGetTask(frame);
+                }
+                break;
+                
+                case OP_COMPLETE_TASK:
+                {
+                    TaskQueue queue = readQueue(frame);
+                    int taskId = readVarint(frame);
+                    queue.completeTask(taskId, frame.getLong(), frame.getLong());
+                }
+                break;
+                
+                case OP_REJECT_TASK:
+                {
+                    TaskQueue queue = readQueue(frame);
+                    int taskId = readVarint(frame);
+                    queue.rejectTask(taskId, frame.getLong(), frame.getLong());
+                }
+                break;
+                
+                case OP_GET_TASKS:
+                {
+                    handleGetTasks(frame);
+                }
+                break;
+                
+                case OP_COMPLETE_TASKS:
+                {
+                    handleCompleteTasks(frame);
+                }
+                break;
+                
+                case OP_PING:
+                {
+                    // Nothing to do, the client just wants us to know that it is still there.
+                }
+                break;
+                
+                default:
+                {
+                    throw new Exception("Unrecognized opcode: " + opcode);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // Any of the handlers can throw an exception, as can reading past the end of a frame
+            // that is too short.
+            m_responseLength = 0;
+            writeByte(STATUS_ERROR);
+            writeString(e.toString());
+        }
+        
+        HandlerLogic.holdForJournal(m_connection);
+        m_connection.sendFrame(m_response, m_responseLength);
+    }
+    
+    
+    private void handleAddTask(ByteBuffer frame) throws Exception
+    {
+        TaskQueue queue = readQueue(frame);
+        String taskName = readString(frame);
+        int priority = readZigZagVarint(frame);
+        int flags = frame.get();
+        String group = null;
+        
+        if ((flags & FLAG_HAS_GROUP) != 0)
+        {
+            group = readString(frame);
+        }
+        
+        long maxLockTime = -1;
+        
+        if ((flags & FLAG_HAS_MAX_LOCK_TIME) != 0)
+        {
+            maxLockTime = readLongVarint(frame);
+            
+            // The same limit as a JSON request has. Anything over 63 bits has come out negative.
+            if (maxLockTime < 0 || maxLockTime > Task.LONGEST_MAX_LOCK_TIME)
+            {
+                throw new Exception("Max lock time must be between 0 and " 
+                                    + Task.LONGEST_MAX_LOCK_TIME + " ms");
+            }
+        }
+        
+        String extraInfo = readString(frame);
+        int numDependencies = readVarint(frame);
+        
+        if (numDependencies < 0 || numDependencies > frame.remaining())
+        {
+            throw new Exception("Malformed request: too many dependencies for the frame");
+        }
+        
+        ArrayList<Integer> dependencies = new ArrayList<>(numDependencies);
+        
+        for (int i = 0; i < numDependencies; i++)
+        {
+            dependencies.add(readVarint(frame));
+        }
+        
+        int newTaskId;
+        
+        if (maxLockTime >= 0)
+        {
+            newTaskId = queue.addTask(taskName, dependencies, extraInfo, priority, group, maxLockTime);
+        }
+        else
+        {
+            newTaskId = queue.addTask(taskName, dependencies, extraInfo, priority, group);
+        }
+        
+        writeVarint(newTaskId);
+    }
+    
+    
+    private void handleGetTask(ByteBuffer frame) throws Exception
+    {
+        TaskQueue queue = readQueue(frame);
+        LeaseSet leaseSet = HandlerLogic.getLeaseSet(m_connection, queue);
+        Task task = queue.getAvailableTask(leaseSet);
+        HandlerLogic.releaseLeasesIfClosed(m_connection, leaseSet);
+        writeTask(task);
+    }
+    
+    
+    private void handleGetTasks(ByteBuffer frame) throws Exception
+    {
+        TaskQueue queue = readQueue(frame);
+        int maxTasks = readVarint(frame);
+        
+        if (maxTasks < 1)
+        {
+            throw new Exception("Max tasks must be at least 1");
+        }
+        
+        LeaseSet leaseSet = HandlerLogic.getLeaseSet(m_connection, queue);
+        ArrayList<Task> tasks = queue.getAvailableTasks(maxTasks, leaseSet);
+        HandlerLogic.releaseLeasesIfClosed(m_connection, leaseSet);
+        writeVarint(tasks.size());
+        
+        for (Task task : tasks)
+        {
+            writeTask(task);
+        }
+    }
+    
+    
+    private void handleCompleteTasks(ByteBuffer frame) throws Exception
+    {
+        TaskQueue queue = readQueue(frame);
+        int numTasks = readVarint(frame);
+        
+        // Each task takes at least 17 bytes (its id and lock).
+        if (numTasks < 0 || numTasks > frame.remaining() / 17)
+        {
+            throw new Exception("Malformed request: too many tasks for the frame");
+        }
+        
+        int[] taskIds = new int[numTasks];
+        long[] lockHighs = new long[numTasks];
+        long[] lockLows = new long[numTasks];
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            taskIds[i] = readVarint(frame);
+            lockHighs[i] = frame.getLong();
+            lockLows[i] = frame.getLong();
+        }
+        
+        String[] errors = queue.completeTasks(taskIds, lockHighs, lockLows);
+        writeVarint(numTasks);
+        
+        for (String error : errors)
+        {
+            if (error == null)
+            {
+                writeByte(STATUS_SUCCESS);
+            }
+            else
+            {
+                writeByte(STATUS_ERROR);
+                writeString(error);
+            }
+        }
+    }
+    
+    
+    /**
+     * Write the fields of a task that has just been handed out.
+     */
+    private void writeTask(Task task)
+    {
+        writeVarint(task.getId());
+        writeLong(task.getLockHigh());
+        writeLong(task.getLockLow());
+        writeZigZagVarint(task.getPriority());
+        writeString(task.getName());
+        writeString((task.getGroup() == null) ? "" : task.getGroup());
+        writeString(task.getExtraInfo());
+    }
+    
+    
+    /**
+     * Read the name of a queue and fetch the queue. If it is the same queue as last time, then the 
+     * name is only compared byte for byte, rather than being turned into a String and looked up.
+     */
+    private TaskQueue readQueue(ByteBuffer frame) throws Exception
+    {
+        int nameLength = readVarint(frame);
+        int nameStart = frame.position();
+        
+        if (nameLength < 0 || nameLength > frame.remaining())
+        {
+            throw new Exception("Malformed request: queue name is longer than the frame");
+        }
+        
+        boolean isSameQueue = (m_queueName != null && m_queueName.length == nameLength);
+        
+        for (int i = 0; isSameQueue && i < nameLength; i++)
+        {
+            isSameQueue = (frame.get(nameStart + i) == m_queueName[i]);
+        }
+        
+        if (!isSameQueue)
+        {
+            m_queueName = new byte[nameLength];
+            frame.get(m_queueName);
+            String queueName = new String(m_queueName, StandardCharsets.UTF_8);
+            m_queue = Scheduler.getInstance().getQueue(queueName);
+        }
+        else
+        {
+            frame.position(nameStart + nameLength);
+        }
+        
+        return m_queue;
+    }
+    
+    
+    /**
+     * Put a payload into a frame, ready to be written to a socket.
+     * @param payload - array holding the payload of the frame.
+     * @param length - the number of bytes of the array that make up the payload.
+     * @return the length prefix followed by the payload.
+     */
+    public static byte[] encodeFrame(byte[] payload, int length)
+    {
+        int headerLength = 1;
+        
+        for (int remaining = length >>> 7; remaining != 0; remaining >>>= 7)
+        {
+            headerLength++;
+        }
+        
+        byte[] frame = new byte[headerLength + length];
+        int position = 0;
+        int value = length;
+        
+        while ((value & ~0x7F) != 0)
+        {
+            frame[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        
+        frame[position++] = (byte)value;
+        System.arraycopy(payload, 0, frame, position, length);
+        return frame;
+    }
+    
+    
+    private static String readString(ByteBuffer frame) throws Exception
+    {
+        int length = readVarint(frame);
+        
+        if (length < 0 || length > frame.remaining())
+        {
+            throw new Exception("Malformed request: string is longer than the frame");
+        }
+        
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+    
+    
+    /**
+     * Read an unsigned LEB128 varint (7 bits per byte, least significant first, with the top bit
+     * set on every byte except the last).
+     */
+    private static int readVarint(ByteBuffer frame) throws Exception
+    {
+        int value = 0;
+        int shift = 0;
+        byte nextByte;
+        
+        do
+        {
+            if (shift > 28)
+            {
+                throw new Exception("Malformed request: varint is too long");
+            }
+            
+            nextByte = frame.get();
+            value |= (nextByte & 0x7F) << shift;
+            shift += 7;
+        } while ((nextByte & 0x80) != 0);
+        
+        return value;
+    }
+    
+    
+    /**
+     * Read a varint of up to 64 bits, e.g. a time in milliseconds.
+     */
+    private static long readLongVarint(ByteBuffer frame) throws Exception
+    {
+        long value = 0;
+        int shift = 0;
+        byte nextByte;
+        
+        do
+        {
+            if (shift > 63)
+            {
+                throw new Exception("Malformed request: varint is too long");
+            }
+            
+            nextByte = frame.get();
+            value |= (long)(nextByte & 0x7F) << shift;
+            shift += 7;
+        } while ((nextByte & 0x80) != 0);
+        
+        return value;
+    }
+    
+    
+    /**
+     * Read a signed value that was zig-zag encoded before being written as a varint.
+     */
+    private static int readZigZagVarint(ByteBuffer frame) throws Exception
+    {
+        int encoded = readVarint(frame);
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+    
+    
+    private void writeZigZagVarint(int value)
+    {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+    
+    
+    private void writeString(String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, m_response, m_responseLength, bytes.length);
+        m_responseLength += bytes.length;
+    }
+    
+    
+    private void writeVarint(int value)
+    {
+        ensureCapacity(5);
+        
+        while ((value & ~0x7F) != 0)
+        {
+            m_response[m_responseLength++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        
+        m_response[m_responseLength++] = (byte)value;
+    }
+    
+    
+    private void writeLong(long value)
+    {
+        ensureCapacity(8);
+        
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            m_response[m_responseLength++] = (byte)(value >>> shift);
+        }
+    }
+    
+    
+    private void writeByte(byte value)
+    {
+        ensureCapacity(1);
+        m_response[m_responseLength++] = value;
+    }
+    
+    
+    private void ensureCapacity(int numBytes)
+    {
+        if (m_responseLength + numBytes > m_response.length)
+        {
+            m_response = Arrays.copyOf(m_response, Math.max(m_response.length * 2, m_responseLength + numBytes));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * A connection to a single client, as seen by the HandlerLogic. This hides whether the connection
+ * is being served by its own thread (SocketConnection) or by one of the non-blocking event loops
+ * (NioSocketConnection), so the request handling does not need to care which mode we are in.
+ */
+
+import java.util.List;
+
+
+public interface ClientConnection
+{
+    /**
+     * Send a message to the client. The message is a single line, the line ending is added for you.
+     * @param message - array holding the message to send, as UTF-8. This may be reused once we 
+     *                  return.
+     * @param length - the number of bytes of the array that make up the message.
+     */
+    public void sendMessage(byte[] message, int length);
+    
+    
+    /**
+     * Send a frame of the binary protocol to the client. The length prefix is added for you.
+     * @param payload - array holding the payload of the frame. This may be reused once we return.
+     * @param length - the number of bytes of the array that make up the payload.
+     */
+    public void sendFrame(byte[] payload, int length);
+    
+    
+    /**
+     * Park a get_task request that is waiting for a task. No more of the client's requests are 
+     * handled until it has been answered (with HandlerLogic.finishWaiting), once it has been 
+     * handed a task or its deadline has passed, so that responses still go out in the order the
+     * requests came in.
+     * @param waiter - the waiting request, which the queue is already holding.
+     */
+    public void waitForTask(TaskWaiter waiter);
+    
+    
+    /**
+     * Called by the queue when it has handed a task to the request that this connection has 
+     * parked. This may be called from any thread, and whilst holding the queue lock, so it must 
+     * not block. It may even be called before waitForTask.
+     * @param waiter - the waiting request, which now has a task.
+     */
+    public void taskHandedOff(TaskWaiter waiter);
+    
+    
+    /**
+     * Called by the queue when it has pushed a task to one of this connection's subscriptions.
+     * The connection should call Subscription.sendPushes from its own thread. This may be called 
+     * from any thread, and whilst holding the queue lock, so it must not block.
+     * @param subscription - the subscription that has pushes waiting to be sent.
+     */
+    public void tasksPushed(Subscription subscription);
+    
+    
+    /**
+     * Keep hold of a set of the tasks of a queue that have been handed to this connection (which
+     * may be a subscription), so that they can be released (see TaskQueue.releaseLeases) when the
+     * connection is closed.
+     * @param leaseSet - the new set of leases.
+     */
+    public void addLeaseSet(LeaseSet leaseSet);
+    
+    
+    /**
+     * Fetch the sets of leases that this connection has, one per queue it has asked for tasks 
+     * from and one per queue it has subscribed to.
+     * @return the sets of leases, which must not be modified.
+     */
+    public List<LeaseSet> getLeaseSets();
+    
+    
+    /**
+     * Hold back the response that is about to be sent (and anything sent after it) until a change
+     * that was recorded in the journal is durable (see JournalWriter). A connection with its own
+     * thread can simply wait, but the event loops must not block.
+     * @param sequence - the sequence number of the change.
+     */
+    public void holdUntilDurable(long sequence);
+    
+    
+    /**
+     * Close the connection to the client.
+     */
+    public void close();
+    
+    
+    /**
+     * Check whether the connection has been closed (by us or by the client).
+     * @return flag indicating whether the connection has been closed.
+     */
+    public boolean isClosed();
+}
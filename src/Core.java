@@ -1,5 +1,6 @@
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
 import java.nio.channels.FileChannel;
@@ -15,6 +16,11 @@ import java.util.UUID;
 
 public class Core 
 {
+    // The lock taken by isAlreadyRunning, which we have to keep hold of, as it would be released
+    // if its file was garbage collected.
+    private static FileLock s_lock = null;
+    
+    
     public static String GetTimeString()
     {
         DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
@@ -156,6 +162,11 @@ public class Core
             if (lock == null)
             {
                 isAlreadyRunning = true;
+                channel.close();
+            }
+            else
+            {
+                s_lock = lock;
             }
         }
         catch (Exception p)
@@ -168,6 +179,29 @@ public class Core
     }
     
     
+    /**
+     * Release the lock taken by isAlreadyRunning, so that another instance can start straight away
+     * whilst this one finishes exiting. Does nothing if we do not have the lock.
+     */
+    public static void releaseLock()
+    {
+        if (s_lock != null)
+        {
+            try
+            {
+                s_lock.release();
+                s_lock.channel().close();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Failed to release the lock file " + e);
+            }
+            
+            s_lock = null;
+        }
+    }
+    
+    
     /**
      * Returns the absolute path to the directory that contains this jar file for UNIX systems
      * where paths use / instead of windows which uses \
@@ -0,0 +1,31 @@
+/*
+ * A heap of available tasks for queues that use the critical path scheduling policy. Tasks of the
+ * same priority are ordered by the length of the longest chain of tasks that is waiting on them,
+ * so that the work on a deep pipeline gets started early rather than being left until last, where
+ * it would keep the queue running long after everything else has finished. The normal ordering
+ * (blockage rating, then age) is only used to break ties.
+ */
+
+public class CriticalPathTaskHeap extends IndexedTaskHeap
+{
+    @Override
+    protected int compare(Task a, Task b)
+    {
+        int result;
+        
+        if (a.getEffectivePriority() != b.getEffectivePriority())
+        {
+            result = (a.getEffectivePriority() > b.getEffectivePriority()) ? -1 : 1;
+        }
+        else if (a.getCriticalPathLength() != b.getCriticalPathLength())
+        {
+            result = (a.getCriticalPathLength() > b.getCriticalPathLength()) ? -1 : 1;
+        }
+        else
+        {
+            result = a.compareTo(b);
+        }
+        
+        return result;
+    }
+}
@@ -10,11 +10,26 @@
  */
 public class Debug 
 {
+    // The environment can't change whilst we are running, so only read the setting once.
+    private static final boolean s_isEnabled = Settings.DEBUG();
+    
+    
     public static void println(String message)
     {
-        if (Settings.DEBUG())
+        if (s_isEnabled)
         {
             System.out.println(message);
         }
     }
+    
+    
+    /**
+     * Check whether debug output is turned on, so that callers can skip building messages that 
+     * would not be printed.
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return s_isEnabled;
+    }
 }
@@ -0,0 +1,358 @@
+/*
+ * The leader's end of a connection from a follower (see ReplicationServer and LeaderConnection).
+ * The follower is first sent a snapshot of each queue, and then every change to the queues in the
+ * same form as the journal records them, so that it can apply them in the same way as restoring
+ * from a journal does.
+ *
+ * Replication is asynchronous: the journals hand each record to the connection as it is made, which
+ * only copies it into the current batch, and the connection's own thread sends the batches. A
+ * batch is only sent once every change in it is durable on the leader, so a follower never has a
+ * change that the leader could lose by crashing. Requests are never held up waiting for followers,
+ * so a follower can be behind by however many changes were made since its last batch. A follower
+ * that falls too far behind (MAX_BACKLOG) is disconnected, rather than letting its backlog use up
+ * the leader's memory. It will reconnect and start again from a fresh snapshot.
+ *
+ * Each frame is a type (byte) and the length of the rest of the frame (long), followed by:
+ *   SNAPSHOT:  the sequence number of the last change in it (long) and the snapshot itself.
+ *   RECORDS:   for each record, its sequence number (long), the length and UTF-8 bytes of its
+ *              queue's name, and the record exactly as it is in the journal.
+ *   HEARTBEAT: the sequence number of the last change that is durable on the leader (long).
+ * The follower replies to every frame with the sequence number of the last change it has applied
+ * (long).
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+
+public class FollowerConnection
+{
+    public static final byte SNAPSHOT  = 1;
+    public static final byte RECORDS   = 2;
+    public static final byte HEARTBEAT = 3;
+
+    public static final int FRAME_HEADER_LENGTH = 9;
+
+    // How long to wait in milliseconds between frames before sending a heartbeat.
+    public static final long HEARTBEAT_INTERVAL = 1000;
+
+    // The size at which a batch of records is sent without waiting for the sender to take it.
+    private static final int BATCH_SIZE = 256 * 1024;
+
+    // The most bytes of records that can be waiting to be sent before we give up on the follower.
+    private static final long MAX_BACKLOG = 64 * 1024 * 1024;
+
+    private final SocketChannel m_channel;
+    private final String m_address;
+    private final JournalWriter m_writer;
+
+    // The frames waiting to be sent, and the batch of records being filled. Only touched whilst
+    // holding our lock.
+    private ArrayList<ByteBuffer> m_frames = new ArrayList<>();
+    private byte[] m_batch = new byte[BATCH_SIZE];
+    private int m_batchLength = 0;
+    private long m_backlog = 0;
+    private long m_lastSequence = 0;
+
+    private volatile boolean m_isClosed = false;
+
+    // The sequence number of the last change that has been sent, and that the follower has applied.
+    private volatile long m_sentSequence = 0;
+    private volatile long m_appliedSequence = 0;
+
+
+    public FollowerConnection(SocketChannel channel, JournalWriter writer)
+    {
+        m_channel = channel;
+        m_address = channel.socket().getRemoteSocketAddress().toString();
+        m_writer = writer;
+    }
+
+
+    /**
+     * Start sending the queues to the follower, and reading its replies.
+     */
+    public void start()
+    {
+        Thread sender = new Thread(this::sendFrames, "replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        Thread replyReader = new Thread(this::readReplies, "replication-replies");
+        replyReader.setDaemon(true);
+        replyReader.start();
+    }
+
+
+    /**
+     * Add a record that has just been made to the current batch. Only to be called by a journal,
+     * whilst holding its lock.
+     * @param sequence - the sequence number of the record.
+     * @param queueName - the UTF-8 name of the journal's queue.
+     * @param record - the buffer holding the record.
+     * @param offset - where the record starts in the buffer.
+     * @param length - the length of the record.
+     */
+    public synchronized void sendRecord(long sequence, byte[] queueName, byte[] record, int offset, int length)
+    {
+        if (m_isClosed)
+        {
+            return;
+        }
+
+        int entryLength = 8 + 4 + queueName.length + length;
+        boolean wasEmpty = (m_batchLength == 0);
+
+        if (wasEmpty)
+        {
+            // Leave room for the frame header, which is filled in when the batch is sent.
+            m_batchLength = FRAME_HEADER_LENGTH;
+        }
+
+        if (m_batch.length < m_batchLength + entryLength)
+        {
+            byte[] batch = new byte[Math.max(m_batch.length * 2, m_batchLength + entryLength)];
+            System.arraycopy(m_batch, 0, batch, 0, m_batchLength);
+            m_batch = batch;
+        }
+
+        ByteBuffer entry = ByteBuffer.wrap(m_batch, m_batchLength, entryLength);
+        entry.putLong(sequence);
+        entry.putInt(queueName.length);
+        entry.put(queueName);
+        entry.put(record, offset, length);
+        m_batchLength += entryLength;
+
+        m_lastSequence = Math.max(m_lastSequence, sequence);
+        m_backlog += entryLength;
+
+        if (m_backlog > MAX_BACKLOG)
+        {
+            System.out.println("Follower " + m_address + " has fallen too far behind, so disconnecting it.");
+            close();
+        }
+        else if (m_batchLength >= BATCH_SIZE)
+        {
+            flushBatch();
+        }
+
+        if (wasEmpty)
+        {
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Send a copy of a queue, after the records that have already been batched. Only to be called
+     * by a journal, whilst holding its lock, so that the records of the queue that come after it
+     * are batched after it.
+     * @param snapshot - the copy of the queue.
+     * @param sequence - the sequence number of the last change that is in the copy.
+     */
+    public synchronized void sendSnapshot(Snapshot.Output snapshot, long sequence)
+    {
+        if (m_isClosed)
+        {
+            return;
+        }
+
+        flushBatch();
+        ArrayList<ByteBuffer> chunks = snapshot.finish();
+        long size = 0;
+
+        for (ByteBuffer chunk : chunks)
+        {
+            size += chunk.remaining();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 8);
+        header.put(SNAPSHOT);
+        header.putLong(8 + size);
+        header.putLong(sequence);
+        header.flip();
+
+        m_frames.add(header);
+        m_frames.addAll(chunks);
+        m_lastSequence = Math.max(m_lastSequence, sequence);
+        notifyAll();
+    }
+
+
+    /**
+     * Turn the current batch of records into a frame that is ready to be sent. Only to be called
+     * whilst holding our lock.
+     */
+    private void flushBatch()
+    {
+        if (m_batchLength > 0)
+        {
+            ByteBuffer frame = ByteBuffer.wrap(m_batch, 0, m_batchLength);
+            frame.put(RECORDS);
+            frame.putLong(m_batchLength - FRAME_HEADER_LENGTH);
+            frame.position(0);
+
+            m_frames.add(frame);
+            m_batch = new byte[BATCH_SIZE];
+            m_batchLength = 0;
+        }
+    }
+
+
+    /**
+     * Run by the sender thread. Start the follower off with a snapshot of every queue, then keep
+     * sending whatever has been made durable, with a heartbeat after each lot.
+     */
+    private void sendFrames()
+    {
+        System.out.println("Follower " + m_address + " connected.");
+
+        try
+        {
+            // Registering first means that any queue created from now on is sent to us when it is
+            // created, and any queue that already has a journal is in the writer's list.
+            ReplicationServer.addFollower(this);
+
+            for (Journal journal : m_writer.getJournals())
+            {
+                TaskQueue queue = Scheduler.getInstance().getExistingQueue(journal.getQueueName());
+
+                if (queue != null)
+                {
+                    queue.addFollower(this);
+                }
+            }
+
+            ByteBuffer heartbeat = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 8);
+
+            while (!m_isClosed)
+            {
+                ArrayList<ByteBuffer> frames;
+                long sequence;
+
+                synchronized (this)
+                {
+                    if (m_frames.isEmpty() && m_batchLength == 0)
+                    {
+                        wait(HEARTBEAT_INTERVAL);
+                    }
+
+                    flushBatch();
+                    frames = m_frames;
+                    m_frames = new ArrayList<>();
+                    m_backlog = 0;
+                    sequence = m_lastSequence;
+                }
+
+                m_writer.awaitDurable(sequence);
+
+                heartbeat.clear();
+                heartbeat.put(HEARTBEAT);
+                heartbeat.putLong(8);
+                heartbeat.putLong(m_writer.getDurableSequence());
+                heartbeat.flip();
+                frames.add(heartbeat);
+
+                write(frames.toArray(new ByteBuffer[frames.size()]));
+                m_sentSequence = sequence;
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            if (!m_isClosed)
+            {
+                System.out.println("Lost the connection to follower " + m_address + " " + e.toString());
+            }
+        }
+        finally
+        {
+            close();
+            ReplicationServer.removeFollower(this);
+            System.out.println("Follower " + m_address + " disconnected.");
+        }
+    }
+
+
+    private void write(ByteBuffer[] frames) throws IOException
+    {
+        for (ByteBuffer frame : frames)
+        {
+            while (frame.hasRemaining())
+            {
+                m_channel.write(frames);
+            }
+        }
+    }
+
+
+    /**
+     * Run by the reply reader thread. Keep track of what the follower has applied, until it goes.
+     */
+    private void readReplies()
+    {
+        ByteBuffer reply = ByteBuffer.allocate(8);
+
+        try
+        {
+            while (!m_isClosed)
+            {
+                reply.clear();
+
+                while (reply.hasRemaining())
+                {
+                    if (m_channel.read(reply) < 0)
+                    {
+                        throw new EOFException("The follower closed the connection.");
+                    }
+                }
+
+                reply.flip();
+                m_appliedSequence = reply.getLong();
+            }
+        }
+        catch (IOException e)
+        {
+            // The sender notices that we have closed, and says so.
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+
+    /**
+     * Stop replicating to the follower and disconnect it. The journals forget about us the next
+     * time they make a record.
+     */
+    public void close()
+    {
+        m_isClosed = true;
+
+        synchronized (this)
+        {
+            m_frames.clear();
+            m_batchLength = 0;
+            notifyAll();
+        }
+
+        try
+        {
+            m_channel.close();
+        }
+        catch (IOException e)
+        {
+            // We are done with it either way.
+        }
+    }
+
+
+    // Accessors
+    public boolean isClosed()         { return m_isClosed; }
+    public String getAddress()        { return m_address; }
+    public long getSentSequence()     { return m_sentSequence; }
+    public long getAppliedSequence()  { return m_appliedSequence; }
+}
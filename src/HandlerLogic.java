@@ -1,105 +1,268 @@
 /*
  * All the "communication logic" (e.g. what requests we are expecting and how to respond to them) 
- * is here because we have two possible threading types (one thread per socket or thread pools). 
+ * is here because we have two possible threading types (one thread per socket or event loops). 
  * That way the two objects that handle the different threading types can just use this object and
  * if we ever want to update the logic we only have to change it here.
  */
 
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 
 
 public class HandlerLogic 
 {
+    // The request is parsed into, and the response written into, the same objects every time, so
+    // handling a message does not allocate a tree of objects for each. Each thread has its own, as
+    // a thread only ever handles one message at a time.
+    private static final ThreadLocal<JsonRequest> s_request = ThreadLocal.withInitial(JsonRequest::new);
+    private static final ThreadLocal<JsonResponseWriter> s_response = ThreadLocal.withInitial(JsonResponseWriter::new);
+    
+    
     /**
-     * This is the "main" / entry function (hence it is the only public one). Threads should call
-     * this in order to handle their socket connections.
+     * This is the entry function for the one thread per connection mode. Threads should call this 
+     * in order to handle their socket connections. This blocks until the client sends a message.
      * @param clientSocket 
      */
     public static void handleSocket(SocketConnection clientSocket)
     {
-        if (clientSocket.isMessageWaiting())
+        ByteBuffer clientMsg = clientSocket.readMessage();
+        
+        if (clientMsg == null)
+        {
+            // The client has gone away.
+            clientSocket.close();
+        }
+        else
         {
-            String clientMsg = clientSocket.readMessage();
-            processMessage(clientMsg, clientSocket);
+            processMessage(clientMsg.array(), clientMsg.limit(), clientSocket);
+            
+            // If that was a get_task that is waiting for a task, this blocks until it has one (or
+            // gives up) and answers it.
+            clientSocket.answerWaitingRequest();
         }
     }
     
     
+    /**
+     * This is the entry function for the event loops, which do their own reading and call this
+     * once they have a whole message from the client.
+     * @param clientMsg - array holding the message (line) the client sent, without the line ending.
+     * @param length - the number of bytes of the array that make up the message.
+     * @param connection - the connection the message came in on, which the response is sent to.
+     */
+    public static void handleMessage(byte[] clientMsg, int length, ClientConnection connection)
+    {
+        processMessage(clientMsg, length, connection);
+    }
+    
+    
     /**
      * Handle the request that came in. This can be thought of the router or handler.
-     * @param String clientMsg - the message that was passed to us.
-     * @return JsonObject
+     * @param clientMsg - array holding the message that was passed to us.
+     * @param length - the number of bytes of the array that make up the message.
+     * @param clientSocket - the connection to send the response to.
      */
-    private static void processMessage(String clientMsg, SocketConnection clientSocket)
+    private static void processMessage(byte[] clientMsg, int length, ClientConnection clientSocket)
     {
-        Debug.println("processing client message: " + clientMsg);
-        JsonObject response = new JsonObject();
-        JsonObject cargo = null;
+        if (Debug.isEnabled())
+        {
+            Debug.println("processing client message: " + new String(clientMsg, 0, length, StandardCharsets.UTF_8));
+        }
         
-        // Convert the message which is a json string into a json object (google gson)
-        JsonParser parser = new JsonParser();
-        JsonObject clientMsgJson = (JsonObject)parser.parse(clientMsg);
+        JsonRequest request = s_request.get();
+        JsonResponseWriter response = s_response.get();
+        response.reset();
+        response.beginObject();
+        String action = "";
+        boolean isWaiting = false;
+        Subscription newSubscription = null;
+        long shutdownDrainTime = -1;
         
-        if (!clientMsgJson.has("queue_name"))
+        try
+        {
+            request.parse(clientMsg, 0, length);
+        }
+        catch (Exception e)
         {
-            // Any of the handlers can throw an exception.
-            Debug.println("Client failed to provide a queue_name in: [" + clientMsg + "]");
-            response = addToJson(response, "result", "error");
-            response = addToJson(response, "message", "no queue_name specified");
+            Debug.println("Client sent a message that is not a JSON object: " + e.toString());
+            addError(response, e.toString());
+            sendResponse(response, clientSocket);
+            return;
         }
         
-        String action = "";
+        // Clients that send lots of requests without waiting for each response can tag them with 
+        // an id of their choosing, which we send back so they can match the responses up.
+        if (request.has("request_id"))
+        {
+            response.name("request_id");
+            response.rawValue(request.getJson(), request.getValueStart("request_id"), request.getValueEnd("request_id"));
+        }
         
-        if (clientMsgJson.has("action"))
+        if (request.has("action"))
+        {
+            try
+            {
+                action = request.getString("action");
+            }
+            catch (Exception e)
+            {
+                action = "";
+            }
+        }
+        
+        if (action.equals("close"))
+        {
+            // do nothing, we will handle this later down the logic
+        }
+        else if (!request.has("action"))
+        {
+            Debug.println("Client failed to provide an action");
+            addError(response, "no action specified");
+        }
+        else if (!request.has("queue_name") && !isAdminAction(action))
+        {
+            Debug.println("Client failed to provide a queue_name");
+            addError(response, "no queue_name specified");
+        }
+        else
         {
-            action = clientMsgJson.get("action").getAsString();
             Debug.println("Action: " + action);
-            clientMsgJson.remove("action");
+            
+            // If the handler fails part way through writing its cargo, we need to be able to go 
+            // back and write the error instead.
+            response.mark();
             
             try
             {
+                response.name("result").value("success");
+                response.name("cargo");
+                int cargoStart = response.getLength();
+                
+                if (!isAdminAction(action) && !action.equals("get_info"))
+                {
+                    // Followers keep their queues the same as the leader's, so only it can change them.
+                    Scheduler.getInstance().checkIsLeader();
+                }
+                
                 switch (action)
                 {
                     case "add_task":
                     {
-                        cargo = handleAddTask(clientMsgJson);
+                        handleAddTask(request, response);
+                    }
+                    break;
+                    
+                    case "add_tasks":
+                    {
+                        handleAddTasks(request, response);
                     }
                     break;
                     
                     case "get_task":
                     {
-                        Debug.println("Running get_task");
-                        cargo = handleGetTask(clientMsgJson);
+                        isWaiting = handleGetTask(request, response, clientSocket);
+                    }
+                    break;
+                    
+                    case "get_tasks":
+                    {
+                        handleGetTasks(request, response, clientSocket);
                     }
                     break;
                     
                     case "complete_task":
                     {
-                        handleCompleteTask(clientMsgJson);
+                        handleCompleteTask(request);
+                    }
+                    break;
+                    
+                    case "complete_tasks":
+                    {
+                        handleCompleteTasks(request, response);
                     }
                     break;
                     
                     case "get_info":
                     {
-                        cargo = handleGetInfo(clientMsgJson);
+                        handleGetInfo(request, response);
                     }
                     break;
                     
                     case "reject_task":
                     {
-                        handleRejectTask(clientMsgJson);
+                        handleRejectTask(request);
+                    }
+                    break;
+                    
+                    case "extend_lease":
+                    {
+                        handleExtendLease(request, response);
+                    }
+                    break;
+                    
+                    case "remove_task":
+                    {
+                        handleRemoveTask(request);
+                    }
+                    break;
+                    
+                    case "cancel_task":
+                    {
+                        handleCancelTask(request, response);
+                    }
+                    break;
+                    
+                    case "remove_group":
+                    {
+                        handleRemoveGroup(request, response);
+                    }
+                    break;
+                    
+                    case "configure_queue":
+                    {
+                        handleConfigureQueue(request);
+                    }
+                    break;
+                    
+                    case "subscribe":
+                    {
+                        newSubscription = handleSubscribe(request, clientSocket);
                     }
+                    break;
+                    
+                    case "unsubscribe":
+                    {
+                        handleUnsubscribe(request, clientSocket);
+                    }
+                    break;
+                    
+                    case "shutdown":
+                    {
+                        shutdownDrainTime = getShutdownDrainTime(request);
+                    }
+                    break;
                     
-                    case "close":
+                    case "ping":
                     {
-                        // do nothing, we will handle this later down the logic
+                        // Nothing to do, the client just wants us to know that it is still there
+                        // (see Settings.CLIENT_TIMEOUT).
+                    }
+                    break;
+                    
+                    case "replication_status":
+                    {
+                        handleReplicationStatus(response);
+                    }
+                    break;
+                    
+                    case "promote":
+                    {
+                        Scheduler.getInstance().promote();
                     }
                     break;
                     
@@ -109,166 +272,572 @@ public class HandlerLogic
                     }
                 }
                 
-                addToJson(response, "result", "success");
+                if (response.getLength() == cargoStart)
+                {
+                    // Still want to send a cargo element, but with nothing in it.
+                    response.value("");
+                }
             }
             catch (Exception e)
             {
                 // Any of the handlers can throw an exception.
-                Debug.println("Building error response for client...");
-                response = addToJson(response, "result", "error");
-                String errorMessage = e.toString();
                 Debug.println("error message was: " + e.toString());
-                response = addToJson(response, "message", errorMessage);
-                Debug.println("Error response has been generated");
+                response.resetToMark();
+                addError(response, e.toString());
             }
         }
-        else
-        {
-            // Any of the handlers can throw an exception.
-            Debug.println("Client failed to provide an action in: [" + clientMsg + "]");
-            response = addToJson(response, "result", "error");
-            response = addToJson(response, "message", "no action specified");
-        }
-        
         
         // If the client requested us to close the connection, then close it.
         if (action.equals("close"))
         {
             clientSocket.close();
         }
+        else if (!isWaiting)
+        {
+            sendResponse(response, clientSocket);
+        }
+        
+        if (newSubscription != null)
+        {
+            // Now that the client has its response, it can be sent the tasks that were pushed.
+            clientSocket.tasksPushed(newSubscription);
+        }
+        
+        if (shutdownDrainTime >= 0)
+        {
+            // Only once the client has its response, as we may exit straight away.
+            startShutdown(shutdownDrainTime);
+        }
+    }
+    
+    
+    /**
+     * Check whether an action is about the scheduler as a whole, rather than a queue, in which case
+     * it does not need a queue_name.
+     * @param action - the action that was requested.
+     * @return true if it is.
+     */
+    private static boolean isAdminAction(String action)
+    {
+        return action.equals("ping") 
+            || action.equals("shutdown") 
+            || action.equals("replication_status") 
+            || action.equals("promote");
+    }
+    
+    
+    /**
+     * Handler for the "replication_status" request. The leader lists its followers and how far 
+     * behind each one is, whilst a follower says how far behind the leader it is. How far behind 
+     * is counted in changes (journal records) that the leader has made durable but the follower 
+     * has not applied yet.
+     * @param cargo - the response to write the cargo to
+     */
+    private static void handleReplicationStatus(JsonResponseWriter cargo)
+    {
+        LeaderConnection leader = Scheduler.getInstance().getLeader();
+        cargo.beginObject();
+        
+        if (leader != null)
+        {
+            long lag = Math.max(0, leader.getLeaderSequence() - leader.getAppliedSequence());
+            cargo.name("role").value("follower");
+            cargo.name("leader").value(leader.getAddress());
+            cargo.name("connected").value(leader.isConnected());
+            cargo.name("applied_sequence").value(leader.getAppliedSequence());
+            cargo.name("leader_sequence").value(leader.getLeaderSequence());
+            cargo.name("lag").value(lag);
+            
+            if (leader.getLastHeardTime() > 0)
+            {
+                cargo.name("ms_since_heard").value(System.currentTimeMillis() - leader.getLastHeardTime());
+            }
+        }
         else
         {
-            String cargoString = "";
+            long sequence = (Settings.JOURNAL_DIR() != null) ? JournalWriter.getInstance().getDurableSequence() : 0;
+            cargo.name("role").value("leader");
+            cargo.name("sequence").value(sequence);
+            cargo.name("followers").beginArray();
+            
+            for (FollowerConnection follower : ReplicationServer.getFollowers())
+            {
+                cargo.beginObject();
+                cargo.name("address").value(follower.getAddress());
+                cargo.name("applied_sequence").value(follower.getAppliedSequence());
+                cargo.name("lag").value(Math.max(0, sequence - follower.getAppliedSequence()));
+                cargo.endObject();
+            }
+            
+            cargo.endArray();
+        }
+        
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Read the parameters of a "shutdown" request. If "drain_ms" is given, the tasks that are being
+     * processed are given up to that many milliseconds to be completed before we exit.
+     * @param clientMessage - the request that was sent to us
+     * @return the time in milliseconds to wait for the tasks being processed.
+     */
+    private static long getShutdownDrainTime(JsonRequest clientMessage) throws Exception
+    {
+        long drainTime = 0;
         
-            if (cargo != null)
+        if (clientMessage.has("drain_ms"))
+        {
+            drainTime = clientMessage.getInt("drain_ms");
+            
+            if (drainTime < 0)
             {
-                response.add("cargo", cargo);
+                throw new Exception("Parameter [drain_ms] cannot be negative");
             }
-            else
+        }
+        
+        return drainTime;
+    }
+    
+    
+    /**
+     * Shut the scheduler down gracefully (see Scheduler.shutdown) and exit, on a thread of its own
+     * so that the connection that asked can carry on, e.g. to complete its tasks.
+     * @param drainTime - the most time in milliseconds to wait for the tasks being processed.
+     */
+    private static void startShutdown(long drainTime)
+    {
+        Thread shutdownThread = new Thread(() ->
+        {
+            Scheduler.getInstance().shutdown(drainTime);
+            System.exit(0);
+        }, "shutdown");
+        
+        shutdownThread.start();
+    }
+    
+    
+    /**
+     * Answer a get_task request that has been waiting for a task, now that it has been handed one
+     * or its deadline has passed. If the client has gone away in the meantime, then the task is 
+     * put back for somebody else.
+     * @param waiter - the request that was waiting.
+     */
+    public static void finishWaiting(TaskWaiter waiter)
+    {
+        Task task = waiter.finish();
+        ClientConnection clientSocket = waiter.getConnection();
+        
+        if (clientSocket.isClosed())
+        {
+            if (task != null)
             {
-                // Still want to send a cargo element, but with nothing in it.
-                response.add("cargo", new JsonPrimitive(""));
+                try
+                {
+                    waiter.getQueue().rejectTask(task.getId(), task.getLockHigh(), task.getLockLow());
+                }
+                catch (Exception e)
+                {
+                    Debug.println("Failed to put back the task of a closed connection: " + e.toString());
+                }
             }
             
-            Gson gson = new Gson();
-            String responseString = gson.toJson(response);
-            clientSocket.sendMessage(responseString);
+            return;
+        }
+        
+        JsonResponseWriter response = s_response.get();
+        response.reset();
+        response.beginObject();
+        
+        if (waiter.getRequestId() != null)
+        {
+            byte[] requestId = waiter.getRequestId();
+            response.name("request_id").rawValue(requestId, 0, requestId.length);
         }
+        
+        if (task == null)
+        {
+            // The same response as if we had not waited at all.
+            addError(response, new Exception(TaskQueue.NO_AVAILABLE_TASKS).toString());
+        }
+        else
+        {
+            response.name("result").value("success");
+            response.name("cargo").beginObject();
+            response.name("task");
+            task.writeJson(response);
+            response.endObject();
+        }
+        
+        sendResponse(response, clientSocket);
     }
     
     
     /**
-     * Helper function to just keep adding name/value pairs to a json object
-     * @param obj - the object we are adding to
-     * @param name - the name part of a name/value pair
-     * @param value - the value of a name/value pair.
-     * @return JsonObject
+     * Helper function to write the fields of an error response.
+     * @param response - the response we are writing to
+     * @param message - the error message for the client.
      */
-    private static JsonObject addToJson(JsonObject obj, String name, String value)
+    private static void addError(JsonResponseWriter response, String message)
     {
-        obj.add(name, new JsonPrimitive(value));
-        return obj;
+        response.name("result").value("error");
+        response.name("message").value(message);
+        response.name("cargo").value("");
+    }
+    
+    
+    private static void sendResponse(JsonResponseWriter response, ClientConnection clientSocket)
+    {
+        holdForJournal(clientSocket);
+        response.endObject();
+        clientSocket.sendMessage(response.getBytes(), response.getLength());
+    }
+    
+    
+    /**
+     * If handling the request changed a queue, make sure that the response is not sent until the 
+     * change is safely in the journal (see Settings.JOURNAL_DIR).
+     * @param clientSocket - the connection the response is going to.
+     */
+    public static void holdForJournal(ClientConnection clientSocket)
+    {
+        long sequence = JournalWriter.takeThreadSequence();
+        
+        if (sequence > 0)
+        {
+            clientSocket.holdUntilDurable(sequence);
+        }
+    }
+    
+    
+    /**
+     * Fetch the lock that a client provided in a request, checking that it is in the form of a 
+     * lock so that it can be decoded with LockToken. 
+     * @param clientMessage - the request (or lease) that holds the lock
+     * @return the lock string
+     * @throws Exception if the lock is not in the form of one we would have handed out.
+     */
+    private static String getLock(JsonRequest clientMessage) throws Exception
+    {
+        String lock = clientMessage.getString("lock");
+        
+        if (!LockToken.isValid(lock))
+        {
+            throw new Exception("The lock provided was incorrect");
+        }
+        
+        return lock;
     }
     
     
     /**
      * Handle a request to add a task to the scheduler.
-     * @param clientMessage - the JSON object that represents the request that was sent to us
-     * @return
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write the cargo to
      * @throws Exception 
      */
-    private static JsonObject handleAddTask(JsonObject clientMessage) throws Exception
+    private static void handleAddTask(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
     {
-        // This forms part of the response.
-        JsonObject cargo = new JsonObject();
+        TaskDefinition definition = readTaskDefinition(clientMessage);
+        String queueName = clientMessage.getString("queue_name");
+        Scheduler scheduler = Scheduler.getInstance();
+        TaskQueue queue = scheduler.getQueue(queueName);
+        Integer newTaskId;
         
-        if (!clientMessage.has("task_name"))
+        if (definition.hasMaxLockTime())
         {
-            throw new Exception("Missing required parameter [task_name]");
+            newTaskId = queue.addTask(definition.getName(), 
+                                      definition.getDependencies(), 
+                                      definition.getExtraInfo(), 
+                                      definition.getPriority(), 
+                                      definition.getGroup(), 
+                                      definition.getMaxLockTime());
+        }
+        else
+        {
+            newTaskId = queue.addTask(definition.getName(), 
+                                      definition.getDependencies(), 
+                                      definition.getExtraInfo(), 
+                                      definition.getPriority(), 
+                                      definition.getGroup());
         }
         
-        String queueName = clientMessage.get("queue_name").getAsString();
-        String taskName = clientMessage.get("task_name").getAsString();
-        Debug.println("Adding task: " +  taskName);
+        cargo.beginObject();
+        cargo.name("task_id").value(newTaskId);
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Handle a request to add a whole batch of tasks (e.g. a DAG) at once. Expects a "tasks" array
+     * of objects with the same fields as an add_task request, plus a "key" of the client's 
+     * choosing that is unique within the batch. As well as the ids of existing tasks in their
+     * "dependencies", tasks can list the keys of other tasks in the batch in "local_dependencies".
+     * Either all of the tasks are added or, if there is anything wrong with the batch, none are.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write the id of each task to, by its key.
+     * @throws Exception if the batch is malformed, or its tasks depend on each other in a cycle.
+     */
+    private static void handleAddTasks(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
+    {
+        if (!clientMessage.has("tasks"))
+        {
+            throw new Exception("Missing required parameter [tasks]");
+        }
         
-        ArrayList<Integer> dependencies = new ArrayList<>();
+        ArrayList<JsonRequest> tasks = clientMessage.getObjectList("tasks");
+        ArrayList<TaskDefinition> definitions = new ArrayList<>(tasks.size());
+        String[] keys = new String[tasks.size()];
+        HashMap<String, Integer> positions = new HashMap<>();
         
-        if (clientMessage.has("dependencies"))
+        for (int i = 0; i < tasks.size(); i++)
         {
-            Debug.println("Adding dependeincies...");
-            JsonArray dependenciesRaw = clientMessage.get("dependencies").getAsJsonArray();
-            Iterator dependencyIterator = dependenciesRaw.iterator();
+            JsonRequest task = tasks.get(i);
             
-            while (dependencyIterator.hasNext())
+            if (!task.has("key"))
             {
-                Integer dependency = Integer.parseInt(dependencyIterator.next().toString());
-                dependencies.add(dependency);
+                throw new Exception("Each of the [tasks] requires a key");
+            }
+            
+            keys[i] = task.getString("key");
+            
+            if (positions.put(keys[i], i) != null)
+            {
+                throw new Exception("The key [" + keys[i] + "] is used by more than one of the [tasks]");
+            }
+            
+            definitions.add(readTaskDefinition(task));
+        }
+        
+        // Only now that we have all the keys can the local dependencies be looked up, as tasks do
+        // not have to come after the tasks they depend on.
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            JsonRequest task = tasks.get(i);
+            
+            if (task.has("local_dependencies"))
+            {
+                ArrayList<String> localDependencies = task.getStringList("local_dependencies");
+                int[] batchDependencies = new int[localDependencies.size()];
+                
+                for (int j = 0; j < batchDependencies.length; j++)
+                {
+                    Integer position = positions.get(localDependencies.get(j));
+                    
+                    if (position == null)
+                    {
+                        throw new Exception("None of the [tasks] has the key [" + localDependencies.get(j) + "]");
+                    }
+                    
+                    batchDependencies[j] = position;
+                }
+                
+                definitions.get(i).setBatchDependencies(batchDependencies);
             }
         }
         
+        String queueName = clientMessage.getString("queue_name");
+        Scheduler scheduler = Scheduler.getInstance();
+        TaskQueue queue = scheduler.getQueue(queueName);
+        int[] taskIds = queue.addTasks(definitions);
+        
+        cargo.beginObject();
+        cargo.name("task_ids").beginObject();
+        
+        for (int i = 0; i < taskIds.length; i++)
+        {
+            cargo.escapedName(keys[i]).value(taskIds[i]);
+        }
+        
+        cargo.endObject();
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Read the fields that describe a task to be added, from an add_task request or one of the 
+     * tasks of an add_tasks request.
+     * @param clientMessage - the request, or the task within it.
+     * @return the task to be added.
+     * @throws Exception if a field is missing or invalid.
+     */
+    private static TaskDefinition readTaskDefinition(JsonRequest clientMessage) throws Exception
+    {
+        if (!clientMessage.has("task_name"))
+        {
+            throw new Exception("Missing required parameter [task_name]");
+        }
+        
+        String taskName = clientMessage.getString("task_name");
+        
+        ArrayList<Integer> dependencies;
         
+        if (clientMessage.has("dependencies"))
+        {
+            dependencies = clientMessage.getIntList("dependencies");
+        }
+        else
+        {
+            dependencies = new ArrayList<>();
+        }
+        
+        // This is kept exactly as the client sent it (it has already been checked that it is 
+        // valid JSON), rather than being parsed and rendered again.
         String extraInfo = "";
         if (clientMessage.has("extra_info"))
         {
-            Gson gson = new Gson();
-            extraInfo = gson.toJson(clientMessage.get("extra_info"));
+            extraInfo = clientMessage.getRawValue("extra_info");
         }
         
         int priority = Task.DEFAULT_PRIORITY;
         
         if (clientMessage.has("priority"))
         {
-            priority = Integer.parseInt(clientMessage.get("priority").getAsString());
+            priority = clientMessage.getInt("priority");
         }
         
         String group = null;
         
         if (clientMessage.has("group"))
         {
-            group = clientMessage.get("group").getAsString();
+            group = clientMessage.getString("group");
         }
         
+        long maxLockTime = -1;
+        
+        if (clientMessage.has("max_lock_time"))
+        {
+            // Specified in seconds like the DEFAULT_MAX_LOCK_TIME setting, but may be fractional.
+            double maxLockSeconds = clientMessage.getDouble("max_lock_time");
+            
+            // Written so that NaN, which fails every comparison, is rejected too.
+            if (!(maxLockSeconds >= 0 && maxLockSeconds * 1000 <= Task.LONGEST_MAX_LOCK_TIME))
+            {
+                throw new Exception("Parameter [max_lock_time] must be between 0 and " 
+                                    + (Task.LONGEST_MAX_LOCK_TIME / 1000) + " seconds");
+            }
+            
+            maxLockTime = (long)(maxLockSeconds * 1000);
+        }
+        
+        return new TaskDefinition(taskName, dependencies, extraInfo, priority, group, maxLockTime);
+    }
+    
+    
+    /**
+     * Handler for the "get_task" request. If "wait_ms" is given and there are no tasks available,
+     * then rather than failing straight away, the request waits for up to that many milliseconds 
+     * for a task to become available, and is answered later by finishWaiting.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write the cargo to
+     * @param clientSocket - the connection the request came in on, which may wait for a task.
+     * @return flag indicating whether the request is now waiting, and must not be answered yet.
+     */
+    private static boolean handleGetTask(JsonRequest clientMessage, 
+                                         JsonResponseWriter cargo, 
+                                         ClientConnection clientSocket) throws Exception
+    {
+        String queueName = clientMessage.getString("queue_name");
         Scheduler scheduler = Scheduler.getInstance();
         TaskQueue queue = scheduler.getQueue(queueName);
-        Debug.println("adding the task to the scheduler...");
-        Integer newTaskId = queue.addTask(taskName, dependencies, extraInfo, priority, group);
+        LeaseSet leaseSet = getLeaseSet(clientSocket, queue);
+        Task taskToDo;
+        int waitTime = 0;
+        
+        if (clientMessage.has("wait_ms"))
+        {
+            waitTime = clientMessage.getInt("wait_ms");
+            
+            if (waitTime < 0)
+            {
+                throw new Exception("Parameter [wait_ms] cannot be negative");
+            }
+        }
+        
+        if (waitTime > 0)
+        {
+            byte[] requestId = null;
+            
+            if (clientMessage.has("request_id"))
+            {
+                requestId = Arrays.copyOfRange(clientMessage.getJson(), 
+                                               clientMessage.getValueStart("request_id"), 
+                                               clientMessage.getValueEnd("request_id"));
+            }
+            
+            TaskWaiter waiter = new TaskWaiter(queue, clientSocket, leaseSet, Core.time(true) + waitTime, requestId);
+            taskToDo = queue.getAvailableTask(waiter);
+            
+            if (taskToDo == null)
+            {
+                clientSocket.waitForTask(waiter);
+                return true;
+            }
+        }
+        else
+        {
+            taskToDo = queue.getAvailableTask(leaseSet);
+        }
         
-        cargo.add("task_id", new JsonPrimitive(newTaskId));
+        releaseLeasesIfClosed(clientSocket, leaseSet);
         
-        return cargo;
+        cargo.beginObject();
+        cargo.name("task");
+        taskToDo.writeJson(cargo);
+        cargo.endObject();
+        return false;
     }
     
     
     /**
-     * Handler for the "get_task" request
-     * @param clientMessage - the JSON object that represents the request that was sent to us
-     * @return 
+     * Handler for the "get_tasks" request, which takes up to "max_tasks" of the available tasks at
+     * once. Unlike get_task, having no tasks available is not an error, the list is just empty.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write the cargo to
+     * @param clientSocket - the connection that the tasks are being handed to.
      */
-    private static JsonObject handleGetTask(JsonObject clientMessage) throws Exception
+    private static void handleGetTasks(JsonRequest clientMessage, 
+                                       JsonResponseWriter cargo, 
+                                       ClientConnection clientSocket) throws Exception
     {
-        // This forms part of the response.
-        JsonObject cargo = new JsonObject();
-        Debug.println("Getting scheduler...");
-        String queueName = clientMessage.get("queue_name").getAsString();
+        if (!clientMessage.has("max_tasks"))
+        {
+            throw new Exception("Missing required parameter [max_tasks]");
+        }
+        
+        int maxTasks = clientMessage.getInt("max_tasks");
+        
+        if (maxTasks < 1)
+        {
+            throw new Exception("Parameter [max_tasks] must be at least 1");
+        }
+        
+        String queueName = clientMessage.getString("queue_name");
         Scheduler scheduler = Scheduler.getInstance();
         TaskQueue queue = scheduler.getQueue(queueName);
+        LeaseSet leaseSet = getLeaseSet(clientSocket, queue);
+        ArrayList<Task> tasks = queue.getAvailableTasks(maxTasks, leaseSet);
+        releaseLeasesIfClosed(clientSocket, leaseSet);
         
-        Debug.println("Asking scheduler for first available task...");
-        Task taskToDo = queue.getAvailableTask();
-        Debug.println("Serializing fetched task...");
+        cargo.beginObject();
+        cargo.name("tasks").beginArray();
         
-        cargo.add("task", taskToDo.jsonSerialize());
+        for (Task task : tasks)
+        {
+            task.writeJson(cargo);
+        }
         
-        return cargo;
+        cargo.endArray();
+        cargo.endObject();
     }
     
     
     /**
      * Handle the users request to mark a task as having been completed.
-     * @param clientMessage - the JSON object that represents the request that was sent to us
+     * @param clientMessage - the request that was sent to us
      * @return void
      */
-    private static void handleCompleteTask(JsonObject clientMessage) throws Exception
+    private static void handleCompleteTask(JsonRequest clientMessage) throws Exception
     {
         if (!clientMessage.has("task_id"))
         {
@@ -280,29 +849,151 @@ public class HandlerLogic
             throw new Exception("Missing required parameter [lock]"); 
         }
         
-        Integer task_id = clientMessage.get("task_id").getAsInt();
-        String lock     = clientMessage.get("lock").getAsString();
+        Integer task_id = clientMessage.getInt("task_id");
+        String lock     = getLock(clientMessage);
                 
         /* @var $scheduler Scheduler */
-        String queueName = clientMessage.get("queue_name").getAsString();
+        String queueName = clientMessage.getString("queue_name");
         Scheduler scheduler = Scheduler.getInstance();
         TaskQueue queue = scheduler.getQueue(queueName);
-        queue.completeTask(task_id, lock);
+        queue.completeTask(task_id, LockToken.decodeHigh(lock), LockToken.decodeLow(lock));
     }
     
     
     /**
-     * 
-     * @param clientMessage
-     * @return 
+     * Handle a workers "heartbeat" for the tasks it is working on. This renews the lock on each of
+     * the specified tasks so that they are not considered lost and handed to another worker.
+     * Expects a "leases" array of objects that each have a task_id and lock.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write a result for each of the leases to, in the order they 
+     *                were given.
+     * @throws Exception if the request was malformed.
      */
-    private static JsonObject handleGetInfo(JsonObject clientMessage)
+    private static void handleExtendLease(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
+    {
+        if (!clientMessage.has("leases"))
+        {
+            throw new Exception("Missing required parameter [leases]");
+        }
+        
+        ArrayList<JsonRequest> leases = clientMessage.getObjectList("leases");
+        int[] taskIds = new int[leases.size()];
+        long[] lockHighs = new long[leases.size()];
+        long[] lockLows = new long[leases.size()];
+        
+        for (int i = 0; i < leases.size(); i++)
+        {
+            JsonRequest lease = leases.get(i);
+            
+            if (!lease.has("task_id") || !lease.has("lock"))
+            {
+                throw new Exception("Each of the [leases] requires a task_id and lock");
+            }
+            
+            String lock = getLock(lease);
+            taskIds[i] = lease.getInt("task_id");
+            lockHighs[i] = LockToken.decodeHigh(lock);
+            lockLows[i] = LockToken.decodeLow(lock);
+        }
+        
+        String queueName = clientMessage.getString("queue_name");
+        Scheduler scheduler = Scheduler.getInstance();
+        TaskQueue queue = scheduler.getQueue(queueName);
+        String[] errors = queue.extendLeases(taskIds, lockHighs, lockLows);
+        addResults(cargo, taskIds, errors);
+    }
+    
+    
+    /**
+     * Handle a request to mark a batch of tasks as having been completed. Expects a "tasks" array
+     * of objects that each have a task_id and lock. They are all completed under a single 
+     * acquisition of the queue lock, and a task that cannot be completed does not stop the rest.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write a result for each of the tasks to, in the order they 
+     *                were given.
+     * @throws Exception if the request was malformed.
+     */
+    private static void handleCompleteTasks(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
+    {
+        if (!clientMessage.has("tasks"))
+        {
+            throw new Exception("Missing required parameter [tasks]");
+        }
+        
+        ArrayList<JsonRequest> tasks = clientMessage.getObjectList("tasks");
+        int[] taskIds = new int[tasks.size()];
+        long[] lockHighs = new long[tasks.size()];
+        long[] lockLows = new long[tasks.size()];
+        
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            JsonRequest task = tasks.get(i);
+            
+            if (!task.has("task_id") || !task.has("lock"))
+            {
+                throw new Exception("Each of the [tasks] requires a task_id and lock");
+            }
+            
+            String lock = getLock(task);
+            taskIds[i] = task.getInt("task_id");
+            lockHighs[i] = LockToken.decodeHigh(lock);
+            lockLows[i] = LockToken.decodeLow(lock);
+        }
+        
+        String queueName = clientMessage.getString("queue_name");
+        Scheduler scheduler = Scheduler.getInstance();
+        TaskQueue queue = scheduler.getQueue(queueName);
+        String[] errors = queue.completeTasks(taskIds, lockHighs, lockLows);
+        addResults(cargo, taskIds, errors);
+    }
+    
+    
+    /**
+     * Write the result for each task of a batch request, e.g. extend_lease.
+     * @param cargo - the response to write the results to.
+     * @param taskIds - the ids of the tasks, in the order they were given.
+     * @param errors - the error message for each task, or null where it succeeded.
+     */
+    private static void addResults(JsonResponseWriter cargo, int[] taskIds, String[] errors)
+    {
+        cargo.beginObject();
+        cargo.name("results").beginArray();
+        
+        for (int i = 0; i < taskIds.length; i++)
+        {
+            cargo.beginObject();
+            cargo.name("task_id").value(taskIds[i]);
+            
+            if (errors[i] == null)
+            {
+                cargo.name("result").value("success");
+            }
+            else
+            {
+                cargo.name("result").value("error");
+                cargo.name("message").value(errors[i]);
+            }
+            
+            cargo.endObject();
+        }
+        
+        cargo.endArray();
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Handler for the "get_info" request. This is for debugging rather than the hot path, so the 
+     * queue still builds its info as a JsonObject.
+     * @param clientMessage - the request that was sent to us
+     * @param cargo - the response to write the cargo to
+     */
+    private static void handleGetInfo(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
     {        
-        String queueName = clientMessage.get("queue_name").getAsString();
+        String queueName = clientMessage.getString("queue_name");
         Scheduler scheduler = Scheduler.getInstance();
         TaskQueue queue = scheduler.getQueue(queueName);
-        JsonObject cargo = queue.getInfo();
-        return cargo;
+        cargo.rawValue(new Gson().toJson(queue.getInfo()));
     }
     
     
@@ -313,10 +1004,8 @@ public class HandlerLogic
      * @param clientMessage - the request object that should contain the task id and lock
      * @return 
      */
-    private static void handleRejectTask(JsonObject clientMessage) throws Exception
+    private static void handleRejectTask(JsonRequest clientMessage) throws Exception
     {
-        // This forms part of the response.
-            
         if (!clientMessage.has("task_id"))
         {
             throw new Exception("Missing required parameter [task_id]");
@@ -327,16 +1016,16 @@ public class HandlerLogic
             throw new Exception("Missing required parameter [lock]"); 
         }
         
-        Integer task_id = clientMessage.get("task_id").getAsInt();
-        String lock     = clientMessage.get("lock").getAsString();
+        Integer task_id = clientMessage.getInt("task_id");
+        String lock     = getLock(clientMessage);
                 
         /* @var $scheduler Scheduler */
-        String queueName = clientMessage.get("queue_name").getAsString();
+        String queueName = clientMessage.getString("queue_name");
         Scheduler scheduler = Scheduler.getInstance();
         TaskQueue queue = scheduler.getQueue(queueName);
         
         // This will throw the appropriate exception if fails so dont need to build response here.
-        queue.rejectTask(task_id, lock);
+        queue.rejectTask(task_id, LockToken.decodeHigh(lock), LockToken.decodeLow(lock));
     }
     
     
@@ -347,7 +1036,7 @@ public class HandlerLogic
      * @param clientMessage
      * @throws Exception if the task could not be removed.
      */
-    private static void handleRemoveTask(JsonObject clientMessage) throws Exception
+    private static void handleRemoveTask(JsonRequest clientMessage) throws Exception
     {        
         Scheduler scheduler = Scheduler.getInstance();
         
@@ -356,28 +1045,241 @@ public class HandlerLogic
             throw new Exception("Missing required parameter [task_id]");
         }
         
-        Integer task_id = clientMessage.get("task_id").getAsInt();
-        String lock     = clientMessage.get("lock").getAsString();
+        // No lock is required, as the task does not have to have been handed out to be removed.
+        Integer task_id = clientMessage.getInt("task_id");
         
         // This will throw the appropriate exception if fails so dont need to build response here.
-        String queueName = clientMessage.get("queue_name").getAsString();
+        String queueName = clientMessage.getString("queue_name");
         TaskQueue queue = scheduler.getQueue(queueName);
         queue.removeTask(task_id);
     }
     
     
     /**
-     * Remove a task from the scheduler. This will remove the task if it exists in any of the
-     * queues etc. This WILL NOT remove any tasks that are dependent upon it. Thus one may need to
-     * make sure to remove those tasks first or remove a group instead.
-     * @param clientMessage
-     * @return 
+     * Cancel a task that can never be completed. If "cascade" is set to true then every task that
+     * transitively depends on it is cancelled as well, as they could never run either.
+     * @param clientMessage - the request object that should contain the task id
+     * @param cargo - the response to write the number of tasks that were removed to.
+     */
+    private static void handleCancelTask(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
+    {
+        if (!clientMessage.has("task_id"))
+        {
+            throw new Exception("Missing required parameter [task_id]");
+        }
+        
+        Integer task_id = clientMessage.getInt("task_id");
+        boolean cascade = false;
+        
+        if (clientMessage.has("cascade"))
+        {
+            cascade = clientMessage.getBoolean("cascade");
+        }
+        
+        String queueName = clientMessage.getString("queue_name");
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        
+        int numRemoved = queue.cancelTask(task_id, cascade);
+        cargo.beginObject();
+        cargo.name("num_removed").value(numRemoved);
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Change the settings of a queue. Only the settings that are provided are changed.
+     * "scheduling_policy" decides how tasks of the same priority are ordered. It may be
+     * "blockage_rating" (the default) or "critical_path".
+     * "priority_inheritance" is a boolean for whether tasks are scheduled with the priority of the
+     * most important task waiting on them (off by default).
+     * @param clientMessage - the request object that should contain the settings to change
+     * @throws Exception if any of the settings are not recognized.
      */
-    private static JsonObject handleRemoveGroup(JsonObject clientMessage)
+    private static void handleConfigureQueue(JsonRequest clientMessage) throws Exception
     {
-        // This forms part of the response.
-        JsonObject cargo = new JsonObject();
+        String queueName = clientMessage.getString("queue_name");
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
         
-        return cargo;
+        if (clientMessage.has("scheduling_policy"))
+        {
+            String schedulingPolicy = clientMessage.getString("scheduling_policy");
+            
+            switch (schedulingPolicy)
+            {
+                case "blockage_rating":
+                {
+                    queue.setCriticalPathScheduling(false);
+                }
+                break;
+                
+                case "critical_path":
+                {
+                    queue.setCriticalPathScheduling(true);
+                }
+                break;
+                
+                default:
+                {
+                    throw new Exception("Unrecognized scheduling_policy: " + schedulingPolicy);
+                }
+            }
+        }
+        
+        if (clientMessage.has("priority_inheritance"))
+        {
+            queue.setPriorityInheritance(clientMessage.getBoolean("priority_inheritance"));
+        }
+    }
+    
+    
+    /**
+     * Remove every task in a group from the scheduler, wherever they are (available, processing or
+     * waiting on dependencies). Removing a group that has no tasks is not an error.
+     * @param clientMessage - the request object that should contain the group name
+     * @param cargo - the response to write the number of tasks that were removed to.
+     */
+    private static void handleRemoveGroup(JsonRequest clientMessage, JsonResponseWriter cargo) throws Exception
+    {
+        if (!clientMessage.has("group"))
+        {
+            throw new Exception("Missing required parameter [group]");
+        }
+        
+        String group = clientMessage.getString("group");
+        String queueName = clientMessage.getString("queue_name");
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        
+        int numRemoved = queue.removeGroup(group);
+        cargo.beginObject();
+        cargo.name("num_removed").value(numRemoved);
+        cargo.endObject();
+    }
+    
+    
+    /**
+     * Subscribe the connection to a queue, so that tasks are pushed to it as soon as they become
+     * available, rather than the worker asking for them. "credits" is the most tasks the worker
+     * wants to have at once. Subscribing again changes the number of credits, and 0 pauses the 
+     * pushes without giving up the tasks the worker already has.
+     * @param clientMessage - the request that was sent to us
+     * @param clientSocket - the connection that is subscribing.
+     * @return the subscription, which holds back its pushes until told to send them, so that they
+     *         do not overtake the response.
+     * @throws Exception if the number of credits is missing or negative.
+     */
+    private static Subscription handleSubscribe(JsonRequest clientMessage, ClientConnection clientSocket) throws Exception
+    {
+        if (!clientMessage.has("credits"))
+        {
+            throw new Exception("Missing required parameter [credits]");
+        }
+        
+        int numCredits = clientMessage.getInt("credits");
+        
+        if (numCredits < 0)
+        {
+            throw new Exception("Parameter [credits] cannot be negative");
+        }
+        
+        String queueName = clientMessage.getString("queue_name");
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        Subscription subscription = findSubscription(clientSocket, queue);
+        
+        if (subscription == null)
+        {
+            subscription = new Subscription(queue, queueName, clientSocket);
+            clientSocket.addLeaseSet(subscription);
+        }
+        
+        subscription.holdPushes();
+        queue.subscribe(subscription, numCredits);
+        releaseLeasesIfClosed(clientSocket, subscription);
+        return subscription;
+    }
+    
+    
+    /**
+     * Stop pushing tasks to the connection. The worker keeps the tasks that were already pushed to
+     * it, and should complete (or reject) them as usual. Unsubscribing from a queue that the 
+     * connection is not subscribed to is not an error.
+     * @param clientMessage - the request that was sent to us
+     * @param clientSocket - the connection that is unsubscribing.
+     */
+    private static void handleUnsubscribe(JsonRequest clientMessage, ClientConnection clientSocket) throws Exception
+    {
+        String queueName = clientMessage.getString("queue_name");
+        TaskQueue queue = Scheduler.getInstance().getQueue(queueName);
+        Subscription subscription = findSubscription(clientSocket, queue);
+        
+        if (subscription != null)
+        {
+            queue.unsubscribe(subscription);
+        }
+    }
+    
+    
+    /**
+     * Find the connection's subscription to a queue.
+     * @return the subscription, or null if the connection has not subscribed to the queue.
+     */
+    private static Subscription findSubscription(ClientConnection clientSocket, TaskQueue queue)
+    {
+        Subscription found = null;
+        
+        for (LeaseSet leaseSet : clientSocket.getLeaseSets())
+        {
+            if (leaseSet.getQueue() == queue && leaseSet instanceof Subscription)
+            {
+                found = (Subscription)leaseSet;
+            }
+        }
+        
+        return found;
+    }
+    
+    
+    /**
+     * Find the set that records which of a queue's tasks the connection has asked for (with 
+     * get_task or get_tasks), creating it if this is the first time. Tasks that are pushed to the
+     * connection are recorded by its subscription instead.
+     * @param clientSocket - the connection that is asking for tasks.
+     * @param queue - the queue the tasks are coming from.
+     * @return the connection's leases for the queue.
+     */
+    public static LeaseSet getLeaseSet(ClientConnection clientSocket, TaskQueue queue)
+    {
+        LeaseSet found = null;
+        
+        for (LeaseSet leaseSet : clientSocket.getLeaseSets())
+        {
+            if (leaseSet.getQueue() == queue && !(leaseSet instanceof Subscription))
+            {
+                found = leaseSet;
+            }
+        }
+        
+        if (found == null)
+        {
+            found = new LeaseSet(queue, clientSocket);
+            clientSocket.addLeaseSet(found);
+        }
+        
+        return found;
+    }
+    
+    
+    /**
+     * Put straight back any tasks that have just been handed to a connection that has since been 
+     * closed. The connection releases its leases when it closes, but that may have happened 
+     * before these tasks were added to them.
+     * @param clientSocket - the connection the tasks were handed to.
+     * @param leaseSet - the connection's leases that the tasks were added to.
+     */
+    public static void releaseLeasesIfClosed(ClientConnection clientSocket, LeaseSet leaseSet)
+    {
+        if (clientSocket.isClosed())
+        {
+            leaseSet.getQueue().releaseLeases(leaseSet);
+        }
     }
 }
@@ -0,0 +1,408 @@
+/*
+ * This collection is a binary min-heap of tasks that is "indexed", meaning that every task in the
+ * heap knows which slot of the heap it currently sits in. Knowing the slot allows us to remove or
+ * re-sort an arbitrary task in O(log n) rather than having to find it with a linear scan first.
+ *
+ * The head of the heap is always the task that compares lowest, which with the Task comparator is
+ * the task that should be worked on next. Because the comparison value of a task can change whilst
+ * it is sitting in the heap (e.g. its blockage rating goes up when another task starts depending
+ * on it), whoever changes that value MUST call update() on the task afterwards, or the heap will
+ * hand tasks out in the wrong order.
+ *
+ * This class is NOT threadsafe. It is only ever used from within the synchronized methods of the
+ * TaskQueue that owns it, so adding locking here would only add overhead.
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+public class IndexedTaskHeap implements Iterable<Task>
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Task[] m_heap;
+    private int m_size;
+
+
+    public IndexedTaskHeap()
+    {
+        m_heap = new Task[INITIAL_CAPACITY];
+        m_size = 0;
+    }
+
+
+    /**
+     * Add a task to the heap. O(log n)
+     * @param task - the task to add. This must not already be in the heap.
+     */
+    public void add(Task task)
+    {
+        if (m_size == m_heap.length)
+        {
+            m_heap = Arrays.copyOf(m_heap, m_heap.length * 2);
+        }
+
+        m_heap[m_size] = task;
+        setIndex(task, m_size);
+        m_size++;
+        siftUp(m_size - 1);
+    }
+
+
+    /**
+     * Add a batch of tasks to the heap. When the batch is small compared to the heap, they are
+     * added one at a time in O(k log n). Otherwise they are appended and the heap is rebuilt
+     * bottom-up in O(n + k), which is cheaper than k individual additions.
+     * @param tasks - the tasks to add. None of these may already be in the heap.
+     */
+    public void addAll(Collection<Task> tasks)
+    {
+        if (tasks.size() * 8 < m_size)
+        {
+            for (Task task : tasks)
+            {
+                add(task);
+            }
+        }
+        else
+        {
+            if (m_size + tasks.size() > m_heap.length)
+            {
+                m_heap = Arrays.copyOf(m_heap, Math.max(m_heap.length * 2, m_size + tasks.size()));
+            }
+
+            for (Task task : tasks)
+            {
+                m_heap[m_size] = task;
+                setIndex(task, m_size);
+                m_size++;
+            }
+
+            heapify();
+        }
+    }
+
+
+    /**
+     * Retrieves and removes the head of the heap (the task that should be worked on next). O(log n)
+     * @return the head of the heap, or null if the heap is empty.
+     */
+    public Task poll()
+    {
+        Task head = null;
+
+        if (m_size > 0)
+        {
+            head = m_heap[0];
+            removeAt(0);
+        }
+
+        return head;
+    }
+
+
+    /**
+     * Retrieves, but does not remove, the head of the heap. O(1)
+     * @return the head of the heap, or null if the heap is empty.
+     */
+    public Task peek()
+    {
+        Task head = null;
+
+        if (m_size > 0)
+        {
+            head = m_heap[0];
+        }
+
+        return head;
+    }
+
+
+    /**
+     * Remove an arbitrary task from the heap. O(log n)
+     * @param task - the task to remove.
+     * @return flag indicating whether the task was in the heap (and has now been removed).
+     */
+    public boolean remove(Task task)
+    {
+        boolean removed = false;
+
+        if (contains(task))
+        {
+            removeAt(getIndex(task));
+            removed = true;
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Remove a batch of tasks from the heap. When the batch is small compared to the heap, they
+     * are removed one at a time in O(k log n). Otherwise the remaining tasks are compacted and the
+     * heap is rebuilt bottom-up in O(n), which is cheaper than k individual removals.
+     * Tasks in the batch that are not in the heap are ignored.
+     * @param tasks - the tasks to remove.
+     */
+    public void removeAll(Collection<Task> tasks)
+    {
+        if (tasks.size() * 8 < m_size)
+        {
+            for (Task task : tasks)
+            {
+                remove(task);
+            }
+        }
+        else
+        {
+            // Mark the tasks as no longer being in the heap, then squeeze out the gaps they leave.
+            for (Task task : tasks)
+            {
+                if (contains(task))
+                {
+                    setIndex(task, -1);
+                }
+            }
+
+            int newSize = 0;
+
+            for (int i = 0; i < m_size; i++)
+            {
+                Task task = m_heap[i];
+
+                if (getIndex(task) == i)
+                {
+                    m_heap[newSize] = task;
+                    setIndex(task, newSize);
+                    newSize++;
+                }
+            }
+
+            Arrays.fill(m_heap, newSize, m_size, null);
+            m_size = newSize;
+            heapify();
+        }
+    }
+
+
+    /**
+     * Re-sort a task within the heap after its comparison value has changed. Does nothing if the
+     * task is not in the heap. O(log n)
+     * @param task - the task whose comparison value has changed.
+     */
+    public void update(Task task)
+    {
+        if (contains(task))
+        {
+            int index = getIndex(task);
+            siftUp(index);
+
+            // If the task did not move up, then it may need to move down instead.
+            if (m_heap[index] == task)
+            {
+                siftDown(index);
+            }
+        }
+    }
+
+
+    /**
+     * Check whether the specified task is in this heap. O(1)
+     * @param task - the task to check for.
+     * @return flag indicating whether the task is in this heap.
+     */
+    public boolean contains(Task task)
+    {
+        int index = getIndex(task);
+        return (index >= 0 && index < m_size && m_heap[index] == task);
+    }
+
+
+    /**
+     * Remove everything from the heap.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < m_size; i++)
+        {
+            setIndex(m_heap[i], -1);
+            m_heap[i] = null;
+        }
+
+        m_size = 0;
+    }
+
+
+    /**
+     * Restore the heap ordering of the whole array in O(n), by sifting down every parent starting
+     * from the last one.
+     */
+    private void heapify()
+    {
+        for (int i = (m_size >>> 1) - 1; i >= 0; i--)
+        {
+            siftDown(i);
+        }
+    }
+
+
+    /**
+     * Remove the task at the specified slot, filling the hole with the last task in the heap.
+     * @param index - the slot of the task to remove.
+     */
+    private void removeAt(int index)
+    {
+        Task removed = m_heap[index];
+        m_size--;
+
+        if (index == m_size)
+        {
+            m_heap[m_size] = null;
+        }
+        else
+        {
+            Task last = m_heap[m_size];
+            m_heap[m_size] = null;
+            m_heap[index] = last;
+            setIndex(last, index);
+            siftUp(index);
+
+            if (m_heap[index] == last)
+            {
+                siftDown(index);
+            }
+        }
+
+        setIndex(removed, -1);
+    }
+
+
+    /**
+     * Move the task at the specified slot up towards the head until its parent is not "greater".
+     * @param index - the slot of the task to move.
+     */
+    private void siftUp(int index)
+    {
+        Task task = m_heap[index];
+
+        while (index > 0)
+        {
+            int parentIndex = (index - 1) >>> 1;
+            Task parent = m_heap[parentIndex];
+
+            if (compare(task, parent) >= 0)
+            {
+                break;
+            }
+
+            m_heap[index] = parent;
+            setIndex(parent, index);
+            index = parentIndex;
+        }
+
+        m_heap[index] = task;
+        setIndex(task, index);
+    }
+
+
+    /**
+     * Move the task at the specified slot down away from the head until neither child is "lesser".
+     * @param index - the slot of the task to move.
+     */
+    private void siftDown(int index)
+    {
+        Task task = m_heap[index];
+        int half = m_size >>> 1;
+
+        while (index < half)
+        {
+            int childIndex = (index << 1) + 1;
+            Task child = m_heap[childIndex];
+            int rightIndex = childIndex + 1;
+
+            if (rightIndex < m_size && compare(m_heap[rightIndex], child) < 0)
+            {
+                childIndex = rightIndex;
+                child = m_heap[childIndex];
+            }
+
+            if (compare(task, child) <= 0)
+            {
+                break;
+            }
+
+            m_heap[index] = child;
+            setIndex(child, index);
+            index = childIndex;
+        }
+
+        m_heap[index] = task;
+        setIndex(task, index);
+    }
+
+
+    /**
+     * The ordering of the heap. The lowest task is at the head.
+     */
+    protected int compare(Task a, Task b)
+    {
+        return a.compareTo(b);
+    }
+
+
+    /**
+     * Fetch the slot that the task records itself as sitting in.
+     */
+    protected int getIndex(Task task)
+    {
+        return task.getHeapIndex();
+    }
+
+
+    /**
+     * Record on the task which slot it is now sitting in.
+     */
+    protected void setIndex(Task task, int index)
+    {
+        task.setHeapIndex(index);
+    }
+
+
+    /**
+     * Iterate over the tasks in the heap. Please note that these are NOT returned in order.
+     * @return Iterator
+     */
+    @Override
+    public Iterator<Task> iterator()
+    {
+        return new Iterator<Task>()
+        {
+            private int m_position = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return m_position < m_size;
+            }
+
+            @Override
+            public Task next()
+            {
+                if (m_position >= m_size)
+                {
+                    throw new NoSuchElementException();
+                }
+
+                return m_heap[m_position++];
+            }
+        };
+    }
+
+
+    // Accessors
+    public int size()        { return m_size; }
+    public boolean isEmpty() { return m_size == 0; }
+}
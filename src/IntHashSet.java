@@ -0,0 +1,191 @@
+/*
+ * A set of primitive ints that uses open addressing (linear probing). This is the set counterpart
+ * of IntObjectMap and exists for the same reason: a HashSet<Integer> costs a boxed Integer and a
+ * map node per member, whereas here a member costs a single int slot.
+ *
+ * Members must not be negative because -1 is used to mark empty slots.
+ *
+ * This class is NOT threadsafe. The owner is expected to synchronize access.
+ */
+
+import java.util.Arrays;
+
+
+public class IntHashSet
+{
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] m_slots;
+    private int m_size;
+    private int m_mask;
+
+
+    public IntHashSet()
+    {
+        allocate(MIN_CAPACITY);
+    }
+
+
+    /**
+     * Add a value to the set.
+     * @param value - the value to add. Must not be negative.
+     * @return flag indicating whether the value was added (false if it was already in the set).
+     */
+    public boolean add(int value)
+    {
+        boolean added = false;
+        int slot = findSlot(value);
+
+        if (m_slots[slot] != value)
+        {
+            m_slots[slot] = value;
+            m_size++;
+            added = true;
+
+            if (m_size * 2 > m_slots.length)
+            {
+                resize(m_slots.length * 2);
+            }
+        }
+
+        return added;
+    }
+
+
+    /**
+     * Check whether the value is in the set.
+     * @param value - the value to look for
+     * @return flag indicating whether the value is in the set.
+     */
+    public boolean contains(int value)
+    {
+        return (m_slots[findSlot(value)] == value);
+    }
+
+
+    /**
+     * Remove a value from the set.
+     * @param value - the value to remove
+     * @return flag indicating whether the value was in the set (and has now been removed).
+     */
+    public boolean remove(int value)
+    {
+        boolean removed = false;
+        int slot = findSlot(value);
+
+        if (m_slots[slot] == value)
+        {
+            deleteSlot(slot);
+            m_size--;
+            removed = true;
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Remove everything from the set and release the memory that was used to hold it.
+     */
+    public void clear()
+    {
+        allocate(MIN_CAPACITY);
+        m_size = 0;
+    }
+
+
+    /**
+     * Fetch all of the members of the set, in no particular order.
+     * @return array of the members
+     */
+    public int[] toArray()
+    {
+        int[] values = new int[m_size];
+        int position = 0;
+
+        for (int slot = 0; slot < m_slots.length; slot++)
+        {
+            if (m_slots[slot] != EMPTY)
+            {
+                values[position++] = m_slots[slot];
+            }
+        }
+
+        return values;
+    }
+
+
+    private int findSlot(int value)
+    {
+        int slot = hash(value) & m_mask;
+
+        while (m_slots[slot] != EMPTY && m_slots[slot] != value)
+        {
+            slot = (slot + 1) & m_mask;
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Empty the specified slot, shifting following members back into the hole where that brings
+     * them closer to their home slot (see IntObjectMap.deleteSlot).
+     */
+    private void deleteSlot(int slot)
+    {
+        int hole = slot;
+        int next = (hole + 1) & m_mask;
+
+        while (m_slots[next] != EMPTY)
+        {
+            int home = hash(m_slots[next]) & m_mask;
+
+            if (((next - home) & m_mask) >= ((next - hole) & m_mask))
+            {
+                m_slots[hole] = m_slots[next];
+                hole = next;
+            }
+
+            next = (next + 1) & m_mask;
+        }
+
+        m_slots[hole] = EMPTY;
+    }
+
+
+    private void resize(int capacity)
+    {
+        int[] oldSlots = m_slots;
+        allocate(capacity);
+
+        for (int i = 0; i < oldSlots.length; i++)
+        {
+            if (oldSlots[i] != EMPTY)
+            {
+                m_slots[findSlot(oldSlots[i])] = oldSlots[i];
+            }
+        }
+    }
+
+
+    private void allocate(int capacity)
+    {
+        m_slots = new int[capacity];
+        m_mask = capacity - 1;
+        Arrays.fill(m_slots, EMPTY);
+    }
+
+
+    private static int hash(int value)
+    {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    // Accessors
+    public int size()        { return m_size; }
+    public boolean isEmpty() { return m_size == 0; }
+}
@@ -0,0 +1,289 @@
+/*
+ * A hash map from primitive int keys to objects that uses open addressing (linear probing) instead
+ * of chaining. Java's own maps box every key into an Integer and wrap every entry in a node object,
+ * which adds up quickly when a queue holds millions of tasks. Here an entry costs an int slot and
+ * a reference slot in two flat arrays.
+ *
+ * Keys must not be negative because -1 is used to mark empty slots, and values may not be null.
+ * Task ids come from a counter that starts at 0 so both of these always hold for our use.
+ *
+ * This class is NOT threadsafe. The owner is expected to synchronize access.
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+public class IntObjectMap<V>
+{
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] m_keys;
+    private Object[] m_values;
+    private int m_size;
+    private int m_mask;
+
+
+    public IntObjectMap()
+    {
+        allocate(MIN_CAPACITY);
+    }
+
+
+    /**
+     * Fetch the value stored against the specified key.
+     * @param key - the key to look up
+     * @return the value, or null if the key is not in the map.
+     */
+    @SuppressWarnings("unchecked") // m_values only ever holds V.
+    public V get(int key)
+    {
+        V value = null;
+        int slot = findSlot(key);
+
+        if (m_keys[slot] == key)
+        {
+            value = (V)m_values[slot];
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Check whether the specified key is in the map.
+     * @param key - the key to look up
+     * @return flag indicating whether the key is in the map.
+     */
+    public boolean containsKey(int key)
+    {
+        return (m_keys[findSlot(key)] == key);
+    }
+
+
+    /**
+     * Store a value against the specified key, replacing any existing value.
+     * @param key - the key to store against. Must not be negative.
+     * @param value - the value to store. Must not be null.
+     */
+    public void put(int key, V value)
+    {
+        int slot = findSlot(key);
+
+        if (m_keys[slot] != key)
+        {
+            m_keys[slot] = key;
+            m_size++;
+        }
+
+        m_values[slot] = value;
+
+        // Keep the load factor at or below a half so that probe sequences stay short.
+        if (m_size * 2 > m_keys.length)
+        {
+            resize(m_keys.length * 2);
+        }
+    }
+
+
+    /**
+     * Remove the specified key from the map.
+     * @param key - the key to remove
+     * @return the value that was stored against the key, or null if the key was not in the map.
+     */
+    @SuppressWarnings("unchecked") // m_values only ever holds V.
+    public V remove(int key)
+    {
+        V value = null;
+        int slot = findSlot(key);
+
+        if (m_keys[slot] == key)
+        {
+            value = (V)m_values[slot];
+            deleteSlot(slot);
+            m_size--;
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Remove everything from the map and release the memory that was used to hold it.
+     */
+    public void clear()
+    {
+        allocate(MIN_CAPACITY);
+        m_size = 0;
+    }
+
+
+    /**
+     * Iterate over the values in the map, in no particular order. The map must not be modified
+     * whilst iterating.
+     * @return Iterable
+     */
+    public Iterable<V> values()
+    {
+        return new Iterable<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                return new ValueIterator();
+            }
+        };
+    }
+
+
+    /**
+     * Fetch all of the keys in the map, in no particular order.
+     * @return array of the keys
+     */
+    public int[] keys()
+    {
+        int[] keys = new int[m_size];
+        int position = 0;
+
+        for (int slot = 0; slot < m_keys.length; slot++)
+        {
+            if (m_keys[slot] != EMPTY)
+            {
+                keys[position++] = m_keys[slot];
+            }
+        }
+
+        return keys;
+    }
+
+
+    /**
+     * Find the slot that the key is in, or the empty slot where it would go if it is not present.
+     */
+    private int findSlot(int key)
+    {
+        int slot = hash(key) & m_mask;
+
+        while (m_keys[slot] != EMPTY && m_keys[slot] != key)
+        {
+            slot = (slot + 1) & m_mask;
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Empty the specified slot. Rather than leaving a "tombstone" behind, we shift any following
+     * entries back into the hole if that brings them closer to their home slot, so that lookups
+     * never have to probe past deleted entries.
+     */
+    private void deleteSlot(int slot)
+    {
+        int hole = slot;
+        int next = (hole + 1) & m_mask;
+
+        while (m_keys[next] != EMPTY)
+        {
+            int home = hash(m_keys[next]) & m_mask;
+
+            // Move the entry back if its home slot is not between the hole and where it sits now.
+            if (((next - home) & m_mask) >= ((next - hole) & m_mask))
+            {
+                m_keys[hole] = m_keys[next];
+                m_values[hole] = m_values[next];
+                hole = next;
+            }
+
+            next = (next + 1) & m_mask;
+        }
+
+        m_keys[hole] = EMPTY;
+        m_values[hole] = null;
+    }
+
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = m_keys;
+        Object[] oldValues = m_values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != EMPTY)
+            {
+                int slot = findSlot(oldKeys[i]);
+                m_keys[slot] = oldKeys[i];
+                m_values[slot] = oldValues[i];
+            }
+        }
+    }
+
+
+    private void allocate(int capacity)
+    {
+        m_keys = new int[capacity];
+        m_values = new Object[capacity];
+        m_mask = capacity - 1;
+        Arrays.fill(m_keys, EMPTY);
+    }
+
+
+    /**
+     * Spread the bits of the key so that runs of sequential ids do not form long clusters.
+     */
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private class ValueIterator implements Iterator<V>
+    {
+        private int m_slot = -1;
+
+        public ValueIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            m_slot++;
+
+            while (m_slot < m_keys.length && m_keys[m_slot] == EMPTY)
+            {
+                m_slot++;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return m_slot < m_keys.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // m_values only ever holds V.
+        public V next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            V value = (V)m_values[m_slot];
+            advance();
+            return value;
+        }
+    }
+
+
+    // Accessors
+    public int size()        { return m_size; }
+    public boolean isEmpty() { return m_size == 0; }
+}
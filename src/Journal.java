@@ -0,0 +1,800 @@
+/*
+ * An append-only log of every change made to one queue, so that the queue can be rebuilt if the
+ * scheduler is restarted or crashes (see Settings.JOURNAL_DIR). Replaying the changes in order,
+ * from an empty queue, gives back the same tasks with the same ids.
+ *
+ * The queue records each change whilst it still holds the queue lock, so the records are in the
+ * same order as the changes were made. Recording only copies the change into a buffer in memory;
+ * the JournalWriter writes the buffers of every queue out and forces them to disk in batches.
+ * Each record is given a sequence number, and the thread that made the change remembers it (see
+ * JournalWriter.takeThreadSequence) so that the response can be held back until it is durable.
+ * Leases are the exception, as a restarted scheduler puts back every task that was being
+ * processed anyway (the connections they were handed to are gone), so nobody waits on them.
+ *
+ * Taking a snapshot of the queue (see Snapshot) starts a new journal, with the next generation
+ * number, for the changes made after it. The journals of earlier generations are deleted once the
+ * snapshot is safely on disk, so to rebuild a queue we load its latest snapshot and then replay
+ * its journals from the snapshot's generation onwards, in generation order.
+ *
+ * The records are also streamed to the followers of the queue (see FollowerConnection) as they
+ * are made, so that followers see the changes in the same order and apply them in the same way.
+ *
+ * The file starts with a header (MAGIC, the generation and the name of the queue), and each record is:
+ *   int length, int CRC32C of the rest, byte type, then the fields of that type of record.
+ * Strings are an int length (-1 for null) followed by that many bytes of UTF-8. A crash part way
+ * through a write leaves a record at the end that is cut short or fails its checksum, which is
+ * where replaying stops (and the file is cut back to).
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.CRC32C;
+
+
+public class Journal
+{
+    public static final String FILE_EXTENSION = ".journal";
+
+    private static final int MAGIC = 0x4A534A31; // "JSJ1"
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    // The types of record.
+    public static final byte ADD_TASK             = 1;
+    public static final byte ADD_TASKS            = 2;
+    public static final byte LEASE                = 3;
+    public static final byte REQUEUE              = 4;
+    public static final byte COMPLETE             = 5;
+    public static final byte REMOVE               = 6;
+    public static final byte CANCEL               = 7;
+    public static final byte REMOVE_GROUP         = 8;
+    public static final byte CRITICAL_PATH        = 9;
+    public static final byte PRIORITY_INHERITANCE = 10;
+
+    private final File m_file;
+    private final String m_queueName;
+    private final byte[] m_encodedQueueName;
+    private final long m_generation;
+    private final FileChannel m_channel;
+    private final JournalWriter m_writer;
+
+    // The records that have not been written yet. The queue fills one buffer whilst the writer
+    // writes out the other, and they are swapped over under our lock.
+    private byte[] m_pending = new byte[4096];
+    private int m_pendingLength = 0;
+    private byte[] m_writing = new byte[4096];
+
+    // Where the record that is being encoded starts in m_pending.
+    private int m_recordStart = 0;
+
+    // The number of records made since the journal was started (not counting any replayed).
+    private long m_numRecords = 0;
+
+    // The followers that are sent each record as it is made.
+    private final ArrayList<FollowerConnection> m_followers = new ArrayList<>();
+
+
+    /**
+     * Start appending to a journal file, whose header has already been written.
+     * @param file - the journal file.
+     * @param queueName - the name of the queue.
+     * @param generation - the generation of the journal.
+     * @param channel - the open file, positioned at the end of the last good record.
+     * @param writer - the writer that writes it out.
+     */
+    private Journal(File file, String queueName, long generation, FileChannel channel, JournalWriter writer)
+    {
+        m_file = file;
+        m_queueName = queueName;
+        m_encodedQueueName = queueName.getBytes(StandardCharsets.UTF_8);
+        m_generation = generation;
+        m_channel = channel;
+        m_writer = writer;
+        writer.addJournal(this);
+    }
+
+
+    /**
+     * Create a new, empty, journal for a queue.
+     * @param directory - the directory to keep it in.
+     * @param queueName - the name of the queue.
+     * @param generation - the generation of the journal, which is 0 for a new queue.
+     * @param writer - the writer that writes it out.
+     * @return the journal.
+     * @throws IOException if the file already exists or can not be written.
+     */
+    public static Journal create(File directory, String queueName, long generation, JournalWriter writer) throws IOException
+    {
+        File file = getFile(directory, queueName, generation);
+
+        FileChannel channel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+        );
+
+        byte[] name = queueName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(16 + name.length);
+        header.putInt(MAGIC).putLong(generation).putInt(name.length).put(name).flip();
+
+        while (header.hasRemaining())
+        {
+            channel.write(header);
+        }
+
+        channel.force(true);
+        return new Journal(file, queueName, generation, channel, writer);
+    }
+
+
+    /**
+     * Create the journal of the next generation, for the changes that are made to the queue after
+     * a snapshot has been taken. This waits for the new file to reach the disk, so it is called
+     * before taking the queue lock, and the queue only switches to it afterwards (see takeOver).
+     * @return the new journal.
+     * @throws IOException if the file can not be created.
+     */
+    public Journal createNext() throws IOException
+    {
+        return create(m_file.getParentFile(), m_queueName, m_generation + 1, m_writer);
+    }
+
+
+    /**
+     * Carry on from the previous generation of journal, which is about to be replaced by this one.
+     * Only to be called by the queue, whilst holding its lock.
+     * @param previousJournal - the journal that this one replaces.
+     */
+    public void takeOver(Journal previousJournal)
+    {
+        ArrayList<FollowerConnection> followers;
+
+        synchronized (previousJournal)
+        {
+            followers = new ArrayList<>(previousJournal.m_followers);
+        }
+
+        // The followers carry on with the new journal, as they already have the queue.
+        addFollowers(followers);
+    }
+
+
+    /**
+     * Close a journal that was never used and delete its file, e.g. one from createNext that the
+     * queue did not switch to after all.
+     * @throws IOException if the file can not be deleted.
+     */
+    public void discard() throws IOException
+    {
+        close();
+        Files.delete(m_file.toPath());
+    }
+
+
+    /**
+     * Make the changes in a journal file to a queue, which must be in the state that it was in when
+     * the journal was started. Anything that was only partly written (because of a crash) is cut
+     * off the end of the file, as its response was never sent.
+     * @param queue - the queue to make the changes to.
+     * @param file - the journal file.
+     * @return the number of records that were replayed.
+     * @throws Exception if the file is not a journal of the queue, or it does not make sense.
+     */
+    public static int replay(TaskQueue queue, File file) throws Exception
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer contents = ByteBuffer.allocate((int)channel.size());
+
+            while (contents.hasRemaining() && channel.read(contents) >= 0) {}
+
+            contents.flip();
+
+            if (contents.remaining() < 16 || contents.getInt() != MAGIC)
+            {
+                throw new Exception("[" + file + "] is not a journal.");
+            }
+
+            contents.getLong();
+
+            if (!queue.getName().equals(readString(contents)))
+            {
+                throw new Exception("[" + file + "] is not a journal of queue [" + queue.getName() + "]");
+            }
+
+            int numRecords = 0;
+            ByteBuffer record;
+
+            while ((record = nextRecord(contents)) != null)
+            {
+                apply(queue, record);
+                numRecords++;
+            }
+
+            if (contents.hasRemaining())
+            {
+                System.out.println("Dropping " + contents.remaining() + " bytes of partly written journal from [" + file + "]");
+                channel.truncate(contents.position());
+                channel.force(true);
+            }
+
+            return numRecords;
+        }
+    }
+
+
+    /**
+     * Carry on appending to a journal file that has been replayed.
+     * @param file - the journal file.
+     * @param queueName - the name of the queue.
+     * @param generation - the generation of the journal.
+     * @param writer - the writer that writes it out.
+     * @return the journal.
+     * @throws IOException if the file can not be opened.
+     */
+    public static Journal open(File file, String queueName, long generation, JournalWriter writer) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new Journal(file, queueName, generation, channel, writer);
+    }
+
+
+    /**
+     * Fetch the next record, checking that all of it was written.
+     * @param contents - the journal, positioned at the start of a record.
+     * @return the record from its type onwards, or null if there are no more complete records (in
+     *         which case the position is left at the start of whatever is left).
+     */
+    public static ByteBuffer nextRecord(ByteBuffer contents)
+    {
+        ByteBuffer record = null;
+        int start = contents.position();
+
+        if (contents.remaining() >= RECORD_HEADER_LENGTH)
+        {
+            int length = contents.getInt();
+            int checksum = contents.getInt();
+
+            if (length > 0 && length <= contents.remaining())
+            {
+                record = contents.slice();
+                record.limit(length);
+
+                CRC32C crc = new CRC32C();
+                crc.update(record.duplicate());
+
+                if ((int)crc.getValue() == checksum)
+                {
+                    contents.position(contents.position() + length);
+                }
+                else
+                {
+                    record = null;
+                }
+            }
+        }
+
+        if (record == null)
+        {
+            contents.position(start);
+        }
+
+        return record;
+    }
+
+
+    /**
+     * Make the change that a record describes to a queue.
+     * @param queue - the queue, which must be in the state it was in when the record was made.
+     * @param record - the record from its type onwards.
+     * @throws Exception if the record does not make sense for the queue.
+     */
+    public static void apply(TaskQueue queue, ByteBuffer record) throws Exception
+    {
+        byte type = record.get();
+
+        switch (type)
+        {
+            case ADD_TASK:
+            {
+                int taskId = record.getInt();
+                long creationTime = record.getLong();
+                String name = readString(record);
+                String extraInfo = readString(record);
+                int priority = record.getInt();
+                String group = readString(record);
+                long maxLockTime = record.getLong();
+                ArrayList<Integer> dependencies = readIntList(record);
+
+                int newTaskId = queue.addTask(name, dependencies, extraInfo, priority, group, maxLockTime, creationTime);
+                checkTaskId(taskId, newTaskId);
+            }
+            break;
+
+            case ADD_TASKS:
+            {
+                int firstTaskId = record.getInt();
+                long creationTime = record.getLong();
+                int numTasks = record.getInt();
+                ArrayList<TaskDefinition> definitions = new ArrayList<>(numTasks);
+
+                for (int i = 0; i < numTasks; i++)
+                {
+                    String name = readString(record);
+                    String extraInfo = readString(record);
+                    int priority = record.getInt();
+                    String group = readString(record);
+                    long maxLockTime = record.getLong();
+                    ArrayList<Integer> dependencies = readIntList(record);
+                    int[] positions = readIntArray(record);
+
+                    TaskDefinition definition = new TaskDefinition(name, dependencies, extraInfo, priority, group, maxLockTime);
+                    definition.setBatchDependencies(positions);
+                    definitions.add(definition);
+                }
+
+                int[] newTaskIds = queue.addTasks(definitions, creationTime);
+                checkTaskId(firstTaskId, (numTasks > 0) ? newTaskIds[0] : firstTaskId);
+            }
+            break;
+
+            case LEASE:
+            {
+                queue.restoreLease(record.getInt(), record.getLong(), record.getLong());
+            }
+            break;
+
+            case REQUEUE:
+            {
+                queue.restoreProcessedTask(record.getInt(), false);
+            }
+            break;
+
+            case COMPLETE:
+            {
+                queue.restoreProcessedTask(record.getInt(), true);
+            }
+            break;
+
+            case REMOVE:
+            {
+                queue.removeTask(record.getInt());
+            }
+            break;
+
+            case CANCEL:
+            {
+                queue.cancelTask(record.getInt(), true);
+            }
+            break;
+
+            case REMOVE_GROUP:
+            {
+                queue.removeGroup(readString(record));
+            }
+            break;
+
+            case CRITICAL_PATH:
+            {
+                queue.setCriticalPathScheduling(record.get() != 0);
+            }
+            break;
+
+            case PRIORITY_INHERITANCE:
+            {
+                queue.setPriorityInheritance(record.get() != 0);
+            }
+            break;
+
+            default:
+            {
+                throw new Exception("Unrecognized journal record type: " + type);
+            }
+        }
+    }
+
+
+    private static void checkTaskId(int journaledTaskId, int newTaskId) throws Exception
+    {
+        if (journaledTaskId != newTaskId)
+        {
+            throw new Exception("Journal added task [" + journaledTaskId + "] but it was given id [" + newTaskId + "]");
+        }
+    }
+
+
+    public synchronized void recordAddTask(Task task)
+    {
+        beginRecord(ADD_TASK);
+        writeInt(task.getId());
+        writeLong(task.getCreationTime());
+        writeTaskFields(task);
+        writeIntArray(task.getDependencies(), task.getDependencies().length);
+        endRecord(true);
+    }
+
+
+    /**
+     * @param firstTaskId - the id given to the first task of the batch.
+     * @param creationTime - when the tasks were added.
+     * @param definitions - the tasks, as they were asked for.
+     * @param newTasks - the tasks that were made from them, in the same order.
+     */
+    public synchronized void recordAddTasks(int firstTaskId, long creationTime, ArrayList<TaskDefinition> definitions, Task[] newTasks)
+    {
+        beginRecord(ADD_TASKS);
+        writeInt(firstTaskId);
+        writeLong(creationTime);
+        writeInt(newTasks.length);
+
+        for (int i = 0; i < newTasks.length; i++)
+        {
+            // The dependencies are written as they were given, as the ones that no longer exist are
+            // filtered out again in the same way when replaying.
+            TaskDefinition definition = definitions.get(i);
+            writeTaskFields(newTasks[i]);
+
+            writeInt(definition.getDependencies().size());
+
+            for (Integer dependencyId : definition.getDependencies())
+            {
+                writeInt(dependencyId);
+            }
+
+            writeIntArray(definition.getBatchDependencies(), definition.getBatchDependencies().length);
+        }
+
+        endRecord(true);
+    }
+
+
+    public synchronized void recordLease(Task task)
+    {
+        beginRecord(LEASE);
+        writeInt(task.getId());
+        writeLong(task.getLockHigh());
+        writeLong(task.getLockLow());
+        endRecord(false);
+    }
+
+
+    public synchronized void recordRequeue(Task task)
+    {
+        beginRecord(REQUEUE);
+        writeInt(task.getId());
+        endRecord(true);
+    }
+
+
+    public synchronized void recordComplete(Task task)
+    {
+        beginRecord(COMPLETE);
+        writeInt(task.getId());
+        endRecord(true);
+    }
+
+
+    public synchronized void recordRemove(Task task)
+    {
+        beginRecord(REMOVE);
+        writeInt(task.getId());
+        endRecord(true);
+    }
+
+
+    /**
+     * Record that a task was cancelled along with everything that depends on it.
+     */
+    public synchronized void recordCancel(Task task)
+    {
+        beginRecord(CANCEL);
+        writeInt(task.getId());
+        endRecord(true);
+    }
+
+
+    public synchronized void recordRemoveGroup(String groupName)
+    {
+        beginRecord(REMOVE_GROUP);
+        writeString(groupName);
+        endRecord(true);
+    }
+
+
+    public synchronized void recordCriticalPathScheduling(boolean useCriticalPath)
+    {
+        beginRecord(CRITICAL_PATH);
+        writeByte((byte)(useCriticalPath ? 1 : 0));
+        endRecord(true);
+    }
+
+
+    public synchronized void recordPriorityInheritance(boolean usePriorityInheritance)
+    {
+        beginRecord(PRIORITY_INHERITANCE);
+        writeByte((byte)(usePriorityInheritance ? 1 : 0));
+        endRecord(true);
+    }
+
+
+    /**
+     * Start sending the records of this journal to followers that already have the queue as it was
+     * when the journal was started, e.g. because the queue was new then.
+     * @param followers - the followers.
+     */
+    public synchronized void addFollowers(ArrayList<FollowerConnection> followers)
+    {
+        m_followers.addAll(followers);
+    }
+
+
+    /**
+     * Start sending the records of this journal to a follower, once it has been sent a copy of the
+     * queue as it is now. Only to be called by the queue, whilst holding its lock, so that no
+     * changes can be made in between.
+     * @param follower - the follower.
+     * @param snapshot - the copy of the queue.
+     */
+    public synchronized void addFollower(FollowerConnection follower, Snapshot.Output snapshot)
+    {
+        m_followers.add(follower);
+        follower.sendSnapshot(snapshot, m_writer.getAppendedSequence());
+    }
+
+
+    public synchronized boolean hasFollower(FollowerConnection follower)
+    {
+        return m_followers.contains(follower);
+    }
+
+
+    /**
+     * Write out the records that have been made since last time, and force them to disk. This is
+     * only called by the writer's thread.
+     * @throws IOException if the write fails.
+     */
+    public void writePending() throws IOException
+    {
+        int numBytes;
+
+        synchronized (this)
+        {
+            numBytes = m_pendingLength;
+
+            if (numBytes == 0)
+            {
+                return;
+            }
+
+            byte[] written = m_writing;
+            m_writing = m_pending;
+            m_pending = written;
+            m_pendingLength = 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(m_writing, 0, numBytes);
+
+        while (buffer.hasRemaining())
+        {
+            m_channel.write(buffer);
+        }
+
+        m_channel.force(false);
+    }
+
+
+    /**
+     * Stop using the journal. Anything recorded since it was last written out is lost.
+     */
+    public void close() throws IOException
+    {
+        m_writer.removeJournal(this);
+        m_channel.close();
+    }
+
+
+    /**
+     * Fetch the file that a journal of a queue is kept in, e.g. "my_queue.3.journal". The queue 
+     * name is encoded so that any name makes a valid file name (see Snapshot.encodeQueueName).
+     */
+    public static File getFile(File directory, String queueName, long generation)
+    {
+        return new File(directory, Snapshot.encodeQueueName(queueName) + "." + generation + FILE_EXTENSION);
+    }
+
+
+    private void writeTaskFields(Task task)
+    {
+        writeString(task.getName());
+        writeString(task.getExtraInfo());
+        writeInt(task.getPriority());
+        writeString(task.getGroup());
+        writeLong(task.getMaxLockTime());
+    }
+
+
+    private void beginRecord(byte type)
+    {
+        m_recordStart = m_pendingLength;
+        ensureCapacity(RECORD_HEADER_LENGTH);
+        m_pendingLength += RECORD_HEADER_LENGTH;
+        writeByte(type);
+    }
+
+
+    /**
+     * Fill in the length and checksum of the record that has just been encoded, and hand it to the
+     * writer.
+     * @param isHeldBack - whether the response to the request that made the change should wait
+     *                     until the record is durable.
+     */
+    private void endRecord(boolean isHeldBack)
+    {
+        int bodyStart = m_recordStart + RECORD_HEADER_LENGTH;
+        CRC32C crc = new CRC32C();
+        crc.update(m_pending, bodyStart, m_pendingLength - bodyStart);
+
+        ByteBuffer header = ByteBuffer.wrap(m_pending, m_recordStart, RECORD_HEADER_LENGTH);
+        header.putInt(m_pendingLength - bodyStart);
+        header.putInt((int)crc.getValue());
+
+        m_numRecords++;
+        long sequence = m_writer.nextSequence();
+
+        if (isHeldBack)
+        {
+            JournalWriter.setThreadSequence(sequence);
+        }
+
+        if (!m_followers.isEmpty())
+        {
+            sendToFollowers(sequence);
+        }
+
+        m_writer.wakeUp();
+    }
+
+
+    /**
+     * Hand the record that has just been made to each of the followers, which only copies it into
+     * their buffers, and forget the followers that have gone away.
+     */
+    private void sendToFollowers(long sequence)
+    {
+        Iterator<FollowerConnection> iterator = m_followers.iterator();
+
+        while (iterator.hasNext())
+        {
+            FollowerConnection follower = iterator.next();
+
+            if (follower.isClosed())
+            {
+                iterator.remove();
+            }
+            else
+            {
+                follower.sendRecord(sequence, m_encodedQueueName, m_pending, m_recordStart, m_pendingLength - m_recordStart);
+            }
+        }
+    }
+
+
+    private void writeByte(byte value)
+    {
+        ensureCapacity(1);
+        m_pending[m_pendingLength] = value;
+        m_pendingLength++;
+    }
+
+
+    private void writeInt(int value)
+    {
+        ensureCapacity(4);
+        ByteBuffer.wrap(m_pending, m_pendingLength, 4).putInt(value);
+        m_pendingLength += 4;
+    }
+
+
+    private void writeLong(long value)
+    {
+        ensureCapacity(8);
+        ByteBuffer.wrap(m_pending, m_pendingLength, 8).putLong(value);
+        m_pendingLength += 8;
+    }
+
+
+    private void writeIntArray(int[] values, int numValues)
+    {
+        writeInt(numValues);
+
+        for (int i = 0; i < numValues; i++)
+        {
+            writeInt(values[i]);
+        }
+    }
+
+
+    private void writeString(String value)
+    {
+        if (value == null)
+        {
+            writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, m_pending, m_pendingLength, bytes.length);
+            m_pendingLength += bytes.length;
+        }
+    }
+
+
+    private void ensureCapacity(int numBytes)
+    {
+        if (m_pendingLength + numBytes > m_pending.length)
+        {
+            m_pending = Arrays.copyOf(m_pending, Math.max(m_pending.length * 2, m_pendingLength + numBytes));
+        }
+    }
+
+
+    private static String readString(ByteBuffer buffer)
+    {
+        String value = null;
+        int length = buffer.getInt();
+
+        if (length >= 0)
+        {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+
+        return value;
+    }
+
+
+    private static ArrayList<Integer> readIntList(ByteBuffer buffer)
+    {
+        int numValues = buffer.getInt();
+        ArrayList<Integer> values = new ArrayList<>(numValues);
+
+        for (int i = 0; i < numValues; i++)
+        {
+            values.add(buffer.getInt());
+        }
+
+        return values;
+    }
+
+
+    private static int[] readIntArray(ByteBuffer buffer)
+    {
+        int[] values = new int[buffer.getInt()];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = buffer.getInt();
+        }
+
+        return values;
+    }
+
+
+    // Accessors
+    public File getFile()            { return m_file; }
+    public String getQueueName()     { return m_queueName; }
+    public long getGeneration()      { return m_generation; }
+    public JournalWriter getWriter() { return m_writer; }
+
+    public synchronized long getNumRecords() { return m_numRecords; }
+}
@@ -0,0 +1,327 @@
+/*
+ * Writes the changes that have been recorded in the queues' journals to disk, on a thread of its
+ * own, so that the requests that made them can be answered once they are durable.
+ *
+ * An fsync takes far longer than handling a request, so rather than every request paying for one,
+ * the writer does a "group commit": it waits for the commit window (Settings.JOURNAL_COMMIT_WINDOW)
+ * after the first change arrives, then writes out everything that has been recorded by then (in
+ * every journal) and forces it to disk in one go. Every change that was recorded in the meantime
+ * becomes durable with that single fsync, and the changes that arrive whilst it is going on are
+ * picked up by the next one. With lots of clients, this gives far more throughput than an fsync
+ * per request, at the cost of a little latency.
+ *
+ * Each change is given a sequence number when it is recorded, and everything up to the durable
+ * sequence number is on disk. Requests wait for (or are called back when) the number of their
+ * last change is durable before their response is sent.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class JournalWriter implements Runnable
+{
+    private static JournalWriter s_instance = null;
+
+    // The sequence number of the last change that was recorded by the thread, which the request
+    // handling picks up (and clears) before sending the response.
+    private static final ThreadLocal<long[]> s_threadSequence = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final long m_commitWindowNanos;
+    private final Thread m_thread;
+
+    // The journals that we write out, one per queue.
+    private final CopyOnWriteArrayList<Journal> m_journals = new CopyOnWriteArrayList<>();
+
+    // The sequence number of the last change that was recorded, and of the last one that is on
+    // disk.
+    private final AtomicLong m_appendedSequence = new AtomicLong(0);
+    private volatile long m_durableSequence = 0;
+
+    // Things to do once a change is durable, soonest first. Only touched whilst holding our lock.
+    private final PriorityQueue<DurableCallback> m_callbacks = new PriorityQueue<>();
+
+
+    /**
+     * Create a writer and start its thread. The scheduler only ever has the one (see getInstance),
+     * but benchmarks may create their own.
+     * @param commitWindow - the time in microseconds to wait after the first change before writing.
+     */
+    public JournalWriter(long commitWindow)
+    {
+        m_commitWindowNanos = commitWindow * 1000;
+        m_thread = new Thread(this, "journal-writer");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+
+    /**
+     * Fetch the writer that is used by the scheduler, creating it the first time.
+     * @return the writer.
+     */
+    public static synchronized JournalWriter getInstance()
+    {
+        if (s_instance == null)
+        {
+            s_instance = new JournalWriter(Settings.JOURNAL_COMMIT_WINDOW());
+        }
+
+        return s_instance;
+    }
+
+
+    /**
+     * Start writing out a journal.
+     * @param journal - the journal of a queue.
+     */
+    public void addJournal(Journal journal)
+    {
+        m_journals.add(journal);
+    }
+
+
+    /**
+     * Stop writing out a journal, e.g. because it has been replaced by a new one. Anything already
+     * recorded in it must be durable first.
+     * @param journal - the journal of a queue.
+     */
+    public void removeJournal(Journal journal)
+    {
+        m_journals.remove(journal);
+    }
+
+
+    /**
+     * Fetch the journals that are being written out, which may include one that has just been
+     * replaced.
+     * @return a copy of the list.
+     */
+    public ArrayList<Journal> getJournals()
+    {
+        return new ArrayList<>(m_journals);
+    }
+
+
+    /**
+     * Hand out the sequence number for a change that is being recorded. Only to be called by a
+     * journal, whilst holding its lock, so that the changes are in the buffer in sequence order.
+     * @return the sequence number of the change.
+     */
+    public long nextSequence()
+    {
+        return m_appendedSequence.incrementAndGet();
+    }
+
+
+    /**
+     * Let the writer know that there is something to write.
+     */
+    public void wakeUp()
+    {
+        LockSupport.unpark(m_thread);
+    }
+
+
+    /**
+     * Block until a change is durable.
+     * @param sequence - the sequence number of the change.
+     */
+    public void awaitDurable(long sequence)
+    {
+        if (m_durableSequence >= sequence)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            boolean wasInterrupted = false;
+
+            while (m_durableSequence < sequence)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    wasInterrupted = true;
+                }
+            }
+
+            if (wasInterrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Do something once a change is durable, without blocking. This is for the event loops, which
+     * can not wait. The callback is run on the writer's thread (or straight away if the change is
+     * already durable), so it must not block.
+     * @param sequence - the sequence number of the change.
+     * @param callback - what to do.
+     */
+    public void whenDurable(long sequence, Runnable callback)
+    {
+        synchronized (this)
+        {
+            if (m_durableSequence < sequence)
+            {
+                m_callbacks.add(new DurableCallback(sequence, callback));
+                return;
+            }
+        }
+
+        callback.run();
+    }
+
+
+    /**
+     * Write out whatever has been recorded, over and over, for as long as the scheduler runs.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            while (m_appendedSequence.get() == m_durableSequence)
+            {
+                LockSupport.park(this);
+            }
+
+            // Give other requests a chance to get their changes into this commit.
+            long deadline = System.nanoTime() + m_commitWindowNanos;
+            long remaining = m_commitWindowNanos;
+
+            while (remaining > 0)
+            {
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+
+            // Everything up to here is already in the journals' buffers, as a sequence number is
+            // only handed out whilst the change is being put in the buffer under the journal lock.
+            long targetSequence = m_appendedSequence.get();
+
+            try
+            {
+                for (Journal journal : m_journals)
+                {
+                    journal.writePending();
+                }
+            }
+            catch (IOException e)
+            {
+                // We can not tell anyone that their change is safe, and carrying on would mean the
+                // journal no longer matches the queues. We halt rather than exit, as the shutdown
+                // hook would wait on us to take its final snapshot (and would save changes that
+                // were never made durable). Restarting replays what did make it to disk.
+                System.out.println("Failed writing the journal, so stopping: " + e.toString());
+                Runtime.getRuntime().halt(1);
+            }
+
+            runCallbacks(markDurable(targetSequence));
+        }
+    }
+
+
+    /**
+     * Record that everything up to a sequence number is on disk, and wake everybody waiting on it.
+     * @return the callbacks that are now due, in order.
+     */
+    private synchronized DurableCallback[] markDurable(long sequence)
+    {
+        m_durableSequence = sequence;
+        notifyAll();
+
+        int numDue = 0;
+        DurableCallback[] due = new DurableCallback[m_callbacks.size()];
+
+        while (!m_callbacks.isEmpty() && m_callbacks.peek().m_sequence <= sequence)
+        {
+            due[numDue] = m_callbacks.poll();
+            numDue++;
+        }
+
+        return Arrays.copyOf(due, numDue);
+    }
+
+
+    /**
+     * Run the callbacks that are due, without holding our lock as they take connection locks.
+     */
+    private static void runCallbacks(DurableCallback[] callbacks)
+    {
+        for (DurableCallback callback : callbacks)
+        {
+            try
+            {
+                callback.m_callback.run();
+            }
+            catch (RuntimeException e)
+            {
+                Debug.println("Journal callback failed: " + e.toString());
+            }
+        }
+    }
+
+
+    /**
+     * Remember the sequence number of a change that the current thread has just recorded, so that
+     * the response to the request can be held back until it is durable.
+     * @param sequence - the sequence number of the change.
+     */
+    public static void setThreadSequence(long sequence)
+    {
+        s_threadSequence.get()[0] = sequence;
+    }
+
+
+    /**
+     * Fetch (and forget) the sequence number of the last change recorded by the current thread.
+     * @return the sequence number, or 0 if it has not recorded anything since last time.
+     */
+    public static long takeThreadSequence()
+    {
+        long[] threadSequence = s_threadSequence.get();
+        long sequence = threadSequence[0];
+        threadSequence[0] = 0;
+        return sequence;
+    }
+
+
+    private static class DurableCallback implements Comparable<DurableCallback>
+    {
+        private final long m_sequence;
+        private final Runnable m_callback;
+
+
+        private DurableCallback(long sequence, Runnable callback)
+        {
+            m_sequence = sequence;
+            m_callback = callback;
+        }
+
+
+        @Override
+        public int compareTo(DurableCallback other)
+        {
+            return Long.compare(m_sequence, other.m_sequence);
+        }
+    }
+
+
+    // Accessors
+    public boolean isDurable(long sequence) { return m_durableSequence >= sequence; }
+    public long getDurableSequence()        { return m_durableSequence; }
+    public long getAppendedSequence()       { return m_appendedSequence.get(); }
+}
@@ -0,0 +1,747 @@
+/*
+ * A JSON request (or an object within one), read straight from the bytes that came off the socket.
+ * Parsing checks that the whole message is valid JSON, but rather than building a tree of objects
+ * it only records where each top level field's name and value are in the bytes. Values are only
+ * converted into Strings/numbers when a handler asks for them, and values that are just passed
+ * through (e.g. extra_info and request_id) can be copied out exactly as the client sent them.
+ *
+ * An object is reused for every message a thread handles, so it is NOT threadsafe, and anything
+ * fetched from it must be copied before the next message is parsed.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+public class JsonRequest
+{
+    // Stops a deeply nested message from overflowing the stack when we validate it.
+    private static final int MAX_DEPTH = 64;
+
+    private byte[] m_json;
+    private int m_position;
+    private int m_end;
+
+    // Where each of the top level fields are. Names exclude their quotes, values are the raw JSON.
+    private int m_numFields = 0;
+    private int[] m_nameStarts = new int[16];
+    private int[] m_nameEnds = new int[16];
+    private int[] m_valueStarts = new int[16];
+    private int[] m_valueEnds = new int[16];
+
+
+    /**
+     * Parse a JSON object, replacing whatever was parsed before.
+     * @param json - the array holding the message.
+     * @param offset - where the message starts in the array.
+     * @param length - the number of bytes in the message.
+     * @throws Exception if the message is not a valid JSON object.
+     */
+    public void parse(byte[] json, int offset, int length) throws Exception
+    {
+        m_json = json;
+        m_position = offset;
+        m_end = offset + length;
+        m_numFields = 0;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+
+        if (peek() == '}')
+        {
+            m_position++;
+        }
+        else
+        {
+            boolean hasMoreFields = true;
+
+            while (hasMoreFields)
+            {
+                skipWhitespace();
+                int nameStart = m_position + 1;
+                skipString();
+                int nameEnd = m_position - 1;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                int valueStart = m_position;
+                skipValue(1);
+                addField(nameStart, nameEnd, valueStart, m_position);
+                skipWhitespace();
+                hasMoreFields = (peek() == ',');
+
+                if (hasMoreFields)
+                {
+                    m_position++;
+                }
+            }
+
+            expect('}');
+        }
+
+        skipWhitespace();
+
+        if (m_position != m_end)
+        {
+            throw new Exception("Malformed request: unexpected data after the end of the object");
+        }
+    }
+
+
+    /**
+     * Check whether the object has the specified field (even if its value is null).
+     */
+    public boolean has(String name)
+    {
+        return indexOf(name) != -1;
+    }
+
+
+    /**
+     * Fetch the value of a field as a string. Numbers and booleans are returned as they were
+     * written.
+     * @throws Exception if the field is missing, null, an object or an array.
+     */
+    public String getString(String name) throws Exception
+    {
+        int index = getIndex(name);
+        int start = m_valueStarts[index];
+        int end = m_valueEnds[index];
+        String value;
+
+        if (m_json[start] == '"')
+        {
+            value = readString(start + 1, end - 1);
+        }
+        else if (m_json[start] == '{' || m_json[start] == '[' || m_json[start] == 'n')
+        {
+            throw new Exception("Parameter [" + name + "] must be a string");
+        }
+        else
+        {
+            value = new String(m_json, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Fetch the value of a field as an int. The number may also be sent as a string.
+     * @throws Exception if the field is missing or is not a number.
+     */
+    public int getInt(String name) throws Exception
+    {
+        int index = getIndex(name);
+        return readInt(m_valueStarts[index], m_valueEnds[index], name);
+    }
+
+
+    /**
+     * Fetch the value of a field as a double. The number may also be sent as a string.
+     * @throws Exception if the field is missing or is not a number.
+     */
+    public double getDouble(String name) throws Exception
+    {
+        int index = getIndex(name);
+        return readDouble(m_valueStarts[index], m_valueEnds[index], name);
+    }
+
+
+    /**
+     * Fetch the value of a field as a boolean. Anything other than true (or "true") is false.
+     * @throws Exception if the field is missing.
+     */
+    public boolean getBoolean(String name) throws Exception
+    {
+        int index = getIndex(name);
+        int start = m_valueStarts[index];
+        boolean value;
+
+        if (m_json[start] == '"')
+        {
+            value = Boolean.parseBoolean(readString(start + 1, m_valueEnds[index] - 1));
+        }
+        else
+        {
+            value = (m_json[start] == 't');
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Fetch the value of a field exactly as the client sent it, e.g. to store some JSON the
+     * client gave us and hand it back later.
+     * @throws Exception if the field is missing.
+     */
+    public String getRawValue(String name) throws Exception
+    {
+        int index = getIndex(name);
+        int start = m_valueStarts[index];
+        return new String(m_json, start, m_valueEnds[index] - start, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Fetch an array of numbers, e.g. a list of task ids.
+     * @throws Exception if the field is missing or is not an array of numbers.
+     */
+    public ArrayList<Integer> getIntList(String name) throws Exception
+    {
+        ArrayList<Integer> list = new ArrayList<>();
+
+        for (int[] slice : getArrayElements(getIndex(name)))
+        {
+            list.add(readInt(slice[0], slice[1], name));
+        }
+
+        return list;
+    }
+
+
+    /**
+     * Fetch an array of strings, e.g. a list of keys. Numbers are returned as they were written.
+     * @throws Exception if the field is missing or is not an array of strings.
+     */
+    public ArrayList<String> getStringList(String name) throws Exception
+    {
+        ArrayList<String> list = new ArrayList<>();
+
+        for (int[] slice : getArrayElements(getIndex(name)))
+        {
+            byte first = m_json[slice[0]];
+
+            if (first == '"')
+            {
+                list.add(readString(slice[0] + 1, slice[1] - 1));
+            }
+            else if (first == '{' || first == '[' || first == 'n')
+            {
+                throw new Exception("Each of the [" + name + "] must be a string");
+            }
+            else
+            {
+                list.add(new String(m_json, slice[0], slice[1] - slice[0], StandardCharsets.UTF_8));
+            }
+        }
+
+        return list;
+    }
+
+
+    /**
+     * Fetch an array of objects, e.g. a list of leases. Each is parsed into its own JsonRequest.
+     * @throws Exception if the field is missing or is not an array of objects.
+     */
+    public ArrayList<JsonRequest> getObjectList(String name) throws Exception
+    {
+        ArrayList<JsonRequest> list = new ArrayList<>();
+
+        for (int[] slice : getArrayElements(getIndex(name)))
+        {
+            if (m_json[slice[0]] != '{')
+            {
+                throw new Exception("Each of the [" + name + "] must be an object");
+            }
+
+            JsonRequest element = new JsonRequest();
+            element.parse(m_json, slice[0], slice[1] - slice[0]);
+            list.add(element);
+        }
+
+        return list;
+    }
+
+
+    /**
+     * Fetch the start of a field's raw value in the array returned by getJson.
+     * @return the offset of the value, or -1 if there is no such field.
+     */
+    public int getValueStart(String name)
+    {
+        int index = indexOf(name);
+        return (index == -1) ? -1 : m_valueStarts[index];
+    }
+
+
+    /**
+     * Fetch the end (exclusive) of a field's raw value in the array returned by getJson.
+     * @return the offset after the value, or -1 if there is no such field.
+     */
+    public int getValueEnd(String name)
+    {
+        int index = indexOf(name);
+        return (index == -1) ? -1 : m_valueEnds[index];
+    }
+
+
+    /**
+     * Fetch the index of a field. If the same name appears more than once, the last one wins.
+     * Names are compared against the raw bytes, so a name the client wrote with escapes in it
+     * will not be found.
+     * @return the index of the field, or -1 if there is no such field.
+     */
+    private int indexOf(String name)
+    {
+        int foundIndex = -1;
+
+        for (int i = m_numFields - 1; foundIndex == -1 && i >= 0; i--)
+        {
+            int start = m_nameStarts[i];
+            boolean isMatch = (m_nameEnds[i] - start == name.length());
+
+            for (int j = 0; isMatch && j < name.length(); j++)
+            {
+                isMatch = (m_json[start + j] == name.charAt(j));
+            }
+
+            if (isMatch)
+            {
+                foundIndex = i;
+            }
+        }
+
+        return foundIndex;
+    }
+
+
+    /**
+     * Convert a number (or a string holding one) into an int.
+     * @param name - the name of the field, for the error message.
+     */
+    private int readInt(int start, int end, String name) throws Exception
+    {
+        int digitsStart = start;
+        int digitsEnd = end;
+
+        if (m_json[start] == '"')
+        {
+            digitsStart++;
+            digitsEnd--;
+        }
+
+        // Fast path for plain integers, which is all that well behaved clients send.
+        boolean isNegative = (digitsStart < digitsEnd && m_json[digitsStart] == '-');
+        int firstDigit = isNegative ? digitsStart + 1 : digitsStart;
+        long value = 0;
+        int i = firstDigit;
+
+        while (i < digitsEnd && i - firstDigit < 10 && m_json[i] >= '0' && m_json[i] <= '9')
+        {
+            value = (value * 10) + (m_json[i] - '0');
+            i++;
+        }
+
+        if (i == digitsEnd && i > firstDigit && value <= Integer.MAX_VALUE)
+        {
+            return (int)(isNegative ? -value : value);
+        }
+
+        return (int)readDouble(start, end, name);
+    }
+
+
+    /**
+     * Convert a number (or a string holding one) into a double.
+     * @param name - the name of the field, for the error message.
+     */
+    private double readDouble(int start, int end, String name) throws Exception
+    {
+        String value;
+
+        if (m_json[start] == '"')
+        {
+            value = readString(start + 1, end - 1);
+        }
+        else
+        {
+            value = new String(m_json, start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new Exception("Parameter [" + name + "] must be a number");
+        }
+    }
+
+
+    private int getIndex(String name) throws Exception
+    {
+        int index = indexOf(name);
+
+        if (index == -1)
+        {
+            throw new Exception("Missing required parameter [" + name + "]");
+        }
+
+        return index;
+    }
+
+
+    private ArrayList<int[]> getArrayElements(int index) throws Exception
+    {
+        ArrayList<int[]> elements = new ArrayList<>();
+        m_position = m_valueStarts[index];
+
+        if (m_json[m_position] != '[')
+        {
+            throw new Exception("Malformed request: expected an array");
+        }
+
+        // The array has already been validated, so we only need to find where each element is.
+        m_position++;
+        skipWhitespace();
+
+        while (m_json[m_position] != ']')
+        {
+            int start = m_position;
+            skipValue(1);
+            elements.add(new int[]{start, m_position});
+            skipWhitespace();
+
+            if (m_json[m_position] == ',')
+            {
+                m_position++;
+                skipWhitespace();
+            }
+        }
+
+        return elements;
+    }
+
+
+    private void addField(int nameStart, int nameEnd, int valueStart, int valueEnd)
+    {
+        if (m_numFields == m_nameStarts.length)
+        {
+            int newLength = m_numFields * 2;
+            m_nameStarts = Arrays.copyOf(m_nameStarts, newLength);
+            m_nameEnds = Arrays.copyOf(m_nameEnds, newLength);
+            m_valueStarts = Arrays.copyOf(m_valueStarts, newLength);
+            m_valueEnds = Arrays.copyOf(m_valueEnds, newLength);
+        }
+
+        m_nameStarts[m_numFields] = nameStart;
+        m_nameEnds[m_numFields] = nameEnd;
+        m_valueStarts[m_numFields] = valueStart;
+        m_valueEnds[m_numFields] = valueEnd;
+        m_numFields++;
+    }
+
+
+    /**
+     * Move past a value, checking that it is valid.
+     * @param depth - how deeply nested the value is.
+     */
+    private void skipValue(int depth) throws Exception
+    {
+        if (depth > MAX_DEPTH)
+        {
+            throw new Exception("Malformed request: nested too deeply");
+        }
+
+        byte nextByte = peek();
+
+        if (nextByte == '"')
+        {
+            skipString();
+        }
+        else if (nextByte == '{')
+        {
+            m_position++;
+            skipWhitespace();
+
+            if (peek() != '}')
+            {
+                boolean hasMoreFields = true;
+
+                while (hasMoreFields)
+                {
+                    skipWhitespace();
+                    skipString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    hasMoreFields = (peek() == ',');
+
+                    if (hasMoreFields)
+                    {
+                        m_position++;
+                    }
+                }
+            }
+
+            expect('}');
+        }
+        else if (nextByte == '[')
+        {
+            m_position++;
+            skipWhitespace();
+
+            if (peek() != ']')
+            {
+                boolean hasMoreElements = true;
+
+                while (hasMoreElements)
+                {
+                    skipWhitespace();
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    hasMoreElements = (peek() == ',');
+
+                    if (hasMoreElements)
+                    {
+                        m_position++;
+                    }
+                }
+            }
+
+            expect(']');
+        }
+        else if (nextByte == 't')
+        {
+            skipLiteral("true");
+        }
+        else if (nextByte == 'f')
+        {
+            skipLiteral("false");
+        }
+        else if (nextByte == 'n')
+        {
+            skipLiteral("null");
+        }
+        else
+        {
+            skipNumber();
+        }
+    }
+
+
+    private void skipString() throws Exception
+    {
+        expect('"');
+
+        while (true)
+        {
+            byte nextByte = next();
+
+            if (nextByte == '"')
+            {
+                break;
+            }
+            else if (nextByte == '\\')
+            {
+                byte escaped = next();
+
+                if (escaped == 'u')
+                {
+                    for (int i = 0; i < 4; i++)
+                    {
+                        if (Character.digit(next(), 16) == -1)
+                        {
+                            throw new Exception("Malformed request: invalid unicode escape");
+                        }
+                    }
+                }
+                else if ("\"\\/bfnrt".indexOf(escaped) == -1)
+                {
+                    throw new Exception("Malformed request: invalid escape in string");
+                }
+            }
+            else if (nextByte >= 0 && nextByte < 0x20)
+            {
+                throw new Exception("Malformed request: unescaped control character in string");
+            }
+        }
+    }
+
+
+    private void skipNumber() throws Exception
+    {
+        int start = m_position;
+
+        if (m_position < m_end && m_json[m_position] == '-')
+        {
+            m_position++;
+        }
+
+        int integerDigits = skipDigits();
+
+        if (integerDigits == 0 || (integerDigits > 1 && m_json[m_position - integerDigits] == '0'))
+        {
+            throw new Exception("Malformed request: invalid value at position " + start);
+        }
+
+        if (m_position < m_end && m_json[m_position] == '.')
+        {
+            m_position++;
+
+            if (skipDigits() == 0)
+            {
+                throw new Exception("Malformed request: invalid number at position " + start);
+            }
+        }
+
+        if (m_position < m_end && (m_json[m_position] == 'e' || m_json[m_position] == 'E'))
+        {
+            m_position++;
+
+            if (m_position < m_end && (m_json[m_position] == '+' || m_json[m_position] == '-'))
+            {
+                m_position++;
+            }
+
+            if (skipDigits() == 0)
+            {
+                throw new Exception("Malformed request: invalid number at position " + start);
+            }
+        }
+    }
+
+
+    private int skipDigits()
+    {
+        int start = m_position;
+
+        while (m_position < m_end && m_json[m_position] >= '0' && m_json[m_position] <= '9')
+        {
+            m_position++;
+        }
+
+        return m_position - start;
+    }
+
+
+    private void skipLiteral(String literal) throws Exception
+    {
+        for (int i = 0; i < literal.length(); i++)
+        {
+            if (next() != literal.charAt(i))
+            {
+                throw new Exception("Malformed request: invalid value at position " + m_position);
+            }
+        }
+    }
+
+
+    private void skipWhitespace()
+    {
+        while (m_position < m_end)
+        {
+            byte nextByte = m_json[m_position];
+
+            if (nextByte != ' ' && nextByte != '\t' && nextByte != '\n' && nextByte != '\r')
+            {
+                break;
+            }
+
+            m_position++;
+        }
+    }
+
+
+    private void expect(char expected) throws Exception
+    {
+        if (next() != expected)
+        {
+            throw new Exception("Malformed request: expected '" + expected + "' at position " + (m_position - 1));
+        }
+    }
+
+
+    private byte peek() throws Exception
+    {
+        if (m_position >= m_end)
+        {
+            throw new Exception("Malformed request: unexpected end of message");
+        }
+
+        return m_json[m_position];
+    }
+
+
+    private byte next() throws Exception
+    {
+        byte nextByte = peek();
+        m_position++;
+        return nextByte;
+    }
+
+
+    /**
+     * Decode a string that has already been validated.
+     * @param start - the offset of the first byte after the opening quote.
+     * @param end - the offset of the closing quote.
+     */
+    private String readString(int start, int end)
+    {
+        int firstEscape = start;
+
+        while (firstEscape < end && m_json[firstEscape] != '\\')
+        {
+            firstEscape++;
+        }
+
+        if (firstEscape == end)
+        {
+            return new String(m_json, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder value = new StringBuilder(end - start);
+        value.append(new String(m_json, start, firstEscape - start, StandardCharsets.UTF_8));
+        int i = firstEscape;
+
+        while (i < end)
+        {
+            int runStart = i;
+
+            while (i < end && m_json[i] != '\\')
+            {
+                i++;
+            }
+
+            if (i > runStart)
+            {
+                value.append(new String(m_json, runStart, i - runStart, StandardCharsets.UTF_8));
+            }
+
+            if (i < end)
+            {
+                byte escaped = m_json[i + 1];
+                i += 2;
+
+                switch (escaped)
+                {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                    {
+                        value.append((char)Integer.parseInt(new String(m_json, i, 4, StandardCharsets.US_ASCII), 16));
+                        i += 4;
+                    }
+                    break;
+                    default: value.append((char)escaped); break;
+                }
+            }
+        }
+
+        return value.toString();
+    }
+
+
+    // Accessors
+    public byte[] getJson() { return m_json; }
+}
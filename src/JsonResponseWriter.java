@@ -0,0 +1,401 @@
+/*
+ * Writes a JSON response straight into a reusable array of UTF-8 bytes, ready to be sent to the
+ * client. Unlike building a tree of JsonObjects and rendering it with Gson, nothing is allocated
+ * per response once the array has grown to the size of the largest response.
+ *
+ * The writer only keeps track of where commas are needed, so it is up to the caller to write
+ * names and values in a sensible order. An object is reused for every message a thread handles,
+ * so it is NOT threadsafe.
+ */
+
+import java.util.Arrays;
+
+
+public class JsonResponseWriter
+{
+    private static final int MAX_DEPTH = 32;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private byte[] m_bytes = new byte[512];
+    private int m_length = 0;
+
+    // Whether each level of nesting already has something in it, and so needs a comma before the
+    // next thing, and whether we have just written a name (so the value needs no comma).
+    private final boolean[] m_hasElements = new boolean[MAX_DEPTH];
+    private int m_depth = 0;
+    private boolean m_isAfterName = false;
+
+    // The state saved by mark(), which resetToMark() goes back to.
+    private int m_markLength = 0;
+    private int m_markDepth = 0;
+    private boolean m_markHasElements = false;
+
+
+    /**
+     * Throw away everything that has been written, ready for the next response.
+     */
+    public void reset()
+    {
+        m_length = 0;
+        m_depth = 0;
+        m_hasElements[0] = false;
+        m_isAfterName = false;
+    }
+
+
+    /**
+     * Remember how much has been written so far, e.g. so that a half written successful response
+     * can be replaced with an error.
+     */
+    public void mark()
+    {
+        m_markLength = m_length;
+        m_markDepth = m_depth;
+        m_markHasElements = m_hasElements[m_depth];
+    }
+
+
+    /**
+     * Throw away everything that was written since mark() was called.
+     */
+    public void resetToMark()
+    {
+        m_length = m_markLength;
+        m_depth = m_markDepth;
+        m_hasElements[m_depth] = m_markHasElements;
+        m_isAfterName = false;
+    }
+
+
+    public JsonResponseWriter beginObject()
+    {
+        beforeValue();
+        writeByte('{');
+        m_depth++;
+        m_hasElements[m_depth] = false;
+        return this;
+    }
+
+
+    public JsonResponseWriter endObject()
+    {
+        m_depth--;
+        writeByte('}');
+        return this;
+    }
+
+
+    public JsonResponseWriter beginArray()
+    {
+        beforeValue();
+        writeByte('[');
+        m_depth++;
+        m_hasElements[m_depth] = false;
+        return this;
+    }
+
+
+    public JsonResponseWriter endArray()
+    {
+        m_depth--;
+        writeByte(']');
+        return this;
+    }
+
+
+    /**
+     * Write the name of the next field in the current object.
+     * @param name - the name of the field. Names are written as they are, without escaping.
+     */
+    public JsonResponseWriter name(String name)
+    {
+        beforeValue();
+        ensureCapacity(name.length() + 3);
+        m_bytes[m_length++] = '"';
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            m_bytes[m_length++] = (byte)name.charAt(i);
+        }
+
+        m_bytes[m_length++] = '"';
+        m_bytes[m_length++] = ':';
+        m_isAfterName = true;
+        return this;
+    }
+
+
+    /**
+     * Write the name of the next field in the current object, escaping it as necessary, for names
+     * that came from the client.
+     * @param name - the name of the field.
+     */
+    public JsonResponseWriter escapedName(String name)
+    {
+        beforeValue();
+        writeByte('"');
+        writeEscaped(name);
+        writeAscii("\":");
+        m_isAfterName = true;
+        return this;
+    }
+
+
+    /**
+     * Write a string value, escaping it as necessary.
+     * @param value - the string to write, or null to write a JSON null.
+     */
+    public JsonResponseWriter value(String value)
+    {
+        beforeValue();
+
+        if (value == null)
+        {
+            writeAscii("null");
+        }
+        else
+        {
+            writeByte('"');
+            writeEscaped(value);
+            writeByte('"');
+        }
+
+        return this;
+    }
+
+
+    public JsonResponseWriter value(long value)
+    {
+        beforeValue();
+        ensureCapacity(20);
+
+        if (value == Long.MIN_VALUE)
+        {
+            writeAscii(Long.toString(value));
+        }
+        else
+        {
+            if (value < 0)
+            {
+                m_bytes[m_length++] = '-';
+                value = -value;
+            }
+
+            // Write the digits backwards from the end, then we know where the number starts.
+            int numDigits = 1;
+
+            for (long remaining = value / 10; remaining != 0; remaining /= 10)
+            {
+                numDigits++;
+            }
+
+            for (int i = m_length + numDigits - 1; i >= m_length; i--)
+            {
+                m_bytes[i] = (byte)('0' + (value % 10));
+                value /= 10;
+            }
+
+            m_length += numDigits;
+        }
+
+        return this;
+    }
+
+
+    public JsonResponseWriter value(boolean value)
+    {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+
+    /**
+     * Write a lock as the string form that clients are given (see LockToken), without building
+     * the string.
+     * @param high - the most significant 64 bits of the lock
+     * @param low - the least significant 64 bits of the lock
+     */
+    public JsonResponseWriter lockValue(long high, long low)
+    {
+        beforeValue();
+        ensureCapacity(LockToken.LENGTH + 2);
+        m_bytes[m_length++] = '"';
+        writeHex(high);
+        writeHex(low);
+        m_bytes[m_length++] = '"';
+        return this;
+    }
+
+
+    /**
+     * Write a value that is already JSON, exactly as it is.
+     * @param json - the array holding the JSON, e.g. the request it was sent in.
+     * @param start - the offset of the value in the array.
+     * @param end - the offset after the end of the value.
+     */
+    public JsonResponseWriter rawValue(byte[] json, int start, int end)
+    {
+        beforeValue();
+        ensureCapacity(end - start);
+        System.arraycopy(json, start, m_bytes, m_length, end - start);
+        m_length += end - start;
+        return this;
+    }
+
+
+    /**
+     * Write a value that is already JSON, exactly as it is.
+     * @param json - the JSON to write.
+     */
+    public JsonResponseWriter rawValue(String json)
+    {
+        beforeValue();
+        writeUtf8(json, 0, json.length());
+        return this;
+    }
+
+
+    private void beforeValue()
+    {
+        if (m_isAfterName)
+        {
+            m_isAfterName = false;
+        }
+        else
+        {
+            if (m_hasElements[m_depth])
+            {
+                writeByte(',');
+            }
+
+            m_hasElements[m_depth] = true;
+        }
+    }
+
+
+    /**
+     * Write the contents of a string, escaping quotes, backslashes and control characters.
+     */
+    private void writeEscaped(String value)
+    {
+        int runStart = 0;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x20 || c == '"' || c == '\\')
+            {
+                writeUtf8(value, runStart, i);
+                runStart = i + 1;
+
+                switch (c)
+                {
+                    case '"':  writeAscii("\\\""); break;
+                    case '\\': writeAscii("\\\\"); break;
+                    case '\n': writeAscii("\\n"); break;
+                    case '\r': writeAscii("\\r"); break;
+                    case '\t': writeAscii("\\t"); break;
+                    default:
+                    {
+                        ensureCapacity(6);
+                        writeAscii("\\u00");
+                        m_bytes[m_length++] = HEX_DIGITS[c >> 4];
+                        m_bytes[m_length++] = HEX_DIGITS[c & 0xF];
+                    }
+                    break;
+                }
+            }
+        }
+
+        writeUtf8(value, runStart, value.length());
+    }
+
+
+    /**
+     * Encode part of a string as UTF-8.
+     */
+    private void writeUtf8(String value, int start, int end)
+    {
+        // Each char becomes at most 3 bytes (surrogate pairs become 4 bytes for 2 chars).
+        ensureCapacity((end - start) * 3);
+
+        for (int i = start; i < end; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80)
+            {
+                m_bytes[m_length++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                m_bytes[m_length++] = (byte)(0xC0 | (c >> 6));
+                m_bytes[m_length++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+                i++;
+                m_bytes[m_length++] = (byte)(0xF0 | (codePoint >> 18));
+                m_bytes[m_length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+                m_bytes[m_length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+                m_bytes[m_length++] = (byte)(0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // An unpaired surrogate can't be encoded, so do what String.getBytes does.
+                m_bytes[m_length++] = '?';
+            }
+            else
+            {
+                m_bytes[m_length++] = (byte)(0xE0 | (c >> 12));
+                m_bytes[m_length++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                m_bytes[m_length++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+
+    private void writeHex(long value)
+    {
+        for (int shift = 60; shift >= 0; shift -= 4)
+        {
+            m_bytes[m_length++] = HEX_DIGITS[(int)((value >>> shift) & 0xF)];
+        }
+    }
+
+
+    private void writeAscii(String value)
+    {
+        ensureCapacity(value.length());
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            m_bytes[m_length++] = (byte)value.charAt(i);
+        }
+    }
+
+
+    private void writeByte(char value)
+    {
+        ensureCapacity(1);
+        m_bytes[m_length++] = (byte)value;
+    }
+
+
+    private void ensureCapacity(int numBytes)
+    {
+        if (m_length + numBytes > m_bytes.length)
+        {
+            m_bytes = Arrays.copyOf(m_bytes, Math.max(m_bytes.length * 2, m_length + numBytes));
+        }
+    }
+
+
+    // Accessors
+    public byte[] getBytes() { return m_bytes; }
+    public int getLength()   { return m_length; }
+}
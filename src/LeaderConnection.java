@@ -0,0 +1,238 @@
+/*
+ * The follower's end of replication (see FollowerConnection). Connects to the leader, loads the
+ * snapshot of each queue it is sent and applies the journal records that follow, so that the
+ * follower's queues are kept the same as the leader's, a little behind. If the connection is lost
+ * it keeps trying to reconnect, and starts again from scratch each time it does.
+ *
+ * The follower does not hand out tasks or accept changes itself until it is promoted (see
+ * Scheduler.promote), as the leader may still be running.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+
+public class LeaderConnection extends Thread
+{
+    // How long to wait in milliseconds before trying to reconnect.
+    private static final long RECONNECT_INTERVAL = 1000;
+
+    private final InetSocketAddress m_address;
+    private volatile SocketChannel m_channel = null;
+    private volatile boolean m_isStopped = false;
+
+    // What we know about how far behind we are. The sequence numbers are the leader's.
+    private volatile boolean m_isConnected = false;
+    private volatile long m_appliedSequence = 0;
+    private volatile long m_leaderSequence = 0;
+    private volatile long m_lastHeardTime = 0;
+
+
+    public LeaderConnection(InetSocketAddress address)
+    {
+        super("replication");
+        setDaemon(true);
+        m_address = address;
+    }
+
+
+    @Override
+    public void run()
+    {
+        while (!m_isStopped)
+        {
+            try
+            {
+                m_channel = SocketChannel.open(m_address);
+                m_channel.socket().setTcpNoDelay(true);
+                System.out.println("Connected to the leader at " + m_address + ".");
+
+                // Whatever we had may be missing changes, so the leader sends everything again.
+                Scheduler.getInstance().clearReplicatedQueues();
+                m_appliedSequence = 0;
+                m_isConnected = true;
+
+                follow();
+            }
+            catch (Exception e)
+            {
+                if (!m_isStopped)
+                {
+                    System.out.println("Lost the connection to the leader at " + m_address + " " + e.toString());
+                }
+            }
+            finally
+            {
+                m_isConnected = false;
+                closeChannel();
+            }
+
+            if (!m_isStopped)
+            {
+                try
+                {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Apply each frame the leader sends, and tell it how far we have got after each one.
+     * @throws Exception if the connection is lost, or what we are sent does not make sense.
+     */
+    private void follow() throws Exception
+    {
+        Scheduler scheduler = Scheduler.getInstance();
+        ByteBuffer header = ByteBuffer.allocate(FollowerConnection.FRAME_HEADER_LENGTH);
+        ByteBuffer reply = ByteBuffer.allocate(8);
+        ByteBuffer frame = ByteBuffer.allocate(64 * 1024);
+
+        while (!m_isStopped)
+        {
+            header.clear();
+            readFully(header);
+            header.flip();
+            byte type = header.get();
+            long length = header.getLong();
+
+            if (type == FollowerConnection.SNAPSHOT)
+            {
+                ByteBuffer sequence = ByteBuffer.allocate(8);
+                readFully(sequence);
+                sequence.flip();
+                long snapshotSequence = sequence.getLong();
+
+                TaskQueue queue = Snapshot.load(m_channel, length - 8).getQueue();
+                scheduler.putReplicatedQueue(queue);
+                m_appliedSequence = Math.max(m_appliedSequence, snapshotSequence);
+            }
+            else
+            {
+                if (frame.capacity() < length)
+                {
+                    frame = ByteBuffer.allocate((int)length);
+                }
+
+                frame.clear();
+                frame.limit((int)length);
+                readFully(frame);
+                frame.flip();
+
+                if (type == FollowerConnection.RECORDS)
+                {
+                    applyRecords(scheduler, frame);
+                }
+                else if (type == FollowerConnection.HEARTBEAT)
+                {
+                    m_leaderSequence = frame.getLong();
+                }
+                else
+                {
+                    throw new Exception("Unrecognized replication frame type: " + type);
+                }
+            }
+
+            m_lastHeardTime = System.currentTimeMillis();
+
+            reply.clear();
+            reply.putLong(m_appliedSequence);
+            reply.flip();
+
+            while (reply.hasRemaining())
+            {
+                m_channel.write(reply);
+            }
+        }
+    }
+
+
+    private void applyRecords(Scheduler scheduler, ByteBuffer frame) throws Exception
+    {
+        while (frame.hasRemaining())
+        {
+            long sequence = frame.getLong();
+            byte[] queueName = new byte[frame.getInt()];
+            frame.get(queueName);
+
+            ByteBuffer record = Journal.nextRecord(frame);
+
+            if (record == null)
+            {
+                throw new Exception("Received a journal record that is corrupt.");
+            }
+
+            TaskQueue queue = scheduler.getReplicatedQueue(new String(queueName, StandardCharsets.UTF_8));
+            Journal.apply(queue, record);
+            m_appliedSequence = Math.max(m_appliedSequence, sequence);
+        }
+    }
+
+
+    private void readFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (m_channel.read(buffer) < 0)
+            {
+                throw new EOFException("The leader closed the connection.");
+            }
+        }
+    }
+
+
+    /**
+     * Stop following the leader, e.g. because we are being promoted, and wait for anything we are
+     * part way through applying to be finished.
+     */
+    public void stopFollowing()
+    {
+        m_isStopped = true;
+        closeChannel();
+        interrupt();
+
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void closeChannel()
+    {
+        SocketChannel channel = m_channel;
+
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // We are done with it either way.
+            }
+        }
+    }
+
+
+    // Accessors
+    public String getAddress()          { return m_address.getHostString() + ":" + m_address.getPort(); }
+    public boolean isConnected()        { return m_isConnected; }
+    public long getAppliedSequence()    { return m_appliedSequence; }
+    public long getLeaderSequence()     { return m_leaderSequence; }
+    public long getLastHeardTime()      { return m_lastHeardTime; }
+}
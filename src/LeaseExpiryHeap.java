@@ -0,0 +1,51 @@
+/*
+ * A heap of the tasks that are currently being processed, ordered by when their lock (lease)
+ * expires. The head of the heap is always the lease that will run out first, so finding the tasks
+ * that have timed out only ever touches the tasks that actually have, rather than every task that
+ * is being processed.
+ *
+ * This reuses the indexed heap, but keeps its own slot on the task so that a task can sit in this
+ * heap independently of the heap of available tasks.
+ */
+
+public class LeaseExpiryHeap extends IndexedTaskHeap
+{
+    /**
+     * Fetch the task whose lease has expired first, if it expired before the specified time.
+     * @param timeNow - the current time in milliseconds
+     * @return the task with the earliest expired lease, or null if no leases have expired yet.
+     */
+    public Task pollExpired(long timeNow)
+    {
+        Task expired = null;
+        Task head = peek();
+
+        if (head != null && head.getLeaseDeadline() < timeNow)
+        {
+            expired = poll();
+        }
+
+        return expired;
+    }
+
+
+    @Override
+    protected int compare(Task a, Task b)
+    {
+        return Long.compare(a.getLeaseDeadline(), b.getLeaseDeadline());
+    }
+
+
+    @Override
+    protected int getIndex(Task task)
+    {
+        return task.getLeaseIndex();
+    }
+
+
+    @Override
+    protected void setIndex(Task task, int index)
+    {
+        task.setLeaseIndex(index);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The tasks of one queue that have been handed to one connection and are still being processed
+ * by it. Every task that a connection is given (by get_task, get_tasks or by being pushed to its
+ * subscription) is recorded here, and removed again once it stops being processed (it was
+ * completed, rejected, removed or its lease ran out).
+ *
+ * This is what lets us keep the promise that a worker's tasks are unlocked if its connection is
+ * lost: when the connection closes, the queue puts all of the tasks still in the set back for
+ * others to work on in one go (TaskQueue.releaseLeases), rather than them sitting locked until
+ * their lock time limit runs out (which by default is never).
+ *
+ * The task ids are only touched whilst holding the queue lock.
+ */
+
+public class LeaseSet
+{
+    private final TaskQueue m_queue;
+    private final ClientConnection m_connection;
+
+    // The ids of the tasks that have been handed to the connection and may still be being
+    // processed.
+    private final IntHashSet m_taskIds = new IntHashSet();
+
+
+    public LeaseSet(TaskQueue queue, ClientConnection connection)
+    {
+        m_queue = queue;
+        m_connection = connection;
+    }
+
+
+    /**
+     * Record that a task that has just been locked has been handed to the connection. Only to be
+     * called by the queue.
+     * @param task - the task, which is now being processed.
+     */
+    public void add(Task task)
+    {
+        m_taskIds.add(task.getId());
+        task.setLeaseSet(this);
+    }
+
+
+    /**
+     * Forget about a task that was handed to the connection, as it is no longer being processed.
+     * Only to be called by the queue.
+     * @param task - the task, which the queue has already detached from us.
+     * @return the consumer that should now be handed more tasks, or null if there is none.
+     */
+    public TaskConsumer remove(Task task)
+    {
+        m_taskIds.remove(task.getId());
+        return null;
+    }
+
+
+    /**
+     * Stop any more tasks being handed to us, as the connection has gone away. Only to be called
+     * by the queue.
+     */
+    public void close()
+    {
+    }
+
+
+    // Accessors (only to be called whilst holding the queue lock)
+    public int[] getTaskIds()               { return m_taskIds.toArray(); }
+
+    public TaskQueue getQueue()             { return m_queue; }
+    public ClientConnection getConnection() { return m_connection; }
+}
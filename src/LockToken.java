@@ -0,0 +1,113 @@
+/*
+ * Helpers for the locks (lease tokens) that are handed to workers along with a task. A lock is 128
+ * random bits, which a Task stores as two longs. They only ever become a string at the edge, when
+ * we send a task to a client or read a lock back out of a request, so the hot path of handing out
+ * and checking locks never has to build or compare strings.
+ *
+ * The bits come from ThreadLocalRandom rather than SecureRandom (which UUID.randomUUID uses). Locks
+ * exist to stop a worker accidentally completing a task that has since been given to someone else,
+ * not to stop a malicious client guessing them, so a fast per-thread generator is all we need.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public final class LockToken
+{
+    // The number of characters in the string form of a lock. Each is a hex digit (4 bits).
+    public static final int LENGTH = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    private LockToken(){}
+
+
+    /**
+     * Generate 64 random bits for one half of a lock.
+     * @return long
+     */
+    public static long generateHalf()
+    {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+
+    /**
+     * Convert a lock into the string that is given to clients.
+     * @param high - the most significant 64 bits of the lock
+     * @param low - the least significant 64 bits of the lock
+     * @return the lock as 32 lowercase hex characters.
+     */
+    public static String encode(long high, long low)
+    {
+        char[] chars = new char[LENGTH];
+        writeHex(high, chars, 0);
+        writeHex(low, chars, LENGTH / 2);
+        return new String(chars);
+    }
+
+
+    /**
+     * Check whether a string provided by a client is in the form of a lock, so that it can be
+     * decoded. Hex digits are accepted in either case.
+     * @param lock - the string to check (may be null)
+     * @return flag indicating whether the string can be decoded.
+     */
+    public static boolean isValid(String lock)
+    {
+        boolean isValid = (lock != null && lock.length() == LENGTH);
+
+        for (int i = 0; isValid && i < LENGTH; i++)
+        {
+            isValid = (Character.digit(lock.charAt(i), 16) != -1);
+        }
+
+        return isValid;
+    }
+
+
+    /**
+     * Fetch the most significant 64 bits of a lock string. The lock must be valid.
+     * @param lock - a lock string that has passed isValid
+     * @return long
+     */
+    public static long decodeHigh(String lock)
+    {
+        return readHex(lock, 0);
+    }
+
+
+    /**
+     * Fetch the least significant 64 bits of a lock string. The lock must be valid.
+     * @param lock - a lock string that has passed isValid
+     * @return long
+     */
+    public static long decodeLow(String lock)
+    {
+        return readHex(lock, LENGTH / 2);
+    }
+
+
+    private static void writeHex(long value, char[] chars, int offset)
+    {
+        for (int i = (LENGTH / 2) - 1; i >= 0; i--)
+        {
+            chars[offset + i] = HEX_DIGITS[(int)(value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+
+    private static long readHex(String lock, int offset)
+    {
+        long value = 0;
+
+        for (int i = 0; i < LENGTH / 2; i++)
+        {
+            value = (value << 4) | Character.digit(lock.charAt(offset + i), 16);
+        }
+
+        return value;
+    }
+}
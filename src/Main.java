@@ -14,9 +14,30 @@ class Main
             if (!Core.isAlreadyRunning(path, "lock.txt"))
             {
                 Debug.println("Debug mode enabled.");
+                
+                if (Settings.LEADER_ADDRESS() != null)
+                {
+                    // Take a copy of the leader's tasks instead, until we are promoted.
+                    Scheduler.getInstance().follow(Settings.LEADER_ADDRESS());
+                }
+                else
+                {
+                    // Bring back the tasks from before we were last stopped, before anyone can 
+                    // ask for them.
+                    Scheduler.getInstance().restore();
+                    Scheduler.getInstance().startReplication();
+                }
+                
                 SocketListener socketListener = new SocketListener();
                 socketListener.start();
                 System.out.println("started the socket listener");
+                
+                // Shut down gracefully when we are told to stop by the system (e.g. SIGTERM), as 
+                // well as when we are sent a shutdown request.
+                Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> Scheduler.getInstance().shutdown(Settings.SHUTDOWN_DRAIN_TIME() * 1000), 
+                    "shutdown"
+                ));
             }
             else
             {
@@ -25,7 +46,7 @@ class Main
         }
         catch(Exception e)
         {
-            System.out.println("Failed to get the JAR path " + e.toString());
+            System.out.println("Failed to start the scheduler " + e.toString());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,625 @@
+/*
+ * Class to represent a single client's connection when it is being served by one of the event 
+ * loops rather than by its own thread. The channel is non-blocking, so we only read from it when
+ * the event loop's selector tells us that data has arrived, and the data is split up into lines
+ * (messages) here. The responses to all the messages that arrived together (e.g. a client
+ * pipelining lots of requests) are written to the socket together once they have all been handled,
+ * and anything the socket will not take is written by the event loop once it is writable again.
+ *
+ * The first byte the client sends decides whether it is speaking line delimited JSON or the binary
+ * protocol (see BinaryProtocolHandler), in which case the data is split up into frames instead.
+ *
+ * A get_task request that is waiting for a task (wait_ms) is answered by the event loop later, 
+ * once it has been handed a task or its deadline has passed. Until then we still read from the
+ * socket, so that we notice the client going away, but anything it sends is held in a backlog.
+ * Tasks pushed to the connection's subscriptions are likewise sent by the event loop.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+public class NioSocketConnection implements ClientConnection
+{
+    private final SocketChannel m_channel;
+    private final SelectionKey m_key;
+    private final SocketEventLoop m_eventLoop;
+    
+    // The bytes of the message that we are part way through receiving.
+    private byte[] m_partialMessage = new byte[256];
+    private int m_partialMessageLength = 0;
+    
+    // Responses that have not been written to the socket yet, in the order they need to be sent.
+    private final ArrayDeque<ByteBuffer> m_pendingWrites = new ArrayDeque<>();
+    
+    // Whether the event loop is part way through handling a batch of messages, in which case
+    // responses are held back until the end of the batch.
+    private volatile boolean m_isHandlingMessages = false;
+    
+    private boolean m_isClosed = false;
+    
+    // When we last received anything from the client (ms since the epoch), so that the event 
+    // loop can close connections that have gone quiet (see Settings.CLIENT_TIMEOUT).
+    private long m_lastReceiveTime;
+    
+    // Whether we have received the first byte, which tells us which protocol the client is using,
+    // and the handler for the binary protocol if that is the one it picked.
+    private boolean m_hasNegotiatedProtocol = false;
+    private BinaryProtocolHandler m_binaryHandler = null;
+    
+    // The get_task request that is waiting for a task, if there is one, and the bytes that the 
+    // client has sent since, which are handled once it has been answered.
+    private TaskWaiter m_waiter = null;
+    private byte[] m_backlog = new byte[0];
+    private int m_backlogLength = 0;
+    
+    // The tasks of each queue that have been handed to this connection, including those pushed to
+    // its subscriptions.
+    private final List<LeaseSet> m_leaseSets = new CopyOnWriteArrayList<>();
+    
+    // The sequence number of the last change in the journal that the responses waiting to go out 
+    // must wait for (see JournalWriter), and whether the writer is going to call us back once it 
+    // is durable.
+    private long m_heldSequence = 0;
+    private boolean m_isWaitingForJournal = false;
+    
+    
+    public NioSocketConnection(SocketChannel channel, SelectionKey key, SocketEventLoop eventLoop)
+    {
+        m_channel = channel;
+        m_key = key;
+        m_eventLoop = eventLoop;
+        m_lastReceiveTime = Core.time(true);
+    }
+    
+    
+    /**
+     * Read everything the client has sent us so far, and pass each complete message on to the 
+     * HandlerLogic. This is called by the event loop when the channel is readable, and never 
+     * blocks.
+     * @param readBuffer - the event loop's buffer to read into. This is shared by all of the loop's
+     *                     connections, so nothing is left in it when we return.
+     */
+    public void readMessages(ByteBuffer readBuffer)
+    {
+        m_isHandlingMessages = true;
+        
+        try
+        {
+            int numBytesRead = m_channel.read(readBuffer);
+            
+            if (numBytesRead > 0)
+            {
+                m_lastReceiveTime = Core.time(true);
+            }
+            
+            while (numBytesRead > 0)
+            {
+                readBuffer.flip();
+                
+                if (!m_hasNegotiatedProtocol)
+                {
+                    negotiateProtocol(readBuffer);
+                }
+                
+                handleReceived(readBuffer);
+                readBuffer.clear();
+                numBytesRead = isClosed() ? 0 : m_channel.read(readBuffer);
+            }
+            
+            if (numBytesRead < 0)
+            {
+                // The client has gone away.
+                close();
+            }
+        }
+        catch (IOException e)
+        {
+            Debug.println("Read message failed: " + e.toString());
+            close();
+        }
+        finally
+        {
+            readBuffer.clear();
+            m_isHandlingMessages = false;
+            writePendingMessages();
+        }
+    }
+    
+    
+    /**
+     * Split the data that has been received into messages and handle them, or put it into the 
+     * backlog if we are waiting on a get_task request.
+     * @param data - the data that has been received, from its position up to its limit. This is
+     *               all used up by the time we return.
+     */
+    private void handleReceived(ByteBuffer data)
+    {
+        if (m_binaryHandler != null)
+        {
+            appendToMessage(data);
+            dispatchFrames();
+        }
+        
+        while (data.hasRemaining() && !isClosed() && !isWaiting())
+        {
+            int lineEnd = findLineEnd(data);
+            
+            if (lineEnd == -1)
+            {
+                appendToMessage(data);
+            }
+            else
+            {
+                int limit = data.limit();
+                data.limit(lineEnd);
+                appendToMessage(data);
+                data.limit(limit);
+                data.get();
+                dispatchMessage();
+            }
+        }
+        
+        if (data.hasRemaining() && isWaiting())
+        {
+            int numBytes = data.remaining();
+            
+            if (m_backlogLength + numBytes > m_backlog.length)
+            {
+                m_backlog = Arrays.copyOf(m_backlog, Math.max(m_backlog.length * 2, m_backlogLength + numBytes));
+            }
+            
+            data.get(m_backlog, m_backlogLength, numBytes);
+            m_backlogLength += numBytes;
+        }
+        
+        data.position(data.limit());
+    }
+    
+    
+    /**
+     * Park a get_task request that is waiting for a task. This is called by the event loop thread
+     * whilst it is handling the request, and the loop keeps track of the deadline.
+     */
+    @Override
+    public synchronized void waitForTask(TaskWaiter waiter)
+    {
+        if (!m_isClosed)
+        {
+            m_waiter = waiter;
+            m_eventLoop.addWaiter(waiter);
+        }
+    }
+    
+    
+    @Override
+    public void taskHandedOff(TaskWaiter waiter)
+    {
+        m_eventLoop.taskHandedOff(waiter);
+    }
+    
+    
+    /**
+     * Answer the get_task request that was waiting, now that it has been handed a task or its 
+     * deadline has passed, and then carry on with anything the client sent in the meantime. This 
+     * is called by the event loop, and does nothing if the request has already been answered.
+     * @param waiter - the waiting request.
+     */
+    public void answerWaitingRequest(TaskWaiter waiter)
+    {
+        if (!stopWaiting(waiter))
+        {
+            return;
+        }
+        
+        m_isHandlingMessages = true;
+        
+        try
+        {
+            HandlerLogic.finishWaiting(waiter);
+            
+            if (m_backlogLength > 0)
+            {
+                // Copied, as the backlog may be added to again if there is another waiting request.
+                ByteBuffer backlog = ByteBuffer.wrap(Arrays.copyOf(m_backlog, m_backlogLength));
+                m_backlogLength = 0;
+                handleReceived(backlog);
+            }
+        }
+        finally
+        {
+            m_isHandlingMessages = false;
+            writePendingMessages();
+        }
+    }
+    
+    
+    @Override
+    public void tasksPushed(Subscription subscription)
+    {
+        m_eventLoop.tasksPushed(subscription);
+    }
+    
+    
+    /**
+     * Send the tasks that have been pushed to one of our subscriptions, all in one go. This is 
+     * called by the event loop.
+     * @param subscription - the subscription that has pushes waiting to be sent.
+     */
+    public void sendPushes(Subscription subscription)
+    {
+        m_isHandlingMessages = true;
+        
+        try
+        {
+            subscription.sendPushes();
+        }
+        finally
+        {
+            m_isHandlingMessages = false;
+            writePendingMessages();
+        }
+    }
+    
+    
+    @Override
+    public void addLeaseSet(LeaseSet leaseSet)
+    {
+        m_leaseSets.add(leaseSet);
+    }
+    
+    
+    /**
+     * Hold back the responses until a change is durable. They are written once the journal 
+     * writer calls us back.
+     */
+    @Override
+    public synchronized void holdUntilDurable(long sequence)
+    {
+        m_heldSequence = Math.max(m_heldSequence, sequence);
+    }
+    
+    
+    /**
+     * Check whether the responses waiting to go out are being held back until a change is 
+     * durable, and if so make sure that the journal writer will call us back.
+     * @return flag indicating whether they are being held back.
+     */
+    private synchronized boolean isHeldForJournal()
+    {
+        if (m_heldSequence == 0)
+        {
+            return false;
+        }
+        
+        JournalWriter writer = JournalWriter.getInstance();
+        
+        if (writer.isDurable(m_heldSequence))
+        {
+            m_heldSequence = 0;
+            return false;
+        }
+        
+        if (!m_isWaitingForJournal)
+        {
+            m_isWaitingForJournal = true;
+            writer.whenDurable(m_heldSequence, this::journalCaughtUp);
+        }
+        
+        return true;
+    }
+    
+    
+    /**
+     * Called by the journal writer once the change we were holding back for is durable.
+     */
+    private synchronized void journalCaughtUp()
+    {
+        m_isWaitingForJournal = false;
+        
+        if (!m_isHandlingMessages)
+        {
+            writePendingMessages();
+        }
+    }
+    
+    
+    /**
+     * Stop waiting on the specified request.
+     * @return flag indicating whether it was the request we were waiting on.
+     */
+    private synchronized boolean stopWaiting(TaskWaiter waiter)
+    {
+        boolean wasWaiting = (m_waiter == waiter);
+        
+        if (wasWaiting)
+        {
+            m_waiter = null;
+        }
+        
+        return wasWaiting;
+    }
+    
+    
+    /**
+     * Send a message on the socket connection. This may be called from any thread.
+     */
+    @Override
+    public synchronized void sendMessage(byte[] message, int length)
+    {
+        // Responses must end in an endline to mark the end, as clients read line by line.
+        byte[] line = Arrays.copyOf(message, length + 1);
+        line[length] = '\n';
+        queueWrite(line);
+    }
+    
+    
+    /**
+     * Send a frame of the binary protocol on the socket connection. This may be called from any 
+     * thread.
+     */
+    @Override
+    public synchronized void sendFrame(byte[] payload, int length)
+    {
+        queueWrite(BinaryProtocolHandler.encodeFrame(payload, length));
+    }
+    
+    
+    /**
+     * Add bytes to the responses waiting to go out, and write them straight away unless we are in
+     * the middle of a batch of messages.
+     */
+    private synchronized void queueWrite(byte[] bytes)
+    {
+        if (!m_isClosed)
+        {
+            m_pendingWrites.add(ByteBuffer.wrap(bytes));
+            
+            if (!m_isHandlingMessages)
+            {
+                writePendingMessages();
+            }
+        }
+    }
+    
+    
+    /**
+     * Write as much of the responses that are waiting to go out as the socket will take, in a 
+     * single write. This is called at the end of each batch of messages, and by the event loop 
+     * when the channel is writable again.
+     */
+    public synchronized void writePendingMessages()
+    {
+        if (m_isClosed || m_pendingWrites.isEmpty() || isHeldForJournal())
+        {
+            return;
+        }
+        
+        try
+        {
+            m_channel.write(m_pendingWrites.toArray(new ByteBuffer[m_pendingWrites.size()]));
+            
+            while (!m_pendingWrites.isEmpty() && !m_pendingWrites.peek().hasRemaining())
+            {
+                m_pendingWrites.poll();
+            }
+            
+            if (!m_pendingWrites.isEmpty())
+            {
+                // The socket is full, so wait to be told it is writable.
+                m_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                m_key.selector().wakeup();
+            }
+            else if ((m_key.interestOps() & SelectionKey.OP_WRITE) != 0)
+            {
+                m_key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        catch (IOException e)
+        {
+            Debug.println("Send message failed: " + e.toString());
+            close();
+        }
+    }
+    
+    
+    @Override
+    public void close()
+    {
+        TaskWaiter waiter = null;
+        boolean wasOpen = false;
+        
+        synchronized (this)
+        {
+            if (!m_isClosed)
+            {
+                wasOpen = true;
+                m_isClosed = true;
+                m_pendingWrites.clear();
+                m_key.cancel();
+                
+                try
+                {
+                    m_channel.close();
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Failed closing socket.");
+                }
+                
+                m_eventLoop.connectionClosed();
+                waiter = m_waiter;
+                m_waiter = null;
+            }
+        }
+        
+        // Stop waiting for a task, give back any task that has been handed over, and put back the 
+        // other tasks that were handed to us and not finished. This is done without holding our
+        // lock, as it takes the queue locks.
+        if (waiter != null)
+        {
+            HandlerLogic.finishWaiting(waiter);
+        }
+        
+        if (wasOpen)
+        {
+            for (LeaseSet leaseSet : m_leaseSets)
+            {
+                leaseSet.getQueue().releaseLeases(leaseSet);
+            }
+        }
+    }
+    
+    
+    /**
+     * Check whether the client has gone quiet, i.e. it has not sent us anything since the given 
+     * time and is not waiting on a get_task. This is only called by the event loop.
+     * @param time - the time in milliseconds since the epoch.
+     * @return flag indicating whether the connection has been idle since then.
+     */
+    public boolean isIdleSince(long time)
+    {
+        return m_lastReceiveTime < time && !isWaiting();
+    }
+    
+    
+    /**
+     * Hand the message that we have just finished receiving to the HandlerLogic, and start on the 
+     * next one.
+     */
+    private void dispatchMessage()
+    {
+        int messageLength = m_partialMessageLength;
+        
+        // Allow for clients that send windows line endings.
+        if (messageLength > 0 && m_partialMessage[messageLength - 1] == '\r')
+        {
+            messageLength--;
+        }
+        
+        m_partialMessageLength = 0;
+        
+        if (messageLength > 0)
+        {
+            HandlerLogic.handleMessage(m_partialMessage, messageLength, this);
+        }
+    }
+    
+    
+    /**
+     * Look at the very first byte from the client to find out which protocol it is using. The
+     * byte is only consumed if it is the one that asks for the binary protocol.
+     */
+    private void negotiateProtocol(ByteBuffer readBuffer)
+    {
+        if (readBuffer.hasRemaining())
+        {
+            m_hasNegotiatedProtocol = true;
+            
+            if (readBuffer.get(readBuffer.position()) == BinaryProtocolHandler.MAGIC_BYTE)
+            {
+                readBuffer.get();
+                m_binaryHandler = new BinaryProtocolHandler(this);
+            }
+        }
+    }
+    
+    
+    /**
+     * Hand every complete frame that we have received to the binary protocol handler, and keep 
+     * hold of any partial frame at the end until the rest of it arrives.
+     */
+    private void dispatchFrames()
+    {
+        int position = 0;
+        
+        while (!isClosed())
+        {
+            // Read the length prefix, if we have all of it.
+            int frameLength = 0;
+            int shift = 0;
+            int payloadStart = -1;
+            
+            for (int i = position; i < m_partialMessageLength && shift <= 28; i++)
+            {
+                byte nextByte = m_partialMessage[i];
+                frameLength |= (nextByte & 0x7F) << shift;
+                shift += 7;
+                
+                if ((nextByte & 0x80) == 0)
+                {
+                    payloadStart = i + 1;
+                    break;
+                }
+            }
+            
+            if (shift > 28 || frameLength < 0 || frameLength > BinaryProtocolHandler.MAX_FRAME_LENGTH)
+            {
+                Debug.println("Closing connection that sent a malformed frame length.");
+                close();
+            }
+            else if (payloadStart == -1 || m_partialMessageLength - payloadStart < frameLength)
+            {
+                // Wait for the rest of the frame.
+                break;
+            }
+            else
+            {
+                m_binaryHandler.handleFrame(ByteBuffer.wrap(m_partialMessage, payloadStart, frameLength).slice());
+                position = payloadStart + frameLength;
+            }
+        }
+        
+        m_partialMessageLength -= position;
+        System.arraycopy(m_partialMessage, position, m_partialMessage, 0, m_partialMessageLength);
+    }
+    
+    
+    private void appendToMessage(ByteBuffer readBuffer)
+    {
+        int numBytes = readBuffer.remaining();
+        
+        if (m_partialMessageLength + numBytes > m_partialMessage.length)
+        {
+            int newLength = Math.max(m_partialMessage.length * 2, m_partialMessageLength + numBytes);
+            m_partialMessage = Arrays.copyOf(m_partialMessage, newLength);
+        }
+        
+        readBuffer.get(m_partialMessage, m_partialMessageLength, numBytes);
+        m_partialMessageLength += numBytes;
+    }
+    
+    
+    /**
+     * Find the end of the next line in the data we have read.
+     * @return the position of the next '\n', or -1 if the rest of the line has not arrived yet.
+     */
+    private static int findLineEnd(ByteBuffer readBuffer)
+    {
+        int lineEnd = -1;
+        
+        for (int i = readBuffer.position(); lineEnd == -1 && i < readBuffer.limit(); i++)
+        {
+            if (readBuffer.get(i) == '\n')
+            {
+                lineEnd = i;
+            }
+        }
+        
+        return lineEnd;
+    }
+    
+    
+    // Accessors
+    @Override
+    public synchronized boolean isClosed() { return m_isClosed; }
+    private synchronized boolean isWaiting() { return m_waiter != null; }
+    @Override
+    public List<LeaseSet> getLeaseSets() { return m_leaseSets; }
+}
@@ -0,0 +1,120 @@
+/*
+ * Accepts connections from followers on Settings.REPLICATION_PORT, and keeps track of the followers
+ * that are connected, so that the queues that are created later are replicated to them as well.
+ * Replication needs journaling to be switched on, as the followers are sent the journal records.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+
+public class ReplicationServer extends Thread
+{
+    // The followers that are connected. Also the lock for adding them to the journals, so that a
+    // new queue can not be missed by a follower that is connecting at the same moment.
+    private static final ArrayList<FollowerConnection> s_followers = new ArrayList<>();
+
+    private final ServerSocketChannel m_socket;
+    private final JournalWriter m_writer;
+
+
+    /**
+     * Start listening for followers.
+     * @param writer - the writer of the journals that are replicated.
+     * @throws IOException if the replication port could not be bound.
+     */
+    public ReplicationServer(JournalWriter writer) throws IOException
+    {
+        super("replication-listener");
+        setDaemon(true);
+        m_writer = writer;
+
+        InetSocketAddress bindAddr;
+
+        if (Settings.ADDRESS() != null)
+        {
+            InetAddress address = InetAddress.getByName(Settings.ADDRESS());
+            bindAddr = new InetSocketAddress(address, Settings.REPLICATION_PORT());
+        }
+        else
+        {
+            bindAddr = new InetSocketAddress(Settings.REPLICATION_PORT());
+        }
+
+        m_socket = ServerSocketChannel.open();
+        m_socket.bind(bindAddr);
+    }
+
+
+    @Override
+    public void run()
+    {
+        System.out.println("Listening for followers on port " + Settings.REPLICATION_PORT() + ".");
+
+        while (m_socket.isOpen())
+        {
+            try
+            {
+                SocketChannel channel = m_socket.accept();
+                channel.socket().setTcpNoDelay(true);
+                new FollowerConnection(channel, m_writer).start();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Failed to accept a follower " + e.toString());
+            }
+        }
+    }
+
+
+    public static void addFollower(FollowerConnection follower)
+    {
+        synchronized (s_followers)
+        {
+            s_followers.add(follower);
+        }
+    }
+
+
+    public static void removeFollower(FollowerConnection follower)
+    {
+        synchronized (s_followers)
+        {
+            s_followers.remove(follower);
+        }
+    }
+
+
+    /**
+     * Send the records of a new queue's journal to every follower. The queue is empty, so the
+     * followers need nothing else to start it off.
+     * @param journal - the journal of the new queue.
+     */
+    public static void attachFollowers(Journal journal)
+    {
+        synchronized (s_followers)
+        {
+            if (!s_followers.isEmpty())
+            {
+                journal.addFollowers(s_followers);
+            }
+        }
+    }
+
+
+    /**
+     * Fetch the followers that are connected.
+     * @return a copy of the list.
+     */
+    public static ArrayList<FollowerConnection> getFollowers()
+    {
+        synchronized (s_followers)
+        {
+            return new ArrayList<>(s_followers);
+        }
+    }
+}
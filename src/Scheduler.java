@@ -5,7 +5,13 @@
  * a collection of queues.
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -14,6 +20,12 @@ public class Scheduler
     private static Scheduler s_instance;
     private ConcurrentHashMap<String, TaskQueue> m_queues = new ConcurrentHashMap<>();
     
+    // Whether we have started shutting down (see shutdown).
+    private volatile boolean m_isShuttingDown = false;
+    
+    // The leader that we are following, or null if we are the leader (see follow).
+    private volatile LeaderConnection m_leader = null;
+    
     
     /**
      * Be careful to only initiate one of this object, but we do not NEED to implement a singleton
@@ -43,22 +55,480 @@ public class Scheduler
      */
     public TaskQueue getQueue(String queue_name)
     {
+        if (m_leader != null)
+        {
+            // Followers only have the queues that the leader has, so we just pretend any other 
+            // queue is empty.
+            TaskQueue queue = this.m_queues.get(queue_name);
+            return (queue != null) ? queue : new TaskQueue(queue_name);
+        }
+        
+        // Done atomically, so that two connections asking for a new queue at the same time can't
+        // end up with a queue each.
+        return this.m_queues.computeIfAbsent(queue_name, name -> createQueue(name));
+    }
+    
+    
+    /**
+     * Fetch a queue by name, without creating it if it does not exist. If the queue is being 
+     * created, this waits for it to be finished.
+     * @param queue_name - the name of the queue.
+     * @return TaskQueue, or null if there is no such queue.
+     */
+    public TaskQueue getExistingQueue(String queue_name)
+    {
+        return this.m_queues.computeIfPresent(queue_name, (name, queue) -> queue);
+    }
+    
+    
+    /**
+     * Create a new, empty, queue, with a journal if journaling is switched on.
+     * @param queue_name - the name of the new queue.
+     * @return TaskQueue
+     */
+    private TaskQueue createQueue(String queue_name)
+    {
+        TaskQueue queue = new TaskQueue(queue_name);
+        
+        if (m_isShuttingDown)
+        {
+            queue.stopHandingOut();
+        }
+        
+        if (Settings.JOURNAL_DIR() != null)
+        {
+            try
+            {
+                Journal journal = Journal.create(new File(Settings.JOURNAL_DIR()), queue_name, 0, JournalWriter.getInstance());
+                queue.setJournal(journal);
+                ReplicationServer.attachFollowers(journal);
+            }
+            catch (IOException e)
+            {
+                // Carrying on without a journal would mean quietly losing the queue on restart.
+                throw new IllegalStateException("Failed to create the journal for queue [" + queue_name + "]", e);
+            }
+        }
+        
+        return queue;
+    }
+    
+    
+    /**
+     * Rebuild the queues that have snapshots or journals in Settings.JOURNAL_DIR, so that the tasks
+     * that were in them before the scheduler stopped are still there, and start taking snapshots 
+     * every Settings.SNAPSHOT_INTERVAL. This must be called before we start accepting connections.
+     * Does nothing if journaling is switched off.
+     * @throws Exception if a snapshot or journal can not be read or does not make sense.
+     */
+    public void restore() throws Exception
+    {
+        if (Settings.JOURNAL_DIR() == null)
+        {
+            return;
+        }
+        
+        File journalDir = new File(Settings.JOURNAL_DIR());
+        
+        if (!journalDir.isDirectory() && !journalDir.mkdirs())
+        {
+            throw new Exception("Could not create the journal directory [" + journalDir + "]");
+        }
+        
+        // The journals of each queue (by the encoded queue name), in generation order.
+        TreeMap<String, TreeMap<Long, File>> journalFiles = new TreeMap<>();
+        
+        for (File file : journalDir.listFiles())
+        {
+            String fileName = file.getName();
+            
+            if (fileName.endsWith(Snapshot.FILE_EXTENSION))
+            {
+                String encodedName = fileName.substring(0, fileName.length() - Snapshot.FILE_EXTENSION.length());
+                journalFiles.computeIfAbsent(encodedName, name -> new TreeMap<>());
+            }
+            else if (fileName.endsWith(Journal.FILE_EXTENSION))
+            {
+                // e.g. "my_queue.3.journal"
+                String withoutExtension = fileName.substring(0, fileName.length() - Journal.FILE_EXTENSION.length());
+                int generationStart = withoutExtension.lastIndexOf('.');
+                String encodedName = withoutExtension.substring(0, generationStart);
+                long generation = Long.parseLong(withoutExtension.substring(generationStart + 1));
+                journalFiles.computeIfAbsent(encodedName, name -> new TreeMap<>()).put(generation, file);
+            }
+        }
+        
+        for (String encodedName : journalFiles.keySet())
+        {
+            TaskQueue queue = restoreQueue(journalDir, Snapshot.decodeQueueName(encodedName), journalFiles.get(encodedName));
+            this.m_queues.put(queue.getName(), queue);
+        }
+        
+        startSnapshotTimer();
+    }
+    
+    
+    /**
+     * Take snapshots every Settings.SNAPSHOT_INTERVAL, if it is set.
+     */
+    private void startSnapshotTimer()
+    {
+        long snapshotInterval = Settings.SNAPSHOT_INTERVAL();
+        
+        if (snapshotInterval > 0)
+        {
+            ScheduledThreadPoolExecutor snapshotTimer = new ScheduledThreadPoolExecutor(1, runnable -> 
+            {
+                Thread thread = new Thread(runnable, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            
+            snapshotTimer.scheduleWithFixedDelay(
+                this::snapshotQueues, 
+                snapshotInterval, 
+                snapshotInterval, 
+                TimeUnit.SECONDS
+            );
+        }
+    }
+    
+    
+    /**
+     * Start accepting followers on Settings.REPLICATION_PORT, if it is set. This must be called 
+     * after restore.
+     * @throws Exception if journaling is switched off, or the port can not be bound.
+     */
+    public void startReplication() throws Exception
+    {
+        if (Settings.REPLICATION_PORT() > 0)
+        {
+            if (Settings.JOURNAL_DIR() == null)
+            {
+                throw new Exception("REPLICATION_PORT requires JOURNAL_DIR to be set, as followers are sent the journal.");
+            }
+            
+            new ReplicationServer(JournalWriter.getInstance()).start();
+        }
+    }
+    
+    
+    /**
+     * Follow another scheduler (the leader), keeping a copy of its queues until we are promoted. 
+     * This is called instead of restore, and our journal directory (if we have one) must be empty, 
+     * as we take the leader's queues instead.
+     * @param leaderAddress - the leader's replication address, as host:port.
+     * @throws Exception if the address is not valid or the journal directory is not empty.
+     */
+    public void follow(String leaderAddress) throws Exception
+    {
+        int portStart = leaderAddress.lastIndexOf(':');
+        
+        if (portStart < 1)
+        {
+            throw new Exception("LEADER_ADDRESS must be host:port, not [" + leaderAddress + "]");
+        }
+        
+        if (Settings.JOURNAL_DIR() != null)
+        {
+            File journalDir = new File(Settings.JOURNAL_DIR());
+            
+            if (!journalDir.isDirectory() && !journalDir.mkdirs())
+            {
+                throw new Exception("Could not create the journal directory [" + journalDir + "]");
+            }
+            
+            for (File file : journalDir.listFiles())
+            {
+                String fileName = file.getName();
+                
+                if (fileName.endsWith(Journal.FILE_EXTENSION) || fileName.endsWith(Snapshot.FILE_EXTENSION))
+                {
+                    throw new Exception("The journal directory [" + journalDir + "] of a follower must start empty.");
+                }
+            }
+        }
+        
+        String host = leaderAddress.substring(0, portStart);
+        int port = Integer.parseInt(leaderAddress.substring(portStart + 1));
+        
+        m_leader = new LeaderConnection(new InetSocketAddress(host, port));
+        m_leader.start();
+    }
+    
+    
+    /**
+     * Stop following the leader and take over from it, with the queues as they were when we last 
+     * heard from it. The tasks that were being processed are put back, as their workers were 
+     * connected to the leader. If journaling is switched on, each queue is snapshotted to start its
+     * journal off, and then we accept followers of our own.
+     * @throws Exception if we are not following, or the queues can not be journaled.
+     */
+    public synchronized void promote() throws Exception
+    {
+        LeaderConnection leader = m_leader;
+        
+        if (leader == null)
+        {
+            throw new Exception("This scheduler is already the leader.");
+        }
+        
+        leader.stopFollowing();
+        
+        for (TaskQueue queue : this.m_queues.values())
+        {
+            queue.requeueProcessingTasks();
+            
+            if (Settings.JOURNAL_DIR() != null)
+            {
+                File journalDir = new File(Settings.JOURNAL_DIR());
+                queue.setJournal(Journal.create(journalDir, queue.getName(), 0, JournalWriter.getInstance()));
+                Snapshot.save(queue, journalDir);
+            }
+        }
+        
+        if (Settings.JOURNAL_DIR() != null)
+        {
+            startSnapshotTimer();
+        }
+        
+        m_leader = null;
+        System.out.println("Promoted to leader, taking over from " + leader.getAddress() + ".");
+        startReplication();
+    }
+    
+    
+    /**
+     * Check that we can make changes to the queues, which only the leader can.
+     * @throws Exception if we are following.
+     */
+    public void checkIsLeader() throws Exception
+    {
+        LeaderConnection leader = m_leader;
+        
+        if (leader != null)
+        {
+            throw new Exception("This scheduler is a follower of " + leader.getAddress() + ", so only answers get_info until it is promoted.");
+        }
+    }
+    
+    
+    /**
+     * Fetch a queue that is being replicated from the leader, creating it if the leader has just 
+     * created it. Only to be used by the LeaderConnection.
+     * @param queue_name - the name of the queue.
+     * @return TaskQueue
+     */
+    public TaskQueue getReplicatedQueue(String queue_name)
+    {
+        return this.m_queues.computeIfAbsent(queue_name, TaskQueue::new);
+    }
+    
+    
+    /**
+     * Replace a queue with the copy the leader sent us. Only to be used by the LeaderConnection.
+     * @param queue - the queue, loaded from a snapshot.
+     */
+    public void putReplicatedQueue(TaskQueue queue)
+    {
+        this.m_queues.put(queue.getName(), queue);
+    }
+    
+    
+    /**
+     * Forget the queues we have from the leader, as it is about to send them again. Only to be 
+     * used by the LeaderConnection.
+     */
+    public void clearReplicatedQueues()
+    {
+        this.m_queues.clear();
+    }
+    
+    
+    /**
+     * Rebuild a queue from its latest snapshot (if it has one) and the journals that carry on from
+     * it, and carry on appending to the latest journal. Any tasks that were being processed are 
+     * put back.
+     * @param journalDir - the directory the files are in.
+     * @param queue_name - the name of the queue.
+     * @param journalFiles - the queue's journals, in generation order.
+     * @return TaskQueue
+     * @throws Exception if a snapshot or journal can not be read or does not make sense.
+     */
+    private TaskQueue restoreQueue(File journalDir, String queue_name, TreeMap<Long, File> journalFiles) throws Exception
+    {
+        long startTime = System.currentTimeMillis();
         TaskQueue queue;
+        long generation = 0;
+        File snapshotFile = Snapshot.getFile(journalDir, queue_name);
         
-        if (!this.m_queues.containsKey(queue_name))
+        if (snapshotFile.exists())
+        {
+            Snapshot snapshot = Snapshot.load(snapshotFile);
+            queue = snapshot.getQueue();
+            generation = snapshot.getGeneration();
+        }
+        else
         {
             queue = new TaskQueue(queue_name);
-            this.m_queues.put(queue_name, queue);
+        }
+        
+        int numRecords = 0;
+        
+        for (Long journalGeneration : journalFiles.keySet())
+        {
+            if (journalGeneration >= generation)
+            {
+                numRecords += Journal.replay(queue, journalFiles.get(journalGeneration));
+            }
+            else
+            {
+                // Left behind by a crash just after the snapshot that replaced it was written.
+                journalFiles.get(journalGeneration).delete();
+            }
+        }
+        
+        Journal journal;
+        JournalWriter writer = JournalWriter.getInstance();
+        
+        if (!journalFiles.isEmpty() && journalFiles.lastKey() >= generation)
+        {
+            journal = Journal.open(journalFiles.lastEntry().getValue(), queue_name, journalFiles.lastKey(), writer);
         }
         else
         {
-            queue = this.m_queues.get(queue_name);
+            journal = Journal.create(journalDir, queue_name, generation, writer);
         }
         
+        queue.setJournal(journal);
+        queue.requeueProcessingTasks();
+        
+        System.out.println(
+            "Restored queue [" + queue_name + "] from " 
+            + (snapshotFile.exists() ? "its snapshot and " : "") 
+            + numRecords + " journal records in " + (System.currentTimeMillis() - startTime) + " ms."
+        );
+        
         return queue;
     }
     
     
+    /**
+     * Take a snapshot of every queue that has changed since its last one, which lets us delete 
+     * the journals up to that point. This is run every Settings.SNAPSHOT_INTERVAL by the snapshot
+     * thread, and never by a request.
+     */
+    public synchronized void snapshotQueues()
+    {
+        File journalDir = new File(Settings.JOURNAL_DIR());
+        
+        for (TaskQueue queue : this.m_queues.values())
+        {
+            Journal journal = queue.getJournal();
+            
+            if (journal != null && journal.getNumRecords() > 0)
+            {
+                try
+                {
+                    long lockedTime = Snapshot.save(queue, journalDir);
+                    Debug.println("Took a snapshot of queue [" + queue.getName() + "], which was locked for " + lockedTime + " ms.");
+                }
+                catch (IOException e)
+                {
+                    // The journals are kept, so nothing is lost. We will try again next time.
+                    System.out.println("Failed to take a snapshot of queue [" + queue.getName() + "] " + e.toString());
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Stop the scheduler gracefully. We stop accepting connections and handing out tasks, give the 
+     * tasks that are being processed until the drain time is up to be completed, and then take a
+     * final snapshot of every queue that has changed (if journaling is switched on), so that 
+     * restarting only has to load the snapshots. Tasks that are still being processed by then are
+     * kept in the snapshot with their locks, and are put back when we restart. 
+     * This does not exit, so that it can also be run by the shutdown hook, and does nothing if we 
+     * have already shut down.
+     * @param drainTime - the most time in milliseconds to wait for the tasks being processed.
+     */
+    public synchronized void shutdown(long drainTime)
+    {
+        if (m_isShuttingDown)
+        {
+            return;
+        }
+        
+        m_isShuttingDown = true;
+        System.out.println("Shutting down.");
+        SocketListener.stopListening();
+        
+        for (TaskQueue queue : this.m_queues.values())
+        {
+            queue.stopHandingOut();
+        }
+        
+        // A follower's processing tasks are the leader's leases, which it can never complete.
+        long deadline = System.currentTimeMillis() + drainTime;
+        int numProcessing = (m_leader == null) ? getNumProcessingTasks() : 0;
+        
+        while (numProcessing > 0 && System.currentTimeMillis() < deadline)
+        {
+            try
+            {
+                Thread.sleep(Math.min(100, deadline - System.currentTimeMillis()));
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            
+            numProcessing = getNumProcessingTasks();
+        }
+        
+        if (numProcessing > 0)
+        {
+            System.out.println("Shutting down with " + numProcessing + " tasks still being processed.");
+        }
+        
+        if (Settings.JOURNAL_DIR() != null)
+        {
+            snapshotQueues();
+        }
+        
+        Core.releaseLock();
+        System.out.println("Shut down.");
+    }
+    
+    
+    /**
+     * Count the tasks that are being processed, across all of the queues.
+     * @return the number of tasks.
+     */
+    private int getNumProcessingTasks()
+    {
+        int numProcessing = 0;
+        
+        for (TaskQueue queue : this.m_queues.values())
+        {
+            numProcessing += queue.getNumProcessingTasks();
+        }
+        
+        return numProcessing;
+    }
+    
+    
+    /**
+     * Fetch the leader that we are following.
+     * @return the connection to the leader, or null if we are the leader.
+     */
+    public LeaderConnection getLeader()
+    {
+        return m_leader;
+    }
+    
+    
     /**
      * Drop a queue and any tasks it contains.
      * @param queue_name - the name of the queue that we wish to drop.
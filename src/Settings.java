@@ -23,7 +23,7 @@ public class Settings
     
     
     // specify whether you want to spawn one thread per connection (apache style) or want to use
-    // a thread pool which removes the overhead of constantly spawning threads (nginx).
+    // a small pool of non-blocking event loop threads to handle all the connections (nginx).
     public static Boolean USE_THREAD_POOL()
     {
         Boolean useThreadPool = false;
@@ -37,8 +37,41 @@ public class Settings
     }
     
     
+    // specify whether the one thread per connection mode should use virtual threads (Java 21+)
+    // rather than OS threads, so that thousands of connections do not need thousands of OS threads
+    // and their stacks. This does nothing if USE_THREAD_POOL is true.
+    public static Boolean USE_VIRTUAL_THREADS()
+    {
+        Boolean useVirtualThreads = false;
+        
+        if (System.getenv("USE_VIRTUAL_THREADS") != null) 
+        {
+            useVirtualThreads = Boolean.parseBoolean(System.getenv("USE_VIRTUAL_THREADS"));
+        }
+        
+        return useVirtualThreads;
+    }
+    
+    
+    // specify whether each event loop should listen on the port itself (using SO_REUSEPORT, Linux),
+    // rather than one listener thread accepting every connection and handing them out. This lets 
+    // the kernel spread connections across the loops and accept them in parallel, which helps when
+    // a whole fleet of workers reconnects at once. This does nothing if USE_THREAD_POOL is false.
+    public static Boolean USE_REUSEPORT()
+    {
+        Boolean useReusePort = false;
+        
+        if (System.getenv("USE_REUSEPORT") != null) 
+        {
+            useReusePort = Boolean.parseBoolean(System.getenv("USE_REUSEPORT"));
+        }
+        
+        return useReusePort;
+    }
+    
+    
     // If USE_THREAD_POOL is set to true, this specifies the size of the thread pool (how many 
-    // threads will be handling connections).    
+    // event loop threads will be handling connections).    
     public static int THREAD_POOL_SIZE()
     {
         int threadPoolSize = Core.GetNumCores();;
@@ -53,12 +86,18 @@ public class Settings
     
     
     // Specify the time in seconds that a task is allowed to be locked for before being considered
-    // as having timed out and will be given to something else to take care of.
-    public static long MAX_LOCK_TIME()
+    // as having timed out and will be given to something else to take care of. This is only the
+    // default, as a lock time can be specified for each task when it is added.
+    // MAX_LOCK_TIME is still accepted for backwards compatibility.
+    public static long DEFAULT_MAX_LOCK_TIME()
     {
         long maxLockTime = 0;
         
-        if (System.getenv("MAX_LOCK_TIME") != null) 
+        if (System.getenv("DEFAULT_MAX_LOCK_TIME") != null) 
+        {
+            maxLockTime = Long.parseLong(System.getenv("DEFAULT_MAX_LOCK_TIME"));
+        }
+        else if (System.getenv("MAX_LOCK_TIME") != null) 
         {
             maxLockTime = Long.parseLong(System.getenv("MAX_LOCK_TIME"));
         }
@@ -80,6 +119,127 @@ public class Settings
     }
     
     
+    // Specify the time in seconds that a client can go without sending us anything before its
+    // connection is treated as dropped and closed, which puts back any tasks it was handed. This 
+    // catches workers that hang or whose machine disappears without closing the connection. 
+    // Workers that spend longer than this on a task should send a ping every so often. A get_task
+    // that is waiting for a task (wait_ms) does not count as idle. 0 (the default) never closes 
+    // idle connections.
+    public static long CLIENT_TIMEOUT()
+    {
+        long clientTimeout = 0;
+        
+        if (System.getenv("CLIENT_TIMEOUT") != null)
+        {
+            clientTimeout = Long.parseLong(System.getenv("CLIENT_TIMEOUT"));
+        }
+        
+        return clientTimeout;
+    }
+    
+    
+    // The maximum number of connections that can be waiting to be accepted (per listening socket).
+    // The operating system may cap this (e.g. net.core.somaxconn on Linux).
+    public static int SOCKET_BACKLOG()
+    {
+        int socketBacklog = 1024;
+        
+        if (System.getenv("SOCKET_BACKLOG") != null)
+        {
+            socketBacklog = Integer.parseInt(System.getenv("SOCKET_BACKLOG"));
+        }
+        
+        return socketBacklog;
+    }
+    
+    
+    // Optional - the directory to keep a journal of every change to each queue in, so that the
+    // tasks survive the scheduler being restarted or crashing. Responses to requests that change a
+    // queue are only sent once the change is safely on disk. If not set, nothing is kept and all
+    // the tasks are lost when the scheduler stops.
+    public static String JOURNAL_DIR()
+    {
+        return System.getenv("JOURNAL_DIR");
+    }
+    
+    
+    // The time in microseconds that the journal waits after the first change it is given before
+    // writing it to disk, so that the changes of other requests that arrive in the meantime share
+    // the same (slow) fsync. Higher values give more throughput when there are lots of clients, at
+    // the cost of each request taking longer. 0 (the default) writes as soon as it can, which
+    // still shares an fsync between the requests that arrive whilst the last one is going on.
+    public static long JOURNAL_COMMIT_WINDOW()
+    {
+        long commitWindow = 0;
+        
+        if (System.getenv("JOURNAL_COMMIT_WINDOW") != null)
+        {
+            commitWindow = Long.parseLong(System.getenv("JOURNAL_COMMIT_WINDOW"));
+        }
+        
+        return commitWindow;
+    }
+    
+    
+    // The time in seconds between snapshots of each queue that has changed, which let the journals
+    // up to that point be deleted, so that they do not grow forever and restarting does not have
+    // to replay all of them. This does nothing if JOURNAL_DIR is not set. 0 never takes snapshots.
+    public static long SNAPSHOT_INTERVAL()
+    {
+        long snapshotInterval = 300;
+        
+        if (System.getenv("SNAPSHOT_INTERVAL") != null)
+        {
+            snapshotInterval = Long.parseLong(System.getenv("SNAPSHOT_INTERVAL"));
+        }
+        
+        return snapshotInterval;
+    }
+    
+    
+    // The time in seconds that the scheduler waits, when it is told to stop by the system (e.g.
+    // SIGTERM), for the tasks that are being processed to be completed before it exits. No more
+    // tasks are handed out in the meantime. Any that are still being processed are put back when
+    // the scheduler is restarted, if JOURNAL_DIR is set. 0 (the default) does not wait.
+    public static long SHUTDOWN_DRAIN_TIME()
+    {
+        long drainTime = 0;
+        
+        if (System.getenv("SHUTDOWN_DRAIN_TIME") != null)
+        {
+            drainTime = Long.parseLong(System.getenv("SHUTDOWN_DRAIN_TIME"));
+        }
+        
+        return drainTime;
+    }
+    
+    
+    // Optional - the port to stream the changes to every queue to followers on (see 
+    // LEADER_ADDRESS), so that they can take over with the same tasks if we go away. The changes 
+    // are the records of the journal, so this requires JOURNAL_DIR to be set. 0 (the default) 
+    // does not accept followers.
+    public static int REPLICATION_PORT()
+    {
+        int replicationPort = 0;
+        
+        if (System.getenv("REPLICATION_PORT") != null)
+        {
+            replicationPort = Integer.parseInt(System.getenv("REPLICATION_PORT"));
+        }
+        
+        return replicationPort;
+    }
+    
+    
+    // Optional - the address (host:port) of the REPLICATION_PORT of another scheduler to follow. A
+    // follower keeps a copy of the leader's queues, and only answers get_info requests until it
+    // is promoted (with a promote request) to take over from the leader. If not set, we lead.
+    public static String LEADER_ADDRESS()
+    {
+        return System.getenv("LEADER_ADDRESS");
+    }
+    
+    
     // Optional - set this in order to specifically set the IP that this computer listens on. If not set
     // then will default to the pubic IP of this machine.
     // If using docker this needs to be 172.17.0.2 instead of the public ip of instance due to the way
@@ -0,0 +1,563 @@
+/*
+ * A compact copy of the whole state of a queue in a file, so that restarting the scheduler does
+ * not have to replay every change that has ever been made to the queue (see Journal). It holds
+ * every task (including how many tasks each is still waiting on, the tasks waiting on it and the
+ * lock of the tasks being processed), the id the next task will be given, and the queue's
+ * scheduling policy. The ready tasks and the group index are rebuilt from the tasks, as are the
+ * blockage ratings, critical paths and inherited priorities. The tasks being processed are kept
+ * locked, as the journal that carries on from the snapshot may complete them.
+ *
+ * Taking a snapshot copies the queue into memory whilst holding the queue lock, so that it is
+ * consistent, and starts the next generation of the queue's journal at the same moment. Writing
+ * the copy to disk is done afterwards, on the snapshot thread rather than by a request. The copy
+ * is written to a temporary file which is then renamed over the last snapshot, so a crash can
+ * never leave a half written snapshot behind. Only then are the journals of earlier generations
+ * deleted.
+ *
+ * Snapshots are loaded through memory-mapped windows of the file rather than being read in, so
+ * loading a large queue is limited by how fast the tasks can be created. The same copy is also
+ * sent to followers to start them off (see FollowerConnection), which load it as it arrives.
+ *
+ * The file is: MAGIC, the generation of the journal that carries on from it, the queue name, the
+ * next task id, the policy flags and the number of tasks, then for each task:
+ *   id, creation time, name, extra info, priority, group, max lock time, remaining dependency
+ *   count, number of dependencies, dependency ids, number of dependents, dependent ids, whether
+ *   it is locked (byte) and if so its lock (two longs)
+ * and finally MAGIC again, to show that the whole file was written. Strings are written in the
+ * same way as in the journal.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+
+public class Snapshot
+{
+    public static final String FILE_EXTENSION = ".snapshot";
+
+    private static final int MAGIC = 0x4A535331; // "JSS1"
+
+    public static final byte FLAG_CRITICAL_PATH        = 1;
+    public static final byte FLAG_PRIORITY_INHERITANCE = 2;
+
+    // The size of the buffers the queue is copied into, and of the windows of the file that are
+    // mapped at a time when loading.
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+    // How much of a snapshot is read at a time when it is loaded from a stream.
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    private final TaskQueue m_queue;
+    private final long m_generation;
+
+
+    private Snapshot(TaskQueue queue, long generation)
+    {
+        m_queue = queue;
+        m_generation = generation;
+    }
+
+
+    /**
+     * Take a snapshot of a queue and write it to disk, then delete the journals that it replaces.
+     * The queue is only locked whilst it is copied.
+     * @param queue - the queue.
+     * @param directory - the directory to keep the snapshot in, which is also where the journals are.
+     * @return the time in milliseconds that the queue was locked for.
+     * @throws IOException if the snapshot can not be written.
+     */
+    public static long save(TaskQueue queue, File directory) throws IOException
+    {
+        Output output = new Output();
+
+        long copyStart = System.nanoTime();
+        Journal previousJournal = queue.copyToSnapshot(output);
+        long lockedTime = (System.nanoTime() - copyStart) / 1000000;
+
+        File file = getFile(directory, queue.getName());
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(
+            temporaryFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE))
+        {
+            for (ByteBuffer chunk : output.finish())
+            {
+                while (chunk.hasRemaining())
+                {
+                    channel.write(chunk);
+                }
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(directory);
+
+        if (previousJournal != null)
+        {
+            // The changes in the old journal are in the snapshot, but the responses to the last of
+            // them may still be waiting for the old journal to be written out.
+            JournalWriter writer = previousJournal.getWriter();
+            writer.awaitDurable(writer.getAppendedSequence());
+            previousJournal.close();
+            deleteJournalsBefore(directory, queue.getName(), output.m_generation);
+        }
+
+        return lockedTime;
+    }
+
+
+    /**
+     * Delete the journals of a queue that are older than a generation, as they are in a snapshot.
+     */
+    private static void deleteJournalsBefore(File directory, String queueName, long generation)
+    {
+        String prefix = encodeQueueName(queueName) + ".";
+
+        for (File file : directory.listFiles())
+        {
+            String fileName = file.getName();
+
+            if (fileName.startsWith(prefix) && fileName.endsWith(Journal.FILE_EXTENSION))
+            {
+                String journalGeneration = fileName.substring(prefix.length(), fileName.length() - Journal.FILE_EXTENSION.length());
+
+                if (journalGeneration.matches("[0-9]+") && Long.parseLong(journalGeneration) < generation)
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Make sure that the rename of the snapshot is on disk. Not every platform allows a directory
+     * to be opened, in which case we have to trust the file system.
+     */
+    private static void syncDirectory(File directory)
+    {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            Debug.println("Could not sync the snapshot directory: " + e.toString());
+        }
+    }
+
+
+    /**
+     * Load a queue from a snapshot file.
+     * @param file - the snapshot file.
+     * @return the snapshot, holding the queue.
+     * @throws Exception if the file is not a complete snapshot.
+     */
+    public static Snapshot load(File file) throws Exception
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return read(new Input(channel), "[" + file + "]");
+        }
+    }
+
+
+    /**
+     * Load a queue from a snapshot that is being streamed to us, e.g. by the leader we follow.
+     * @param stream - where the snapshot is read from, positioned at its start.
+     * @param size - the size of the snapshot in bytes. Nothing after it is read from the stream.
+     * @return the snapshot, holding the queue.
+     * @throws Exception if the stream does not hold a complete snapshot.
+     */
+    public static Snapshot load(ReadableByteChannel stream, long size) throws Exception
+    {
+        return read(new Input(stream, size), "The stream");
+    }
+
+
+    private static Snapshot read(Input input, String source) throws Exception
+    {
+        if (input.readInt() != MAGIC)
+        {
+            throw new Exception(source + " is not a snapshot.");
+        }
+
+        long generation = input.readLong();
+        TaskQueue queue = new TaskQueue(input.readString());
+        int taskCounter = input.readInt();
+        byte flags = input.readByte();
+        int numTasks = input.readInt();
+        Task[] tasks = new Task[numTasks];
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            int taskId = input.readInt();
+            long creationTime = input.readLong();
+            String name = input.readString();
+            String extraInfo = input.readString();
+            int priority = input.readInt();
+            String group = input.readString();
+            long maxLockTime = input.readLong();
+            int remainingDependencyCount = input.readInt();
+            int[] dependencies = input.readIntArray();
+
+            tasks[i] = new Task(taskId, name, dependencies, extraInfo, priority, group, maxLockTime, creationTime);
+            tasks[i].setRemainingDependencyCount(remainingDependencyCount);
+            int numDependents = input.readInt();
+
+            for (int j = 0; j < numDependents; j++)
+            {
+                tasks[i].addDependent(input.readInt());
+            }
+
+            if (input.readByte() != 0)
+            {
+                tasks[i].lock(input.readLong(), input.readLong());
+            }
+        }
+
+        if (input.readInt() != MAGIC)
+        {
+            throw new Exception(source + " is not a complete snapshot.");
+        }
+
+        queue.restoreFromSnapshot(
+            taskCounter,
+            tasks,
+            (flags & FLAG_CRITICAL_PATH) != 0,
+            (flags & FLAG_PRIORITY_INHERITANCE) != 0
+        );
+
+        return new Snapshot(queue, generation);
+    }
+
+
+    /**
+     * Fetch the file that the snapshot of a queue is kept in, e.g. "my_queue.snapshot".
+     */
+    public static File getFile(File directory, String queueName)
+    {
+        return new File(directory, encodeQueueName(queueName) + FILE_EXTENSION);
+    }
+
+
+    /**
+     * Turn a queue name into something that can be used in a file name, whatever it contains.
+     */
+    public static String encodeQueueName(String queueName)
+    {
+        return URLEncoder.encode(queueName, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Turn the queue name from a file name back into the name of the queue.
+     */
+    public static String decodeQueueName(String encodedName)
+    {
+        return URLDecoder.decode(encodedName, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Where a queue is copied to when taking a snapshot. The copy is held in a list of buffers
+     * rather than one big array, as a large queue would not fit in one.
+     */
+    public static class Output
+    {
+        private final ArrayList<ByteBuffer> m_chunks = new ArrayList<>();
+        private ByteBuffer m_chunk = null;
+        private long m_generation = 0;
+
+
+        /**
+         * Write the fields that come before the tasks. Only to be called by the queue.
+         * @param generation - the generation of the journal that carries on from the snapshot.
+         */
+        public void writeQueue(long generation, String queueName, int taskCounter, byte flags, int numTasks)
+        {
+            m_generation = generation;
+            writeInt(MAGIC);
+            writeLong(generation);
+            writeString(queueName);
+            writeInt(taskCounter);
+            ensureCapacity(1);
+            m_chunk.put(flags);
+            writeInt(numTasks);
+        }
+
+
+        /**
+         * Write a task. Only to be called by the queue.
+         * @param task - the task.
+         * @param dependents - the ids of the tasks in the queue that are waiting on it.
+         * @param numDependents - the number of those ids that are in use.
+         * @param isLocked - whether the task is being processed.
+         */
+        public void writeTask(Task task, int[] dependents, int numDependents, boolean isLocked)
+        {
+            writeInt(task.getId());
+            writeLong(task.getCreationTime());
+            writeString(task.getName());
+            writeString(task.getExtraInfo());
+            writeInt(task.getPriority());
+            writeString(task.getGroup());
+            writeLong(task.getMaxLockTime());
+            writeInt(task.getRemainingDependencyCount());
+            writeInts(task.getDependencies(), task.getDependencies().length);
+            writeInts(dependents, numDependents);
+            ensureCapacity(1);
+            m_chunk.put((byte)(isLocked ? 1 : 0));
+
+            if (isLocked)
+            {
+                writeLong(task.getLockHigh());
+                writeLong(task.getLockLow());
+            }
+        }
+
+
+        /**
+         * Finish the copy once the whole queue has been written to it.
+         * @return the buffers that make up the snapshot, ready to be written out in order.
+         */
+        public ArrayList<ByteBuffer> finish()
+        {
+            writeInt(MAGIC);
+
+            for (ByteBuffer chunk : m_chunks)
+            {
+                chunk.flip();
+            }
+
+            return m_chunks;
+        }
+
+
+        private void writeInts(int[] values, int numValues)
+        {
+            writeInt(numValues);
+
+            for (int i = 0; i < numValues; i++)
+            {
+                writeInt(values[i]);
+            }
+        }
+
+
+        private void writeInt(int value)
+        {
+            ensureCapacity(4);
+            m_chunk.putInt(value);
+        }
+
+
+        private void writeLong(long value)
+        {
+            ensureCapacity(8);
+            m_chunk.putLong(value);
+        }
+
+
+        private void writeString(String value)
+        {
+            if (value == null)
+            {
+                writeInt(-1);
+            }
+            else
+            {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                ensureCapacity(bytes.length);
+                m_chunk.put(bytes);
+            }
+        }
+
+
+        private void ensureCapacity(int numBytes)
+        {
+            if (m_chunk == null || m_chunk.remaining() < numBytes)
+            {
+                m_chunk = ByteBuffer.allocate(Math.max(CHUNK_SIZE, numBytes));
+                m_chunks.add(m_chunk);
+            }
+        }
+    }
+
+
+    /**
+     * Reads a snapshot through a window of it. For a file, the window is mapped into memory and
+     * moved along as we go, as a mapping can be no larger than 2GB. For a stream, it is a buffer
+     * that is refilled from the stream as we go.
+     */
+    private static class Input
+    {
+        private final FileChannel m_file;
+        private final ReadableByteChannel m_stream;
+        private final long m_size;
+        private ByteBuffer m_window;
+        private long m_windowStart = 0;
+
+        // How much of the snapshot has been read from the stream into the window.
+        private long m_numStreamed = 0;
+
+
+        private Input(FileChannel file) throws IOException
+        {
+            m_file = file;
+            m_stream = null;
+            m_size = file.size();
+            m_window = file.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW_SIZE, m_size));
+        }
+
+
+        private Input(ReadableByteChannel stream, long size)
+        {
+            m_file = null;
+            m_stream = stream;
+            m_size = size;
+            m_window = ByteBuffer.allocate(0);
+        }
+
+
+        /**
+         * Make sure that the next numBytes of the snapshot are in the window.
+         */
+        private void ensureAvailable(int numBytes) throws IOException
+        {
+            if (m_window.remaining() < numBytes)
+            {
+                long position = m_windowStart + m_window.position();
+
+                if (position + numBytes > m_size)
+                {
+                    throw new IOException("Snapshot ends part way through.");
+                }
+
+                if (m_file != null)
+                {
+                    long windowSize = Math.min(Math.max(WINDOW_SIZE, numBytes), m_size - position);
+                    m_window = m_file.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                }
+                else
+                {
+                    fillWindow(numBytes);
+                }
+
+                m_windowStart = position;
+            }
+        }
+
+
+        /**
+         * Read more of the snapshot from the stream, keeping what is left of the window.
+         */
+        private void fillWindow(int numBytes) throws IOException
+        {
+            ByteBuffer window = m_window;
+
+            if (window.capacity() < numBytes)
+            {
+                window = ByteBuffer.allocate(Math.max(STREAM_BUFFER_SIZE, numBytes));
+                window.put(m_window);
+            }
+            else
+            {
+                window.compact();
+            }
+
+            // Never read past the end of the snapshot, as whatever follows it is not ours.
+            long numLeft = m_size - m_numStreamed;
+            window.limit((int)Math.min(window.capacity(), window.position() + numLeft));
+
+            while (window.position() < numBytes)
+            {
+                int numRead = m_stream.read(window);
+
+                if (numRead < 0)
+                {
+                    throw new IOException("Snapshot ends part way through.");
+                }
+
+                m_numStreamed += numRead;
+            }
+
+            window.flip();
+            m_window = window;
+        }
+
+
+        private byte readByte() throws IOException
+        {
+            ensureAvailable(1);
+            return m_window.get();
+        }
+
+
+        private int readInt() throws IOException
+        {
+            ensureAvailable(4);
+            return m_window.getInt();
+        }
+
+
+        private long readLong() throws IOException
+        {
+            ensureAvailable(8);
+            return m_window.getLong();
+        }
+
+
+        private int[] readIntArray() throws IOException
+        {
+            int[] values = new int[readInt()];
+            ensureAvailable(values.length * 4);
+
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = m_window.getInt();
+            }
+
+            return values;
+        }
+
+
+        private String readString() throws IOException
+        {
+            String value = null;
+            int length = readInt();
+
+            if (length >= 0)
+            {
+                ensureAvailable(length);
+                byte[] bytes = new byte[length];
+                m_window.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            return value;
+        }
+    }
+
+
+    // Accessors
+    public TaskQueue getQueue()  { return m_queue; }
+    public long getGeneration()  { return m_generation; }
+}
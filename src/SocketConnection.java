@@ -1,24 +1,67 @@
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /*
- * Class to represent a single client's connection. The connection should persist whilst the 
- * client is working on any tasks. If the connection becomes lost, then we unlock any tasks
- * that were given to the client and were not marked as completed.
+ * Class to represent a single client's connection when using one thread per connection. The 
+ * connection should persist whilst the client is working on any tasks. If the connection becomes 
+ * lost, then we unlock any tasks that were given to the client and were not marked as completed.
+ *
+ * The first byte the client sends decides whether it is speaking line delimited JSON or the binary
+ * protocol (see BinaryProtocolHandler). Either way, we do our own buffering of what the client 
+ * sends, and messages are read into a reusable array rather than being turned into Strings.
  */
 
-public class SocketConnection 
+public class SocketConnection implements ClientConnection
 {
     private boolean m_isClosed;
     private Socket m_socket;
     
+    // The thread that reads from this connection, and whether it had already received more 
+    // messages from the client when it read the one it is working on.
+    private Thread m_readingThread = null;
+    private boolean m_isMessageWaiting = false;
+    
+    // Whether any responses have been held back in the buffer rather than flushed.
+    private boolean m_hasUnflushedMessages = false;
+    
+    // Whether the client asked for the binary protocol.
+    private boolean m_isBinary = false;
+    
+    // What we have read from the socket but not yet handled is m_readBuffer from m_readPosition up
+    // to m_readLimit.
+    private final byte[] m_readBuffer = new byte[8192];
+    private int m_readPosition = 0;
+    private int m_readLimit = 0;
+    
+    // The message (line or frame) that we are reading or have just read.
+    private byte[] m_message = new byte[256];
+    
+    // Whether writing to the client has failed, e.g. because it has gone away.
+    private boolean m_hasWriteFailed = false;
+    
+    // The get_task request that is waiting for a task, and the signal that it has been handed one.
+    // Waiting on the semaphore parks a virtual thread without holding on to its carrier thread.
+    private TaskWaiter m_waiter = null;
+    private final Semaphore m_handOffSignal = new Semaphore(0);
+    
+    // The tasks of each queue that have been handed to this connection (including the queues it 
+    // has subscribed to), and the subscriptions that have had tasks pushed to them. The pushes are
+    // sent by a thread of their own, as this one spends its time waiting on the client.
+    private final List<LeaseSet> m_leaseSets = new CopyOnWriteArrayList<>();
+    private final LinkedBlockingQueue<Subscription> m_pushingSubscriptions = new LinkedBlockingQueue<>();
+    private boolean m_hasPushThread = false;
+    
     InputStream in;
-    BufferedReader br;
-    PrintWriter out;
+    BufferedOutputStream out;
     
     
     public SocketConnection(Socket socket)
@@ -28,84 +71,444 @@ public class SocketConnection
         
         try
         {
-            in  = m_socket.getInputStream();
-            br  = new BufferedReader(new InputStreamReader(in));
-            out = new PrintWriter(m_socket.getOutputStream());
+            // Pushed tasks are written without the client having asked for anything, so they 
+            // must not be held back by Nagle's algorithm waiting for an ACK.
+            m_socket.setTcpNoDelay(true);
             
-            while (!br.ready())
+            // Find out about clients that have gone away without closing the connection, so that
+            // the tasks they were handed can be put back.
+            m_socket.setKeepAlive(true);
+            m_socket.setSoTimeout((int)(Settings.CLIENT_TIMEOUT() * 1000));
+            in  = m_socket.getInputStream();
+            out = new BufferedOutputStream(m_socket.getOutputStream());
+        }
+        catch (Exception e)
+        {
+            System.out.println("ERROR! HandlerLogic experienced IOException when handling socket");
+        }
+    }
+    
+    
+    /**
+     * Send a message on the socket connection. If this is the response to a request and the 
+     * client has already sent us more requests (pipelining), then the response is left in the 
+     * buffer so that the responses go out together, rather than flushing after every line. It is
+     * flushed before we next wait on the client.
+     */
+    @Override
+    public synchronized void sendMessage(byte[] message, int length)
+    {
+        try
+        {
+            // Responses must end in an endline, as php clients read them line by line.
+            out.write(message, 0, length);
+            out.write('\n');
+            flushUnlessPipelining();
+        }
+        catch (Exception e)
+        {
+            Debug.println("Send message failed: " + e.toString());
+            writeFailed();
+        }
+    }
+    
+    
+    /**
+     * Wait for the first byte from the client to find out which protocol it is using. This must be
+     * called by the reading thread before anything is read. The byte is only consumed if it is the
+     * one that asks for the binary protocol.
+     * @return flag indicating whether the client is still connected.
+     */
+    public boolean negotiateProtocol()
+    {
+        boolean isConnected = false;
+        
+        try
+        {
+            if (fillReadBuffer())
             {
-                try
+                isConnected = true;
+                m_isBinary = (m_readBuffer[m_readPosition] == BinaryProtocolHandler.MAGIC_BYTE);
+                
+                if (m_isBinary)
                 {
-                    Thread.sleep(100);
-                } 
-                catch (InterruptedException ex) 
-                {
-                    // do nothing
+                    m_readPosition++;
                 }
             }
         }
         catch (Exception e)
         {
-            System.out.println("ERROR! HandlerLogic experienced IOException when handling socket");
+            Debug.println("Read message failed: " + e.toString());
         }
+        
+        return isConnected;
     }
     
     
     /**
-     * Send a message on the socket connection.
-     * @param responseString 
+     * Send a frame of the binary protocol on the socket connection. This is held back in the 
+     * buffer in the same way as sendMessage does.
      */
-    public void sendMessage(String responseString)
+    @Override
+    public synchronized void sendFrame(byte[] payload, int length)
     {
-        // We must use println instead of print becuase php (Normal mode not binary) 
-        // requires responses to end in an endline to mark the end.
-        out.println(responseString);
-        out.flush();
+        try
+        {
+            out.write(BinaryProtocolHandler.encodeFrame(payload, length));
+            flushUnlessPipelining();
+        }
+        catch (Exception e)
+        {
+            Debug.println("Send message failed: " + e.toString());
+            writeFailed();
+        }
     }
     
     
     /**
-     * Read a message from the client
-     * @return String - the message the client sent.
+     * Read a frame of the binary protocol from the client. This blocks until the whole frame has
+     * been received.
+     * @return the payload of the frame, or null if the client has disconnected or sent a frame we
+     *         cannot read. This is only valid until the next call.
      */
-    public String readMessage()
+    public ByteBuffer readFrame()
     {
-        String message = "";
+        ByteBuffer frame = null;
+        m_readingThread = Thread.currentThread();
         
         try
         {
-            message = br.readLine();
+            // Make sure the client has every response before we wait on it.
+            if (m_hasUnflushedMessages && !isInputWaiting())
+            {
+                flush();
+            }
+            
+            int frameLength = 0;
+            int shift = 0;
+            int nextByte;
+            
+            do
+            {
+                nextByte = fillReadBuffer() ? (m_readBuffer[m_readPosition++] & 0xFF) : -1;
+                
+                if (nextByte == -1 || shift > 28)
+                {
+                    return null;
+                }
+                
+                frameLength |= (nextByte & 0x7F) << shift;
+                shift += 7;
+            } while ((nextByte & 0x80) != 0);
+            
+            if (frameLength < 0 || frameLength > BinaryProtocolHandler.MAX_FRAME_LENGTH)
+            {
+                Debug.println("Client sent a malformed frame length.");
+                return null;
+            }
+            
+            for (int numBytesRead = 0; numBytesRead < frameLength; )
+            {
+                if (!fillReadBuffer())
+                {
+                    return null;
+                }
+                
+                int numBytes = Math.min(frameLength - numBytesRead, m_readLimit - m_readPosition);
+                appendToMessage(numBytesRead, numBytes);
+                numBytesRead += numBytes;
+            }
+            
+            frame = ByteBuffer.wrap(m_message, 0, frameLength);
+            m_isMessageWaiting = isInputWaiting();
         }
         catch(Exception e)
         {
-            System.out.println("Read message failed");
+            Debug.println("Read message failed: " + e.toString());
         }
         
-        return message;
+        return frame;
     }
     
     
     /**
-     * Tells us whether there is a message waiting to be read from the buffered reader.
-     * @return 
+     * Read a message from the client. This blocks until a whole line has been received, so the 
+     * thread sleeps rather than spinning whilst the client is idle.
+     * @return the message the client sent, without the line ending, or null if the client has 
+     *         disconnected. This is only valid until the next call.
      */
-    public boolean isMessageWaiting()
+    public ByteBuffer readMessage()
     {
-        boolean isMessageWaiting = true;
+        ByteBuffer message = null;
+        m_readingThread = Thread.currentThread();
         
         try
         {
-            if (in.available() == 0)
+            // Make sure the client has every response before we wait on it.
+            if (m_hasUnflushedMessages && !isInputWaiting())
             {
-                isMessageWaiting = false;
+                flush();
+            }
+            
+            int messageLength = 0;
+            boolean isComplete = false;
+            
+            while (!isComplete && fillReadBuffer())
+            {
+                int lineEnd = m_readPosition;
+                
+                while (lineEnd < m_readLimit && m_readBuffer[lineEnd] != '\n')
+                {
+                    lineEnd++;
+                }
+                
+                int numBytes = lineEnd - m_readPosition;
+                appendToMessage(messageLength, numBytes);
+                messageLength += numBytes;
+                isComplete = (lineEnd < m_readLimit);
+                
+                if (isComplete)
+                {
+                    // Skip over the line ending.
+                    m_readPosition++;
+                }
+            }
+            
+            if (isComplete)
+            {
+                // Allow for clients that send windows line endings.
+                if (messageLength > 0 && m_message[messageLength - 1] == '\r')
+                {
+                    messageLength--;
+                }
+                
+                message = ByteBuffer.wrap(m_message, 0, messageLength);
+                m_isMessageWaiting = isInputWaiting();
             }
         }
         catch(Exception e)
         {
-            System.out.println("isMessageWaiting failed");
+            Debug.println("Read message failed: " + e.toString());
+        }
+        
+        return message;
+    }
+    
+    
+    /**
+     * Park a get_task request that is waiting for a task. This is only called by the reading 
+     * thread, which then answers it in answerWaitingRequest.
+     */
+    @Override
+    public void waitForTask(TaskWaiter waiter)
+    {
+        m_waiter = waiter;
+    }
+    
+    
+    @Override
+    public void taskHandedOff(TaskWaiter waiter)
+    {
+        m_handOffSignal.release();
+    }
+    
+    
+    @Override
+    public void tasksPushed(Subscription subscription)
+    {
+        m_pushingSubscriptions.add(subscription);
+    }
+    
+    
+    /**
+     * Wait for a change to be durable before sending the response. This is only called by the 
+     * reading thread, so other clients are not held up.
+     */
+    @Override
+    public void holdUntilDurable(long sequence)
+    {
+        JournalWriter.getInstance().awaitDurable(sequence);
+    }
+    
+    
+    /**
+     * Keep hold of a set of leases, and start the thread that sends what is pushed to us if this 
+     * is our first subscription.
+     */
+    @Override
+    public synchronized void addLeaseSet(LeaseSet leaseSet)
+    {
+        m_leaseSets.add(leaseSet);
+        
+        if (leaseSet instanceof Subscription && !m_hasPushThread)
+        {
+            m_hasPushThread = true;
+            SocketListener.startConnectionThread(this::sendPushes);
+        }
+    }
+    
+    
+    /**
+     * Send the tasks that are pushed to our subscriptions, until the connection is closed.
+     */
+    private void sendPushes()
+    {
+        while (!isClosed())
+        {
+            try
+            {
+                Subscription subscription = m_pushingSubscriptions.poll(1, TimeUnit.SECONDS);
+                
+                if (subscription != null)
+                {
+                    subscription.sendPushes();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Debug.println("Push thread interrupted.");
+            }
+        }
+    }
+    
+    
+    /**
+     * If the request that has just been handled is waiting for a task, then block until it has 
+     * been handed one or its deadline has passed, and answer it. We do not read the client's next
+     * request in the meantime, as this thread is only serving this client anyway.
+     */
+    public void answerWaitingRequest()
+    {
+        TaskWaiter waiter = m_waiter;
+        
+        if (waiter != null)
+        {
+            m_waiter = null;
+            
+            // The client may be waiting on the responses to the requests it sent before this one.
+            if (m_hasUnflushedMessages)
+            {
+                flush();
+            }
+            
+            long waitTime = waiter.getDeadline() - Core.time(true);
+            
+            try
+            {
+                if (waitTime > 0)
+                {
+                    m_handOffSignal.tryAcquire(waitTime, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Debug.println("Interrupted whilst waiting for a task.");
+            }
+            
+            HandlerLogic.finishWaiting(waiter);
+            
+            // The task may have been handed over just after we stopped waiting, and that signal
+            // is not for the next waiter.
+            m_handOffSignal.drainPermits();
+        }
+    }
+    
+    
+    /**
+     * Make sure there is something in the read buffer, blocking until the client sends more if 
+     * it is empty.
+     * @return flag indicating whether there is, which is false if the client has disconnected.
+     */
+    private boolean fillReadBuffer() throws Exception
+    {
+        if (m_readPosition == m_readLimit)
+        {
+            int numBytesRead = in.read(m_readBuffer, 0, m_readBuffer.length);
+            m_readPosition = 0;
+            m_readLimit = Math.max(numBytesRead, 0);
         }
         
-        return isMessageWaiting;
+        return m_readPosition < m_readLimit;
+    }
+    
+    
+    /**
+     * Check whether the client has sent us anything that we have not handled yet.
+     */
+    private boolean isInputWaiting() throws Exception
+    {
+        return m_readPosition < m_readLimit || in.available() > 0;
+    }
+    
+    
+    /**
+     * Move bytes from the read buffer into the message.
+     * @param messageOffset - where in the message to put them.
+     * @param numBytes - the number of bytes to move.
+     */
+    private void appendToMessage(int messageOffset, int numBytes)
+    {
+        if (messageOffset + numBytes > m_message.length)
+        {
+            m_message = Arrays.copyOf(m_message, Math.max(m_message.length * 2, messageOffset + numBytes));
+        }
+        
+        System.arraycopy(m_readBuffer, m_readPosition, m_message, messageOffset, numBytes);
+        m_readPosition += numBytes;
+    }
+    
+    
+    /**
+     * Flush the response(s) we have just written, unless this is the response to a request and 
+     * the client has already sent us more requests. Must be called holding the lock.
+     */
+    private void flushUnlessPipelining() throws Exception
+    {
+        if (Thread.currentThread() != m_readingThread || !m_isMessageWaiting)
+        {
+            out.flush();
+            m_hasUnflushedMessages = false;
+        }
+        else
+        {
+            m_hasUnflushedMessages = true;
+        }
+    }
+    
+    
+    private synchronized void flush()
+    {
+        try
+        {
+            out.flush();
+        }
+        catch (Exception e)
+        {
+            Debug.println("Send message failed: " + e.toString());
+            writeFailed();
+        }
+        
+        m_hasUnflushedMessages = false;
+    }
+    
+    
+    /**
+     * Writing to the client has failed, so it has most likely gone away. Close the socket, so 
+     * that the reading thread finds out straight away rather than when it next reads, and the 
+     * connection is closed. Must be called holding the lock.
+     */
+    private void writeFailed()
+    {
+        m_hasWriteFailed = true;
+        
+        try
+        {
+            m_socket.close();
+        }
+        catch (Exception e)
+        {
+            Debug.println("Failed closing socket: " + e.toString());
+        }
     }
     
     
@@ -118,7 +521,7 @@ public class SocketConnection
     {
         boolean result = true;
         
-        if (out.checkError())
+        if (m_hasWriteFailed)
         {
             result = false;
         }
@@ -127,26 +530,47 @@ public class SocketConnection
     }
     
     
-    public synchronized void close()
+    @Override
+    public void close()
     {
-        System.out.println("Closing the socket");
+        boolean wasOpen;
         
-        try
+        synchronized (this)
         {
-            System.out.println("Closing socket");
-            out.close();
-            br.close();
-            m_socket.close();
+            System.out.println("Closing the socket");
+            
+            try
+            {
+                System.out.println("Closing socket");
+                out.close();
+                in.close();
+                m_socket.close();
+            }
+            catch (Exception e)
+            {
+                System.out.println("Failed closing streams/socket.");
+            }
+            
+            wasOpen = !m_isClosed;
+            m_isClosed = true;
         }
-        catch (Exception e)
+        
+        // Put back the tasks that were handed to us and not finished. This is done without 
+        // holding our lock, as it takes the queue locks.
+        if (wasOpen)
         {
-            System.out.println("Failed closing streams/socket.");
+            for (LeaseSet leaseSet : m_leaseSets)
+            {
+                leaseSet.getQueue().releaseLeases(leaseSet);
+            }
         }
-        
-        m_isClosed = true;
     }
     
     
     // Accessors
+    @Override
     public synchronized boolean isClosed() { return m_isClosed; }
+    public boolean isBinary()              { return m_isBinary; }
+    @Override
+    public List<LeaseSet> getLeaseSets()   { return m_leaseSets; }
 }
\ No newline at end of file
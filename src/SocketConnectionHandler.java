@@ -1,11 +1,13 @@
 /*
- * This is an object to act as a "one thread per connection" architecture. If we want to use thread
- * pools then please use the SocketThreadPoolHandler object instead.
+ * This is an object to act as a "one thread per connection" architecture. It is run on either a
+ * platform thread or a virtual thread, depending on the settings. If we want a small fixed number
+ * of threads to handle all the connections, then please use the SocketEventLoop instead.
  */
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
-public class SocketConnectionHandler extends Thread
+public class SocketConnectionHandler implements Runnable
 {
     private SocketConnection m_connection;
     
@@ -18,6 +20,15 @@ public class SocketConnectionHandler extends Thread
     @Override
     public void run()
     {
+        if (m_connection.negotiateProtocol() == false)
+        {
+            m_connection.close();
+        }
+        else if (m_connection.isBinary())
+        {
+            runBinaryProtocol();
+        }
+        
         while (m_connection.isClosed() == false)
         {
             try
@@ -31,4 +42,28 @@ public class SocketConnectionHandler extends Thread
             }
         }
     }
-}
\ No newline at end of file
+    
+    
+    /**
+     * Serve a client that asked for the binary protocol, until it goes away.
+     */
+    private void runBinaryProtocol()
+    {
+        BinaryProtocolHandler handler = new BinaryProtocolHandler(m_connection);
+        
+        while (m_connection.isClosed() == false)
+        {
+            // This will automatically wait/block when nothing is available.
+            ByteBuffer frame = m_connection.readFrame();
+            
+            if (frame == null)
+            {
+                m_connection.close();
+            }
+            else
+            {
+                handler.handleFrame(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * This is an "event loop" thread that handles socket connections. There will be a small fixed
+ * number of these which work in parallel to handle all client connections, with the connections
+ * spread evenly across them and each loop handling many connections.
+ *
+ * Each loop waits on a java.nio Selector, so it is only woken up when one of its clients has
+ * actually sent something (or a socket can take more of a response). Thousands of connections
+ * from idle workers therefore cost next to no CPU, unlike polling every connection in turn.
+ * Requests are handled on the loop's own thread, as the scheduling logic is all in-memory and
+ * never waits on anything other than the queue locks.
+ *
+ * Normally the SocketListener accepts connections and hands them out to the loops. With
+ * USE_REUSEPORT, each loop instead has its own listening socket bound to the same port, and
+ * accepts its own connections, leaving the kernel to spread new connections across the loops.
+ *
+ * The loop also answers its connections' get_task requests that are waiting for a task (wait_ms),
+ * either when another thread hands them a task, or when their deadline passes, which the loop 
+ * keeps track of by never selecting for longer than the time until the next deadline. Tasks that 
+ * are pushed to its connections' subscriptions are sent by the loop in the same way. If 
+ * CLIENT_TIMEOUT is set, the loop also wakes up every so often to close the connections that 
+ * have gone quiet for that long.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class SocketEventLoop extends Thread
+{
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    
+    private final Selector m_selector;
+    
+    // Our own listening socket, if we have one (see listen).
+    private ServerSocketChannel m_serverChannel = null;
+    
+    // Connections that have been accepted but not registered with the selector yet. The selector 
+    // may only be registered with from this thread without risk of blocking the listener.
+    private final ConcurrentLinkedQueue<SocketChannel> m_newChannels = new ConcurrentLinkedQueue<>();
+    
+    private final AtomicInteger m_connectionCount = new AtomicInteger(0);
+    
+    // Only this thread reads, so one buffer is shared by all of this loop's connections.
+    private final ByteBuffer m_readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    
+    // Waiting get_task requests that have been handed a task (by any thread), and need answering.
+    private final ConcurrentLinkedQueue<TaskWaiter> m_handedOffWaiters = new ConcurrentLinkedQueue<>();
+    
+    // The waiting get_task requests of this loop's connections, soonest deadline first. Only this
+    // thread touches it. Requests that were answered early are left in until they are next to
+    // expire, or until enough of them have built up that it is worth clearing them out.
+    private final PriorityQueue<TaskWaiter> m_waiters = 
+        new PriorityQueue<>(Comparator.comparingLong(TaskWaiter::getDeadline));
+    
+    private int m_numAnsweredWaiters = 0;
+    
+    // Subscriptions of this loop's connections that have had tasks pushed to them (by any thread).
+    private final ConcurrentLinkedQueue<Subscription> m_pushingSubscriptions = new ConcurrentLinkedQueue<>();
+    
+    // How long in milliseconds a connection may go without sending anything (0 for forever), and
+    // when we next check for connections that have.
+    private final long m_clientTimeout = Settings.CLIENT_TIMEOUT() * 1000;
+    private long m_nextIdleCheckTime = 0;
+    
+    
+    public SocketEventLoop() throws IOException
+    {
+        m_selector = Selector.open();
+    }
+    
+    
+    /**
+     * Give this loop a newly accepted connection to handle. This does not block, so the listener
+     * can go straight back to accepting connections.
+     * @param channel - the client's connection.
+     */
+    public void addChannel(SocketChannel channel)
+    {
+        m_connectionCount.incrementAndGet();
+        m_newChannels.add(channel);
+        m_selector.wakeup();
+    }
+    
+    
+    /**
+     * Have this loop accept connections from its own listening socket, rather than being given
+     * them by the listener. This must be called before the loop is started.
+     * @param serverChannel - the listening socket, which should only be used by this loop.
+     * @throws IOException if the socket could not be registered with this loop.
+     */
+    public void listen(ServerSocketChannel serverChannel) throws IOException
+    {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+        m_serverChannel = serverChannel;
+    }
+    
+    
+    /**
+     * Close our own listening socket, if we have one, so that no more connections are accepted. The
+     * connections we already have are left open.
+     */
+    public void stopListening()
+    {
+        if (m_serverChannel != null)
+        {
+            try
+            {
+                m_serverChannel.close();
+            }
+            catch (IOException e)
+            {
+                System.out.println("SocketEventLoop: failed to close listening socket " + e.toString());
+            }
+            
+            // The socket is only really closed once the selector has let go of it.
+            m_selector.wakeup();
+        }
+    }
+    
+    
+    /**
+     * Called by the connections of this loop when they are closed.
+     */
+    public void connectionClosed()
+    {
+        m_connectionCount.decrementAndGet();
+    }
+    
+    
+    /**
+     * Start the timer for a get_task request that is waiting for a task. This is only called by 
+     * this loop's thread, whilst it is handling the request.
+     * @param waiter - the waiting request.
+     */
+    public void addWaiter(TaskWaiter waiter)
+    {
+        m_waiters.add(waiter);
+    }
+    
+    
+    /**
+     * Have this loop answer a waiting get_task request that has been handed a task. This does not
+     * block, as it is called whilst holding the queue lock.
+     * @param waiter - the waiting request, which belongs to one of this loop's connections.
+     */
+    public void taskHandedOff(TaskWaiter waiter)
+    {
+        m_handedOffWaiters.add(waiter);
+        m_selector.wakeup();
+    }
+    
+    
+    /**
+     * Have this loop send the tasks that have been pushed to a subscription. This does not block,
+     * as it is called whilst holding the queue lock.
+     * @param subscription - the subscription, which belongs to one of this loop's connections.
+     */
+    public void tasksPushed(Subscription subscription)
+    {
+        m_pushingSubscriptions.add(subscription);
+        m_selector.wakeup();
+    }
+    
+    
+    /**
+     * Return the number of connections this loop is currently handling. Useful for the listener to
+     * decide which loop it should give new connections to for even distribution.
+     * @return the number of connections
+     */
+    public int getConnectionCount()
+    {
+        return m_connectionCount.get();
+    }
+    
+    
+    /**
+     * Wait for any of our connections to be ready, and read from / write to the ones that are.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                m_selector.select(soonest(answerExpiredWaiters(), closeIdleConnections()));
+                registerNewChannels();
+                answerHandedOffWaiters();
+                sendPushes();
+                Iterator<SelectionKey> keyIterator = m_selector.selectedKeys().iterator();
+                
+                while (keyIterator.hasNext())
+                {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("SocketEventLoop: " + e.toString());
+            }
+        }
+    }
+    
+    
+    /**
+     * Answer the waiting requests whose deadline has passed.
+     * @return the time in milliseconds until the next deadline, or 0 if there is nothing waiting.
+     */
+    private long answerExpiredWaiters()
+    {
+        long timeNow = Core.time(true);
+        
+        while (!m_waiters.isEmpty() && m_waiters.peek().getDeadline() <= timeNow)
+        {
+            TaskWaiter waiter = m_waiters.poll();
+            
+            if (!waiter.isFinished())
+            {
+                answerWaiter(waiter);
+            }
+        }
+        
+        return m_waiters.isEmpty() ? 0 : m_waiters.peek().getDeadline() - timeNow;
+    }
+    
+    
+    /**
+     * Close the connections that have not sent us anything for longer than the client timeout, as
+     * the client has most likely gone away without closing the connection. This puts back the 
+     * tasks they were handed. The connections are only checked every quarter of the timeout.
+     * @return the time in milliseconds until the next check, or 0 if there is no timeout.
+     */
+    private long closeIdleConnections()
+    {
+        if (m_clientTimeout == 0)
+        {
+            return 0;
+        }
+        
+        long timeNow = Core.time(true);
+        
+        if (timeNow >= m_nextIdleCheckTime)
+        {
+            for (SelectionKey key : m_selector.keys())
+            {
+                if (key.attachment() instanceof NioSocketConnection)
+                {
+                    NioSocketConnection connection = (NioSocketConnection)key.attachment();
+                    
+                    if (!connection.isClosed() && connection.isIdleSince(timeNow - m_clientTimeout))
+                    {
+                        Debug.println("Closing a connection that has been idle for too long.");
+                        connection.close();
+                    }
+                }
+            }
+            
+            m_nextIdleCheckTime = timeNow + Math.max(m_clientTimeout / 4, 1);
+        }
+        
+        return m_nextIdleCheckTime - timeNow;
+    }
+    
+    
+    /**
+     * Pick the sooner of two times to wait for, where 0 means there is nothing to wait for.
+     */
+    private static long soonest(long waitTime, long otherWaitTime)
+    {
+        if (waitTime == 0 || (otherWaitTime != 0 && otherWaitTime < waitTime))
+        {
+            waitTime = otherWaitTime;
+        }
+        
+        return waitTime;
+    }
+    
+    
+    private void answerHandedOffWaiters()
+    {
+        TaskWaiter waiter = m_handedOffWaiters.poll();
+        
+        while (waiter != null)
+        {
+            answerWaiter(waiter);
+            m_numAnsweredWaiters++;
+            waiter = m_handedOffWaiters.poll();
+        }
+        
+        if (m_numAnsweredWaiters > 64 && m_numAnsweredWaiters > m_waiters.size() / 2)
+        {
+            m_waiters.removeIf(TaskWaiter::isFinished);
+            m_numAnsweredWaiters = 0;
+        }
+    }
+    
+    
+    private void sendPushes()
+    {
+        Subscription subscription = m_pushingSubscriptions.poll();
+        
+        while (subscription != null)
+        {
+            NioSocketConnection connection = (NioSocketConnection)subscription.getConnection();
+            
+            try
+            {
+                connection.sendPushes(subscription);
+            }
+            catch (Exception e)
+            {
+                System.out.println("SocketEventLoop: " + e);
+                connection.close();
+            }
+            
+            subscription = m_pushingSubscriptions.poll();
+        }
+    }
+    
+    
+    private void answerWaiter(TaskWaiter waiter)
+    {
+        NioSocketConnection connection = (NioSocketConnection)waiter.getConnection();
+        
+        try
+        {
+            connection.answerWaitingRequest(waiter);
+        }
+        catch (Exception e)
+        {
+            System.out.println("SocketEventLoop: " + e);
+            connection.close();
+        }
+    }
+    
+    
+    private void handleKey(SelectionKey key)
+    {
+        if (!key.isValid())
+        {
+            // e.g. our listening socket was closed by another thread since it was selected.
+            return;
+        }
+        
+        if (key.isAcceptable())
+        {
+            acceptConnections((ServerSocketChannel)key.channel());
+            return;
+        }
+        
+        NioSocketConnection connection = (NioSocketConnection)key.attachment();
+        
+        try
+        {
+            if (key.isValid() && key.isWritable())
+            {
+                connection.writePendingMessages();
+            }
+            
+            if (key.isValid() && key.isReadable())
+            {
+                connection.readMessages(m_readBuffer);
+            }
+        }
+        catch (Exception e)
+        {
+            // Don't let one bad client take down every other connection on this loop.
+            System.out.println("SocketEventLoop: " + e);
+            connection.close();
+            m_readBuffer.clear();
+        }
+    }
+    
+    
+    /**
+     * Accept every connection that is waiting on our own listening socket.
+     */
+    private void acceptConnections(ServerSocketChannel serverChannel)
+    {
+        try
+        {
+            SocketChannel channel = serverChannel.accept();
+            
+            while (channel != null)
+            {
+                m_connectionCount.incrementAndGet();
+                registerChannel(channel);
+                channel = serverChannel.accept();
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("SocketEventLoop: failed to accept connection " + e.toString());
+        }
+    }
+    
+    
+    private void registerNewChannels()
+    {
+        SocketChannel channel = m_newChannels.poll();
+        
+        while (channel != null)
+        {
+            registerChannel(channel);
+            channel = m_newChannels.poll();
+        }
+    }
+    
+    
+    private void registerChannel(SocketChannel channel)
+    {
+        try
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            SelectionKey key = channel.register(m_selector, SelectionKey.OP_READ);
+            key.attach(new NioSocketConnection(channel, key, this));
+        }
+        catch (IOException e)
+        {
+            System.out.println("SocketEventLoop: failed to register connection " + e.toString());
+            m_connectionCount.decrementAndGet();
+            
+            try
+            {
+                channel.close();
+            }
+            catch (IOException closeException)
+            {
+                // nothing more we can do.
+            }
+        }
+    }
+}
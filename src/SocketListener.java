@@ -9,36 +9,65 @@
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class SocketListener extends Thread
 {
-    private ServerSocket m_socket;
+    // The socket that this thread accepts connections on, if the event loops do not have their own.
+    private static ServerSocketChannel s_socket;
     
-    // if we are using a thread pool, this is what will hold them.
-    private static ArrayList<Thread> s_threadHandlers;
+    // if we are using event loops (a "thread pool"), this is what will hold them.
+    private static ArrayList<SocketEventLoop> s_eventLoops;
+    
+    // if we are using one virtual thread per connection, this is what starts them.
+    private static ExecutorService s_virtualThreadExecutor = null;
     
     
     public SocketListener()
     {
+        boolean useReusePort = Settings.USE_THREAD_POOL() && Settings.USE_REUSEPORT();
+        
+        if (useReusePort && !isReusePortSupported())
+        {
+            System.out.println("SO_REUSEPORT is not supported here, so using a single listener.");
+            useReusePort = false;
+        }
+        
         try
         {
-            int max_waiting_connections = 100;
-            
-            if (Settings.ADDRESS() != null)
+            if (Settings.USE_THREAD_POOL())
             {
-                InetAddress bindAddr = InetAddress.getByName(Settings.ADDRESS());
-                m_socket = new ServerSocket(Settings.SOCKET_PORT(), max_waiting_connections, bindAddr);
+                s_eventLoops = new ArrayList<>();
+                
+                for (int s=0; s<Settings.THREAD_POOL_SIZE(); s++)
+                {
+                    SocketEventLoop eventLoop = new SocketEventLoop();
+                    
+                    if (useReusePort)
+                    {
+                        // Each loop gets its own listening socket on the same port and the kernel
+                        // spreads new connections across them.
+                        eventLoop.listen(openServerSocket(true));
+                    }
+                    
+                    s_eventLoops.add(eventLoop);
+                }
             }
-            else
+            
+            if (!useReusePort)
             {
-                m_socket = new ServerSocket(Settings.SOCKET_PORT(), max_waiting_connections);
+                // Accepting stays blocking, as this thread has nothing else to do.
+                s_socket = openServerSocket(false);
             }
         }
         catch (Exception e)
@@ -49,91 +78,197 @@ public class SocketListener extends Thread
         
         if (Settings.USE_THREAD_POOL())
         {
-            s_threadHandlers = new ArrayList<>();
-            
-            for (int s=0; s<Settings.THREAD_POOL_SIZE(); s++)
+            for (SocketEventLoop eventLoop : s_eventLoops)
             {
-                Thread pool_thread = new SocketThreadPoolHandler(this);
-                s_threadHandlers.add(pool_thread);
-                pool_thread.start();
+                eventLoop.start();
             }
         }
+        else if (Settings.USE_VIRTUAL_THREADS())
+        {
+            s_virtualThreadExecutor = createVirtualThreadExecutor();
+        }
     }
     
     
     @Override
     public void run()
     {
-        while (true)
+        // If every event loop has its own listening socket, then there is nothing for us to do.
+        while (s_socket != null && s_socket.isOpen())
         {
             try 
             {
                 Debug.println("Waiting for a connection on port " + Settings.SOCKET_PORT() + "...");
-                Socket clientSocket = m_socket.accept();
+                SocketChannel clientSocket = s_socket.accept();
                 Debug.println("Accepted a new connection.");
                 
                 if (Settings.USE_THREAD_POOL())
                 {
-                    pushSocketToThreadPoolHandler(clientSocket);
+                    pushSocketToEventLoop(clientSocket);
                 }
                 else
                 {
                     // No thread pool, so one thread per socket connection
-                    Thread threadHandler = new SocketConnectionHandler(clientSocket);
-                    threadHandler.start();
+                    SocketConnectionHandler handler = new SocketConnectionHandler(clientSocket.socket());
+                    startConnectionThread(handler);
                 }
             } 
             catch (IOException ex) 
             {
-                Logger.getLogger(SocketListener.class.getName()).log(Level.SEVERE, null, ex);
+                // Closing the socket (see stopListening) interrupts the accept.
+                if (s_socket.isOpen())
+                {
+                    Logger.getLogger(SocketListener.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
         }
     }
     
     
     /**
-     * Pushes the provided socket onto the handler in the thread pool handler that is handling the
-     * least number of sockets.
+     * Stop accepting new connections, e.g. because we are shutting down. The connections we already
+     * have are left open.
      */
-    private void pushSocketToThreadPoolHandler(Socket clientSocket)
+    public static void stopListening()
     {
-        int minimum = 999999999;
-        boolean assignedSocket = false;
-        SocketThreadPoolHandler minimumHandler = (SocketThreadPoolHandler)s_threadHandlers.get(0);
-        Iterator iterator = s_threadHandlers.iterator();
-        
-        while (iterator.hasNext())
+        if (s_eventLoops != null)
         {
-            SocketThreadPoolHandler handler = (SocketThreadPoolHandler)iterator.next();
-            
-            if (handler.getSocketCount() == 0)
+            for (SocketEventLoop eventLoop : s_eventLoops)
             {
-                // Quick escape since any thread that has 0 tasks can automatically be assigned
-                assignedSocket=true;
-                handler.addSocket(clientSocket);
-                break;
-            }
-            else
-            {
-                if (handler.getSocketCount() < minimum)
-                {
-                    minimum = handler.getSocketCount();
-                    minimumHandler = handler;
-                }
+                eventLoop.stopListening();
             }
         }
         
-        // Check that we haven't already assigned the socket to a thread that had no work.
-        if (!assignedSocket)
+        if (s_socket != null)
         {
             try
             {
-                minimumHandler.addSocket(clientSocket);
+                s_socket.close();
             }
-            catch(Exception e)
+            catch (IOException e)
             {
-                System.out.println("Somehow minimumHandler never got defined.");
+                System.out.println("Failed to close the server socket " + e.toString());
             }
         }
     }
+    
+    
+    /**
+     * Open a socket that listens for connections on the configured address and port.
+     * @param reusePort - whether to set SO_REUSEPORT, so that several sockets can listen on the
+     *                    same port at once.
+     * @return the listening socket.
+     * @throws IOException if the socket could not be bound.
+     */
+    private static ServerSocketChannel openServerSocket(boolean reusePort) throws IOException
+    {
+        InetSocketAddress bindAddr;
+        
+        if (Settings.ADDRESS() != null)
+        {
+            InetAddress address = InetAddress.getByName(Settings.ADDRESS());
+            bindAddr = new InetSocketAddress(address, Settings.SOCKET_PORT());
+        }
+        else
+        {
+            bindAddr = new InetSocketAddress(Settings.SOCKET_PORT());
+        }
+        
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        
+        if (reusePort)
+        {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        
+        serverSocket.bind(bindAddr, Settings.SOCKET_BACKLOG());
+        return serverSocket;
+    }
+    
+    
+    /**
+     * Check whether this platform lets several sockets listen on the same port (e.g. Linux).
+     * @return flag indicating whether SO_REUSEPORT can be used.
+     */
+    private static boolean isReusePortSupported()
+    {
+        boolean isSupported = false;
+        
+        try (ServerSocketChannel probe = ServerSocketChannel.open())
+        {
+            isSupported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        catch (IOException e)
+        {
+            // treat as unsupported
+        }
+        
+        return isSupported;
+    }
+    
+    
+    /**
+     * Run something for a connection on its own thread, when using one thread per connection. 
+     * This is a virtual thread if they are turned on.
+     * @param runnable - what to run on the new thread.
+     */
+    public static void startConnectionThread(Runnable runnable)
+    {
+        if (s_virtualThreadExecutor != null)
+        {
+            s_virtualThreadExecutor.execute(runnable);
+        }
+        else
+        {
+            Thread threadHandler = new Thread(runnable);
+            threadHandler.start();
+        }
+    }
+    
+    
+    /**
+     * Create an executor that runs each task on a new virtual thread. Virtual threads only exist
+     * from Java 21, so this is looked up at runtime in order for the scheduler to still build and 
+     * run on older versions.
+     * @return the executor, or null if virtual threads are not available.
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        ExecutorService executor = null;
+        
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService)factory.invoke(null);
+        }
+        catch (Exception e)
+        {
+            System.out.println(
+                "Virtual threads require Java 21 or later, so using one platform thread per " +
+                "connection instead."
+            );
+        }
+        
+        return executor;
+    }
+    
+    
+    /**
+     * Pushes the provided socket onto the event loop that is handling the least number of 
+     * connections.
+     */
+    private void pushSocketToEventLoop(SocketChannel clientSocket)
+    {
+        SocketEventLoop minimumEventLoop = s_eventLoops.get(0);
+        
+        for (SocketEventLoop eventLoop : s_eventLoops)
+        {
+            if (eventLoop.getConnectionCount() < minimumEventLoop.getConnectionCount())
+            {
+                minimumEventLoop = eventLoop;
+            }
+        }
+        
+        minimumEventLoop.addChannel(clientSocket);
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * A connection's subscription to a queue. Rather than the worker asking for each task with 
+ * get_task, the queue pushes tasks to the connection as soon as they become available, for as 
+ * long as the subscription has credit. Each task that is pushed uses up one credit, and the credit
+ * is given back once the task stops being processed (it was completed, rejected, removed or its 
+ * lease ran out). The number of credits is the most tasks the worker wants to have at once.
+ *
+ * The tasks that have been pushed belong to the connection (this is its LeaseSet for the queue), 
+ * so if the connection goes away, any of them that were not finished are put back for others to 
+ * work on.
+ *
+ * The credit and pushed tasks are only touched whilst holding the queue lock. The pushes are
+ * written out here (with the lock that was handed out at the time), and then sent by the 
+ * connection's own thread, so that the queue never waits on a socket.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class Subscription extends LeaseSet implements TaskConsumer
+{
+    private final String m_queueName;
+    
+    // The most tasks we may have at once, and how many more we can be pushed right now. The 
+    // credit can go negative if the worker lowers the number whilst it has tasks.
+    private int m_numCredits = 0;
+    private int m_availableCredit = 0;
+    
+    // Whether tasks should be pushed to us (false once the worker unsubscribes).
+    private boolean m_isActive = false;
+    
+    private final JsonResponseWriter m_pushWriter = new JsonResponseWriter();
+    
+    // Pushes that are waiting to be sent, and whether the connection has been told about them.
+    private final ConcurrentLinkedQueue<byte[]> m_pushes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_isSendScheduled = new AtomicBoolean(false);
+    
+    
+    public Subscription(TaskQueue queue, String queueName, ClientConnection connection)
+    {
+        super(queue, connection);
+        m_queueName = queueName;
+    }
+    
+    
+    /**
+     * Change the most tasks that we may have at once. Only to be called by the queue.
+     * @param numCredits - the number of tasks.
+     */
+    public void setNumCredits(int numCredits)
+    {
+        m_availableCredit += numCredits - m_numCredits;
+        m_numCredits = numCredits;
+    }
+    
+    
+    /**
+     * Push a task that has already been locked for us to the connection. This is called by the 
+     * queue whilst holding its lock.
+     * @param task - the task, which is now being processed.
+     * @return flag indicating whether we have credit for more tasks.
+     */
+    @Override
+    public boolean handOff(Task task)
+    {
+        m_availableCredit--;
+        add(task);
+        
+        m_pushWriter.reset();
+        m_pushWriter.beginObject();
+        m_pushWriter.name("push").value("task");
+        m_pushWriter.name("queue_name").value(m_queueName);
+        m_pushWriter.name("cargo").beginObject();
+        m_pushWriter.name("task");
+        task.writeJson(m_pushWriter);
+        m_pushWriter.endObject();
+        m_pushWriter.endObject();
+        m_pushes.add(Arrays.copyOf(m_pushWriter.getBytes(), m_pushWriter.getLength()));
+        
+        if (m_isSendScheduled.compareAndSet(false, true))
+        {
+            getConnection().tasksPushed(this);
+        }
+        
+        return hasCredit();
+    }
+    
+    
+    /**
+     * Give back the credit of a task that was pushed to us. Only to be called by the queue.
+     * @param task - the task, which is no longer being processed.
+     * @return this subscription if we should now be pushed more tasks, otherwise null.
+     */
+    @Override
+    public TaskConsumer remove(Task task)
+    {
+        super.remove(task);
+        m_availableCredit++;
+        return hasCredit() ? this : null;
+    }
+    
+    
+    /**
+     * Stop pushing tasks to us, as the connection has gone away. Only to be called by the queue.
+     */
+    @Override
+    public void close()
+    {
+        m_isActive = false;
+    }
+    
+    
+    /**
+     * Stop the connection from being told about pushes until it is next told by hand (with
+     * ClientConnection.tasksPushed), e.g. so that they do not overtake a response.
+     */
+    public void holdPushes()
+    {
+        m_isSendScheduled.set(true);
+    }
+    
+    
+    /**
+     * Send the tasks that have been pushed to us to the client. This is called by the 
+     * connection's own thread once it has been told about them (ClientConnection.tasksPushed).
+     */
+    public void sendPushes()
+    {
+        m_isSendScheduled.set(false);
+        byte[] push = m_pushes.poll();
+        
+        while (push != null)
+        {
+            getConnection().sendMessage(push, push.length);
+            push = m_pushes.poll();
+        }
+    }
+    
+    
+    // Accessors (only to be called whilst holding the queue lock)
+    public boolean hasCredit()            { return m_isActive && m_availableCredit > 0; }
+    public void setActive(boolean active) { m_isActive = active; }
+    
+    public String getQueueName()          { return m_queueName; }
+}
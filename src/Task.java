@@ -1,8 +1,7 @@
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 
 
@@ -10,18 +9,34 @@ public class Task implements Comparable<Task>
 {
     public static final int DEFAULT_PRIORITY = 5;
     
+    // The longest max lock time (ms) a task may ask for, a year. Anything longer might as well be 0
+    // (infinite), and capping it keeps lock time + max lock time well clear of overflowing.
+    public static final long LONGEST_MAX_LOCK_TIME = 365L * 24 * 60 * 60 * 1000;
+    
+    // A blockage rating of 1. This is the lowest common multiple of 1 to 24, so the contribution of
+    // a dependent waiting on up to 23 tasks is a whole number and equal ratings compare as equal.
+    // It still leaves room for over a billion dependents before a rating could overflow.
+    private static final long BLOCKAGE_SCALE = 5354228880L;
+    
     // UID of this task
     private final int m_taskId;
     
-    // Fast lookup list of task ids still remaining that this task is waiting to be completed.
-    // value is always 1
-    private HashMap<Integer, Integer> m_remainingDependencies = new HashMap<>();
+    private static final int[] NO_IDS = new int[0];
+    
+    // Ids of the tasks this task was waiting on when it was added. Ones that have since been 
+    // completed are no longer in the queue, so the queue skips over them.
+    private final int[] m_dependencies;
+    
+    // The number of tasks this task is still waiting on to be completed.
+    private int m_remainingDependencyCount;
+    
+    // Ids of the tasks that are waiting on this task. Only the first m_dependentCount are in use.
+    private int[] m_dependents = NO_IDS;
+    private int m_dependentCount = 0;
     
     // Namd of this task e.g. 'Smoothen Roads'
     private final String m_name;
     
-    private final String m_queueName;
-    
     // Json string of data to be stored about the task
     private final String m_extraInfo;
     
@@ -31,43 +46,80 @@ public class Task implements Comparable<Task>
     // Time this task was locked (started processing)
     private long m_lockTime;
     
-    // string of lock given to this task (must be given to unlock it)
-    private String m_lock;
+    // lock given to this task (must be given to unlock it). 128 random bits held as two longs so 
+    // that handing out and checking locks never has to create or compare strings.
+    private boolean m_isLocked = false;
+    private long m_lockHigh;
+    private long m_lockLow;
     
     private final int m_priority;
     
+    // The priority the task is scheduled with. This is the same as m_priority unless the queue
+    // uses priority inheritance, in which case it is raised to that of the most important task 
+    // waiting on it.
+    private int m_effectivePriority;
+    
     private final String m_group;
     
+    // How long (ms) this task may be locked for before it is handed to someone else. 0 = infinite
+    private final long m_maxLockTime;
+    
+    // How much of an impediment this task is to others. Higher means more important to complete.
+    // Held in fixed point (units of 1 / BLOCKAGE_SCALE) so that adding and later taking away the
+    // same contribution always gets back exactly to where it was, which a double would not.
+    private long m_blockageRating = 0;
+    
+    // The number of tasks in the longest chain of dependents hanging off this task, including this
+    // task itself. Only kept up to date by queues that use critical path scheduling.
+    private int m_criticalPathLength = 1;
+    
+    // Slot this task occupies in its queue's heap of available tasks (-1 if not in it)
+    private int m_heapIndex = -1;
+    
+    // Time (in ms) at which the lock on this task expires, and the slot this task occupies in its
+    // queue's heap of lock expiries (-1 if not in it)
+    private long m_leaseDeadline;
+    private int m_leaseIndex = -1;
+    
+    // The connection's set of leases that this task belongs to, whilst it is being processed.
+    private LeaseSet m_leaseSet = null;
+    
     
     /**
      * Constructor for a Task to be executed.
      * @param taskId - the unique id of this task
-     * @param queue_name - the name of the queue this task belongs to.
      * @param name - a human readable name for this task
-     * @param remainingDependencies - array of task ids that this task relies on having finished
+     * @param dependencies - array of task ids that this task relies on having finished. These must
+     *                       all be tasks that are still in the queue and contain no duplicates.
      * @param extraInfo - any information to attach to the task to feed back to executors
      *                            this will help them know what they need to do (context)
      * @param priority - integer between 1 and 10 which effects ordering in queue
      * @param group - string representing a group the task belongs to. Completely optional and may
      *                 be null
-     * @param extraInfo - json string of any information to go with the task. (context)
+     * @param maxLockTime - the time in milliseconds that the task may be locked for before it is 
+     *                      considered lost. 0 means it may be locked forever.
+     * @param creationTime - when the task was added, in seconds since the epoch. This is only 
+     *                       earlier than now for tasks that are being restored from the journal.
      */
     public Task(int taskId,
-                String queue_name, 
                 String name, 
-                HashMap<Integer, Integer> remainingDependencies, 
+                int[] dependencies, 
                 String extraInfo, 
                 int priority,
-                String group)
+                String group,
+                long maxLockTime,
+                long creationTime)
     {
-        m_taskId                = taskId;
-        m_name                  = name;
-        m_creationTime          = System.currentTimeMillis() / 1000L;
-        m_remainingDependencies = remainingDependencies;
-        m_priority              = priority;
-        m_extraInfo             = extraInfo;
-        m_group                 = group;
-        m_queueName             = queue_name;
+        m_taskId                   = taskId;
+        m_name                     = name;
+        m_creationTime             = creationTime;
+        m_dependencies             = (dependencies.length == 0) ? NO_IDS : dependencies;
+        m_remainingDependencyCount = dependencies.length;
+        m_priority                 = priority;
+        m_effectivePriority        = priority;
+        m_extraInfo                = extraInfo;
+        m_group                    = group;
+        m_maxLockTime              = maxLockTime;
     }
     
     
@@ -76,12 +128,26 @@ public class Task implements Comparable<Task>
      */
     public void lock() throws Exception
     {
-        if (m_lock != null)
+        lock(LockToken.generateHalf(), LockToken.generateHalf());
+    }
+    
+    
+    /**
+     * Mark this job as being processed with a particular lock, e.g. one that was handed out before
+     * the scheduler was restarted and is being restored from the journal.
+     * @param lockHigh - the most significant 64 bits of the lock (see LockToken)
+     * @param lockLow - the least significant 64 bits of the lock
+     */
+    public void lock(long lockHigh, long lockLow) throws Exception
+    {
+        if (m_isLocked)
         {
             throw new Exception("Task [" + m_taskId + "] is already locked!");
         }
         
-        m_lock = Core.generateRandomString(32);
+        m_lockHigh = lockHigh;
+        m_lockLow  = lockLow;
+        m_isLocked = true;
         m_lockTime = Core.time(true); //true = to the millisecond
     }
     
@@ -89,16 +155,17 @@ public class Task implements Comparable<Task>
     /**
      * Tries to unlock the task with the specified lock. If successful then the lock is removed
      * and returns true, otherwise the lock remains and returns false.
-     * @param String lock - a string that should be the same as this tasks lock.
+     * @param lockHigh - the most significant 64 bits of the lock (see LockToken)
+     * @param lockLow - the least significant 64 bits of the lock
      * @return $unlocked - flag indicating if this task is now unlocked
      */
-    public boolean unlock(String lock)
+    public boolean unlock(long lockHigh, long lockLow)
     {
         boolean unlocked = false;
         
-        if (m_lock.equalsIgnoreCase(lock))
+        if (hasLock(lockHigh, lockLow))
         {
-            m_lock     = null;
+            m_isLocked = false;
             unlocked   = true;
             m_lockTime = 0;
         }
@@ -108,12 +175,40 @@ public class Task implements Comparable<Task>
     
     
     /**
-     * Removes a job from this jobs list of dependencies because it has completed.
-     * @param jobId - the id of the job/task that has been completed and does not have to be waited upon
+     * Check whether this task is locked with the specified lock.
+     * @param lockHigh - the most significant 64 bits of the lock (see LockToken)
+     * @param lockLow - the least significant 64 bits of the lock
+     * @return flag indicating whether the lock matches.
      */
-    public void removeDependency(int jobId)
+    public boolean hasLock(long lockHigh, long lockLow)
     {
-        this.m_remainingDependencies.remove(jobId);
+        return (m_isLocked && m_lockHigh == lockHigh && m_lockLow == lockLow);
+    }
+    
+    
+    /**
+     * Marks one of this jobs dependencies as no longer needing to be waited upon because it has 
+     * completed.
+     */
+    public void removeDependency()
+    {
+        this.m_remainingDependencyCount--;
+    }
+    
+    
+    /**
+     * Record that another task is waiting on this task to be completed.
+     * @param dependentId - the id of the task that depends on this one.
+     */
+    public void addDependent(int dependentId)
+    {
+        if (m_dependentCount == m_dependents.length)
+        {
+            m_dependents = Arrays.copyOf(m_dependents, Math.max(4, m_dependentCount * 2));
+        }
+        
+        m_dependents[m_dependentCount] = dependentId;
+        m_dependentCount++;
     }
     
     
@@ -123,7 +218,7 @@ public class Task implements Comparable<Task>
      */
     public boolean isReady()
     {
-        return this.m_remainingDependencies.isEmpty();
+        return (this.m_remainingDependencyCount == 0);
     }
     
     
@@ -140,7 +235,11 @@ public class Task implements Comparable<Task>
         jsonForm.add("name",          new JsonPrimitive(m_name));
         jsonForm.add("creation_time", new JsonPrimitive(m_creationTime));
         jsonForm.add("priority",      new JsonPrimitive(m_priority));
-        jsonForm.add("lock",          new JsonPrimitive(m_lock));
+        
+        if (m_isLocked)
+        {
+            jsonForm.add("lock", new JsonPrimitive(getLock()));
+        }
         
         if (m_group != null)
         {
@@ -153,79 +252,111 @@ public class Task implements Comparable<Task>
     }
     
     
-    
     /**
-     * Give the task a 'blockage' rating. This is a float that represents how much of an impediment
-     * this task is. E.g. how many other tasks will be freed up (or helped freed up) by completing
-     * this task.
-     * Having a higher blockage rating means that it is more important to complete the task as soon
-     * as possible in order to free up other tasks to be executable.
-     * @return float $blockageRating - a weight for how much of an impediment this task is to others
-     * @throws Exception if Scheduler was unable to find this task in its task list 
-     * (should never happen)
+     * Write this task out in the same form as jsonSerialize, but straight into a response rather
+     * than building a JsonObject first.
+     * @param writer - the response to write the task into.
      */
-    public float getBlockageRating()
+    public void writeJson(JsonResponseWriter writer)
     {
-        float blockageRating = 0; // 0 means this task does not help free up any other tasks.
+        writer.beginObject();
+        writer.name("id").value(m_taskId);
+        writer.name("name").value(m_name);
+        writer.name("creation_time").value(m_creationTime);
+        writer.name("priority").value(m_priority);
         
-        ArrayList<Task> dependentTasks = this.getDependents();
-                        
-        for (Task task : dependentTasks)
+        if (m_isLocked)
         {
-            // if the task has lots of dependencies, even though this task helps free it up, it
-            // helps by an insignificant amount because that task has lots of dependencies
-            blockageRating += (1.0 / (1 + (task.m_remainingDependencies.size()))); 
+            writer.name("lock").lockValue(m_lockHigh, m_lockLow);
         }
         
-        return blockageRating;
+        if (m_group != null)
+        {
+            writer.name("group").value(m_group);
+        }
+        
+        writer.name("extra_info").value(m_extraInfo);
+        writer.endObject();
     }
     
     
     
     /**
-     * Fetches an array list of task IDs that are dependent on this task being completed before
-     * they can be run
-     * @return array list of tasks dependent on this task being completed
-     * @throws Exception if scheduler was unable to find this task in its list of tasks
+     * Adjust the task's 'blockage' rating. This is a figure that represents how much of an
+     * impediment this task is. E.g. how many other tasks will be freed up (or helped freed up) by
+     * completing this task. Each dependent contributes 1 / (1 + its remaining dependencies), so a
+     * dependent that is waiting on lots of other tasks only helps by an insignificant amount.
+     * The rating is maintained by the TaskQueue whenever the remaining dependency count of one of
+     * this tasks dependents changes, rather than being recalculated every time we compare tasks.
+     * @param delta - the amount to change the rating by, in units of 1 / BLOCKAGE_SCALE.
      */
-    public ArrayList<Task> getDependents()
+    public void adjustBlockageRating(long delta)
     {
-        Scheduler scheduler = Scheduler.getInstance();
-        TaskQueue queue = scheduler.getQueue(m_queueName);
-        ArrayList<Integer> dependent_task_ids = queue.getDependencyList(m_taskId);
+        m_blockageRating += delta;
+    }
+    
+    
+    /**
+     * Calculate how much a dependent that is waiting on the specified number of tasks contributes
+     * to the blockage rating of each of those tasks.
+     * @param remainingDependencies - the number of tasks the dependent is still waiting on.
+     * @return the contribution to the blockage rating, in units of 1 / BLOCKAGE_SCALE.
+     */
+    public static long getBlockageContribution(int remainingDependencies)
+    {
+        return BLOCKAGE_SCALE / (1 + remainingDependencies);
+    }
+    
+    
+    /**
+     * Fetch the lock in the string form that is given to clients.
+     * @return the lock, or null if this task is not locked.
+     */
+    public String getLock()
+    {
+        String lock = null;
         
-        ArrayList<Task>dependent_tasks = new ArrayList();
-
-        //foreach (dependent_task_ids as dependent_task_id)
-        for (Integer dependent_task_id : dependent_task_ids)
+        if (m_isLocked)
         {
-            Task depenedentTask = null;
-            
-            try
-            {
-                depenedentTask = queue.getTaskFromId(dependent_task_id);
-            }
-            catch (Exception e)
-            {
-                System.out.println("Fatal exception: scheduler could not find dependent task");
-                System.exit(1);
-            }
-            
-            dependent_tasks.add(depenedentTask);
+            lock = LockToken.encode(m_lockHigh, m_lockLow);
         }
         
-        return dependent_tasks;
+        return lock;
     }
     
     
     // Accessor functions
     public int      getId()           { return m_taskId; }
     public String   getName()         { return m_name; }
-    public String   getLock()         { return m_lock; }
+    public String   getExtraInfo()    { return m_extraInfo; }
+    public long     getLockHigh()     { return m_lockHigh; }
+    public long     getLockLow()      { return m_lockLow; }
     public int      getPriority()     { return m_priority; }
+    public int      getEffectivePriority() { return m_effectivePriority; }
     public long     getCreationTime() { return m_creationTime; }
     public long     getLockTime()     { return m_lockTime; }
+    public boolean  isLocked()        { return m_isLocked; }
     public String   getGroup()        { return m_group; }
+    public int      getHeapIndex()    { return m_heapIndex; }
+    public long     getBlockageRating() { return m_blockageRating; }
+    public int      getRemainingDependencyCount() { return m_remainingDependencyCount; }
+    public int[]    getDependencies() { return m_dependencies; }
+    public int[]    getDependents()   { return m_dependents; }
+    public int      getDependentCount() { return m_dependentCount; }
+    
+    public long     getMaxLockTime()   { return m_maxLockTime; }
+    public long     getLeaseDeadline() { return m_leaseDeadline; }
+    public int      getLeaseIndex()    { return m_leaseIndex; }
+    public int      getCriticalPathLength() { return m_criticalPathLength; }
+    public LeaseSet getLeaseSet() { return m_leaseSet; }
+    
+    public void setHeapIndex(int heapIndex)           { m_heapIndex = heapIndex; }
+    public void setLeaseDeadline(long leaseDeadline)  { m_leaseDeadline = leaseDeadline; }
+    public void setLeaseIndex(int leaseIndex)         { m_leaseIndex = leaseIndex; }
+    public void setCriticalPathLength(int length)     { m_criticalPathLength = length; }
+    public void setEffectivePriority(int priority)    { m_effectivePriority = priority; }
+    public void setLeaseSet(LeaseSet leaseSet)        { m_leaseSet = leaseSet; }
+    public void setRemainingDependencyCount(int count) { m_remainingDependencyCount = count; }
 
     
     /**
@@ -241,11 +372,11 @@ public class Task implements Comparable<Task>
         Task a = this;
         Task b = (Task)o;
                 
-        if (a.getPriority() > b.getPriority())
+        if (a.getEffectivePriority() > b.getEffectivePriority())
         {
             result = -1;
         }
-        else if(a.getPriority() < b.getPriority())
+        else if(a.getEffectivePriority() < b.getEffectivePriority())
         {
             result = 1;
         }
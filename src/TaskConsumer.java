@@ -0,0 +1,18 @@
+/*
+ * Something that waits on a queue to be handed tasks as soon as they become available, rather than
+ * asking for them: a get_task request that is waiting for a task (TaskWaiter), or a connection 
+ * that has subscribed to the queue (Subscription). The queue keeps its consumers in line and 
+ * hands each available task to the one at the front.
+ */
+
+public interface TaskConsumer
+{
+    /**
+     * Hand over a task that has already been locked for this consumer. This is called by the 
+     * queue whilst holding its lock, so it must not block.
+     * @param task - the task, which is now being processed.
+     * @return flag indicating whether the consumer wants another task, in which case it goes to 
+     *         the back of the line.
+     */
+    public boolean handOff(Task task);
+}
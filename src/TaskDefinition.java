@@ -0,0 +1,65 @@
+/*
+ * A task that a client has asked to be added as part of an add_tasks batch, before it has been
+ * given an id. It can depend on tasks that are already in the queue (by their id), and on other
+ * tasks in the same batch (by their position in the batch), as the client does not know what ids
+ * those will be given.
+ */
+
+import java.util.ArrayList;
+
+
+public class TaskDefinition
+{
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final String m_name;
+    private final String m_extraInfo;
+    private final int m_priority;
+    private final String m_group;
+
+    // The lock time limit in milliseconds, or -1 to use the queue's default.
+    private final long m_maxLockTime;
+
+    // The ids of tasks already in the queue that this task depends on.
+    private final ArrayList<Integer> m_dependencies;
+
+    // The positions in the batch of the other tasks in the batch that this task depends on.
+    private int[] m_batchDependencies = NO_POSITIONS;
+
+
+    /**
+     * @param name - a name to give the task
+     * @param dependencies - the ids of tasks already in the queue that the task depends on.
+     * @param extraInfo - any extra information to attach to the task.
+     * @param priority - the priority of the task (higher = more important).
+     * @param group - optional group for the task, or null.
+     * @param maxLockTime - the lock time limit in milliseconds, or -1 to use the queue's default.
+     */
+    public TaskDefinition(String name,
+                          ArrayList<Integer> dependencies,
+                          String extraInfo,
+                          int priority,
+                          String group,
+                          long maxLockTime)
+    {
+        m_name = name;
+        m_dependencies = dependencies;
+        m_extraInfo = extraInfo;
+        m_priority = priority;
+        m_group = group;
+        m_maxLockTime = maxLockTime;
+    }
+
+
+    // Accessors
+    public String getName()                     { return m_name; }
+    public ArrayList<Integer> getDependencies() { return m_dependencies; }
+    public String getExtraInfo()                { return m_extraInfo; }
+    public int getPriority()                    { return m_priority; }
+    public String getGroup()                    { return m_group; }
+    public long getMaxLockTime()                { return m_maxLockTime; }
+    public boolean hasMaxLockTime()             { return m_maxLockTime >= 0; }
+    public int[] getBatchDependencies()         { return m_batchDependencies; }
+
+    public void setBatchDependencies(int[] positions) { m_batchDependencies = positions; }
+}
@@ -22,12 +22,15 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -37,22 +40,62 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class TaskQueue 
 {
+    public static final String INCORRECT_LOCK = "Incorrect lock provided or task not in processing tasks list.";
+    public static final String NO_AVAILABLE_TASKS = "There are no available tasks!";
+    
+    // Wakes up queues that have waiters when the next of their leases runs out, as nothing else 
+    // would hand out the timed out task until somebody asked for one. One thread is shared by all 
+    // of the queues, and it only ever runs for a moment.
+    private static final ScheduledThreadPoolExecutor s_leaseTimer = createLeaseTimer();
+    
     private String m_name;
     
     private int m_taskCounter;
         
-    // Map of task IDs to the task objects themselves
-    // HashTable is threadsafe, hashmap is not
-    private ConcurrentHashMap<Integer, Task> m_tasks = new ConcurrentHashMap<>();
+    // Map of task IDs to the task objects themselves. Each task holds the ids of the tasks it
+    // depends upon, and the ids of the tasks that depend upon it being completed.
+    // This is not threadsafe, so must only be touched from synchronized methods.
+    private IntObjectMap<Task> m_tasks = new IntObjectMap<>();
     
     // Jobs sorted by priority, then time created using objects comparator.
-    private LateBlockingQueue<Task> m_availableTasks = new LateBlockingQueue<>();
+    private IndexedTaskHeap m_availableTasks = new IndexedTaskHeap();
+    
+    // Set of task ids being processed
+    private IntHashSet m_processingTasks = new IntHashSet();
+    
+    // Map of group names to the ids of the tasks in that group.
+    private HashMap<String, IntHashSet> m_groups = new HashMap<>();
+    
+    // The processing tasks that can time out, ordered by when their lock expires.
+    private LeaseExpiryHeap m_leases = new LeaseExpiryHeap();
+    
+    // How long (ms) a task may be locked for before it is handed to someone else, if the task 
+    // itself does not specify. 0 = infinite.
+    private final long m_defaultMaxLockTime;
+    
+    // Whether tasks of the same priority are handed out by the length of the chain of tasks 
+    // waiting on them (critical path), rather than just by blockage rating.
+    private boolean m_useCriticalPath = false;
+    
+    // Whether tasks inherit the priority of the most important task waiting on them, so that an
+    // urgent task is not stuck behind less important work because of what it depends on.
+    private boolean m_usePriorityInheritance = false;
     
-    // Map of task ids being processed (values are not used)
-    private ConcurrentHashMap<Integer, Integer> m_processingTasks = new ConcurrentHashMap<>();
+    // get_task requests that are waiting for a task and subscriptions that have credit, in the 
+    // order they are to be handed tasks. There are only ever waiters when there are no available 
+    // tasks (or we have stopped handing them out), as they are handed tasks straight away.
+    private LinkedHashSet<TaskConsumer> m_waiters = new LinkedHashSet<>();
     
-    // Map of Task IDs to the list of Task IDs that depend upon it being completed.
-    private ConcurrentHashMap<Integer, ArrayList<Integer>> m_dependencies = new ConcurrentHashMap<>();
+    // When the lease timer is next due to check this queue (0 = it is not).
+    private long m_leaseCheckTime = 0;
+    
+    // Where the changes to this queue are recorded so that they survive a restart, or null if
+    // journaling is switched off (see Settings.JOURNAL_DIR).
+    private Journal m_journal = null;
+    
+    // Whether the scheduler is shutting down, in which case no more tasks are handed out, but the
+    // ones that are being processed can still be completed.
+    private boolean m_isDraining = false;
     
         
     /**
@@ -61,6 +104,7 @@ public class TaskQueue
     public TaskQueue(String name)
     {
         this.m_name = name;
+        this.m_defaultMaxLockTime = Settings.DEFAULT_MAX_LOCK_TIME() * 1000; // setting in secs not ms
     }
    
     
@@ -78,11 +122,61 @@ public class TaskQueue
      *                 based actions, such as the ability to remove all related tasks at once etc.
      * @return taskId - the id of the task that was just added
      */
+    public int addTask(String taskName, 
+                       ArrayList<Integer> dependencies, 
+                       String extraInfo, 
+                       int priority,
+                       String group)
+    {
+        return addTask(taskName, dependencies, extraInfo, priority, group, m_defaultMaxLockTime);
+    }
+    
+    
+    /**
+     * Creates and adds a task to this scheduler with its own lock time limit.
+     * @param taskName - a name to give the task
+     * @param dependencies - array of task ids that this newly created task is reliant on 
+     *                              having been finished before it can execute.
+     * @param extraInfo - any extra information to attach to the task. E.g a json string
+     *                            of name/value pairs to give context to the task.
+     * @param priority - integer between 1 and 10 which affects the scheduling of this task. 
+     *                        (higher = more important, default 5). Try to avoid using.
+     * @param group - optional string that can be used to group tasks together.
+     * @param maxLockTime - the time in milliseconds that a worker may have the task locked for 
+     *                      before it is considered lost and handed to another. 0 = infinite.
+     * @return taskId - the id of the task that was just added
+     */
+    public int addTask(String taskName, 
+                       ArrayList<Integer> dependencies, 
+                       String extraInfo, 
+                       int priority,
+                       String group,
+                       long maxLockTime)
+    {
+        return addTask(taskName, dependencies, extraInfo, priority, group, maxLockTime, Core.time(false));
+    }
+    
+    
+    /**
+     * Creates and adds a task that was created at a particular time. This is only earlier than 
+     * now when the task is being restored from the journal, so that it keeps its place in line.
+     * @param taskName - a name to give the task
+     * @param dependencies - array of task ids that this newly created task is reliant on 
+     *                              having been finished before it can execute.
+     * @param extraInfo - any extra information to attach to the task.
+     * @param priority - integer between 1 and 10 which affects the scheduling of this task.
+     * @param group - optional string that can be used to group tasks together.
+     * @param maxLockTime - the lock time limit in milliseconds. 0 = infinite.
+     * @param creationTime - when the task was added, in seconds since the epoch.
+     * @return taskId - the id of the task that was just added
+     */
     public synchronized int addTask(String taskName, 
                                     ArrayList<Integer> dependencies, 
                                     String extraInfo, 
                                     int priority,
-                                    String group)
+                                    String group,
+                                    long maxLockTime,
+                                    long creationTime)
     {
         int taskId = m_taskCounter;
         m_taskCounter++;
@@ -90,65 +184,339 @@ public class TaskQueue
         
         // Task may list as dependencies tasks that have already completed and been removed so 
         // remove these
-        HashMap<Integer, Integer>remainingDependencies = new HashMap<>();
+        int[] remainingDependencies = new int[dependencies.size()];
+        int numRemainingDependencies = 0;
         
         for (Integer dependencyId : dependencies) 
         {
             if (m_tasks.containsKey(dependencyId))
             {
-                remainingDependencies.put(dependencyId, 1); // dependencies are keyed by id
+                remainingDependencies[numRemainingDependencies] = dependencyId;
+                numRemainingDependencies++;
             }            
         }
+        
+        remainingDependencies = removeDuplicates(remainingDependencies, numRemainingDependencies);
   
         Task newTask = new Task(
             taskId, 
-            this.m_name, 
             taskName, 
             remainingDependencies, 
             extraInfo, 
             priority, 
-            group
+            group,
+            maxLockTime,
+            creationTime
         );
         
         m_tasks.put(taskId, newTask);
+        addToGroup(newTask);
+        
+        if (m_journal != null)
+        {
+            m_journal.recordAddTask(newTask);
+        }
         
-        if (remainingDependencies.isEmpty())
+        if (newTask.isReady())
         {
             Debug.println("Task has no dependencies so adding to the available tasks list");
             m_availableTasks.add(newTask);
+            serveWaiters();
         }
         else
         {
-            Debug.println("Task has dependencies adding to m_dependencies");
-            // Task is not available so we need to put it in the relevant dependency area.
-            Set dependency_ids = remainingDependencies.keySet();
+            Debug.println("Task has dependencies so adding it to its impediments dependents");
+            addToImpediments(newTask);
+            
+            if (m_useCriticalPath)
+            {
+                raiseCriticalPaths(newTask);
+            }
+            
+            if (m_usePriorityInheritance)
+            {
+                raiseInheritedPriorities(newTask);
+            }
+        }
+        
+        return taskId;
+    }
+    
+    
+    /**
+     * Adds a whole batch of tasks (e.g. a DAG) under a single acquisition of the queue lock. Tasks
+     * can depend on tasks already in the queue, and on each other in any order. The batch is 
+     * checked before anything is added, so either all of the tasks are added or none are. The 
+     * tasks that are ready straight away are put into the available tasks in one go.
+     * @param definitions - the tasks to add.
+     * @return the ids of the new tasks, in the same order as the definitions.
+     * @throws Exception if the tasks in the batch depend on each other in a cycle.
+     */
+    public int[] addTasks(ArrayList<TaskDefinition> definitions) throws Exception
+    {
+        return addTasks(definitions, Core.time(false));
+    }
+    
+    
+    /**
+     * Adds a whole batch of tasks that were created at a particular time (see addTask).
+     * @param definitions - the tasks to add.
+     * @param creationTime - when the tasks were added, in seconds since the epoch.
+     * @return the ids of the new tasks, in the same order as the definitions.
+     * @throws Exception if the tasks in the batch depend on each other in a cycle.
+     */
+    public synchronized int[] addTasks(ArrayList<TaskDefinition> definitions, long creationTime) throws Exception
+    {
+        int numTasks = definitions.size();
+        int[] order = orderBatch(definitions);
+        int firstTaskId = m_taskCounter;
+        
+        // Work out all the dependencies before any of the new tasks are in m_tasks, so that an id
+        // the client gave for an existing task can not be mistaken for one of the new tasks.
+        int[][] remainingDependencies = new int[numTasks][];
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            TaskDefinition definition = definitions.get(i);
+            int[] batchDependencies = definition.getBatchDependencies();
+            int[] dependencyIds = new int[definition.getDependencies().size() + batchDependencies.length];
+            int numDependencyIds = 0;
+            
+            for (Integer dependencyId : definition.getDependencies())
+            {
+                if (m_tasks.containsKey(dependencyId))
+                {
+                    dependencyIds[numDependencyIds] = dependencyId;
+                    numDependencyIds++;
+                }
+            }
+            
+            for (int position : batchDependencies)
+            {
+                dependencyIds[numDependencyIds] = firstTaskId + position;
+                numDependencyIds++;
+            }
+            
+            remainingDependencies[i] = removeDuplicates(dependencyIds, numDependencyIds);
+        }
+        
+        m_taskCounter += numTasks;
+        Task[] newTasks = new Task[numTasks];
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            TaskDefinition definition = definitions.get(i);
             
-            Iterator it = dependency_ids.iterator();
+            newTasks[i] = new Task(
+                firstTaskId + i, 
+                definition.getName(), 
+                remainingDependencies[i], 
+                definition.getExtraInfo(), 
+                definition.getPriority(), 
+                definition.getGroup(),
+                definition.hasMaxLockTime() ? definition.getMaxLockTime() : m_defaultMaxLockTime,
+                creationTime
+            );
             
-            while (it.hasNext()) 
+            m_tasks.put(firstTaskId + i, newTasks[i]);
+            addToGroup(newTasks[i]);
+        }
+        
+        ArrayList<Task> readyTasks = new ArrayList<>();
+        
+        for (Task newTask : newTasks)
+        {
+            if (newTask.isReady())
+            {
+                readyTasks.add(newTask);
+            }
+            else
+            {
+                addToImpediments(newTask);
+            }
+        }
+        
+        if (m_useCriticalPath || m_usePriorityInheritance)
+        {
+            // Going backwards through the order, each task's dependents (which can only be in the
+            // batch) are done before it, so its own values can be worked out directly. Only then
+            // are they pushed up into the tasks that were already in the queue.
+            for (int i = numTasks - 1; i >= 0; i--)
             {
-                // referring to the task(s) that need to execute before this an "impediment"
-                int impedimentTaskId = (int)it.next();
+                Task newTask = newTasks[order[i]];
                 
-                if (!m_dependencies.containsKey(impedimentTaskId))
+                if (m_useCriticalPath)
                 {
-                    // The prerequisite task does not yet have a list of waiting tasks.
-                    ArrayList<Integer> impedimentsDependencies = new ArrayList<>();
-                    impedimentsDependencies.add(newTask.getId());
-                    m_dependencies.put(impedimentTaskId, impedimentsDependencies);
+                    newTask.setCriticalPathLength(calculateCriticalPathLength(newTask));
                 }
-                else
+                
+                if (m_usePriorityInheritance)
+                {
+                    newTask.setEffectivePriority(calculateInheritedPriority(newTask));
+                }
+            }
+            
+            for (int i = 0; i < numTasks; i++)
+            {
+                // The dependencies are sorted, so any tasks that were already in the queue come first.
+                if (remainingDependencies[i].length > 0 && remainingDependencies[i][0] < firstTaskId)
                 {
-                    ArrayList<Integer> impedimentsDependencies = m_dependencies.get(impedimentTaskId);
-                    impedimentsDependencies.add(newTask.getId());
+                    if (m_useCriticalPath)
+                    {
+                        raiseCriticalPaths(newTasks[i]);
+                    }
                     
-                    // Not sure if that by updating the arraylist I do not need to do this (references)
-                    m_dependencies.put(impedimentTaskId, impedimentsDependencies);                    
-                }    
+                    if (m_usePriorityInheritance)
+                    {
+                        raiseInheritedPriorities(newTasks[i]);
+                    }
+                }
             }
         }
         
-        return taskId;
+        if (m_journal != null)
+        {
+            m_journal.recordAddTasks(firstTaskId, creationTime, definitions, newTasks);
+        }
+        
+        m_availableTasks.addAll(readyTasks);
+        serveWaiters();
+        
+        int[] taskIds = new int[numTasks];
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            taskIds[i] = firstTaskId + i;
+        }
+        
+        return taskIds;
+    }
+    
+    
+    /**
+     * Put a batch of tasks in an order where every task comes after the tasks in the batch that it
+     * depends on (Kahn's algorithm), which also finds any cycles.
+     * @param definitions - the tasks in the batch.
+     * @return the positions of the tasks in the batch, in that order.
+     * @throws Exception if the tasks depend on each other in a cycle.
+     */
+    private static int[] orderBatch(ArrayList<TaskDefinition> definitions) throws Exception
+    {
+        int numTasks = definitions.size();
+        int[] numWaitingOn = new int[numTasks];
+        
+        // The dependents of each task within the batch, with those of task i starting at 
+        // dependentsStart[i] in dependents.
+        int[] dependentsStart = new int[numTasks + 1];
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            for (int position : definitions.get(i).getBatchDependencies())
+            {
+                numWaitingOn[i]++;
+                dependentsStart[position + 1]++;
+            }
+        }
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            dependentsStart[i + 1] += dependentsStart[i];
+        }
+        
+        int[] dependents = new int[dependentsStart[numTasks]];
+        int[] nextDependent = Arrays.copyOf(dependentsStart, numTasks);
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            for (int position : definitions.get(i).getBatchDependencies())
+            {
+                dependents[nextDependent[position]] = i;
+                nextDependent[position]++;
+            }
+        }
+        
+        int[] order = new int[numTasks];
+        int numOrdered = 0;
+        
+        for (int i = 0; i < numTasks; i++)
+        {
+            if (numWaitingOn[i] == 0)
+            {
+                order[numOrdered] = i;
+                numOrdered++;
+            }
+        }
+        
+        for (int next = 0; next < numOrdered; next++)
+        {
+            int task = order[next];
+            
+            for (int j = dependentsStart[task]; j < dependentsStart[task + 1]; j++)
+            {
+                int dependent = dependents[j];
+                numWaitingOn[dependent]--;
+                
+                if (numWaitingOn[dependent] == 0)
+                {
+                    order[numOrdered] = dependent;
+                    numOrdered++;
+                }
+            }
+        }
+        
+        if (numOrdered < numTasks)
+        {
+            throw new Exception("The tasks in the batch have a circular dependency");
+        }
+        
+        return order;
+    }
+    
+    
+    /**
+     * Register a newly added task as a dependent of each of the tasks it is waiting on, which 
+     * raises their blockage ratings.
+     * @param newTask - the task that was just added, which is waiting on at least one task.
+     */
+    private void addToImpediments(Task newTask)
+    {
+        int[] dependencies = newTask.getDependencies();
+        long blockageContribution = Task.getBlockageContribution(dependencies.length);
+        
+        // referring to the task(s) that need to execute before this an "impediment"
+        for (int impedimentTaskId : dependencies)
+        {
+            Task impediment = m_tasks.get(impedimentTaskId);
+            impediment.addDependent(newTask.getId());
+            
+            // The impediment now frees up one more task, so its blockage rating went up.
+            impediment.adjustBlockageRating(blockageContribution);
+            m_availableTasks.update(impediment);
+        }
+    }
+    
+    
+    /**
+     * Sort the first numIds of the provided ids and strip out any duplicates.
+     * @param ids - the array of task ids
+     * @param numIds - the number of ids in the array that are in use.
+     * @return an array of exactly the unique ids.
+     */
+    private static int[] removeDuplicates(int[] ids, int numIds)
+    {
+        Arrays.sort(ids, 0, numIds);
+        int numUnique = 0;
+        
+        for (int i = 0; i < numIds; i++)
+        {
+            if (numUnique == 0 || ids[numUnique - 1] != ids[i])
+            {
+                ids[numUnique] = ids[i];
+                numUnique++;
+            }
+        }
+        
+        return (numUnique == ids.length) ? ids : Arrays.copyOf(ids, numUnique);
     }
     
     
@@ -177,10 +545,9 @@ public class TaskQueue
     {
         try
         {
-            ArrayList<Task> tasks = m_availableTasks.getArrayList();
             System.out.println("Available tasks:");
         
-            for (Task task : tasks)
+            for (Task task : m_availableTasks)
             {
                 System.out.println(task.getId());
             }
@@ -207,52 +574,12 @@ public class TaskQueue
     public synchronized Task getAvailableTask() throws Exception
     {
         Debug.println("Scheduler fetching first available task.");
+        Task availableJob = takeAvailableTask();
         
-        Task availableJob = m_availableTasks.poll();
-        
-        if (availableJob != null)
-        {
-            availableJob.lock();
-            m_processingTasks.put(availableJob.getId(), 1);
-        }
-        else
+        if (availableJob == null)
         {
-            // check to see if any of the processing tasks have exceeded their lock time limit
-            Debug.println("No tasks available, seeing if any timed out.");
-            long timeNow = Core.time(true);
-            boolean unlockedTask = false;
-            
-            // Dont forget that m_processingTasks is a hash table so the value is always 1
-            Set processing_task_ids = m_processingTasks.keySet();
-            
-            for (Object processing_task_id_obj : processing_task_ids)
-            {
-                Integer processing_task_id = (Integer)processing_task_id_obj;
-                Task processingTask = m_tasks.get(processing_task_id);
-                
-                long age = timeNow - processingTask.getLockTime();
-                
-                if 
-                (
-                    Settings.MAX_LOCK_TIME() != 0 // 0 means we can have infinite lock
-                    && age > (Settings.MAX_LOCK_TIME() * 1000) // lock time setting in secs not ms
-                ) 
-                {
-                    System.out.println("Unlocking a task that has passed age limit.");
-                    rejectTask(processing_task_id, processingTask.getLock());
-                    unlockedTask = true;
-                }
-            }
-            
-            if (unlockedTask)
-            {
-                availableJob = getAvailableTask();
-            }
-            else
-            {
-                System.out.println("Throwing exception. There are no available tasks!");
-                throw new Exception("There are no available tasks!");
-            }
+            Debug.println("Throwing exception. There are no available tasks!");
+            throw new Exception(NO_AVAILABLE_TASKS);
         }
         
         Debug.println("Scheduler returning availableJob");
@@ -261,273 +588,1514 @@ public class TaskQueue
     
     
     /**
-     * Callback for when a task has been completed. This allows us to mark the job as completed, thus 
-     * freeing other processes that had it as a dependency.
-     * 
-     * @param completed_task_id - the ID of the job we want to state has finished.
-     * @param lock - the id of the lock which locked the task (proving correct server unlocking it)
-     * @throws java.lang.Exception if the wrong lock was provided.
+     * Fetches up to the given number of jobs to be performed, under a single acquisition of the
+     * queue lock, so that a worker can take a batch of small tasks in one request.
+     * @param maxTasks - the most tasks to take.
+     * @return the tasks, in the order they would have been handed out one at a time. This is 
+     *         empty (rather than an error) if there are none available.
      */
-    public synchronized void completeTask(Integer completed_task_id, String lock) throws Exception
+    public synchronized ArrayList<Task> getAvailableTasks(int maxTasks)
     {
-        Task job = m_tasks.get(completed_task_id);
+        ArrayList<Task> tasks = new ArrayList<>(Math.min(maxTasks, m_availableTasks.size() + 1));
         
-        if (m_processingTasks.containsKey(completed_task_id) && job.getLock().equals(lock))
+        while (tasks.size() < maxTasks)
         {
-            m_processingTasks.remove(completed_task_id);
+            Task availableJob = takeAvailableTask();
             
-            // Find the tasks that were dependent on that process being finished, and see if they 
-            // are now available to start work.
-            if (m_dependencies.containsKey(completed_task_id))
+            if (availableJob == null)
             {
-                ArrayList<Integer> dependent_task_ids = m_dependencies.get(completed_task_id);
-                
-                for (Integer dependent_task_id : dependent_task_ids) 
-                {
-                    Task dependent_task = m_tasks.get(dependent_task_id);
-                    dependent_task.removeDependency(completed_task_id);
-                    
-                    if (dependent_task.isReady())
-                    {
-                        m_availableTasks.add(dependent_task);
-                    }
-                }
-            
-                m_dependencies.remove(completed_task_id);
+                break;
             }
-
-            // Remove the task object from the system at the very end.
-            m_tasks.remove(completed_task_id);
-        }
-        else
-        {
-            // Throw an exception here
-            // If you get this error, it is likely that two things completed a task because your
-            // MAX_LOCK_TIME is too short and a task took longer than that to complete.
-            throw new Exception("Incorrect lock provided or task not in processing tasks list.");
+            
+            tasks.add(availableJob);
         }
+        
+        return tasks;
     }
     
     
     /**
-     * Function to return information about this object for general info on the schedule
-     * @return info - this object in JsonObject form.
+     * Fetches the next job to be performed, and records it as belonging to a connection so that
+     * it is put back if the connection goes away.
+     * @param leaseSet - the connection's leases for this queue.
+     * @return the first available task.
+     * @throws Exception if there are no tasks available.
      */
-    public synchronized JsonObject getInfo()
+    public synchronized Task getAvailableTask(LeaseSet leaseSet) throws Exception
     {
-        JsonObject info = new JsonObject();
-        Collection tasksCollection = m_tasks.values();
-        Collection processingTasks = m_processingTasks.values();
-        Collection dependencies = m_dependencies.values();
-        
-        info = addTaskCollectionToJsonObject(info, "tasks",            tasksCollection);
-        info = addTaskCollectionToJsonObject(info, "available_tasks",  m_availableTasks);
-        info = addTaskCollectionToJsonObject(info, "processing_tasks", processingTasks);
-        info = addTaskCollectionToJsonObject(info, "dependencies",     dependencies);
-        info = addTaskCollectionToJsonObject(info, "tasks",            tasksCollection);
-        
-        return info;
+        Task availableJob = getAvailableTask();
+        leaseSet.add(availableJob);
+        return availableJob;
     }
     
     
     /**
-     * Given a collection of Tasks, serialize them and put them into a JSON object with the 
-     * specified name.
-     * @param obj - the json Object we are adding the list to
-     * @param name - the name of the list/collection
-     * @param collection - the collection that has all the tasks.
-     * @return obj - the modified json object
+     * Fetches up to the given number of jobs to be performed, and records them as belonging to a
+     * connection so that they are put back if the connection goes away.
+     * @param maxTasks - the most tasks to take.
+     * @param leaseSet - the connection's leases for this queue.
+     * @return the tasks, which is empty if there are none available.
      */
-    private JsonObject addTaskCollectionToJsonObject(JsonObject obj, 
-                                                     String name, 
-                                                     Collection collection)
+    public synchronized ArrayList<Task> getAvailableTasks(int maxTasks, LeaseSet leaseSet)
     {
-        Gson gson = new Gson();
-        JsonArray serializedTaskArray = new JsonArray();
-        
-        Iterator it = collection.iterator();
+        ArrayList<Task> tasks = getAvailableTasks(maxTasks);
         
-        while (it.hasNext())
+        for (Task task : tasks)
         {
-            Task task = (Task)it.next();
-            JsonPrimitive element = new JsonPrimitive(task.jsonSerialize().toString());
-            serializedTaskArray.add(element);
+            leaseSet.add(task);
         }
         
-        obj.add(name, serializedTaskArray);
-        
-        return obj;
+        return tasks;
     }
     
     
     /**
-     * Given a collection of Tasks, serialize them an put them into a json object with the 
-     * specified name.
-     * @param obj - the json Object we are adding the list to
-     * @param name - the name of the list/collection
-     * @param collection - the collection that has all the tasks.
-     * @return obj - the modified json object
+     * Fetches the next job to be performed, or if there are none, has the waiter wait for one. 
+     * The waiter is then handed the next task that becomes available, once everyone that started
+     * waiting before it has been given one.
+     * @param waiter - the request that will wait for a task if there are none available.
+     * @return the first available task, or null if the waiter is now waiting.
      */
-    private JsonObject addIntegerCollectionToJsonObject(JsonObject obj, 
-                                                        String name, 
-                                                        Collection collection)
+    public synchronized Task getAvailableTask(TaskWaiter waiter)
     {
-        Gson gson = new Gson();
-        ArrayList<String> serializedTaskArray = new ArrayList<>(); 
+        Task availableJob = takeAvailableTask();
         
-        for (Object taskIdObject : collection)
+        if (availableJob == null)
         {
-            Integer taskId = (Integer) taskIdObject;
-
+            m_waiters.add(waiter);
+            scheduleLeaseCheck();
+        }
+        else
+        {
+            waiter.getLeaseSet().add(availableJob);
+        }
+        
+        return availableJob;
+    }
+    
+    
+    /**
+     * Stop a waiter from waiting for a task, if it still is.
+     * @param waiter - the waiter that is giving up, or has been handed a task.
+     * @return the task the waiter was handed, or null if it was not handed one.
+     */
+    public synchronized Task stopWaiting(TaskWaiter waiter)
+    {
+        m_waiters.remove(waiter);
+        return waiter.getTask();
+    }
+    
+    
+    /**
+     * Take the next available task and lock it.
+     * @return the task, or null if there are none available.
+     */
+    private Task takeAvailableTask()
+    {
+        if (m_isDraining)
+        {
+            return null;
+        }
+        
+        // Only once all the available tasks have been handed out do we check to see if any of 
+        // the processing tasks have exceeded their lock time limit. This gives them as much time 
+        // as possible to complete. Anybody already waiting gets the timed out tasks first.
+        if (m_availableTasks.isEmpty())
+        {
+            Debug.println("No tasks available, seeing if any timed out.");
+            expireLeases(Core.time(true));
+            serveWaiters();
+        }
+        
+        Task availableJob = m_availableTasks.poll();
+        
+        if (availableJob != null)
+        {
+            lockTask(availableJob);
+        }
+        
+        return availableJob;
+    }
+    
+    
+    /**
+     * Lock a task that has just been taken from the available tasks, and start its lease.
+     * @param task - the task that is being handed out.
+     */
+    private void lockTask(Task task)
+    {
+        try
+        {
+            task.lock();
+        }
+        catch (Exception e)
+        {
+            // Available tasks are never locked, so this would mean the queue is corrupt.
+            throw new IllegalStateException(e);
+        }
+        
+        startProcessing(task);
+    }
+    
+    
+    /**
+     * Move a task that has just been locked into the processing tasks, and start its lease.
+     * @param task - the task that has been locked.
+     */
+    private void startProcessing(Task task)
+    {
+        m_processingTasks.add(task.getId());
+        
+        if (task.getMaxLockTime() != 0) // 0 means we can have infinite lock
+        {
+            task.setLeaseDeadline(getLeaseDeadline(task.getLockTime(), task.getMaxLockTime()));
+            m_leases.add(task);
+        }
+        
+        if (m_journal != null)
+        {
+            m_journal.recordLease(task);
+        }
+    }
+    
+    
+    /**
+     * Work out when a lease that starts at the given time runs out. This saturates rather than 
+     * overflowing, as the DEFAULT_MAX_LOCK_TIME setting is not capped like a task's own limit is.
+     * @param startTime - when the lease starts (ms since the epoch)
+     * @param maxLockTime - how long the lease lasts (ms)
+     * @return the time at which the lease expires.
+     */
+    private static long getLeaseDeadline(long startTime, long maxLockTime)
+    {
+        long deadline = startTime + maxLockTime;
+        return (deadline < startTime) ? Long.MAX_VALUE : deadline;
+    }
+    
+    
+    /**
+     * Hand out available tasks to the waiters, in the order they started waiting, until we run
+     * out of one or the other. This must be called whenever tasks have been made available.
+     */
+    private void serveWaiters()
+    {
+        if (!m_waiters.isEmpty() && !m_isDraining)
+        {
+            while (!m_waiters.isEmpty() && !m_availableTasks.isEmpty())
+            {
+                Iterator<TaskConsumer> waiterIterator = m_waiters.iterator();
+                TaskConsumer waiter = waiterIterator.next();
+                waiterIterator.remove();
+                
+                Task task = m_availableTasks.poll();
+                lockTask(task);
+                
+                if (waiter.handOff(task))
+                {
+                    // Subscriptions with credit left go to the back, so they all get a fair share.
+                    m_waiters.add(waiter);
+                }
+            }
+            
+            scheduleLeaseCheck();
+        }
+    }
+    
+    
+    /**
+     * Stop handing out tasks, for good, because the scheduler is shutting down. Anybody asking for
+     * a task is told that there are none available, and the waiters and subscriptions are left 
+     * waiting. The tasks that are already being processed can still be completed or rejected.
+     */
+    public synchronized void stopHandingOut()
+    {
+        m_isDraining = true;
+    }
+    
+    
+    /**
+     * Start pushing tasks to a subscription, or change how many tasks it may have at once. Any
+     * tasks that are available are pushed to it straight away.
+     * @param subscription - the subscription.
+     * @param numCredits - the most tasks the subscription may have at once.
+     */
+    public synchronized void subscribe(Subscription subscription, int numCredits)
+    {
+        m_waiters.remove(subscription);
+        subscription.setNumCredits(numCredits);
+        subscription.setActive(true);
+        
+        if (subscription.hasCredit())
+        {
+            m_waiters.add(subscription);
+            serveWaiters();
+        }
+    }
+    
+    
+    /**
+     * Stop pushing tasks to a subscription. The tasks that have already been pushed to it are left
+     * with it to complete.
+     * @param subscription - the subscription to stop.
+     */
+    public synchronized void unsubscribe(Subscription subscription)
+    {
+        subscription.setActive(false);
+        m_waiters.remove(subscription);
+    }
+    
+    
+    /**
+     * Put back all the tasks that a connection had been handed and had not finished, now that the
+     * connection has gone away, so that others can work on them. If the leases are those of a 
+     * subscription, it stops being pushed tasks. This may safely be called more than once.
+     * @param leaseSet - the leases of the connection that has gone away.
+     */
+    public synchronized void releaseLeases(LeaseSet leaseSet)
+    {
+        leaseSet.close();
+        m_waiters.remove(leaseSet);
+        
+        for (int taskId : leaseSet.getTaskIds())
+        {
+            Task task = m_tasks.get(taskId);
+            
+            if (task != null && task.getLeaseSet() == leaseSet)
+            {
+                requeueTask(task);
+            }
+        }
+        
+        serveWaiters();
+    }
+    
+    
+    /**
+     * Remove a task from the leases of the connection it was handed to, now that the task is no 
+     * longer being processed (e.g. it was completed, rejected or timed out). If the connection
+     * had subscribed, this gives it back the task's credit. This must be called whenever a task 
+     * stops being processed.
+     * @param task - the task that is no longer being processed.
+     */
+    private void releaseLease(Task task)
+    {
+        LeaseSet leaseSet = task.getLeaseSet();
+        
+        if (leaseSet != null)
+        {
+            task.setLeaseSet(null);
+            TaskConsumer consumer = leaseSet.remove(task);
+            
+            if (consumer != null)
+            {
+                m_waiters.add(consumer);
+            }
+        }
+    }
+    
+    
+    /**
+     * Make sure that the lease timer will check this queue when the next lease runs out, if there
+     * is anybody waiting for a task.
+     */
+    private void scheduleLeaseCheck()
+    {
+        if (!m_waiters.isEmpty() && !m_leases.isEmpty())
+        {
+            long nextDeadline = m_leases.peek().getLeaseDeadline();
+            
+            if (m_leaseCheckTime == 0 || nextDeadline < m_leaseCheckTime)
+            {
+                // Leases expire once the time is past their deadline.
+                m_leaseCheckTime = nextDeadline;
+                long delay = nextDeadline + 1 - Core.time(true);
+                s_leaseTimer.schedule(this::checkLeases, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    
+    /**
+     * Run by the lease timer, to hand the tasks whose leases have run out to the waiters.
+     */
+    private synchronized void checkLeases()
+    {
+        m_leaseCheckTime = 0;
+        
+        if (!m_waiters.isEmpty())
+        {
+            expireLeases(Core.time(true));
+            serveWaiters();
+        }
+    }
+    
+    
+    private static ScheduledThreadPoolExecutor createLeaseTimer()
+    {
+        return new ScheduledThreadPoolExecutor(1, (Runnable runnable) ->
+        {
+            Thread thread = new Thread(runnable, "lease-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    
+    /**
+     * Renew the locks on a batch of tasks that are being processed, so that they are not considered
+     * lost. Each lock is extended to the tasks own lock time limit from now. This is handled under
+     * a single acquisition of the queue lock so that workers can heartbeat all their tasks at once.
+     * @param taskIds - the ids of the tasks whose locks we are renewing
+     * @param lockHighs - the most significant 64 bits of the lock of each task (see LockToken)
+     * @param lockLows - the least significant 64 bits of the lock of each task
+     * @return the error message for each task that could not be renewed, or null where it was.
+     */
+    public synchronized String[] extendLeases(int[] taskIds, long[] lockHighs, long[] lockLows)
+    {
+        String[] errors = new String[taskIds.length];
+        long timeNow = Core.time(true);
+        
+        // A lock that has already timed out cannot be renewed, as it may be handed out again.
+        expireLeases(timeNow);
+        
+        for (int i = 0; i < taskIds.length; i++)
+        {
+            Task task = m_tasks.get(taskIds[i]);
+            
+            if (task == null || !m_processingTasks.contains(taskIds[i]))
+            {
+                errors[i] = "Task not found in processing list.";
+            }
+            else if (!task.hasLock(lockHighs[i], lockLows[i]))
+            {
+                errors[i] = "The lock provided was incorrect";
+            }
+            else if (task.getMaxLockTime() != 0)
+            {
+                task.setLeaseDeadline(getLeaseDeadline(timeNow, task.getMaxLockTime()));
+                m_leases.update(task);
+            }
+        }
+        
+        serveWaiters();
+        return errors;
+    }
+    
+    
+    /**
+     * Unlock any tasks whose lock has passed its deadline and make them available for others to
+     * work on. This only has to look at the tasks that have actually timed out, because the 
+     * leases are kept in order of when they expire.
+     * @param timeNow - the current time in milliseconds.
+     */
+    private void expireLeases(long timeNow)
+    {
+        Task expiredTask = m_leases.pollExpired(timeNow);
+        
+        while (expiredTask != null)
+        {
+            System.out.println("Unlocking a task that has passed age limit.");
+            requeueTask(expiredTask);
+            expiredTask = m_leases.pollExpired(timeNow);
+        }
+    }
+    
+    
+    /**
+     * Take a task that is being processed, unlock it and put it back into the available tasks.
+     * @param task - the task that is being processed.
+     */
+    private void requeueTask(Task task)
+    {
+        m_processingTasks.remove(task.getId());
+        m_leases.remove(task);
+        releaseLease(task);
+        task.unlock(task.getLockHigh(), task.getLockLow());
+        m_availableTasks.add(task);
+        
+        if (m_journal != null)
+        {
+            m_journal.recordRequeue(task);
+        }
+    }
+    
+    
+    /**
+     * Callback for when a task has been completed. This allows us to mark the job as completed, thus 
+     * freeing other processes that had it as a dependency.
+     * 
+     * @param completed_task_id - the ID of the job we want to state has finished.
+     * @param lockHigh - the most significant 64 bits of the lock which locked the task (proving 
+     *                   correct server unlocking it). See LockToken.
+     * @param lockLow - the least significant 64 bits of the lock which locked the task.
+     * @throws java.lang.Exception if the wrong lock was provided.
+     */
+    public synchronized void completeTask(Integer completed_task_id, 
+                                          long lockHigh, 
+                                          long lockLow) throws Exception
+    {
+        Task job = m_tasks.get(completed_task_id);
+        
+        if (m_processingTasks.contains(completed_task_id) && job.hasLock(lockHigh, lockLow))
+        {
+            finishTask(job);
+            serveWaiters();
+        }
+        else
+        {
+            // Throw an exception here
+            // If you get this error, it is likely that two things completed a task because your
+            // MAX_LOCK_TIME is too short and a task took longer than that to complete.
+            throw new Exception(INCORRECT_LOCK);
+        }
+    }
+    
+    
+    /**
+     * Mark a batch of tasks as having been completed, under a single acquisition of the queue 
+     * lock. The dependents of all of them are released before any waiters are served, so the
+     * waiters are handed the newly available tasks in one pass.
+     * @param taskIds - the ids of the tasks that have been completed
+     * @param lockHighs - the most significant 64 bits of the lock of each task (see LockToken)
+     * @param lockLows - the least significant 64 bits of the lock of each task
+     * @return the error message for each task that could not be completed, or null where it was.
+     */
+    public synchronized String[] completeTasks(int[] taskIds, long[] lockHighs, long[] lockLows)
+    {
+        String[] errors = new String[taskIds.length];
+        
+        for (int i = 0; i < taskIds.length; i++)
+        {
+            Task job = m_tasks.get(taskIds[i]);
+            
+            if (m_processingTasks.contains(taskIds[i]) && job.hasLock(lockHighs[i], lockLows[i]))
+            {
+                finishTask(job);
+            }
+            else
+            {
+                errors[i] = INCORRECT_LOCK;
+            }
+        }
+        
+        serveWaiters();
+        return errors;
+    }
+    
+    
+    /**
+     * Remove a task that has been completed, freeing the tasks that had it as a dependency. This 
+     * does not serve the waiters, so that the caller can release several tasks first.
+     * @param job - the task that has been completed, which is being processed.
+     */
+    private void finishTask(Task job)
+    {
+        m_processingTasks.remove(job.getId());
+        m_leases.remove(job);
+        releaseLease(job);
+        
+        if (m_journal != null)
+        {
+            m_journal.recordComplete(job);
+        }
+        
+        // Find the tasks that were dependent on that process being finished, and see if they 
+        // are now available to start work.
+        int[] dependent_task_ids = job.getDependents();
+        
+        for (int i = 0; i < job.getDependentCount(); i++) 
+        {
+            Task dependent_task = m_tasks.get(dependent_task_ids[i]);
+            
+            // The dependent may have been removed since it was added.
+            if (dependent_task != null)
+            {
+                int previousRemaining = dependent_task.getRemainingDependencyCount();
+                dependent_task.removeDependency();
+                
+                if (dependent_task.isReady())
+                {
+                    m_availableTasks.add(dependent_task);
+                }
+                else
+                {
+                    // The dependent is now closer to being freed, which raises the blockage
+                    // rating of every other task it is still waiting on.
+                    long ratingChange = 
+                        Task.getBlockageContribution(previousRemaining - 1) 
+                        - Task.getBlockageContribution(previousRemaining);
+                    
+                    for (int impediment_id : dependent_task.getDependencies())
+                    {
+                        Task impediment = m_tasks.get(impediment_id);
+                        
+                        if (impediment != null && impediment != job)
+                        {
+                            impediment.adjustBlockageRating(ratingChange);
+                            m_availableTasks.update(impediment);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Remove the task object from the system at the very end.
+        removeFromGroup(job);
+        m_tasks.remove(job.getId());
+    }
+    
+    
+    /**
+     * Function to return information about this object for general info on the schedule
+     * @return info - this object in JsonObject form.
+     */
+    public synchronized JsonObject getInfo()
+    {
+        JsonObject info = new JsonObject();
+        ArrayList<Task> processingTasks = new ArrayList<>();
+        ArrayList<Task> waitingTasks = new ArrayList<>();
+        
+        for (int processing_task_id : m_processingTasks.toArray())
+        {
+            processingTasks.add(m_tasks.get(processing_task_id));
+        }
+        
+        for (Task task : m_tasks.values())
+        {
+            if (!task.isReady())
+            {
+                waitingTasks.add(task);
+            }
+        }
+        
+        info = addTaskCollectionToJsonObject(info, "tasks",            m_tasks.values());
+        info = addTaskCollectionToJsonObject(info, "available_tasks",  m_availableTasks);
+        info = addTaskCollectionToJsonObject(info, "processing_tasks", processingTasks);
+        info = addTaskCollectionToJsonObject(info, "dependencies",     waitingTasks);
+        
+        return info;
+    }
+    
+    
+    /**
+     * Given a collection of Tasks, serialize them and put them into a JSON object with the 
+     * specified name.
+     * @param obj - the json Object we are adding the list to
+     * @param name - the name of the list/collection
+     * @param collection - the collection that has all the tasks.
+     * @return obj - the modified json object
+     */
+    private JsonObject addTaskCollectionToJsonObject(JsonObject obj, 
+                                                     String name, 
+                                                     Iterable collection)
+    {
+        Gson gson = new Gson();
+        JsonArray serializedTaskArray = new JsonArray();
+        
+        Iterator it = collection.iterator();
+        
+        while (it.hasNext())
+        {
+            Task task = (Task)it.next();
+            JsonPrimitive element = new JsonPrimitive(task.jsonSerialize().toString());
+            serializedTaskArray.add(element);
+        }
+        
+        obj.add(name, serializedTaskArray);
+        
+        return obj;
+    }
+    
+    
+    /**
+     * Given a collection of Tasks, serialize them an put them into a json object with the 
+     * specified name.
+     * @param obj - the json Object we are adding the list to
+     * @param name - the name of the list/collection
+     * @param collection - the collection that has all the tasks.
+     * @return obj - the modified json object
+     */
+    private JsonObject addIntegerCollectionToJsonObject(JsonObject obj, 
+                                                        String name, 
+                                                        Collection collection)
+    {
+        Gson gson = new Gson();
+        ArrayList<String> serializedTaskArray = new ArrayList<>(); 
+        
+        for (Object taskIdObject : collection)
+        {
+            Integer taskId = (Integer) taskIdObject;
+
             Task task = m_tasks.get(taskId);
             serializedTaskArray.add(task.jsonSerialize().getAsString());
         }
-       
-        String serializedTasksString = gson.toJson(serializedTaskArray);
-        obj.add(name, new JsonPrimitive(serializedTasksString));
+       
+        String serializedTasksString = gson.toJson(serializedTaskArray);
+        obj.add(name, new JsonPrimitive(serializedTasksString));
+        
+        return obj;
+    }
+    
+    
+    /**
+     * Fetches a list of all the task IDs that are dependent on the specified task being finished
+     * before they can be marked as available to work on.
+     * @param task_id - the id of the task we wish to fetch the dependency list for
+     * @return array list of task IDs dependent on the specified task being completed.
+     */
+    public synchronized ArrayList<Integer> getDependencyList(Integer task_id)
+    {
+        ArrayList<Integer> dependents = new ArrayList();
+        Task task = m_tasks.get(task_id);
+        
+        if (task != null)
+        {
+            int[] dependent_task_ids = task.getDependents();
+            
+            for (int i = 0; i < task.getDependentCount(); i++)
+            {
+                // Skip over any dependents that have been removed since they were added.
+                if (m_tasks.containsKey(dependent_task_ids[i]))
+                {
+                    dependents.add(dependent_task_ids[i]);
+                }
+            }
+        }
+        
+        return dependents;
+    }
+    
+    
+    /**
+     * Converts a task ID into a Task object. THis only works if the task is in this objects tasks
+     * list.
+     * @param task_id - the ID of the task we want to fetch
+     * @return Task the task that has the specified ID.
+     * @throws Exception if the task with that ID does not exist.
+     */
+    public synchronized Task getTaskFromId(Integer task_id) throws Exception
+    {
+        Task task = null;
+        
+        if (m_tasks.containsKey(task_id))
+        {
+            task = m_tasks.get(task_id);
+        }
+        else
+        {            
+            throw new Exception("get_task_from_id: specified task id does not exist.");
+        }
+        
+        return task;
+    }
+    
+    
+    /**
+     * Lock an available task with the lock it was handed out with before, when replaying the 
+     * journal. Only to be used whilst restoring the queue.
+     * @param task_id - the id of the task that was handed out.
+     * @param lockHigh - the most significant 64 bits of its lock (see LockToken)
+     * @param lockLow - the least significant 64 bits of its lock
+     * @throws Exception if the task is not available.
+     */
+    public synchronized void restoreLease(int task_id, long lockHigh, long lockLow) throws Exception
+    {
+        Task task = m_tasks.get(task_id);
+        
+        if (task == null || !m_availableTasks.remove(task))
+        {
+            throw new Exception("Journal leases task [" + task_id + "] which is not available.");
+        }
+        
+        task.lock(lockHigh, lockLow);
+        startProcessing(task);
+    }
+    
+    
+    /**
+     * Put a task that was being processed back into the available tasks, or mark it as completed,
+     * when replaying the journal. Only to be used whilst restoring the queue.
+     * @param task_id - the id of the task that was being processed.
+     * @param isCompleted - true if it was completed, false if it was put back.
+     * @throws Exception if the task is not being processed.
+     */
+    public synchronized void restoreProcessedTask(int task_id, boolean isCompleted) throws Exception
+    {
+        if (!m_processingTasks.contains(task_id))
+        {
+            throw new Exception("Journal finishes task [" + task_id + "] which is not being processed.");
+        }
+        
+        if (isCompleted)
+        {
+            finishTask(m_tasks.get(task_id));
+        }
+        else
+        {
+            requeueTask(m_tasks.get(task_id));
+        }
+    }
+    
+    
+    /**
+     * Copy the whole state of the queue into a snapshot, and start the next generation of the 
+     * journal for the changes that are made after it, under a single acquisition of the queue 
+     * lock so that the two match up exactly. Writing the snapshot to disk is left to the caller, 
+     * once the lock has been released (see Snapshot.save).
+     * @param output - where to copy the queue to.
+     * @return the journal that the changes up to now were recorded in, which the snapshot 
+     *         replaces, or null if the queue is not journaled.
+     * @throws IOException if the next journal can not be created.
+     */
+    public Journal copyToSnapshot(Snapshot.Output output) throws IOException
+    {
+        // Creating the next journal waits for its file to be synced, which would hold up every 
+        // request to the queue if it was done whilst holding the lock. Only the switch is locked.
+        Journal previousJournal = getJournal();
+        Journal nextJournal = (previousJournal == null) ? null : previousJournal.createNext();
+        long generation = 0;
+        boolean isSameJournal;
+        
+        synchronized (this)
+        {
+            isSameJournal = (m_journal == previousJournal);
+            
+            if (isSameJournal)
+            {
+                if (nextJournal != null)
+                {
+                    nextJournal.takeOver(previousJournal);
+                    m_journal = nextJournal;
+                    generation = nextJournal.getGeneration();
+                }
+                
+                copyTasks(output, generation);
+            }
+        }
+        
+        if (!isSameJournal)
+        {
+            // The journal was switched by someone else in the meantime, so ours is of no use.
+            if (nextJournal != null)
+            {
+                nextJournal.discard();
+            }
+            
+            throw new IOException("The journal of queue [" + m_name + "] changed during the snapshot");
+        }
+        
+        return previousJournal;
+    }
+    
+    
+    /**
+     * Start sending the changes to this queue to a follower, after first sending it a copy of the 
+     * queue as it is now. The copy is made whilst holding the queue lock, so that the changes carry
+     * on from it exactly. Does nothing if the follower already has the queue, or the queue is not
+     * journaled.
+     * @param follower - the follower.
+     */
+    public synchronized void addFollower(FollowerConnection follower)
+    {
+        if (m_journal != null && !m_journal.hasFollower(follower))
+        {
+            Snapshot.Output output = new Snapshot.Output();
+            copyTasks(output, m_journal.getGeneration());
+            m_journal.addFollower(follower, output);
+        }
+    }
+    
+    
+    /**
+     * Copy every task in the queue, and the queue's own state, into a snapshot. Only to be called
+     * whilst holding the queue lock.
+     */
+    private void copyTasks(Snapshot.Output output, long generation)
+    {
+        byte flags = 0;
+        flags |= m_useCriticalPath ? Snapshot.FLAG_CRITICAL_PATH : 0;
+        flags |= m_usePriorityInheritance ? Snapshot.FLAG_PRIORITY_INHERITANCE : 0;
+        output.writeQueue(generation, m_name, m_taskCounter, flags, m_tasks.size());
+        
+        int[] dependents = new int[16];
+        
+        for (Task task : m_tasks.values())
+        {
+            // Only the dependents that are still in the queue are kept.
+            int[] dependent_task_ids = task.getDependents();
+            int numDependents = 0;
+            
+            if (dependents.length < task.getDependentCount())
+            {
+                dependents = new int[task.getDependentCount()];
+            }
+            
+            for (int i = 0; i < task.getDependentCount(); i++)
+            {
+                if (m_tasks.containsKey(dependent_task_ids[i]))
+                {
+                    dependents[numDependents] = dependent_task_ids[i];
+                    numDependents++;
+                }
+            }
+            
+            output.writeTask(task, dependents, numDependents, m_processingTasks.contains(task.getId()));
+        }
+    }
+    
+    
+    /**
+     * Fill an empty queue with the tasks from a snapshot, and work out everything that is not 
+     * kept in the snapshot: the available tasks, the group index and the blockage ratings, 
+     * critical paths and inherited priorities. Only to be used whilst restoring the queue.
+     * @param taskCounter - the id that the next task will be given.
+     * @param tasks - the tasks, which already know their dependents. The tasks that were being
+     *                processed are already locked.
+     * @param useCriticalPath - whether the queue used critical path scheduling.
+     * @param usePriorityInheritance - whether the queue used priority inheritance.
+     */
+    public synchronized void restoreFromSnapshot(int taskCounter, 
+                                                 Task[] tasks, 
+                                                 boolean useCriticalPath, 
+                                                 boolean usePriorityInheritance)
+    {
+        m_taskCounter = taskCounter;
+        ArrayList<Task> readyTasks = new ArrayList<>();
+        
+        for (Task task : tasks)
+        {
+            m_tasks.put(task.getId(), task);
+            addToGroup(task);
+            
+            if (task.isLocked())
+            {
+                startProcessing(task);
+            }
+            else if (task.isReady())
+            {
+                readyTasks.add(task);
+            }
+        }
+        
+        for (Task task : tasks)
+        {
+            if (!task.isReady())
+            {
+                long blockageContribution = 
+                    Task.getBlockageContribution(task.getRemainingDependencyCount());
+                
+                for (int impediment_id : task.getDependencies())
+                {
+                    Task impediment = m_tasks.get(impediment_id);
+                    
+                    if (impediment != null)
+                    {
+                        impediment.adjustBlockageRating(blockageContribution);
+                    }
+                }
+            }
+        }
+        
+        // The policies work out the values they need for every task when they are switched on, 
+        // so the heap is only built once they have been.
+        m_useCriticalPath = false;
+        m_usePriorityInheritance = false;
+        setCriticalPathScheduling(useCriticalPath);
+        setPriorityInheritance(usePriorityInheritance);
+        m_availableTasks.addAll(readyTasks);
+    }
+    
+    
+    /**
+     * Put every task that is being processed back into the available tasks. This is done once a 
+     * queue has been restored from the journal, as the workers that had the tasks were connected
+     * to the scheduler that went away, so nobody is working on them any more.
+     */
+    public synchronized void requeueProcessingTasks()
+    {
+        for (int task_id : m_processingTasks.toArray())
+        {
+            requeueTask(m_tasks.get(task_id));
+        }
+        
+        serveWaiters();
+    }
+    
+    
+    /**
+     * Rejects the task. This results in the task being moved from the processing list to the 
+     * available task list and re-sorting the available task list.
+     * @param rejected_task_id - the id of the task we are rejecting
+     * @param lockHigh - the most significant 64 bits of the lock that was used to lock the task 
+     *                   when fetched. See LockToken.
+     * @param lockLow - the least significant 64 bits of the lock.
+     * @throws java.lang.Exception if the lock provided was incorrect.
+     */
+    public synchronized void rejectTask(Integer rejected_task_id, 
+                                        long lockHigh, 
+                                        long lockLow) throws Exception
+    {
+        System.out.println("Rejecting task.");
+        
+        if (!m_processingTasks.contains(rejected_task_id))
+        {
+            System.out.println("Task not found in processing list.");
+            throw new Exception("Task not found in processing list."); 
+        }
+        
+        System.out.println("Fetching rejected task");
+        Task rejectedTask = m_tasks.get(rejected_task_id);
+                
+        if (rejectedTask.hasLock(lockHigh, lockLow))
+        {
+            System.out.println("Removing rejected task from processing tasks");
+            requeueTask(rejectedTask);
+            serveWaiters();
+        }
+        else
+        {
+            // Throw an exception here
+            throw new Exception("The lock provided was incorrect");
+        }
+    }
+    
+    
+    /**
+     * Removes a task from the scheduler, wherever it is (available, processing, or waiting on
+     * dependencies). Tasks that depend upon it are NOT removed and will be left waiting on it.
+     * @param task_id - the id of the task we are removing
+     * @throws java.lang.Exception if the task does not exist.
+     */
+    public synchronized void removeTask(Integer task_id) throws Exception
+    {
+        Debug.println("Removing task.");
+        Task removalTask = m_tasks.get(task_id);
         
-        return obj;
+        if (removalTask == null)
+        {
+            Debug.println("Task not found!");
+            throw new Exception("Task not found!"); 
+        }
+        
+        if (m_journal != null)
+        {
+            m_journal.recordRemove(removalTask);
+        }
+        
+        // remove the task from the available tasks list if it exists
+        m_availableTasks.remove(removalTask);
+        
+        forgetTask(removalTask);
+        
+        // A subscription may have got its credit back.
+        serveWaiters();
     }
     
     
     /**
-     * Fetches a list of all the task IDs that are dependent on the specified task being finished
-     * before they can be marked as available to work on.
-     * @param task_id - the id of the task we wish to fetch the dependency list for
-     * @return array list of task IDs dependent on the specified task being completed.
+     * Remove all the tasks that belong to the specified group. The queue lock is only taken once
+     * and the tasks are looked up through the group index, so this is proportional to the size 
+     * of the group rather than the size of the queue.
+     * @param groupName - the name of the group to remove
+     * @return the number of tasks that were removed.
      */
-    public synchronized ArrayList<Integer> getDependencyList(Integer task_id)
+    public synchronized int removeGroup(String groupName)
     {
-        ArrayList<Integer> dependents = new ArrayList();
+        int numRemoved = 0;
+        IntHashSet groupTaskIds = m_groups.get(groupName);
         
-        if (m_dependencies.containsKey(task_id))
+        if (groupTaskIds != null)
         {
-            dependents = m_dependencies.get(task_id);
+            if (m_journal != null)
+            {
+                m_journal.recordRemoveGroup(groupName);
+            }
+            
+            ArrayList<Task> tasksToRemove = new ArrayList<>(groupTaskIds.size());
+            
+            for (int task_id : groupTaskIds.toArray())
+            {
+                tasksToRemove.add(m_tasks.get(task_id));
+            }
+            
+            // Take them all out of the available tasks in one go, rather than one at a time.
+            m_availableTasks.removeAll(tasksToRemove);
+            
+            for (Task task : tasksToRemove)
+            {
+                forgetTask(task);
+            }
+            
+            numRemoved = tasksToRemove.size();
+            serveWaiters();
         }
         
-        return dependents;
+        return numRemoved;
     }
     
     
     /**
-     * Converts a task ID into a Task object. THis only works if the task is in this objects tasks
-     * list.
-     * @param task_id - the ID of the task we want to fetch
-     * @return Task the task that has the specified ID.
-     * @throws Exception if the task with that ID does not exist.
+     * Cancel a task, and optionally every task that transitively depends upon it. This is for when
+     * a task has failed for good, and so nothing downstream of it can ever run. The whole subtree
+     * is found breadth-first and removed whilst only taking the queue lock once.
+     * @param task_id - the id of the task to cancel
+     * @param cascade - whether to also cancel everything that depends on the task. If false, this
+     *                  is the same as removeTask.
+     * @return the number of tasks that were removed.
+     * @throws java.lang.Exception if the task does not exist.
      */
-    public synchronized Task getTaskFromId(Integer task_id) throws Exception
+    public synchronized int cancelTask(Integer task_id, boolean cascade) throws Exception
     {
-        Task task = null;
+        int numRemoved = 1;
         
-        if (m_tasks.containsKey(task_id))
+        if (cascade)
         {
-            task = m_tasks.get(task_id);
+            Task rootTask = m_tasks.remove(task_id);
+            
+            if (rootTask == null)
+            {
+                Debug.println("Task not found!");
+                throw new Exception("Task not found!"); 
+            }
+            
+            if (m_journal != null)
+            {
+                m_journal.recordCancel(rootTask);
+            }
+            
+            // Take each task out of m_tasks as soon as it is found. This stops us visiting a task 
+            // twice when it depends on more than one task in the subtree, and means that tasks in 
+            // the subtree are already gone when forgetTask adjusts the blockage ratings of 
+            // impediments, so only the impediments outside the subtree are touched.
+            ArrayList<Task> cancelledTasks = new ArrayList<>();
+            cancelledTasks.add(rootTask);
+            
+            for (int i = 0; i < cancelledTasks.size(); i++)
+            {
+                Task task = cancelledTasks.get(i);
+                int[] dependent_task_ids = task.getDependents();
+                
+                for (int j = 0; j < task.getDependentCount(); j++)
+                {
+                    Task dependent_task = m_tasks.remove(dependent_task_ids[j]);
+                    
+                    if (dependent_task != null)
+                    {
+                        cancelledTasks.add(dependent_task);
+                    }
+                }
+            }
+            
+            m_availableTasks.removeAll(cancelledTasks);
+            
+            for (Task task : cancelledTasks)
+            {
+                forgetTask(task);
+            }
+            
+            numRemoved = cancelledTasks.size();
+            serveWaiters();
         }
         else
-        {            
-            throw new Exception("get_task_from_id: specified task id does not exist.");
+        {
+            removeTask(task_id);
         }
         
-        return task;
+        return numRemoved;
     }
     
     
     /**
-     * Rejects the task. This results in the task being moved from the processing list to the 
-     * available task list and re-sorting the available task list.
-     * @param rejected_task_id - the id of the task we are rejecting
-     * @param lock - the lock that was used to lock the task when fetched.
-     * @throws java.lang.Exception if the lock provided was incorrect.
+     * Remove a task from all of this queues collections other than the available tasks, which the 
+     * caller is expected to have taken care of.
+     * @param task - the task to remove.
      */
-    public synchronized void rejectTask(Integer rejected_task_id, String lock) throws Exception
+    private void forgetTask(Task task)
     {
-        System.out.println("Rejecting task.");
+        int task_id = task.getId();
         
-        if (!m_processingTasks.containsKey(rejected_task_id))
+        if (m_processingTasks.remove(task_id))
         {
-            System.out.println("Task not found in processing list.");
-            throw new Exception("Task not found in processing list."); 
+            Debug.println("Removed task from processing tasks");
+            m_leases.remove(task);
+            releaseLease(task);
         }
         
-        System.out.println("Fetching rejected task");
-        Task rejectedTask = m_tasks.get(rejected_task_id);
+        // The tasks this one was waiting on no longer help free it up, so remove its share of 
+        // their blockage rating.
+        if (!task.isReady())
+        {
+            long blockageContribution = 
+                Task.getBlockageContribution(task.getRemainingDependencyCount());
+            
+            for (int impediment_id : task.getDependencies())
+            {
+                Task impediment = m_tasks.get(impediment_id);
                 
-        if (rejectedTask.unlock(lock))
+                if (impediment != null)
+                {
+                    impediment.adjustBlockageRating(-blockageContribution);
+                    m_availableTasks.update(impediment);
+                }
+            }
+        }
+        
+        removeFromGroup(task);
+        
+        // Impediments still list this task as a dependent, but they skip over ids that are no 
+        // longer in m_tasks, so it can never be made available again.
+        m_tasks.remove(task_id);
+        
+        if (m_useCriticalPath && !task.isReady())
         {
-            System.out.println("Removing rejected task from processing tasks");
-            m_processingTasks.remove(rejected_task_id);
-            m_availableTasks.add(rejectedTask);
+            lowerCriticalPaths(task);
         }
-        else
+        
+        if (m_usePriorityInheritance && !task.isReady())
         {
-            // Throw an exception here
-            throw new Exception("The lock provided was incorrect");
+            lowerInheritedPriorities(task);
         }
     }
     
     
     /**
-     * Rejects the task. This results in the task being moved from the processing list to the 
-     * available task list and re-sorting the available task list.
-     * @param task_id - the id of the task we are rejecting
-     * @throws java.lang.Exception if the lock provided was incorrect.
+     * Switch the way tasks of the same priority are ordered. With critical path scheduling, the
+     * task with the longest chain of tasks waiting on it goes first, which finishes deep DAGs 
+     * sooner for the same number of workers. Otherwise the blockage rating is used, which only 
+     * looks at the tasks directly waiting on each task.
+     * @param useCriticalPath - whether to use critical path scheduling.
      */
-    public synchronized void removeTask(Integer task_id) throws Exception
+    public synchronized void setCriticalPathScheduling(boolean useCriticalPath)
+    {
+        if (useCriticalPath != m_useCriticalPath)
+        {
+            m_useCriticalPath = useCriticalPath;
+            
+            if (m_journal != null)
+            {
+                m_journal.recordCriticalPathScheduling(useCriticalPath);
+            }
+            
+            if (useCriticalPath)
+            {
+                // The lengths are not maintained whilst the policy is off, so work them all out. 
+                // A task can only depend on tasks that were added before it, so going through the 
+                // tasks newest first means all of a task's dependents are done before the task.
+                int[] task_ids = m_tasks.keys();
+                Arrays.sort(task_ids);
+                
+                for (int i = task_ids.length - 1; i >= 0; i--)
+                {
+                    Task task = m_tasks.get(task_ids[i]);
+                    task.setCriticalPathLength(calculateCriticalPathLength(task));
+                }
+            }
+            
+            rebuildAvailableTasks();
+        }
+    }
+    
+    
+    /**
+     * Switch priority inheritance on or off. With it on, a task is scheduled with the priority of 
+     * the most important task that is waiting on it (directly or indirectly) if that is higher 
+     * than its own. The priority that was given to the task is left untouched.
+     * @param usePriorityInheritance - whether tasks should inherit priority from their dependents.
+     */
+    public synchronized void setPriorityInheritance(boolean usePriorityInheritance)
+    {
+        if (usePriorityInheritance != m_usePriorityInheritance)
+        {
+            m_usePriorityInheritance = usePriorityInheritance;
+            
+            if (m_journal != null)
+            {
+                m_journal.recordPriorityInheritance(usePriorityInheritance);
+            }
+            
+            int[] task_ids = m_tasks.keys();
+            Arrays.sort(task_ids);
+            
+            // As with critical paths, going newest first means a task's dependents are done first.
+            for (int i = task_ids.length - 1; i >= 0; i--)
+            {
+                Task task = m_tasks.get(task_ids[i]);
+                
+                if (usePriorityInheritance)
+                {
+                    task.setEffectivePriority(calculateInheritedPriority(task));
+                }
+                else
+                {
+                    task.setEffectivePriority(task.getPriority());
+                }
+            }
+            
+            rebuildAvailableTasks();
+        }
+    }
+    
+    
+    /**
+     * Put the available tasks into a new heap, after the ordering has changed for all of them. The
+     * type of heap depends on the scheduling policy.
+     */
+    private void rebuildAvailableTasks()
     {
-        System.out.println("Removing task.");
+        ArrayList<Task> availableTasks = new ArrayList<>(m_availableTasks.size());
         
-        if (!m_tasks.containsKey(task_id))
+        for (Task task : m_availableTasks)
         {
-            System.out.println("Task not found!");
-            throw new Exception("Task not found!"); 
+            availableTasks.add(task);
         }
         
-        System.out.println("Fetching task to remove");
-        Task removalTask = m_tasks.get(task_id);
+        m_availableTasks.clear();
+        m_availableTasks = m_useCriticalPath ? new CriticalPathTaskHeap() : new IndexedTaskHeap();
+        
+        // The new heap is empty, so this heapifies them in O(n) rather than adding them one by one.
+        m_availableTasks.addAll(availableTasks);
+    }
+    
+    
+    /**
+     * Work out the priority a task should inherit from its dependents, which must already have the
+     * correct effective priority.
+     * @param task - the task to calculate the priority for.
+     * @return the highest of the task's own priority and the effective priorities of its dependents.
+     */
+    private int calculateInheritedPriority(Task task)
+    {
+        int inheritedPriority = task.getPriority();
+        int[] dependent_task_ids = task.getDependents();
         
-        if (m_processingTasks.containsKey(task_id))
+        for (int i = 0; i < task.getDependentCount(); i++)
         {
-            System.out.println("Removing task from processing tasks");
-            m_processingTasks.remove(task_id);
+            Task dependent_task = m_tasks.get(dependent_task_ids[i]);
+            
+            if (dependent_task != null)
+            {
+                inheritedPriority = Math.max(inheritedPriority, 
+                                             dependent_task.getEffectivePriority());
+            }
         }
         
-        // remove the task from the available tasks list if it exists
-        m_availableTasks.remove(removalTask);
+        return inheritedPriority;
+    }
+    
+    
+    /**
+     * Pass the priority of a newly added task up to the tasks it is waiting on, and their 
+     * impediments in turn. We stop going up a branch as soon as a task already has at least that 
+     * priority, so this only touches the tasks that actually need boosting.
+     * @param newTask - the task that was just added.
+     */
+    private void raiseInheritedPriorities(Task newTask)
+    {
+        int priority = newTask.getEffectivePriority();
+        ArrayList<Task> tasksToVisit = new ArrayList<>();
+        tasksToVisit.add(newTask);
+        
+        while (!tasksToVisit.isEmpty())
+        {
+            Task task = tasksToVisit.remove(tasksToVisit.size() - 1);
+            
+            for (int impediment_id : task.getDependencies())
+            {
+                Task impediment = m_tasks.get(impediment_id);
+                
+                if (impediment != null && impediment.getEffectivePriority() < priority)
+                {
+                    impediment.setEffectivePriority(priority);
+                    m_availableTasks.update(impediment);
+                    tasksToVisit.add(impediment);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Undo the priority boost that a removed task gave to the tasks it was waiting on. Only the 
+     * tasks that were boosted to exactly the removed task's priority can have got it from that 
+     * task, so only those are recalculated, and we stop going up a branch as soon as a task's 
+     * priority does not change.
+     * Completing a task never requires this, as nothing it was waiting on is left by then.
+     * @param removedTask - the task that was removed. This must already be out of m_tasks.
+     */
+    private void lowerInheritedPriorities(Task removedTask)
+    {
+        int removedPriority = removedTask.getEffectivePriority();
+        ArrayList<Task> tasksToVisit = new ArrayList<>();
+        tasksToVisit.add(removedTask);
+        
+        while (!tasksToVisit.isEmpty())
+        {
+            Task task = tasksToVisit.remove(tasksToVisit.size() - 1);
+            
+            for (int impediment_id : task.getDependencies())
+            {
+                Task impediment = m_tasks.get(impediment_id);
+                
+                if (impediment != null && impediment.getEffectivePriority() == removedPriority)
+                {
+                    int newPriority = calculateInheritedPriority(impediment);
+                    
+                    if (newPriority < removedPriority)
+                    {
+                        impediment.setEffectivePriority(newPriority);
+                        m_availableTasks.update(impediment);
+                        tasksToVisit.add(impediment);
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Work out the critical path length of a task from its dependents, which must already have
+     * the correct value.
+     * @param task - the task to calculate the length for.
+     * @return the number of tasks in the longest chain from this task down (including itself).
+     */
+    private int calculateCriticalPathLength(Task task)
+    {
+        int longestDependentPath = 0;
+        int[] dependent_task_ids = task.getDependents();
         
-        if (m_dependencies.containsKey(task_id))
+        for (int i = 0; i < task.getDependentCount(); i++)
         {
-            m_dependencies.remove(task_id);
+            Task dependent_task = m_tasks.get(dependent_task_ids[i]);
+            
+            if (dependent_task != null)
+            {
+                longestDependentPath = Math.max(longestDependentPath, 
+                                                dependent_task.getCriticalPathLength());
+            }
         }
+        
+        return longestDependentPath + 1;
     }
     
     
     /**
-     * Remove all the tasks that belong to the specified group.
-     * Perhaps one day we will have an additionl collection for lookups of this.
-     * @param groupName 
-     * @throws Exception if we tried to remove a task that does not exist. This should never happen
+     * Push the critical path length of a newly added task up through the tasks it is waiting on.
+     * This stops going up a branch as soon as a task's length does not change, so it only touches
+     * the tasks whose critical path actually got longer.
+     * @param newTask - the task that was just added.
      */
-    public synchronized void removeGroup(String groupName) throws Exception
+    private void raiseCriticalPaths(Task newTask)
     {
-        Collection<Task> tasks = m_tasks.values();
-        ArrayList<Integer> tasksToRemove = new ArrayList<>();
+        ArrayList<Task> tasksToVisit = new ArrayList<>();
+        tasksToVisit.add(newTask);
         
-        for (Task task : tasks) 
+        while (!tasksToVisit.isEmpty())
         {
-            if (task.getGroup().equals(groupName))
+            Task task = tasksToVisit.remove(tasksToVisit.size() - 1);
+            int impedimentPathLength = task.getCriticalPathLength() + 1;
+            
+            for (int impediment_id : task.getDependencies())
             {
-                // we dont just remove the task from inside the iterator because that would change
-                // the collection whilst we are in the midst of looping over it.
-                tasksToRemove.add(task.getId());
+                Task impediment = m_tasks.get(impediment_id);
+                
+                if (impediment != null && impediment.getCriticalPathLength() < impedimentPathLength)
+                {
+                    impediment.setCriticalPathLength(impedimentPathLength);
+                    m_availableTasks.update(impediment);
+                    tasksToVisit.add(impediment);
+                }
             }
         }
+    }
+    
+    
+    /**
+     * Shorten the critical paths that went through a task that has just been removed. Only the
+     * tasks whose longest chain went through the removed task are recalculated, and we stop going 
+     * up a branch as soon as a task's length does not change.
+     * Completing a task never requires this, as a task is only handed out once everything it was
+     * waiting on has been completed, so it can not be on the critical path of anything left.
+     * @param removedTask - the task that was removed. This must already be out of m_tasks.
+     */
+    private void lowerCriticalPaths(Task removedTask)
+    {
+        // The tasks whose length went down, along with what their length used to be, as that is 
+        // what the lengths of the tasks they are waiting on were worked out from.
+        ArrayList<Task> tasksToVisit = new ArrayList<>();
+        ArrayList<Integer> oldPathLengths = new ArrayList<>();
+        tasksToVisit.add(removedTask);
+        oldPathLengths.add(removedTask.getCriticalPathLength());
         
-        for (Integer task_id : tasksToRemove)
+        while (!tasksToVisit.isEmpty())
+        {
+            Task task = tasksToVisit.remove(tasksToVisit.size() - 1);
+            int oldImpedimentPathLength = oldPathLengths.remove(oldPathLengths.size() - 1) + 1;
+            
+            for (int impediment_id : task.getDependencies())
+            {
+                Task impediment = m_tasks.get(impediment_id);
+                
+                if (impediment != null && impediment.getCriticalPathLength() == oldImpedimentPathLength)
+                {
+                    int newPathLength = calculateCriticalPathLength(impediment);
+                    
+                    if (newPathLength < oldImpedimentPathLength)
+                    {
+                        impediment.setCriticalPathLength(newPathLength);
+                        m_availableTasks.update(impediment);
+                        tasksToVisit.add(impediment);
+                        oldPathLengths.add(oldImpedimentPathLength);
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Put a task into the group index, if it has a group.
+     * @param task - the task that has just been added to the queue.
+     */
+    private void addToGroup(Task task)
+    {
+        if (task.getGroup() != null)
+        {
+            IntHashSet groupTaskIds = m_groups.get(task.getGroup());
+            
+            if (groupTaskIds == null)
+            {
+                groupTaskIds = new IntHashSet();
+                m_groups.put(task.getGroup(), groupTaskIds);
+            }
+            
+            groupTaskIds.add(task.getId());
+        }
+    }
+    
+    
+    /**
+     * Take a task out of the group index, dropping the group entirely once it is empty.
+     * @param task - the task that is leaving the queue.
+     */
+    private void removeFromGroup(Task task)
+    {
+        if (task.getGroup() != null)
         {
-            this.removeTask(task_id);
+            IntHashSet groupTaskIds = m_groups.get(task.getGroup());
+            groupTaskIds.remove(task.getId());
+            
+            if (groupTaskIds.isEmpty())
+            {
+                m_groups.remove(task.getGroup());
+            }
         }
-
-        System.out.println("--------");
     }
-}
\ No newline at end of file
+    
+    
+    // Accessors
+    public String getName()                         { return m_name; }
+    public synchronized Journal getJournal()        { return m_journal; }
+    public synchronized int getNumProcessingTasks() { return m_processingTasks.size(); }
+    
+    public synchronized void setJournal(Journal journal) { m_journal = journal; }
+}
@@ -0,0 +1,88 @@
+/*
+ * A get_task request that found no tasks available, and asked to wait for one (wait_ms). The queue
+ * keeps its waiters in the order they arrived, and as soon as a task becomes available it locks
+ * the task and hands it straight to the first waiter. Only that one waiter is woken for the task,
+ * rather than every waiting worker racing to fetch it and all but one of them failing.
+ *
+ * Waiting does not tie up a thread. The queue tells the connection when its waiter has been handed
+ * a task (ClientConnection.taskHandedOff), and the connection keeps track of the deadline. A
+ * thread per connection just blocks until then, whilst the event loops keep a timer.
+ */
+
+public class TaskWaiter implements TaskConsumer
+{
+    private final TaskQueue m_queue;
+    private final ClientConnection m_connection;
+
+    // The connection's leases for the queue, which the task we are handed is added to.
+    private final LeaseSet m_leaseSet;
+
+    // When to give up waiting (ms since the epoch, like Core.time(true)).
+    private final long m_deadline;
+
+    // The request_id that the request was tagged with, exactly as it was sent, or null.
+    private final byte[] m_requestId;
+
+    // The task that was handed to us. This is only touched whilst holding the queue lock.
+    private Task m_task = null;
+
+    // Whether we have stopped waiting, e.g. so the event loop can drop us from its timer.
+    private volatile boolean m_isFinished = false;
+
+
+    /**
+     * @param queue - the queue that the task is wanted from.
+     * @param connection - the connection that the request came in on.
+     * @param leaseSet - the connection's leases for the queue.
+     * @param deadline - when to give up waiting, in milliseconds since the epoch.
+     * @param requestId - the request_id the request was tagged with, as raw JSON, or null.
+     */
+    public TaskWaiter(TaskQueue queue, ClientConnection connection, LeaseSet leaseSet, long deadline, byte[] requestId)
+    {
+        m_queue = queue;
+        m_connection = connection;
+        m_leaseSet = leaseSet;
+        m_deadline = deadline;
+        m_requestId = requestId;
+    }
+
+
+    /**
+     * Give this waiter a task that has already been locked for it. This is called by the queue
+     * whilst holding its lock, so it only passes the news on to the connection.
+     * @param task - the task, which is now being processed.
+     * @return false, as a get_task only ever wants the one task.
+     */
+    @Override
+    public boolean handOff(Task task)
+    {
+        m_task = task;
+        m_leaseSet.add(task);
+        m_connection.taskHandedOff(this);
+        return false;
+    }
+
+
+    /**
+     * Stop waiting, because we have been handed a task, the deadline has passed, or the
+     * connection has gone away. This must only be called once.
+     * @return the task we were handed, or null if we were not handed one in time.
+     */
+    public Task finish()
+    {
+        m_isFinished = true;
+        return m_queue.stopWaiting(this);
+    }
+
+
+    // Accessors
+    public TaskQueue getQueue()               { return m_queue; }
+    public ClientConnection getConnection()   { return m_connection; }
+    public LeaseSet getLeaseSet()             { return m_leaseSet; }
+    public long getDeadline()                 { return m_deadline; }
+    public byte[] getRequestId()              { return m_requestId; }
+    public boolean isFinished()               { return m_isFinished; }
+
+    // Only to be called whilst holding the queue lock.
+    public Task getTask()                     { return m_task; }
+}
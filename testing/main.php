@@ -8,10 +8,25 @@ function main()
     
     $tests = array(
         new TestTaskTimeout(),
+        new TestLeaseExtension(),
+        new TestLongPoll(),
+        new TestSubscribe(),
+        new TestBatching(),
+        new TestAddTasks(),
+        new TestDisconnect(),
+        new TestPipelining(),
+        new TestBinaryProtocol(),
+        new TestRemoveGroup(),
+        new TestCancelTask(),
         new TestDependencies(),
         new TestSharedDependencies(),
         new TestBlockageRating(),
+        new TestCriticalPath(),
         new TestPriorities(),
+        new TestPriorityInheritance(),
+        new TestJournal(),
+        new TestSnapshot(),
+        new TestReplication(),
         new TestMemoryUsage(),
         new TestPerformance()
     );
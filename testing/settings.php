@@ -25,3 +25,9 @@ $globals['SCHEDULER_QUEUE'] = 'php_sdk_testing';
 # This does not change the SDK in any other way!
 # Don't forget 0 means infinite!
 $globals['MAX_LOCK_TIME'] = 0;
+
+
+# The tests of journaling, snapshots and replication need to restart the scheduler, or run more
+# than one, so they compile and start schedulers of their own from the source in this repository
+# (which needs a JDK). They listen on ports from this one upwards. Set it to 0 to skip those tests.
+$globals['LOCAL_SCHEDULER_PORT'] = 3911;
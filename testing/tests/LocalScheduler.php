@@ -0,0 +1,222 @@
+<?php
+
+
+/**
+ * A scheduler that a test starts itself, for testing what happens when the scheduler is restarted
+ * (e.g. journaling) or when there is more than one (replication). It is compiled from the source in
+ * this repository the first time one is needed, and runs in a temporary directory of its own that
+ * is deleted again by destroy().
+ */
+
+class LocalScheduler
+{
+    private static $s_classPath = null;
+
+    private $m_port;
+    private $m_settings;
+    private $m_directory;
+    private $m_process = null;
+    private $m_socket = null;
+
+
+    /**
+     * Creates (but does not start) a scheduler.
+     * @param int $port - the port for it to listen on for requests.
+     * @param array $settings - any other settings to run it with, e.g. array('JOURNAL_DIR' => 'journal'),
+     *                          where relative paths are inside the scheduler's own directory.
+     */
+    public function __construct($port, array $settings=array())
+    {
+        $this->m_port = $port;
+        $this->m_settings = $settings;
+        $this->m_directory = sys_get_temp_dir() . '/local_scheduler_' . $port . '_' . uniqid();
+        mkdir($this->m_directory);
+    }
+
+
+    /**
+     * Starts the scheduler and waits for it to be listening, which is only once it has restored
+     * its queues.
+     * @throws Exception if it could not be compiled or did not start listening.
+     */
+    public function start()
+    {
+        $environment = array_merge(getenv(), $this->m_settings, array('SOCKET_PORT' => (string)$this->m_port));
+        $log = $this->m_directory . '/scheduler.log';
+
+        $descriptors = array(
+            0 => array('file', '/dev/null', 'r'),
+            1 => array('file', $log, 'a'),
+            2 => array('file', $log, 'a')
+        );
+
+        # exec so that signals go to java itself rather than to the shell.
+        $command = 'exec java -cp ' . escapeshellarg(self::compile()) . ' Main';
+        $this->m_process = proc_open($command, $descriptors, $pipes, $this->m_directory, $environment);
+
+        for ($attempt = 0; $attempt < 100 && $this->m_socket === null; $attempt++)
+        {
+            $socket = @fsockopen('127.0.0.1', $this->m_port);
+
+            if ($socket === false)
+            {
+                usleep(100000);
+            }
+            else
+            {
+                $this->m_socket = $socket;
+            }
+        }
+
+        if ($this->m_socket === null)
+        {
+            $this->kill();
+            throw new Exception("Local scheduler did not start listening on port " . $this->m_port);
+        }
+    }
+
+
+    /**
+     * Stops the scheduler gracefully (SIGTERM), and waits for it to exit.
+     */
+    public function stop()
+    {
+        $this->end(15);
+    }
+
+
+    /**
+     * Kills the scheduler (SIGKILL), as if it had crashed, and waits for it to exit.
+     */
+    public function kill()
+    {
+        $this->end(9);
+    }
+
+
+    /**
+     * Kills the scheduler if it is running, and deletes its directory.
+     */
+    public function destroy()
+    {
+        $this->kill();
+        exec('rm -rf ' . escapeshellarg($this->m_directory));
+    }
+
+
+    /**
+     * Sends a request to the scheduler and returns the decoded response, in the same way as
+     * TestAbstract::send_request.
+     * @param array $request - name/value pairs of the request, e.g. array('action' => 'get_task')
+     * @return array - the decoded response, with result, message and cargo elements.
+     */
+    public function send_request(array $request)
+    {
+        global $globals;
+
+        if (!isset($request['queue_name']))
+        {
+            $request['queue_name'] = $globals['SCHEDULER_QUEUE'];
+        }
+
+        fwrite($this->m_socket, json_encode($request) . PHP_EOL);
+        $response = fgets($this->m_socket);
+        return json_decode($response, $assoc=true);
+    }
+
+
+    /**
+     * Fetches the contents of the queue with get_info, in a form that can be compared with ==
+     * between schedulers, or between before and after a restart.
+     * @return array - the tasks by id (without their locks, which change when a lease is
+     *                 requeued), and the sorted ids of the available, processing and waiting tasks.
+     */
+    public function get_contents()
+    {
+        $info = $this->send_request(array('action' => 'get_info'));
+        $contents = array('tasks' => array());
+
+        foreach ($info['cargo']['tasks'] as $taskJson)
+        {
+            $task = json_decode($taskJson, $assoc=true);
+            unset($task['lock']);
+            $contents['tasks'][$task['id']] = $task;
+        }
+
+        ksort($contents['tasks']);
+
+        foreach (array('available_tasks', 'processing_tasks', 'dependencies') as $list)
+        {
+            $contents[$list] = array();
+
+            foreach ($info['cargo'][$list] as $taskJson)
+            {
+                $task = json_decode($taskJson, $assoc=true);
+                $contents[$list][] = $task['id'];
+            }
+
+            sort($contents[$list]);
+        }
+
+        return $contents;
+    }
+
+
+    /**
+     * Fetches the path of a file in the scheduler's own directory, e.g. for its JOURNAL_DIR.
+     * @param string $name - the name of the file.
+     * @return string - the full path.
+     */
+    public function get_path($name)
+    {
+        return $this->m_directory . '/' . $name;
+    }
+
+
+    private function end($signal)
+    {
+        if ($this->m_socket !== null)
+        {
+            fclose($this->m_socket);
+            $this->m_socket = null;
+        }
+
+        if ($this->m_process !== null)
+        {
+            proc_terminate($this->m_process, $signal);
+            proc_close($this->m_process);
+            $this->m_process = null;
+        }
+    }
+
+
+    /**
+     * Compiles the scheduler, the first time it is needed.
+     * @return string - the class path to run it with.
+     * @throws Exception if it could not be compiled.
+     */
+    private static function compile()
+    {
+        if (self::$s_classPath === null)
+        {
+            $sourceDirectory = __DIR__ . '/../../src';
+            $gson = $sourceDirectory . '/libs/google-gson-2.2.4/gson-2.2.4.jar';
+            $classDirectory = sys_get_temp_dir() . '/local_scheduler_classes_' . uniqid();
+            mkdir($classDirectory);
+
+            $command = 'javac -nowarn -cp ' . escapeshellarg($gson) . ' -d ' . escapeshellarg($classDirectory)
+                     . ' ' . escapeshellarg($sourceDirectory) . '/*.java 2>&1';
+
+            exec($command, $output, $exitCode);
+
+            if ($exitCode !== 0)
+            {
+                throw new Exception("Failed to compile the scheduler: " . implode(PHP_EOL, $output));
+            }
+
+            self::$s_classPath = $classDirectory . ':' . $gson;
+        }
+
+        return self::$s_classPath;
+    }
+}
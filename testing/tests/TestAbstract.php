@@ -10,7 +10,9 @@
 abstract class TestAbstract
 {
     private $m_scheduler = null;
+    private $m_rawSocket = null;
     protected $m_successful = false;
+    protected $m_error = "";
     
     
     /**
@@ -34,6 +36,64 @@ abstract class TestAbstract
     }
     
     
+    /**
+     * Sends a request straight to the scheduler over our own socket and returns the decoded 
+     * response. This is for testing requests that the SDK does not support (yet).
+     * The queue_name is filled in for you if not specified.
+     * @param array $request - name/value pairs of the request, e.g. array('action' => 'get_task')
+     * @return array - the decoded response, with result, message and cargo elements.
+     */
+    protected function send_request(array $request)
+    {
+        global $globals;
+        
+        if ($this->m_rawSocket == null)
+        {
+            $this->m_rawSocket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+        }
+        
+        if (!isset($request['queue_name']))
+        {
+            $request['queue_name'] = $globals['SCHEDULER_QUEUE'];
+        }
+        
+        fwrite($this->m_rawSocket, json_encode($request) . PHP_EOL);
+        $response = fgets($this->m_rawSocket);
+        return json_decode($response, $assoc=true);
+    }
+    
+    
+    /**
+     * Adds a task by sending an add_task request with send_request.
+     * @param string $name - the name of the task
+     * @param array $dependencies - the ids of the tasks this task depends on.
+     * @param array $parameters - any other add_task parameters, e.g. array('priority' => 10)
+     * @return int - the id of the new task.
+     */
+    protected function add_task($name, array $dependencies=array(), array $parameters=array())
+    {
+        $request = array(
+            'action'       => 'add_task',
+            'task_name'    => $name,
+            'dependencies' => $dependencies
+        );
+        
+        $response = $this->send_request(array_merge($request, $parameters));
+        return $response['cargo']['task_id'];
+    }
+    
+    
+    /**
+     * Marks the test as a failure.
+     * @param string $message - the reason for the failure, which getErrorMessage() can display.
+     */
+    protected function fail($message)
+    {
+        $this->m_error = $message;
+        $this->m_successful = false;
+    }
+    
+    
     # Define the message to display if the test was not successful.
     public abstract function getErrorMessage();
     
@@ -51,6 +111,13 @@ abstract class TestAbstract
         $this->clear_scheduler();
         static::test();
         $this->m_scheduler->close();
+        
+        if ($this->m_rawSocket != null)
+        {
+            fclose($this->m_rawSocket);
+            $this->m_rawSocket = null;
+        }
+        
         return $this->m_successful;
     }
     
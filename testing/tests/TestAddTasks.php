@@ -0,0 +1,78 @@
+<?php
+
+
+/**
+ * This test checks that add_tasks adds a whole DAG in one request, with the tasks depending on 
+ * each other by their keys (in any order) and on existing tasks by their ids, and that a batch 
+ * with a cycle in it is rejected without adding any of its tasks.
+ */
+
+class TestAddTasks extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestAddTasks: " . $this->m_error;
+    }
+    
+    
+    public function test()
+    {
+        $this->m_successful = true;
+        
+        $cyclicTasks = array(
+            array('key' => 'a', 'task_name' => 'cycle_a', 'local_dependencies' => array('b')),
+            array('key' => 'b', 'task_name' => 'cycle_b', 'local_dependencies' => array('a'))
+        );
+        
+        $response = $this->send_request(array('action' => 'add_tasks', 'tasks' => $cyclicTasks));
+        
+        if ($response['result'] !== 'error')
+        {
+            $this->fail("a batch with a cycle was accepted: " . print_r($response, true));
+            return;
+        }
+        
+        $existingId = $this->add_task('existing');
+        
+        $tasks = array(
+            array('key' => 'report', 'task_name' => 'report', 'local_dependencies' => array('load', 'extract')),
+            array('key' => 'load', 'task_name' => 'load', 'local_dependencies' => array('extract')),
+            array('key' => 'extract', 'task_name' => 'extract', 'dependencies' => array($existingId))
+        );
+        
+        $response = $this->send_request(array('action' => 'add_tasks', 'tasks' => $tasks));
+        
+        if ($response['result'] !== 'success' || count($response['cargo']['task_ids']) !== 3)
+        {
+            $this->fail("failed to add the tasks: " . print_r($response, true));
+            return;
+        }
+        
+        # The tasks should be handed out in the order they depend on each other, and nothing from
+        # the rejected batch should be handed out.
+        $expectedOrder = array('existing', 'extract', 'load', 'report');
+        $order = array();
+        
+        for ($i = 0; $i < 5; $i++)
+        {
+            $response = $this->send_request(array('action' => 'get_task'));
+            
+            if ($response['result'] === 'success')
+            {
+                $task = $response['cargo']['task'];
+                $order[] = $task['name'];
+                
+                $this->send_request(array(
+                    'action'  => 'complete_task',
+                    'task_id' => $task['id'],
+                    'lock'    => $task['lock']
+                ));
+            }
+        }
+        
+        if ($order !== $expectedOrder)
+        {
+            $this->fail("tasks were handed out in the wrong order: " . print_r($order, true));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+<?php
+
+
+/**
+ * This test checks that get_tasks hands out several tasks at once, and that complete_tasks 
+ * completes several tasks at once, giving a result for each so that one bad lock does not stop 
+ * the rest, and freeing up the tasks that depended on them.
+ */
+
+class TestBatching extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestBatching: " . $this->m_error;
+    }
+    
+    
+    public function test()
+    {
+        $this->m_successful = true;
+        $taskIds = array();
+        
+        for ($i = 0; $i < 3; $i++)
+        {
+            $taskIds[] = $this->add_task('batch');
+        }
+        
+        $dependentId = $this->add_task('batch_dependent', $taskIds);
+        
+        $response = $this->send_request(array('action' => 'get_tasks', 'max_tasks' => 10));
+        
+        if ($response['result'] !== 'success' || count($response['cargo']['tasks']) !== 3)
+        {
+            $this->fail("get_tasks did not hand out the three available tasks: " . print_r($response, true));
+            return;
+        }
+        
+        $tasks = array();
+        
+        foreach ($response['cargo']['tasks'] as $task)
+        {
+            $tasks[] = array('task_id' => $task['id'], 'lock' => $task['lock']);
+        }
+        
+        # A bad lock part way through the batch should only fail that one task.
+        array_splice($tasks, 1, 0, array(array('task_id' => $taskIds[0], 'lock' => str_repeat('0', 32))));
+        $response = $this->send_request(array('action' => 'complete_tasks', 'tasks' => $tasks));
+        $results = array();
+        
+        foreach ($response['cargo']['results'] as $result)
+        {
+            $results[] = $result['result'];
+        }
+        
+        if ($results !== array('success', 'error', 'success', 'success'))
+        {
+            $this->fail("complete_tasks gave the wrong results: " . print_r($response, true));
+            return;
+        }
+        
+        $response = $this->send_request(array('action' => 'get_tasks', 'max_tasks' => 10));
+        
+        if (count($response['cargo']['tasks']) !== 1 || $response['cargo']['tasks'][0]['id'] !== $dependentId)
+        {
+            $this->fail("the dependent task was not freed up: " . print_r($response, true));
+            return;
+        }
+        
+        $this->send_request(array(
+            'action' => 'complete_tasks',
+            'tasks'  => array(array('task_id' => $dependentId, 'lock' => $response['cargo']['tasks'][0]['lock']))
+        ));
+    }
+}
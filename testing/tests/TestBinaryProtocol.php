@@ -0,0 +1,266 @@
+<?php
+
+
+/**
+ * This test checks the compact binary protocol: that a connection switches to it when the first
+ * byte is 0x00, that frames longer than 127 bytes (which need a two byte length) are read, that
+ * negative and large priorities survive their zig-zag encoding, that a malformed frame is answered
+ * with an error (and the connection carries on), that COMPLETE_TASKS gives a status for each task,
+ * and that a frame that claims to be too long gets the connection closed.
+ */
+
+class TestBinaryProtocol extends TestAbstract
+{
+    private $m_socket = null;
+
+
+    public function getErrorMessage()
+    {
+        return "TestBinaryProtocol: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        global $globals;
+        $this->m_successful = true;
+        $queue = $this->encode_string($globals['SCHEDULER_QUEUE']);
+
+        $this->m_socket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+        fwrite($this->m_socket, "\x00");
+
+        # ADD_TASK with a negative priority and no optional fields.
+        $response = $this->send_frame(
+            "\x01" . $queue . $this->encode_string("low") . $this->encode_zig_zag(-3) . "\x00" .
+            $this->encode_string("") . $this->encode_varint(0)
+        );
+
+        if ($response === null || ord($response[0]) !== 0)
+        {
+            $this->fail("failed to add the low priority task: " . bin2hex($response));
+            return;
+        }
+
+        $offset = 1;
+        $lowTaskId = $this->decode_varint($response, $offset);
+
+        # ADD_TASK with a large priority, a group and a max lock time, with a name that makes the
+        # frame too long for its length to fit in one byte.
+        $longName = str_repeat("x", 200);
+
+        $response = $this->send_frame(
+            "\x01" . $queue . $this->encode_string($longName) . $this->encode_zig_zag(1000) . "\x03" .
+            $this->encode_string("binary_group") . $this->encode_varint(60000) .
+            $this->encode_string("extra") . $this->encode_varint(1) . $this->encode_varint($lowTaskId)
+        );
+
+        if ($response === null || ord($response[0]) !== 0)
+        {
+            $this->fail("failed to add the task with a long name: " . bin2hex($response));
+            return;
+        }
+
+        $offset = 1;
+        $highTaskId = $this->decode_varint($response, $offset);
+
+        # The high priority task depends on the low one, so that is handed out first.
+        $lowTask = $this->get_task($queue);
+
+        if ($lowTask === null || $lowTask['id'] !== $lowTaskId || $lowTask['priority'] !== -3)
+        {
+            $this->fail("expected the low priority task with priority -3: " . print_r($lowTask, true));
+            return;
+        }
+
+        # COMPLETE_TASKS gives a status for each task. The task that is not being processed fails
+        # without stopping the others from being completed.
+        $response = $this->send_frame(
+            "\x06" . $queue . $this->encode_varint(2) .
+            $this->encode_varint($lowTaskId) . $lowTask['lock'] .
+            $this->encode_varint($highTaskId) . str_repeat("\x00", 16)
+        );
+
+        $offset = 1;
+
+        if ($response === null
+            || ord($response[0]) !== 0
+            || $this->decode_varint($response, $offset) !== 2
+            || ord($response[$offset]) !== 0
+            || ord($response[$offset + 1]) !== 1)
+        {
+            $this->fail("COMPLETE_TASKS gave the wrong statuses: " . bin2hex($response));
+            return;
+        }
+
+        $highTask = $this->get_task($queue);
+
+        if ($highTask === null
+            || $highTask['id'] !== $highTaskId
+            || $highTask['priority'] !== 1000
+            || $highTask['name'] !== $longName
+            || $highTask['group'] !== "binary_group"
+            || $highTask['extra_info'] !== "extra")
+        {
+            $this->fail("the long task did not come back intact: " . print_r($highTask, true));
+            return;
+        }
+
+        $response = $this->send_frame(
+            "\x03" . $queue . $this->encode_varint($highTaskId) . $highTask['lock']
+        );
+
+        if ($response === null || ord($response[0]) !== 0)
+        {
+            $this->fail("failed to complete the long task: " . bin2hex($response));
+            return;
+        }
+
+        # An ADD_TASK that stops short after the queue name is an error, but the connection can
+        # still be used afterwards.
+        $response = $this->send_frame("\x01" . $queue);
+
+        if ($response === null || ord($response[0]) !== 1)
+        {
+            $this->fail("a malformed frame was not rejected: " . bin2hex($response));
+            return;
+        }
+
+        $response = $this->send_frame("\x07");
+
+        if ($response !== "\x00")
+        {
+            $this->fail("ping was not answered after a malformed frame: " . bin2hex($response));
+            return;
+        }
+
+        fclose($this->m_socket);
+
+        # A frame longer than the scheduler accepts gets the connection closed.
+        $this->m_socket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+        stream_set_timeout($this->m_socket, 5);
+        fwrite($this->m_socket, "\x00" . $this->encode_varint(16 * 1024 * 1024 + 1));
+        $data = fread($this->m_socket, 1);
+
+        if ((string)$data !== "" || !feof($this->m_socket))
+        {
+            $this->fail("an oversized frame did not close the connection.");
+        }
+
+        fclose($this->m_socket);
+    }
+
+
+    /**
+     * Sends a frame and reads the frame that is sent back.
+     * @param string $payload - the opcode and fields of the request.
+     * @return string - the payload of the response, or null if the connection was closed.
+     */
+    private function send_frame($payload)
+    {
+        fwrite($this->m_socket, $this->encode_varint(strlen($payload)) . $payload);
+        $length = 0;
+        $shift = 0;
+
+        do
+        {
+            $byte = fread($this->m_socket, 1);
+
+            if ($byte === false || $byte === "")
+            {
+                return null;
+            }
+
+            $length |= (ord($byte) & 0x7F) << $shift;
+            $shift += 7;
+        } while ((ord($byte) & 0x80) !== 0);
+
+        $response = "";
+
+        while (strlen($response) < $length && !feof($this->m_socket))
+        {
+            $response .= fread($this->m_socket, $length - strlen($response));
+        }
+
+        return $response;
+    }
+
+
+    /**
+     * Sends a GET_TASK and decodes the task in the response.
+     * @param string $queue - the encoded name of the queue.
+     * @return array - the fields of the task (with the lock as 16 raw bytes), or null on error.
+     */
+    private function get_task($queue)
+    {
+        $response = $this->send_frame("\x02" . $queue);
+        $task = null;
+
+        if ($response !== null && ord($response[0]) === 0)
+        {
+            $offset = 1;
+            $task = array();
+            $task['id'] = $this->decode_varint($response, $offset);
+            $task['lock'] = substr($response, $offset, 16);
+            $offset += 16;
+            $encodedPriority = $this->decode_varint($response, $offset);
+            $task['priority'] = ($encodedPriority >> 1) ^ -($encodedPriority & 1);
+            $task['name'] = $this->decode_string($response, $offset);
+            $task['group'] = $this->decode_string($response, $offset);
+            $task['extra_info'] = $this->decode_string($response, $offset);
+        }
+
+        return $task;
+    }
+
+
+    private function encode_varint($value)
+    {
+        $bytes = "";
+
+        while ($value >= 0x80)
+        {
+            $bytes .= chr(($value & 0x7F) | 0x80);
+            $value >>= 7;
+        }
+
+        return $bytes . chr($value);
+    }
+
+
+    private function encode_zig_zag($value)
+    {
+        return $this->encode_varint(($value << 1) ^ ($value >> 31));
+    }
+
+
+    private function encode_string($value)
+    {
+        return $this->encode_varint(strlen($value)) . $value;
+    }
+
+
+    private function decode_varint($bytes, &$offset)
+    {
+        $value = 0;
+        $shift = 0;
+
+        do
+        {
+            $byte = ord($bytes[$offset]);
+            $offset++;
+            $value |= ($byte & 0x7F) << $shift;
+            $shift += 7;
+        } while (($byte & 0x80) !== 0);
+
+        return $value;
+    }
+
+
+    private function decode_string($bytes, &$offset)
+    {
+        $length = $this->decode_varint($bytes, $offset);
+        $value = substr($bytes, $offset, $length);
+        $offset += $length;
+        return $value;
+    }
+}
@@ -0,0 +1,61 @@
+<?php
+
+
+/**
+ * This test checks that cancelling a task with cascade removes everything that depends on it,
+ * directly or indirectly, and nothing else.
+ */
+
+class TestCancelTask extends TestAbstract
+{
+    public function getErrorMessage() 
+    {
+        return "TestCancelTask: " . $this->m_error;
+    }
+    
+    
+    public function test() 
+    {
+        $this->m_successful = true;
+        
+        # Build a small tree under the failed task, with one task that also depends on a task
+        # outside the tree.
+        $failedTaskId = $this->add_task("failed_task");
+        $unrelatedTaskId = $this->add_task("unrelated_task");
+        $childTaskId = $this->add_task("child_task", array($failedTaskId));
+        $this->add_task("grandchild_task", array($childTaskId));
+        $this->add_task("mixed_task", array($childTaskId, $unrelatedTaskId));
+        
+        $response = $this->send_request(array(
+            'action'  => 'cancel_task', 
+            'task_id' => $failedTaskId, 
+            'cascade' => true
+        ));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['num_removed'] !== 4)
+        {
+            $this->fail("failed to cancel the task: " . print_r($response, true));
+            return;
+        }
+        
+        # Only the unrelated task should be left.
+        $response = $this->send_request(array('action' => 'get_task'));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $unrelatedTaskId)
+        {
+            $this->fail("expected to receive the unrelated task: " . print_r($response, true));
+            return;
+        }
+        
+        $this->send_request(array(
+            'action'  => 'complete_task', 
+            'task_id' => $unrelatedTaskId, 
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+        
+        if ($this->send_request(array('action' => 'get_task'))['result'] !== 'error')
+        {
+            $this->fail("a cancelled task was handed out.");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+<?php
+
+
+/**
+ * This test checks that a queue using the critical_path scheduling policy hands out the task at
+ * the head of a long pipeline before a task that only frees up lots of tasks directly.
+ */
+
+class TestCriticalPath extends TestAbstract
+{
+    public function getErrorMessage() 
+    {
+        return "TestCriticalPath: " . $this->m_error;
+    }
+    
+    
+    public function test() 
+    {
+        $this->m_successful = true;
+        
+        $response = $this->send_request(array(
+            'action'            => 'configure_queue', 
+            'scheduling_policy' => 'critical_path'
+        ));
+        
+        if ($response['result'] !== 'success')
+        {
+            $this->fail("failed to configure the queue: " . print_r($response, true));
+            return;
+        }
+        
+        # A task with lots of tasks waiting directly on it.
+        $wideTaskId = $this->add_task("wide_task");
+        
+        for ($s=0; $s<5; $s++)
+        {
+            $this->add_task("wide_dependent", array($wideTaskId));
+        }
+        
+        # The head of a long pipeline.
+        $pipelineTaskId = $this->add_task("pipeline_task");
+        $previousTaskId = $pipelineTaskId;
+        
+        for ($s=0; $s<10; $s++)
+        {
+            $previousTaskId = $this->add_task("pipeline_stage", array($previousTaskId));
+        }
+        
+        $response = $this->send_request(array('action' => 'get_task'));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $pipelineTaskId)
+        {
+            $this->fail("expected the head of the pipeline first: " . print_r($response, true));
+        }
+        
+        $this->send_request(array('action' => 'cancel_task', 'task_id' => $wideTaskId, 'cascade' => true));
+        $this->send_request(array('action' => 'cancel_task', 'task_id' => $pipelineTaskId, 'cascade' => true));
+        $this->send_request(array('action' => 'configure_queue', 'scheduling_policy' => 'blockage_rating'));
+    }
+}
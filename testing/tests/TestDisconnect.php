@@ -0,0 +1,84 @@
+<?php
+
+
+/**
+ * This test checks that the tasks a worker fetched with get_task and get_tasks are put back in the
+ * queue as soon as its connection drops, rather than staying locked (and blocking the tasks that
+ * depend on them) until their lock time runs out, and that a ping is answered.
+ */
+
+class TestDisconnect extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestDisconnect: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        $this->m_successful = true;
+
+        $response = $this->send_request(array('action' => 'ping'));
+
+        if ($response['result'] !== 'success')
+        {
+            $this->fail("ping was not answered: " . print_r($response, true));
+            return;
+        }
+
+        $parentId = $this->add_task('parent');
+
+        $childId = $this->add_task('child', array($parentId));
+
+        global $globals;
+        $workerSocket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+
+        $getRequest = array(
+            'action'     => 'get_task',
+            'queue_name' => $globals['SCHEDULER_QUEUE']
+        );
+
+        fwrite($workerSocket, json_encode($getRequest) . PHP_EOL);
+        $response = json_decode(fgets($workerSocket), $assoc=true);
+
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $parentId)
+        {
+            $this->fail("worker was not given the parent task: " . print_r($response, true));
+            return;
+        }
+
+        # The worker "crashes" without completing its task.
+        fclose($workerSocket);
+        usleep(200000);
+
+        $response = $this->send_request(array('action' => 'get_tasks', 'max_tasks' => 5));
+        $tasks = $response['cargo']['tasks'];
+
+        if (count($tasks) !== 1 || $tasks[0]['id'] !== $parentId)
+        {
+            $this->fail("parent task was not put back on disconnect: " . print_r($response, true));
+            return;
+        }
+
+        $this->send_request(array(
+            'action'  => 'complete_task',
+            'task_id' => $parentId,
+            'lock'    => $tasks[0]['lock']
+        ));
+
+        $response = $this->send_request(array('action' => 'get_task'));
+
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $childId)
+        {
+            $this->fail("child task was not freed up: " . print_r($response, true));
+            return;
+        }
+
+        $this->send_request(array(
+            'action'  => 'complete_task',
+            'task_id' => $childId,
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+    }
+}
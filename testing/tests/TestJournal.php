@@ -0,0 +1,255 @@
+<?php
+
+
+/**
+ * This test checks that a scheduler with a journal comes back with the same queue after it is
+ * killed. It makes a change of every kind that is journaled (adding tasks singly and in batches,
+ * leasing, requeueing, completing, removing, cancelling, removing a group and configuring the
+ * queue) and then compares the tasks, dependencies and leases from before and after the restart.
+ * It also checks that a record cut short at the end of the journal (a crash part way through a
+ * write) or with a bad checksum is dropped, without losing the records before it.
+ */
+
+class TestJournal extends TestAbstract
+{
+    private $m_local = null;
+
+
+    public function getErrorMessage()
+    {
+        return "TestJournal: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        global $globals;
+        $this->m_successful = true;
+
+        if ($globals['LOCAL_SCHEDULER_PORT'] == 0)
+        {
+            print "Skipping TestJournal because LOCAL_SCHEDULER_PORT is set to 0" . PHP_EOL;
+            return;
+        }
+
+        # The journal goes in the local scheduler's own directory, which it runs in.
+        $this->m_local = new LocalScheduler($globals['LOCAL_SCHEDULER_PORT'], array('JOURNAL_DIR' => 'journal'));
+
+        try
+        {
+            $this->m_local->start();
+
+            if ($this->check_replay())
+            {
+                $this->check_damaged_tail();
+            }
+        }
+        catch (Exception $e)
+        {
+            $this->fail($e->getMessage());
+        }
+
+        $this->m_local->destroy();
+    }
+
+
+    /**
+     * The tests in here add tasks to the local scheduler rather than the shared one.
+     */
+    protected function send_request(array $request)
+    {
+        return $this->m_local->send_request($request);
+    }
+
+
+    /**
+     * Makes one of each kind of change, kills the scheduler, and checks that it replays them.
+     * @return boolean - whether the queue was the same after the restart.
+     */
+    private function check_replay()
+    {
+        # Completed, rejected (requeued) and leased tasks.
+        foreach (array('completed', 'rejected') as $name)
+        {
+            $this->add_task($name);
+            $task = $this->get_task();
+            $action = ($name === 'completed') ? 'complete_task' : 'reject_task';
+            $this->send_request(array('action' => $action, 'task_id' => $task['id'], 'lock' => $task['lock']));
+        }
+
+        $leasedTaskId = $this->add_task('leased', array(), array('priority' => 9));
+        $this->get_task();
+
+        # Removed and cancelled tasks.
+        $removedTaskId = $this->add_task('removed');
+        $this->send_request(array('action' => 'remove_task', 'task_id' => $removedTaskId));
+
+        $cancelledTaskId = $this->add_task('cancelled');
+        $this->add_task('cancelled_child', array($cancelledTaskId));
+        $this->send_request(array('action' => 'cancel_task', 'task_id' => $cancelledTaskId, 'cascade' => true));
+
+        # A removed group and one that is kept.
+        $this->add_task('doomed', array(), array('group' => 'doomed_group'));
+        $this->add_task('doomed', array(), array('group' => 'doomed_group'));
+        $this->add_task('kept', array(), array('group' => 'kept_group'));
+        $this->send_request(array('action' => 'remove_group', 'group' => 'doomed_group'));
+
+        # A chain and a fan out added in one batch.
+        $this->send_request(array(
+            'action' => 'add_tasks',
+            'tasks'  => array(
+                array('key' => 'p1', 'task_name' => 'pipeline_1'),
+                array('key' => 'p2', 'task_name' => 'pipeline_2', 'local_dependencies' => array('p1')),
+                array('key' => 'p3', 'task_name' => 'pipeline_3', 'local_dependencies' => array('p2')),
+                array('key' => 'p4', 'task_name' => 'pipeline_4', 'local_dependencies' => array('p3')),
+                array('key' => 'w',  'task_name' => 'wide'),
+                array('key' => 'w1', 'task_name' => 'wide_1', 'local_dependencies' => array('w')),
+                array('key' => 'w2', 'task_name' => 'wide_2', 'local_dependencies' => array('w')),
+                array('key' => 'w3', 'task_name' => 'wide_3', 'local_dependencies' => array('w'))
+            )
+        ));
+
+        # A low priority task that an urgent one depends on, which only comes first once priority
+        # inheritance has been switched on.
+        $lowTaskId = $this->add_task('low', array(), array('priority' => 1));
+        $this->add_task('urgent', array($lowTaskId), array('priority' => 10));
+        $this->send_request(array('action' => 'configure_queue', 'scheduling_policy' => 'critical_path'));
+        $this->send_request(array('action' => 'configure_queue', 'priority_inheritance' => true));
+
+        $before = $this->m_local->get_contents();
+        $this->m_local->kill();
+        $this->m_local->start();
+        $after = $this->m_local->get_contents();
+
+        # The lease does not survive the restart, so the leased task is available again.
+        $expected = $before;
+        $expected['processing_tasks'] = array();
+        $expected['available_tasks'][] = $leasedTaskId;
+        sort($expected['available_tasks']);
+
+        if ($before['processing_tasks'] !== array($leasedTaskId) || $after != $expected)
+        {
+            $this->fail("the queue changed across the restart: " . print_r(array($before, $after), true));
+            return false;
+        }
+
+        $names = array();
+
+        foreach ($after['tasks'] as $task)
+        {
+            $names[] = $task['name'];
+        }
+
+        if (in_array('doomed', $names) || in_array('cancelled_child', $names) || !in_array('kept', $names))
+        {
+            $this->fail("the removed group or cancelled tasks came back: " . print_r($names, true));
+            return false;
+        }
+
+        # The queue configuration was replayed too.
+        $expectedOrder = array('low', 'urgent', 'leased', 'pipeline_1', 'pipeline_2');
+        $order = array();
+
+        foreach ($expectedOrder as $expectedName)
+        {
+            $task = $this->get_task();
+            $order[] = $task['name'];
+            $this->send_request(array('action' => 'complete_task', 'task_id' => $task['id'], 'lock' => $task['lock']));
+        }
+
+        if ($order !== $expectedOrder)
+        {
+            $this->fail("the tasks were handed out in the wrong order after the restart: " . print_r($order, true));
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Checks that a torn last record, or one with a bad checksum, is dropped on restart.
+     */
+    private function check_damaged_tail()
+    {
+        $this->add_task('torn_tail');
+        $this->m_local->kill();
+        $this->damage_journal(function($journal) { ftruncate($journal, fstat($journal)['size'] - 1); });
+        $this->m_local->start();
+
+        if ($this->has_task('torn_tail'))
+        {
+            $this->fail("a record that was cut short was replayed.");
+            return;
+        }
+
+        # Anything written after the torn record was dropped must survive the next restart.
+        $this->add_task('after_torn_tail');
+        $this->m_local->kill();
+        $this->m_local->start();
+
+        if (!$this->has_task('after_torn_tail'))
+        {
+            $this->fail("the task added after the torn record was lost.");
+            return;
+        }
+
+        $this->add_task('corrupted');
+        $this->m_local->kill();
+
+        $this->damage_journal(function($journal) {
+            fseek($journal, -1, SEEK_END);
+            $byte = fread($journal, 1);
+            fseek($journal, -1, SEEK_END);
+            fwrite($journal, chr(ord($byte) ^ 0xFF));
+        });
+
+        $this->m_local->start();
+
+        if ($this->has_task('corrupted') || !$this->has_task('after_torn_tail'))
+        {
+            $this->fail("a record with a bad checksum was replayed, or an earlier one was lost.");
+        }
+    }
+
+
+    /**
+     * Opens the (only) journal file of the queue and passes it to the given function to change.
+     */
+    private function damage_journal($damage)
+    {
+        $files = glob($this->m_local->get_path('journal') . '/*.journal');
+
+        if (count($files) !== 1)
+        {
+            throw new Exception("expected one journal file but found " . print_r($files, true));
+        }
+
+        $journal = fopen($files[0], 'r+b');
+        $damage($journal);
+        fclose($journal);
+    }
+
+
+    private function get_task()
+    {
+        $response = $this->send_request(array('action' => 'get_task'));
+        return $response['cargo']['task'];
+    }
+
+
+    private function has_task($name)
+    {
+        $contents = $this->m_local->get_contents();
+
+        foreach ($contents['tasks'] as $task)
+        {
+            if ($task['name'] === $name)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+<?php
+
+
+/**
+ * This test checks that tasks can be given their own lock time, and that a worker can keep hold
+ * of a task past that time by extending its lease.
+ */
+
+class TestLeaseExtension extends TestAbstract
+{
+    public function getErrorMessage() 
+    {
+        return "TestLeaseExtension: " . $this->m_error;
+    }
+    
+    
+    public function test() 
+    {
+        $this->m_successful = true;
+        
+        $extendedTaskId = $this->add_task("extended_task", array(), array('max_lock_time' => 1));
+        $extendedTask = $this->send_request(array('action' => 'get_task'))['cargo']['task'];
+        
+        # Keep renewing the lease for longer than its lock time. It should never be handed out.
+        for ($s=0; $s<4; $s++)
+        {
+            usleep(600000);
+            
+            $response = $this->send_request(array(
+                'action' => 'extend_lease',
+                'leases' => array(
+                    array('task_id' => $extendedTask['id'], 'lock' => $extendedTask['lock'])
+                )
+            ));
+            
+            if ($response['cargo']['results'][0]['result'] !== 'success')
+            {
+                $this->fail("failed to extend lease: " . print_r($response, true));
+                return;
+            }
+            
+            if ($this->send_request(array('action' => 'get_task'))['result'] !== 'error')
+            {
+                $this->fail("task was handed out again even though its lease was extended.");
+                return;
+            }
+        }
+        
+        $this->send_request(array(
+            'action'  => 'complete_task', 
+            'task_id' => $extendedTask['id'], 
+            'lock'    => $extendedTask['lock']
+        ));
+        
+        # A task that is not renewed should be handed out again once its own lock time passes.
+        $expiringTaskId = $this->add_task("expiring_task", array(), array('max_lock_time' => 1));
+        $this->send_request(array('action' => 'get_task'));
+        sleep(2);
+        $response = $this->send_request(array('action' => 'get_task'));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $expiringTaskId)
+        {
+            $this->fail("task was not handed out again after its lock time passed.");
+            return;
+        }
+        
+        $this->send_request(array(
+            'action'  => 'complete_task', 
+            'task_id' => $expiringTaskId, 
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+    }
+}
@@ -0,0 +1,90 @@
+<?php
+
+
+/**
+ * This test checks that a get_task with a wait_ms waits for a task to become available rather than
+ * failing straight away, that it is handed the task as soon as one is added, and that it gives up
+ * once the wait is over.
+ */
+
+class TestLongPoll extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestLongPoll: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        $this->m_successful = true;
+
+        # With nothing to do, the request should wait out the whole wait before failing.
+        $start = microtime(true);
+        $response = $this->send_request(array('action' => 'get_task', 'wait_ms' => 500));
+        $timeTaken = microtime(true) - $start;
+
+        if ($response['result'] !== 'error' || $timeTaken < 0.45)
+        {
+            $this->fail("get_task did not wait before failing: " . print_r($response, true));
+            return;
+        }
+
+        # A waiting worker on another connection should be handed a task as soon as it is added.
+        global $globals;
+        $workerSocket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+
+        $waitRequest = array(
+            'action'     => 'get_task',
+            'queue_name' => $globals['SCHEDULER_QUEUE'],
+            'wait_ms'    => 5000,
+            'request_id' => 'waiting'
+        );
+
+        fwrite($workerSocket, json_encode($waitRequest) . PHP_EOL);
+        usleep(200000);
+
+        $start = microtime(true);
+        $taskId = $this->add_task('long_poll');
+        $response = json_decode(fgets($workerSocket), $assoc=true);
+        $timeTaken = microtime(true) - $start;
+
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $taskId)
+        {
+            $this->fail("waiting worker was not handed the task: " . print_r($response, true));
+            return;
+        }
+
+        if ($response['request_id'] !== 'waiting' || $timeTaken > 1)
+        {
+            $this->fail("waiting worker was not answered straight away: " . print_r($response, true));
+            return;
+        }
+
+        $this->send_request(array(
+            'action'  => 'complete_task',
+            'task_id' => $taskId,
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+
+        # Only disconnect once the task is finished, or it would be put back in the queue.
+        fclose($workerSocket);
+
+        # A task whose lease runs out should be handed to a worker that is already waiting.
+        $this->add_task('lost', array(), array('max_lock_time' => 1));
+        $lostTask = $this->send_request(array('action' => 'get_task'))['cargo']['task'];
+        $response = $this->send_request(array('action' => 'get_task', 'wait_ms' => 5000));
+
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $lostTask['id'])
+        {
+            $this->fail("waiting worker was not handed the timed out task: " . print_r($response, true));
+            return;
+        }
+
+        $this->send_request(array(
+            'action'  => 'complete_task',
+            'task_id' => $lostTask['id'],
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+    }
+}
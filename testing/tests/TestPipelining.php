@@ -0,0 +1,100 @@
+<?php
+
+
+/**
+ * This test checks that a client can send several requests in one go without waiting for the
+ * responses, and that the responses come back in the same order, each with the request_id of the
+ * request it answers (including errors, and not adding one to requests that did not have one).
+ */
+
+class TestPipelining extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestPipelining: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        global $globals;
+        $this->m_successful = true;
+
+        $requests = array();
+
+        for ($i = 0; $i < 5; $i++)
+        {
+            $requests[] = array(
+                'action'     => 'add_task',
+                'task_name'  => 'pipelined_' . $i,
+                'request_id' => 'add_' . $i
+            );
+        }
+
+        $requests[] = array('action' => 'get_task', 'request_id' => 42);
+        $requests[] = array('action' => 'no_such_action', 'request_id' => 'bad_request');
+        $requests[] = array('action' => 'ping');
+
+        # Send all of the requests in a single write.
+        $lines = "";
+
+        foreach ($requests as $request)
+        {
+            $request['queue_name'] = $globals['SCHEDULER_QUEUE'];
+            $lines .= json_encode($request) . PHP_EOL;
+        }
+
+        $socket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+        fwrite($socket, $lines);
+        $responses = array();
+
+        foreach ($requests as $request)
+        {
+            $responses[] = json_decode(fgets($socket), $assoc=true);
+        }
+
+        fclose($socket);
+
+        foreach ($requests as $index => $request)
+        {
+            $response = $responses[$index];
+
+            if (isset($request['request_id']))
+            {
+                if (!isset($response['request_id']) || $response['request_id'] !== $request['request_id'])
+                {
+                    $this->fail("response " . $index . " has the wrong request_id: " . print_r($response, true));
+                    return;
+                }
+            }
+            else if (isset($response['request_id']))
+            {
+                $this->fail("request_id was added to a request without one: " . print_r($response, true));
+                return;
+            }
+        }
+
+        # The tasks were added in order, and the get_task came after all of them.
+        for ($i = 0; $i < 5; $i++)
+        {
+            $expectedTaskId = $responses[0]['cargo']['task_id'] + $i;
+
+            if ($responses[$i]['result'] !== 'success' || $responses[$i]['cargo']['task_id'] !== $expectedTaskId)
+            {
+                $this->fail("the add_task responses are out of order: " . print_r($responses, true));
+                return;
+            }
+        }
+
+        if ($responses[5]['result'] !== 'success' || $responses[5]['cargo']['task']['name'] !== 'pipelined_0')
+        {
+            $this->fail("get_task was not answered after the tasks were added: " . print_r($responses[5], true));
+            return;
+        }
+
+        if ($responses[6]['result'] !== 'error' || $responses[7]['result'] !== 'success')
+        {
+            $this->fail("expected an error and then a ping response: " . print_r($responses, true));
+        }
+    }
+}
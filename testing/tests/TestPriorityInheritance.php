@@ -0,0 +1,49 @@
+<?php
+
+
+/**
+ * This test checks that with priority inheritance switched on, a low priority task that an
+ * urgent task depends on is handed out ahead of medium priority work.
+ * This is the opposite of what TestPriorities expects with it switched off (the default).
+ */
+
+class TestPriorityInheritance extends TestAbstract
+{
+    public function getErrorMessage() 
+    {
+        return "TestPriorityInheritance: " . $this->m_error;
+    }
+    
+    
+    public function test() 
+    {
+        $this->m_successful = true;
+        
+        $this->send_request(array('action' => 'configure_queue', 'priority_inheritance' => true));
+        
+        $mediumTaskId = $this->add_task("medium_importance", array(), array('priority' => 5));
+        $notImportantTaskId = $this->add_task("not_important", array(), array('priority' => 1));
+        $urgentTaskId = $this->add_task("urgent", array($notImportantTaskId), array('priority' => 10));
+        
+        $expectedTaskIds = array($notImportantTaskId, $urgentTaskId, $mediumTaskId);
+        
+        foreach ($expectedTaskIds as $expectedTaskId)
+        {
+            $response = $this->send_request(array('action' => 'get_task'));
+            
+            if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $expectedTaskId)
+            {
+                $this->fail("expected task " . $expectedTaskId . ": " . print_r($response, true));
+                break;
+            }
+            
+            $this->send_request(array(
+                'action'  => 'complete_task', 
+                'task_id' => $expectedTaskId, 
+                'lock'    => $response['cargo']['task']['lock']
+            ));
+        }
+        
+        $this->send_request(array('action' => 'configure_queue', 'priority_inheritance' => false));
+    }
+}
@@ -0,0 +1,73 @@
+<?php
+
+
+/**
+ * This test checks that removing a group removes all of its tasks, wherever they are, and leaves
+ * the tasks in other groups alone.
+ */
+
+class TestRemoveGroup extends TestAbstract
+{
+    public function getErrorMessage() 
+    {
+        return "TestRemoveGroup: " . $this->m_error;
+    }
+    
+    
+    public function test() 
+    {
+        $this->m_successful = true;
+        $keptTaskIds = array();
+        $previousTaskId = null;
+        
+        # Each task in the doomed group depends on the one before, so some are waiting on 
+        # dependencies when the group is removed.
+        for ($s=0; $s<10; $s++)
+        {
+            $dependencies = ($previousTaskId === null) ? array() : array($previousTaskId);
+            $previousTaskId = $this->add_task("doomed_task", $dependencies, array('group' => "doomed_group"));
+            $keptTaskIds[] = $this->add_task("kept_task", array(), array('group' => "kept_group"));
+        }
+        
+        # Check out one of the doomed tasks so that the group is also being processed.
+        $this->send_request(array('action' => 'get_task'));
+        
+        $response = $this->send_request(array('action' => 'remove_group', 'group' => 'doomed_group'));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['num_removed'] !== 10)
+        {
+            $this->fail("failed to remove the group: " . print_r($response, true));
+            return;
+        }
+        
+        # Only the tasks in the other group should be left.
+        $receivedTaskIds = array();
+        
+        while (true)
+        {
+            $response = $this->send_request(array('action' => 'get_task'));
+            
+            if ($response['result'] !== 'success')
+            {
+                break;
+            }
+            
+            $task = $response['cargo']['task'];
+            $receivedTaskIds[] = $task['id'];
+            
+            $this->send_request(array(
+                'action'  => 'complete_task', 
+                'task_id' => $task['id'], 
+                'lock'    => $task['lock']
+            ));
+        }
+        
+        $missingTaskIds = array_diff($keptTaskIds, $receivedTaskIds);
+        
+        if (count($missingTaskIds) > 0 || count($receivedTaskIds) !== count($keptTaskIds))
+        {
+            $this->fail("expected to only receive the tasks in kept_group, got: " . 
+                        print_r($receivedTaskIds, true));
+        }
+    }
+}
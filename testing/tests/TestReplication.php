@@ -0,0 +1,141 @@
+<?php
+
+
+/**
+ * This test checks that a follower keeps a copy of its leader's queue. The follower starts after
+ * the leader already has tasks, so it gets those from a snapshot, and the changes made after that
+ * are streamed to it as journal records. Once it has caught up, it is promoted and should then
+ * have the same queue as the leader (with the leases requeued) and accept new tasks.
+ */
+
+class TestReplication extends TestAbstract
+{
+    private $m_leader = null;
+    private $m_follower = null;
+
+
+    public function getErrorMessage()
+    {
+        return "TestReplication: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        global $globals;
+        $this->m_successful = true;
+        $port = $globals['LOCAL_SCHEDULER_PORT'];
+
+        if ($port == 0)
+        {
+            print "Skipping TestReplication because LOCAL_SCHEDULER_PORT is set to 0" . PHP_EOL;
+            return;
+        }
+
+        $this->m_leader = new LocalScheduler(
+            $port,
+            array('JOURNAL_DIR' => 'journal', 'REPLICATION_PORT' => (string)($port + 1))
+        );
+
+        $this->m_follower = new LocalScheduler(
+            $port + 2,
+            array('JOURNAL_DIR' => 'journal', 'LEADER_ADDRESS' => '127.0.0.1:' . ($port + 1))
+        );
+
+        try
+        {
+            $this->m_leader->start();
+            $this->check_replication();
+        }
+        catch (Exception $e)
+        {
+            $this->fail($e->getMessage());
+        }
+
+        $this->m_follower->destroy();
+        $this->m_leader->destroy();
+    }
+
+
+    /**
+     * The tests in here add tasks to the leader rather than the shared scheduler.
+     */
+    protected function send_request(array $request)
+    {
+        return $this->m_leader->send_request($request);
+    }
+
+
+    private function check_replication()
+    {
+        # These are in the snapshot that the follower starts from.
+        $firstTaskId = $this->add_task('first');
+        $secondTaskId = $this->add_task('second', array($firstTaskId), array('group' => 'replicated_group'));
+        $this->add_task('third', array($secondTaskId));
+        $this->send_request(array('action' => 'get_task'));
+
+        $this->m_follower->start();
+
+        # These are streamed to the follower as records.
+        $this->add_task('streamed', array($secondTaskId), array('priority' => 5));
+        $this->add_task('streamed_group', array(), array('group' => 'streamed_group'));
+        $this->add_task('removed', array(), array('group' => 'removed_group'));
+        $this->send_request(array('action' => 'remove_group', 'group' => 'removed_group'));
+        $response = $this->send_request(array('action' => 'get_task'));
+        $task = $response['cargo']['task'];
+        $this->send_request(array('action' => 'complete_task', 'task_id' => $task['id'], 'lock' => $task['lock']));
+
+        # The follower catches up in the background, so give it a while to.
+        $leaderContents = $this->m_leader->get_contents();
+        $followerContents = $this->m_follower->get_contents();
+
+        for ($attempt = 0; $attempt < 100 && $followerContents != $leaderContents; $attempt++)
+        {
+            usleep(100000);
+            $followerContents = $this->m_follower->get_contents();
+        }
+
+        if ($followerContents != $leaderContents)
+        {
+            $this->fail("the follower did not catch up: " . print_r(array($leaderContents, $followerContents), true));
+            return;
+        }
+
+        $response = $this->m_follower->send_request(array('action' => 'add_task', 'task_name' => 'too_soon'));
+
+        if ($response['result'] !== 'error')
+        {
+            $this->fail("the follower accepted a task before it was promoted.");
+            return;
+        }
+
+        $response = $this->m_follower->send_request(array('action' => 'promote'));
+
+        if ($response['result'] !== 'success')
+        {
+            $this->fail("failed to promote the follower: " . print_r($response, true));
+            return;
+        }
+
+        # The lease on the leader does not carry over, so that task is available again.
+        $expected = $leaderContents;
+        $expected['processing_tasks'] = array();
+        $expected['available_tasks'] = array_merge($leaderContents['available_tasks'], $leaderContents['processing_tasks']);
+        sort($expected['available_tasks']);
+        $promotedContents = $this->m_follower->get_contents();
+
+        if ($leaderContents['processing_tasks'] !== array($firstTaskId) || $promotedContents != $expected)
+        {
+            $this->fail("the promoted follower has a different queue: " . print_r(array($expected, $promotedContents), true));
+            return;
+        }
+
+        # New tasks carry on from the leader's ids rather than reusing them.
+        $response = $this->m_follower->send_request(array('action' => 'add_task', 'task_name' => 'after_promotion'));
+
+        if ($response['result'] !== 'success' || $response['cargo']['task_id'] <= max(array_keys($leaderContents['tasks'])))
+        {
+            $this->fail("the promoted follower did not accept a new task: " . print_r($response, true));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+<?php
+
+
+/**
+ * This test checks that a queue comes back from its snapshot. Stopping a scheduler gracefully
+ * takes a final snapshot and starts a new generation of journal, after which the older journal is
+ * deleted. Changes made after the restart go into the newer journal, so when the scheduler is then
+ * killed, it has to load the snapshot and replay that journal on top of it to get the queue back.
+ */
+
+class TestSnapshot extends TestAbstract
+{
+    private $m_local = null;
+
+
+    public function getErrorMessage()
+    {
+        return "TestSnapshot: " . $this->m_error;
+    }
+
+
+    public function test()
+    {
+        global $globals;
+        $this->m_successful = true;
+
+        if ($globals['LOCAL_SCHEDULER_PORT'] == 0)
+        {
+            print "Skipping TestSnapshot because LOCAL_SCHEDULER_PORT is set to 0" . PHP_EOL;
+            return;
+        }
+
+        $this->m_local = new LocalScheduler($globals['LOCAL_SCHEDULER_PORT'], array('JOURNAL_DIR' => 'journal'));
+
+        try
+        {
+            $this->m_local->start();
+            $this->check_snapshot();
+        }
+        catch (Exception $e)
+        {
+            $this->fail($e->getMessage());
+        }
+
+        $this->m_local->destroy();
+    }
+
+
+    /**
+     * The tests in here add tasks to the local scheduler rather than the shared one.
+     */
+    protected function send_request(array $request)
+    {
+        return $this->m_local->send_request($request);
+    }
+
+
+    private function check_snapshot()
+    {
+        $firstTaskId = $this->add_task('first');
+        $secondTaskId = $this->add_task('second', array($firstTaskId), array('group' => 'snapshot_group'));
+        $this->add_task('third', array($secondTaskId));
+        $this->send_request(array('action' => 'get_task'));
+
+        $before = $this->m_local->get_contents();
+        $this->m_local->stop();
+        $this->m_local->start();
+        $after = $this->m_local->get_contents();
+
+        # The task that was being processed is available again after the restart.
+        $expected = $before;
+        $expected['processing_tasks'] = array();
+        $expected['available_tasks'] = array($firstTaskId);
+
+        if ($before['processing_tasks'] !== array($firstTaskId) || $after != $expected)
+        {
+            $this->fail("the queue changed across the graceful restart: " . print_r(array($before, $after), true));
+            return;
+        }
+
+        # These go into the newer journal, after the snapshot.
+        $this->add_task('newer', array($secondTaskId));
+        $this->add_task('newer_group', array(), array('group' => 'newer_group'));
+        $response = $this->send_request(array('action' => 'get_task'));
+        $task = $response['cargo']['task'];
+        $this->send_request(array('action' => 'complete_task', 'task_id' => $task['id'], 'lock' => $task['lock']));
+
+        $before = $this->m_local->get_contents();
+        $this->m_local->kill();
+
+        $journalDirectory = $this->m_local->get_path('journal');
+        $snapshots = glob($journalDirectory . '/*.snapshot');
+        $journals = glob($journalDirectory . '/*.journal');
+        $firstJournals = glob($journalDirectory . '/*.0.journal');
+
+        if (count($snapshots) !== 1 || count($journals) === 0 || count($firstJournals) !== 0)
+        {
+            $this->fail("expected a snapshot and only the newer journal: " . print_r(scandir($journalDirectory), true));
+            return;
+        }
+
+        $this->m_local->start();
+        $after = $this->m_local->get_contents();
+
+        if ($after != $before)
+        {
+            $this->fail("the queue changed when restored from the snapshot: " . print_r(array($before, $after), true));
+        }
+    }
+}
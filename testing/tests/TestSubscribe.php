@@ -0,0 +1,99 @@
+<?php
+
+
+/**
+ * This test checks that a worker that subscribes to a queue has tasks pushed to it as they are 
+ * added, no more at a time than it has credits for, that completing a task frees up its credit for
+ * the next, and that the tasks it has not finished are put back when it disconnects.
+ */
+
+class TestSubscribe extends TestAbstract
+{
+    public function getErrorMessage()
+    {
+        return "TestSubscribe: " . $this->m_error;
+    }
+    
+    
+    public function test()
+    {
+        $this->m_successful = true;
+        
+        global $globals;
+        $workerSocket = fsockopen($globals['SCHEDULER_ADDRESS'], $globals['SCHEDULER_PORT']);
+        stream_set_timeout($workerSocket, 2);
+        
+        $subscribeRequest = array(
+            'action'     => 'subscribe',
+            'queue_name' => $globals['SCHEDULER_QUEUE'],
+            'credits'    => 1
+        );
+        
+        fwrite($workerSocket, json_encode($subscribeRequest) . PHP_EOL);
+        $response = json_decode(fgets($workerSocket), $assoc=true);
+        
+        if ($response['result'] !== 'success')
+        {
+            $this->fail("failed to subscribe: " . print_r($response, true));
+            return;
+        }
+        
+        $firstTaskId = $this->add_task('first');
+        $secondTaskId = $this->add_task('second');
+        
+        # With only one credit, just the first task should be pushed.
+        $push = json_decode(fgets($workerSocket), $assoc=true);
+        
+        if ($push['push'] !== 'task' || $push['cargo']['task']['id'] !== $firstTaskId)
+        {
+            $this->fail("first task was not pushed: " . print_r($push, true));
+            return;
+        }
+        
+        $completeRequest = array(
+            'action'     => 'complete_task',
+            'queue_name' => $globals['SCHEDULER_QUEUE'],
+            'task_id'    => $firstTaskId,
+            'lock'       => $push['cargo']['task']['lock']
+        );
+        
+        fwrite($workerSocket, json_encode($completeRequest) . PHP_EOL);
+        
+        # Completing the task frees up the credit, so the second task should be pushed, either side
+        # of the response to the complete_task.
+        $push = null;
+        
+        for ($i = 0; $i < 2; $i++)
+        {
+            $message = json_decode(fgets($workerSocket), $assoc=true);
+            
+            if (isset($message['push']))
+            {
+                $push = $message;
+            }
+        }
+        
+        if ($push === null || $push['cargo']['task']['id'] !== $secondTaskId)
+        {
+            $this->fail("second task was not pushed after completing the first: " . print_r($push, true));
+            return;
+        }
+        
+        # Disconnecting without finishing the second task should put it back for somebody else.
+        fclose($workerSocket);
+        usleep(200000);
+        $response = $this->send_request(array('action' => 'get_task'));
+        
+        if ($response['result'] !== 'success' || $response['cargo']['task']['id'] !== $secondTaskId)
+        {
+            $this->fail("unfinished task was not put back on disconnect: " . print_r($response, true));
+            return;
+        }
+        
+        $this->send_request(array(
+            'action'  => 'complete_task',
+            'task_id' => $secondTaskId,
+            'lock'    => $response['cargo']['task']['lock']
+        ));
+    }
+}